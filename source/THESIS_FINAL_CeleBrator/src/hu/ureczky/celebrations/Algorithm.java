@@ -1,136 +1,301 @@
 package hu.ureczky.celebrations;
 
+import android.annotation.TargetApi;
 import android.location.Location;
+import android.os.Build;
 import android.util.Log;
 
-import hu.ureczky.celebrations.State.PositionResult;
-import hu.ureczky.celebrations.State.Result;
-import hu.ureczky.celebrations.State.TimeResult;
-import hu.ureczky.celebrations.astronomy.CelestialPosition;
-import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
-import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.celebrations.solver.CelestialFix;
+import hu.ureczky.celebrations.solver.CompassCalibrator;
+import hu.ureczky.celebrations.solver.GridSearch;
+import hu.ureczky.celebrations.solver.LevenbergMarquardt;
+import hu.ureczky.celebrations.solver.PositionFix;
+import hu.ureczky.celebrations.solver.TimeFix;
+import hu.ureczky.celebrations.solver.TimeSearch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Algorithm {
     
     private static final String TAG = "Algorithm";
     
-    private static float mAzimuthDegMagn;
-    private static float mElevationDeg;
-    private static float mMagnInclination;
-    private static float mMagnIntensity;
-    private static Target mTarget;
-    private static long mTimeStamp;
-    private static GeomagneticField mGMF;
+    /** How the position is searched. */
+    public enum SearchMode {
+        /** Coarse-to-fine grid, evaluated on the calling thread. */
+        GRID,
+        /** The same grid, the longitude strips of every level are evaluated on a ForkJoinPool (API 21+, otherwise GRID). */
+        GRID_PARALLEL,
+        /** The same grid, with the points skipped whose error can not reach the best one (the result is the same as GRID, within the bounds of PositionError.lowerBound). */
+        GRID_BRANCH_AND_BOUND,
+        /** Levenberg-Marquardt iteration from a coarse grid start point, the full grid is the fallback. */
+        LEVENBERG_MARQUARDT,
+        /** Circles of equal altitude of all position sightings of a session (see {@link Algorithm#solveSession(Session, List, Result)}),
+         *  LEVENBERG_MARQUARDT for a single sighting. */
+        CELESTIAL_FIX
+    }
+    
+    // Default solver of the static API
+    private static volatile Algorithm mDefault = new Algorithm(SearchMode.GRID);
+    private static ForkJoinPool mPool;
     
-    // Maximum differences in sensor values
-    private static final float DIFF_MAGNETIC_INTENSITY   = 75-15;
-    private static final float DIFF_MAGNETIC_INCLINATION = 180;
-    private static final float DIFF_ELEVATION = 180;
-    private static final float DIFF_AZIMUTH = 180;
+    // Batch solving: bounded queue, the submitting thread runs the task when it is full
+    private static final int BATCH_QUEUE_PER_THREAD = 2;
     
-    public static Location calculate(Result input_raw) {
+    private final SearchMode mSearchMode;
+    
+    /**
+     * Incremental celestial fix of the position sightings of a session, owned by the caller (see {@link #newSession()}).
+     * <br/> The sightings are added once, every fix starts from the previous one.
+     */
+    public static class Session {
+        private final CelestialFix mFix = new CelestialFix();
+        private final Set<Result> mResults = new HashSet<Result>(); // added sightings (compared by identity)
         
-        //TODO
-        switch(input_raw.mTaskType) {
-            case POSITION: {
-                PositionResult input = (PositionResult) input_raw;
-                return calculatePosition(input);
+        private Session() {}
+    }
+    
+    /**
+     * Immutable solver, {@link #solve(Result)} can be called from any thread.
+     */
+    public Algorithm(SearchMode searchMode) {
+        mSearchMode = searchMode;
+    }
+    
+    public SearchMode getSearchMode() {
+        return mSearchMode;
+    }
+    
+    /** Sets the search mode of the static {@link #calculate(Result)}. */
+    public static void setSearchMode(SearchMode searchMode) {
+        mDefault = new Algorithm(searchMode);
+    }
+    
+    /** @return new empty session for {@link #solveSession(Session, List, Result)} */
+    public static Session newSession() {
+        return new Session();
+    }
+    
+    /**
+     * Solve with the default solver (see {@link #setSearchMode(SearchMode)}).
+     * <br/> In CELESTIAL_FIX mode the sighting is solved together with all sightings of State.mResults (in the State's session).
+     * <br/> A solved POSITION is kept in the State, as the known position of the TIME and COMPASS tasks:
+     * they are not solved (null) until a position was solved.
+     * <br/> The COMPASS task's result is the State's running calibration (see {@link #solveCompass}).
+     */
+    public static Location calculate(Result input_raw) {
+        Algorithm algorithm = mDefault;
+        State state = State.getInstance();
+        boolean knownPosition = (input_raw.mTaskType == TaskType.TIME || input_raw.mTaskType == TaskType.COMPASS);
+        if(knownPosition && !state.hasPosition()) {
+            Log.w(TAG, "The position is not known, solve a POSITION task first");
+            return null;
+        }
+        if(input_raw.mTaskType == TaskType.COMPASS) {
+            return algorithm.solveCompass(state.getCompassCalibrator(), (CompassResult) input_raw);
+        }
+        Location loc = null;
+        if(algorithm.mSearchMode == SearchMode.CELESTIAL_FIX && input_raw.mTaskType == TaskType.POSITION) {
+            loc = algorithm.solveSession(state.getSession(), state.getResults(), input_raw);
+        }
+        if(loc == null) {
+            loc = algorithm.solve(input_raw);
+        }
+        if(loc != null && input_raw.mTaskType == TaskType.POSITION) {
+            state.setPosition(loc.getLatitude(), loc.getLongitude());
+        }
+        return loc;
+    }
+    
+    /**
+     * Solve one measurement. Thread-safe: every call works on its own state.
+     * <br/> A COMPASS measurement is not solved alone, it is one sample of a running calibration (see {@link #solveCompass}).
+     * @return the position (POSITION), the time at the known position (TIME), or null
+     * (also if the ephemeris can not be evaluated at the time of the measurement)
+     */
+    public Location solve(Result input_raw) {
+        try {
+            switch(input_raw.mTaskType) {
+                case POSITION: {
+                    PositionResult input = (PositionResult) input_raw;
+                    return calculatePosition(input);
+                }
+                case TIME: {
+                    TimeResult input = (TimeResult) input_raw;
+                    return calculateTime(input);
+                }
+                case COMPASS:
+                    Log.e(TAG, "The compass is calibrated by a CompassCalibrator, see solveCompass");
+                    break;
+                default:
+                    Log.e(TAG, "Unknown Result Type");
             }
-            case TIME: {
-                TimeResult input = (TimeResult) input_raw;
-                //TODO return calculateTime();
-                break;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Solving failed", e);
+        }
+        return null;
+    }
+    
+    /**
+     * Solve many measurements concurrently, on a bounded pool of one thread per core.
+     * @return the solutions in the order of the inputs
+     */
+    public List<Location> solveAll(List<? extends Result> inputs) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * BATCH_QUEUE_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            return solveAll(inputs, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Solve many measurements concurrently on the given executor.
+     * @return the solutions in the order of the inputs
+     */
+    public List<Location> solveAll(List<? extends Result> inputs, ExecutorService executor) throws InterruptedException {
+        List<Future<Location>> futures = new ArrayList<Future<Location>>(inputs.size());
+        for(final Result input : inputs) {
+            futures.add(executor.submit(new Callable<Location>() {
+                @Override
+                public Location call() {
+                    return solve(input);
+                }
+            }));
+        }
+        List<Location> locations = new ArrayList<Location>(inputs.size());
+        for(Future<Location> future : futures) {
+            try {
+                locations.add(future.get());
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Solving failed", e.getCause());
+                locations.add(null);
             }
-            case COMPASS: {
-                //CompassResult input = (CompassResult) input_raw;
-              //TODO return calculateCompass();
-                break;
+        }
+        return locations;
+    }
+    
+    /**
+     * Celestial fix of all position sightings of a session and of the given sighting.
+     * <br/> Incremental: the results which are new to the session are added to it, the fix starts from the previous one.
+     * The sighting is solved with them, but it is not added, unless it is one of the results (e.g. a live sample).
+     * Calls of the same session are serialized.
+     * @param sighting solved with the results (null, or it may be one of them)
+     * @return the position, or null if there are less than two sightings
+     * (or the ephemeris can not be evaluated at the time of one, it is left out of the session)
+     */
+    public Location solveSession(Session session, List<? extends Result> results, Result sighting) {
+        PositionFix fix;
+        synchronized(session) {
+            try {
+                for(Result result : results) {
+                    if(result.mTaskType == TaskType.POSITION && session.mResults.add(result)) {
+                        session.mFix.add((PositionResult) result);
+                    }
+                }
+                if(sighting != null && sighting.mTaskType == TaskType.POSITION && !session.mResults.contains(sighting)) {
+                    fix = session.mFix.solve((PositionResult) sighting);
+                } else {
+                    fix = session.mFix.solve();
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Solving failed", e);
+                return null;
             }
-            default:
-                Log.e(TAG, "Unknown Result Type");
         }
-        return null;
+        return (fix != null) ? toLocation(fix) : null;
     }
     
-    private static Location calculatePosition(PositionResult input) {
-        mTimeStamp = input.mTimeStamp;
-        mTarget = input.mTargetType;
-        mGMF = GeomagneticFieldFactory.create(mTimeStamp);
-        
-        // Measured angles
-        mAzimuthDegMagn  = (float) input.mAzimuth;
-        mElevationDeg    = (float) input.mElevation;
-        mMagnInclination = input.mMagnInclination;
-        mMagnIntensity   = input.mMagnIntesity;
-        
-        double finalLat = 0, finalLon = 0;     // currently found optimal position
-        double optLat = 0, optLon = 0;         // optimal position of the previous iteration
-        double lat, lon;                       // currently examined position
-        //double azimuthDegMagn, elevationDeg;   // currently examined position's calculated azimuth, elevation
-        //double errAzimuthDeg, errElevationDeg; // difference of the azimuth and elevation to the currently examined positions calculated azimuth and elevation
-        double err;                            // error points calculated from errAzimuth, errElevation
-        double errMin = Double.MAX_VALUE;
+    private Location calculatePosition(PositionResult input) {
         
         long t0 = System.currentTimeMillis();
         
-        for(double d = 20; d > 0.1; d /= 4) { // d: distance of the points (resolution)
-            for(int i = -9; i < 9; i++) {
-                lon = optLon + i * d;
-                for(int j = -4; j <= 4; j++) {
-                    lat = optLat + j * d;
-                    if(lat > 80 || lat < -80)  // exclude poles and the near area
-                        continue;
-                    
-                    // Calculate
-                    err = errorCalc(lat, lon);
-                    
-                    if(err < errMin) {
-                        errMin  = err;
-                        finalLat = lat;
-                        finalLon = lon;
-                    }
-                }
-            }
-            optLat = finalLat;
-            optLon = finalLon;
+        PositionFix fix;
+        if(mSearchMode == SearchMode.LEVENBERG_MARQUARDT || mSearchMode == SearchMode.CELESTIAL_FIX) {
+            fix = LevenbergMarquardt.search(input); // One sighting does not determine a celestial fix
+        } else if(mSearchMode == SearchMode.GRID_PARALLEL && isParallelSupported()) {
+            fix = GridSearch.search(input, getPool());
+        } else if(mSearchMode == SearchMode.GRID_BRANCH_AND_BOUND) {
+            fix = GridSearch.searchBranchAndBound(input);
+        } else {
+            fix = GridSearch.search(input);
         }
         
         // Calculation time
         long t1 = System.currentTimeMillis();
         Log.d(TAG, "Calculation time:" + (t1-t0) + "ms");
         
-        // Return location
+        return toLocation(fix);
+    }
+    
+    private static Location toLocation(PositionFix fix) {
         Location loc = new Location("");
-        loc.setLatitude(optLat);
-        loc.setLongitude(optLon);
-        // float e = errorCalc(optLat, optLon); //DEGUG
+        loc.setLatitude(fix.mLatitude);
+        loc.setLongitude(fix.mLongitude);
         return loc;
     }
     
-    private static float errorCalc(double lat, double lon) {
-        CelestialPosition cp = new CelestialPosition(mTarget, mTimeStamp, lat, lon);
-        float azimuthDegMagn = (float) cp.mAzimuthDegMagn;
-        float elevationDeg   = (float) cp.mElevationDeg;
+    private Location calculateTime(TimeResult input) {
+        
+        long t0 = System.nanoTime();
         
-        mGMF.setParameters((float)lat, (float)lon, 0 /*TODO*/);
-        float magneticIntensity = mGMF.getFieldStrength() / 1000f;
-        float magneticInclination = mGMF.getInclination();
+        TimeFix fix = TimeSearch.search(input);
         
-        float errMagnInt   = getSqError(mMagnIntensity,   magneticIntensity,   DIFF_MAGNETIC_INTENSITY);
-        float errMagnInc   = getSqError(mMagnInclination, magneticInclination, DIFF_MAGNETIC_INCLINATION);
-        float errAzimuth   = getSqError(mAzimuthDegMagn,  azimuthDegMagn,      DIFF_AZIMUTH);
-        float errElevation = getSqError(mElevationDeg,    elevationDeg,        DIFF_ELEVATION);
+        // Calculation time
+        long t1 = System.nanoTime();
+        Log.d(TAG, "Calculation time:" + (t1-t0) / 1000 + "us");
         
-        //TODO miket szamoljon
-        //float err          = errMagnInt + errMagnInc;
-        //float err          = errAzimuth + errElevation;
-        float err          = errMagnInt + errMagnInc + errAzimuth + errElevation;
-        return err;
+        // Return the known location, with the calculated time
+        Location loc = new Location("");
+        loc.setLatitude(input.mLat);
+        loc.setLongitude(input.mLon);
+        loc.setTime(fix.mTimeStamp);
+        return loc;
     }
     
-    private static float getSqError(float a, float b, float maxDiff) {
-        float relDiff = (a - b) / maxDiff;
-        return relDiff * relDiff;
+    /**
+     * Heading offset of a COMPASS measurement: the running offset of the calibrator fed with the samples
+     * (e.g. every sensor sample, see SensorWatcher), the measurement itself is one of them.
+     * @param calibrator the calibration of the measurement's target (null, if none is running)
+     * @return the calibrator's known location, with the offset as bearing (true azimuth = measured + offset),
+     * or null if no sample of the target was aimed at it
+     */
+    public Location solveCompass(CompassCalibrator calibrator, CompassResult input) {
+        if(calibrator == null || calibrator.getTarget() != input.mTargetType || calibrator.getSamples() == 0) {
+            Log.w(TAG, "Not aimed at the target");
+            return null;
+        }
         
+        Location loc = new Location("");
+        loc.setLatitude(calibrator.getLatitude());
+        loc.setLongitude(calibrator.getLongitude());
+        loc.setBearing((float) calibrator.getOffset());
+        return loc;
+    }
+    
+    private static boolean isParallelSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP; // ForkJoinPool is available from API 21
+    }
+    
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static synchronized ForkJoinPool getPool() {
+        if(mPool == null) {
+            mPool = new ForkJoinPool();
+        }
+        return mPool;
     }
 }
@@ -15,7 +15,6 @@ import android.view.SurfaceView;
 import android.view.View;
 import android.widget.Toast;
 
-import hu.ureczky.celebrations.State.Result;
 import hu.ureczky.utils.CameraUtils;
 import hu.ureczky.utils.MediaScannerHacker;
 import hu.ureczky.utils.astro.Astronomy;
@@ -170,6 +169,9 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
             
             // Calculate the estimated position
             Location optLoc = Algorithm.calculate(mState.getLastResult());
+            if(optLoc == null) {
+                return;
+            }
             double optLatD = optLoc.getLatitude();
             double optLonD = optLoc.getLongitude();
                         
@@ -0,0 +1,7 @@
+package hu.ureczky.celebrations;
+
+public class CompassResult extends Result {
+    public double mLon, mLat;
+    public double mAzimuth;   // relative heading (game rotation vector)
+    public double mElevation;
+}
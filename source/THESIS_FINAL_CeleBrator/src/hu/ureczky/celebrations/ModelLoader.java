@@ -0,0 +1,102 @@
+package hu.ureczky.celebrations;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import hu.ureczky.celebrations.astronomy.implementations.ChebyshevEphemeris;
+import hu.ureczky.utils.TimeUtils;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.COFLoader;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Loads the models bundled with the app once, at its start (see the activities' onCreate).
+ * <br/> Geomagnetic models: every .COF file of the assets' wmm directory (the official coefficient files,
+ * e.g. a newer WMM can be dropped in) is registered in the {@link GeomagneticFieldFactory}.
+ * <br/> Ephemeris: the {@link ChebyshevEphemeris} of the current and the next year is mapped from the cache directory
+ * (built there at the first start of a year) and registered for the solvers, on a background thread.
+ * Until it is registered, the solvers compute the states from the series.
+ */
+public class ModelLoader {
+
+    private static final String TAG = "ModelLoader";
+
+    private static final String WMM_DIR_NAME = "wmm";
+
+    private static final String EPHEMERIS_FILE_NAME = "ephemeris.bin";
+    private static final int EPHEMERIS_YEARS = 2;
+
+    private static boolean mLoaded;
+
+    public static synchronized void load(Context context) {
+        if(mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        registerGeomagneticModels(context.getAssets());
+        registerEphemeris(new File(context.getCacheDir(), EPHEMERIS_FILE_NAME));
+    }
+
+    private static void registerGeomagneticModels(AssetManager assets) {
+        WMMModel newest = null;
+        try {
+            String[] names = assets.list(WMM_DIR_NAME);
+            for(String name : (names != null) ? names : new String[0]) {
+                if(!name.toUpperCase(Locale.US).endsWith(".COF")) {
+                    continue;
+                }
+                Reader reader = new InputStreamReader(assets.open(WMM_DIR_NAME + "/" + name), "US-ASCII");
+                try {
+                    WMMModel model = COFLoader.parse(reader);
+                    GeomagneticFieldFactory.register(model);
+                    Log.i(TAG, "Registered " + model.getName() + " (" + name + ")");
+                    if(newest == null || model.getBaseYear() > newest.getBaseYear()) {
+                        newest = model;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load the geomagnetic models", e);
+        }
+
+        // The current time must be evaluated by the newest model, within its validity
+        long now = System.currentTimeMillis();
+        WMMModel current = GeomagneticFieldFactory.getModel(now);
+        if(newest != null && current != newest) {
+            Log.e(TAG, "The current geomagnetic model is " + current.getName() + " instead of " + newest.getName());
+        }
+        if(now < current.getValidFrom() || now >= current.getValidTo()) {
+            Log.e(TAG, current.getName() + " is extrapolated beyond its validity, bundle a newer .COF file");
+        }
+    }
+
+    private static void registerEphemeris(final File file) {
+        // Whole years, so the cached file is rebuilt only once a year
+        int year = TimeUtils.getYear(System.currentTimeMillis());
+        final long start = TimeUtils.getTimeStampFromJulianDay(TimeUtils.getJulianDayAtYearBeginning(year));
+        final long end   = TimeUtils.getTimeStampFromJulianDay(TimeUtils.getJulianDayAtYearBeginning(year + EPHEMERIS_YEARS));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ChebyshevEphemeris.register(ChebyshevEphemeris.loadOrBuild(file, start, end));
+                    Log.i(TAG, "Registered the ephemeris (" + file + ")");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to build the ephemeris, the series are used", e);
+                }
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); // Do not compete with the UI and the solvers
+        thread.start();
+    }
+}
@@ -0,0 +1,10 @@
+package hu.ureczky.celebrations;
+
+public class PositionResult extends Result {
+    public double mAzimuth;
+    public double mElevation;
+    public float mMagnIntesity;
+    public float mMagnInclination;
+    public float mPressurePa;
+    public float mTemperatureC;
+}
@@ -0,0 +1,10 @@
+package hu.ureczky.celebrations;
+
+/**
+ * Measurement of a task (see {@link State#mResults}), platform independent, so the solvers run on a desktop JVM too.
+ */
+public class Result {
+    public TaskType mTaskType;
+    public Target mTargetType;
+    public long mTimeStamp;
+}
@@ -13,9 +13,8 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.List;
 
-import hu.ureczky.celebrations.State.PositionResult;
-import hu.ureczky.celebrations.State.Result;
 import hu.ureczky.celebrations.astronomy.CelestialPosition;
+import hu.ureczky.celebrations.solver.CompassCalibrator;
 import hu.ureczky.utils.SensorUtils;
 import hu.ureczky.utils.TimeUtils;
 import hu.ureczky.utils.astro.Astronomy;
@@ -63,10 +62,21 @@ public class SensorWatcher {
     private static final float DEFAULT_TEMPERATURE_C = (float) AtmosphericRefraction.BASE_TEMP_C;
     private static final float DEFAULT_PRESSURE_PA   = (float) AtmosphericRefraction.BASE_PRESS_PA;
     
+    // Desired orientation and magnetic field at the reference location, refreshed at most every REFERENCE_INTERVAL
+    private static final long REFERENCE_INTERVAL = 1000; // ms
+    private long mReferenceTime;
+    private Target mReferenceTarget;
     private double azimuthAngle0;
     private double elevationAngle0;
+    private float mMagnIntensity0;
+    private float mMagnInclination0;
+    private float mMagnDeclination0;
     
+    // Live position, solved in the background
+    private static final long SOLVE_INTERVAL = 250; // ms
+    private final StreamingSolver mStreamingSolver;
     long mLastCalcTime = 0;
+    boolean mHasFix = false;
     double mLat;
     double mLon;
     
@@ -86,15 +96,25 @@ public class SensorWatcher {
         mPressure_Pa   = DEFAULT_PRESSURE_PA;
         
         mRotation = rotation;
+        mStreamingSolver = new StreamingSolver(new StreamingSolver.Listener() {
+            @Override
+            public void onFix(Location location) {
+                mLat = location.getLatitude();
+                mLon = location.getLongitude();
+                mHasFix = true;
+            }
+        });
         onResume();
     }
     
     public void onResume() {
         registerListeners();
+        mStreamingSolver.start();
     }
     
     public void onPause() {    
         mSensorManager.unregisterListener(sensorEventListener);
+        mStreamingSolver.stop();
     }
     
     private void registerListeners() {
@@ -151,6 +171,7 @@ public class SensorWatcher {
                     SensorManager.getRotationMatrixFromVector(mRotationMatrix, sensorValues);
                     
                     mGravity = SensorUtils.getGravityFromRotationVector(sensorValues);
+                    updateOrientation();
                     
                     //TODO ezeket trlni
                     calculate();
@@ -163,6 +184,12 @@ public class SensorWatcher {
                     SensorManager.getRotationMatrixFromVector(mRotationMatrix, sensorValues);
                     
                     mGravity = SensorUtils.getGravityFromRotationVector(sensorValues);
+                    updateOrientation();
+                    
+                    // Every sample calibrates (the calibrator interpolates its cached ephemeris)
+                    if(State.getInstance().mTaskType == TaskType.COMPASS) {
+                        updateCompass(System.currentTimeMillis());
+                    }
                     
                     //TODO ezeket trlni
                     calculate();
@@ -241,38 +268,7 @@ public class SensorWatcher {
     
       */  
         
-        float _1 = SensorUtils.toUnit(mGravity, mGravityUnit);
-        //mGravityIntensity = (float) SensorUtils.vectorLen(mGravity0); //would return constant 9.81
-        
-        mRollRad = (float) Math.atan2(mGravity[0], mGravity[1]);
-        mRollDeg = (float) Math.toDegrees(mRollRad);
-            
-        SensorUtils.remapForView(mRotationMatrix);
-        
-        SensorManager.getOrientation(mRotationMatrix, mOrientationValues);
-        
-        mAzimuthDegMagn = (float)Math.toDegrees(mOrientationValues[0]);
-        mElevationDeg   = (float)Math.toDegrees(mOrientationValues[1]);
-        //mRollDeg      = (float)Math.toDegrees(mOrientationValues[2]); //TODO miert nem jo
-        
-        mAzimuthDegMagn = (mAzimuthDegMagn + 360) % 360; //Convert from -180..180 to 0..360
-        mElevationDeg *=-1; //Up is positive
-        
-        // Desired orientation
-        float bpLon = (float) Astronomy.LON_BUD_DEG; 
-        float bpLat = (float) Astronomy.LAT_BUD_DEG;
-        float lon0 = bpLon;
-        float lat0 = bpLat;
-            
-        long timeStamp = System.currentTimeMillis();
-        CelestialPosition cp = new CelestialPosition(State.getInstance().mTarget, timeStamp, lat0, lon0);
-        azimuthAngle0   = cp.mAzimuthDegMagn;
-        elevationAngle0 = cp.mElevationDeg;
-        GeomagneticField gmf = GeomagneticFieldFactory.create(timeStamp);
-        gmf.setParameters(lat0, lon0, 0);
-        float magnIntensity0   = gmf.getFieldStrength() / 1000;
-        float magnInclination0 = gmf.getInclination();
-        float magnDeclination0 = gmf.getDeclination();
+        updateReference(t_now);
         
         //Pressure, altitude, temperature
         String pressureStr = "N/A";
@@ -317,9 +313,9 @@ public class SensorWatcher {
                 altitudeStr,
                 Math.round(100 * mTemperature_C   )/100f,
                 Math.round(100 * refraction_deg   )/100f,
-                Math.round(100 * mMagnIntensity   )/100f, magnIntensity0,
-                Math.round(100 * mMagnInclination )/100f, magnInclination0,
-                magnDeclination0,
+                Math.round(100 * mMagnIntensity   )/100f, mMagnIntensity0,
+                Math.round(100 * mMagnInclination )/100f, mMagnInclination0,
+                mMagnDeclination0,
               //Math.round(100 * mGravityIntensity)/100f,
                 State.getInstance().mZoomPercent
         );
@@ -348,32 +344,93 @@ public class SensorWatcher {
                 State.getInstance().mZoomPercent
         );
         
-        // DEBUG calculation
-//        long t = System.currentTimeMillis();
-//        if(t - mLastCalcTime > 1 * TimeUtils.MILLISECONDS_PER_SECOND) {
-//            State state = State.getInstance();
-//            //state.setSensorValues(this);
-//            Result r = state.getResult(this);
-//            //state.saveResult(sensorWatcher);
-//            Location optLoc = Algorithm.calculate(r); //TODO csak a last..
-//            mLat = optLoc.getLatitude();
-//            mLon = optLoc.getLongitude();
-//            mLastCalcTime = System.currentTimeMillis();
-//            infos += String.format(
-//                "-----------------------\n"+
-//                "Latitude   : %+8.2f \n"+
-//                "Longitude  : %+8.2f \n"+,
-//                Math.round(100 * mLat )/100f,
-//                Math.round(100 * mLon )/100f
-//                );
-//        }
+        // Live position (solved in the background)
+        if(mHasFix) {
+            infos += String.format(
+                "\n-----------------------\n"+
+                "Latitude   : %+8.2f \n"+
+                "Longitude  : %+8.2f ",
+                Math.round(100 * mLat )/100f,
+                Math.round(100 * mLon )/100f
+                );
+        }
         
         //Refresh results
         State state = State.getInstance();
         Result r = state.getResult(this);
+        if(r instanceof PositionResult && t_now - mLastCalcTime >= SOLVE_INTERVAL) {
+            mStreamingSolver.submit((PositionResult) r);
+            mLastCalcTime = t_now;
+        }
 
         String infoStr = state.mDebugEnabler.mDebugMode ? infos_DEBUG : infos;
+        CompassCalibrator calibrator = state.getCompassCalibrator();
+        if(state.mTaskType == TaskType.TIME && !state.hasPosition()) {
+            infoStr += "\nTime : unknown position, solve a POSITION task first";
+        } else if(state.mTaskType == TaskType.COMPASS && !state.hasPosition()) {
+            infoStr += "\nTrue north : unknown position, solve a POSITION task first";
+        } else if(calibrator != null && calibrator.getSamples() > 0) {
+            infoStr += String.format("\nTrue north : %+8.2f ", Math.round(100 * calibrator.getOffset())/100f);
+        }
         mInfoText.setText(infoStr);
         return infoStr;
     }
+    
+    /**
+     * Orientation (azimuth, elevation, roll) of the rotation matrix and the gravity, on every rotation sample.
+     */
+    private void updateOrientation() {
+        float _1 = SensorUtils.toUnit(mGravity, mGravityUnit);
+        //mGravityIntensity = (float) SensorUtils.vectorLen(mGravity0); //would return constant 9.81
+        
+        mRollRad = (float) Math.atan2(mGravity[0], mGravity[1]);
+        mRollDeg = (float) Math.toDegrees(mRollRad);
+            
+        SensorUtils.remapForView(mRotationMatrix);
+        
+        SensorManager.getOrientation(mRotationMatrix, mOrientationValues);
+        
+        mAzimuthDegMagn = (float)Math.toDegrees(mOrientationValues[0]);
+        mElevationDeg   = (float)Math.toDegrees(mOrientationValues[1]);
+        //mRollDeg      = (float)Math.toDegrees(mOrientationValues[2]); //TODO miert nem jo
+        
+        mAzimuthDegMagn = (mAzimuthDegMagn + 360) % 360; //Convert from -180..180 to 0..360
+        mElevationDeg *=-1; //Up is positive
+    }
+    
+    /**
+     * Desired orientation and magnetic field at the reference location.
+     * They change slowly, so they are recomputed only every REFERENCE_INTERVAL (or on a target change), not on every render.
+     */
+    private void updateReference(long timeStamp) {
+        Target target = State.getInstance().mTarget;
+        if(target == mReferenceTarget && timeStamp >= mReferenceTime && timeStamp < mReferenceTime + REFERENCE_INTERVAL) {
+            return;
+        }
+        mReferenceTarget = target;
+        mReferenceTime   = timeStamp;
+        
+        float lon0 = (float) Astronomy.LON_BUD_DEG; 
+        float lat0 = (float) Astronomy.LAT_BUD_DEG;
+        CelestialPosition cp = new CelestialPosition(target, timeStamp, lat0, lon0);
+        azimuthAngle0   = cp.mAzimuthDegMagn;
+        elevationAngle0 = cp.mElevationDeg;
+        GeomagneticField gmf = GeomagneticFieldFactory.create(timeStamp);
+        gmf.setParameters(lat0, lon0, 0);
+        mMagnIntensity0   = gmf.getFieldStrength() / 1000;
+        mMagnInclination0 = gmf.getInclination();
+        mMagnDeclination0 = gmf.getDeclination();
+    }
+    
+    /**
+     * Feed the State's true north calibration (the COMPASS task's result) with the current heading (relative, from the game rotation vector),
+     * from the known position: the last solved POSITION (see State.setPosition). Without it there is nothing to calibrate against.
+     */
+    private void updateCompass(long timeStamp) {
+        State state = State.getInstance();
+        CompassCalibrator calibrator = state.getCompassCalibrator(state.mTarget);
+        if(calibrator != null) {
+            calibrator.update(timeStamp, mAzimuthDegMagn, mElevationDeg);
+        }
+    }
 }
@@ -3,6 +3,7 @@ package hu.ureczky.celebrations;
 import android.util.JsonWriter;
 import android.util.Log;
 
+import hu.ureczky.celebrations.solver.CompassCalibrator;
 import hu.ureczky.utils.TimeUtils;
 
 import java.io.File;
@@ -32,6 +33,12 @@ public class State {
     
     public DebugEnabler mDebugEnabler = new DebugEnabler();
     
+    // Incremental celestial fix of mResults (see Algorithm.calculate)
+    private final Algorithm.Session mSession = Algorithm.newSession();
+    
+    // True north calibration of the COMPASS task, fed by the sensor thread (see SensorWatcher.updateCompass)
+    private volatile CompassCalibrator mCompassCalibrator;
+    
     // Do not instantiate (private)
     private State() {
         mOrientation    = new float[3];
@@ -39,27 +46,10 @@ public class State {
         mZoomPercent    = 100;
         mTarget         = Target.SUN;
         mTaskType       = TaskType.POSITION;
+        mResults        = new ArrayList<Result>();
     }
     
     // RESULTS
-    public class Result {
-        public TaskType mTaskType;
-        public Target mTargetType;
-        public long mTimeStamp;
-    }
-    public class PositionResult extends Result {
-        public double mAzimuth;
-        public double mElevation;
-        public float mMagnIntesity;
-        public float mMagnInclination;
-        public float mPressurePa;
-        public float mTemperatureC;
-    }
-    public class TimeResult extends Result {
-        public double mLon, mLat;
-        public float mPressurePa;
-        public float mTemperatureC;
-    }
     public List<Result> mResults;
     
     public void setSensorValues(SensorWatcher sensorWatcher) {
@@ -73,6 +63,12 @@ public class State {
     
     public Result getResult(SensorWatcher sensorWatcher) {
         setSensorValues(sensorWatcher);
+        // The position is set by the solver's thread (see setPosition)
+        float lat, lon;
+        synchronized(this) {
+            lat = mLatitude;
+            lon = mLongitude;
+        }
         switch(mTaskType) {
             case POSITION: {
                 PositionResult result = new PositionResult();
@@ -92,12 +88,25 @@ public class State {
                 result.mTaskType     = mTaskType;
                 result.mTargetType   = mTarget;
                 result.mTimeStamp    = mTimeStamp;
-                result.mLon          = mLongitude;
-                result.mLat          = mLatitude;
+                result.mLon          = lon;
+                result.mLat          = lat;
+                result.mAzimuth      = mOrientation[0];
+                result.mElevation    = mOrientation[1];
                 result.mPressurePa   = mPressure_Pa;
                 result.mTemperatureC = mTemperature_C;
                 return result;
             }
+            case COMPASS: {
+                CompassResult result = new CompassResult();
+                result.mTaskType   = mTaskType;
+                result.mTargetType = mTarget;
+                result.mTimeStamp  = mTimeStamp;
+                result.mLon        = lon;
+                result.mLat        = lat;
+                result.mAzimuth    = mOrientation[0];
+                result.mElevation  = mOrientation[1];
+                return result;
+            }
             default:
                 Log.e(TAG, "Unknown TaskType");
                 return null;
@@ -106,12 +115,63 @@ public class State {
     
     public void snapshot(SensorWatcher sensorWatcher) {
         Result result = getResult(sensorWatcher);
-        mResults.add(result);
+        synchronized(this) {
+            mResults.add(result);
+        }
     }
     
-    public Result getLastResult() {
+    public synchronized Result getLastResult() {
         int lastIdx = mResults.size() - 1;
-        return (lastIdx > 0) ? mResults.get(lastIdx) : null;
+        return (lastIdx >= 0) ? mResults.get(lastIdx) : null;
+    }
+    
+    /** @return copy of the results, can be used on other threads */
+    public synchronized List<Result> getResults() {
+        return new ArrayList<Result>(mResults);
+    }
+    
+    /** @return incremental celestial fix of the results (see {@link Algorithm#solveSession}) */
+    public Algorithm.Session getSession() {
+        return mSession;
+    }
+    
+    /** @return the current true north calibration (see {@link Algorithm#solveCompass}), or null before the first sample */
+    public CompassCalibrator getCompassCalibrator() {
+        return mCompassCalibrator;
+    }
+    
+    /**
+     * Sets the known position of the TIME and COMPASS tasks: the last solved POSITION result (see {@link Algorithm#calculate}).
+     * @param lat latitude  in degrees
+     * @param lon longitude in degrees
+     */
+    public synchronized void setPosition(double lat, double lon) {
+        mLatitude    = (float) lat;
+        mLongitude   = (float) lon;
+        mHasPosition = true;
+    }
+    
+    /** @return true, if a POSITION result was solved (mLatitude, mLongitude are known) */
+    public synchronized boolean hasPosition() {
+        return mHasPosition;
+    }
+    
+    /**
+     * The calibration is restarted when the target or the known position changes.
+     * Must be called from the thread feeding the calibrator.
+     * @return the calibrator of the target at the known position (see {@link #setPosition}),
+     * or null if the position is not known (the true north can not be calibrated)
+     */
+    public synchronized CompassCalibrator getCompassCalibrator(Target target) {
+        if(!mHasPosition) {
+            return null;
+        }
+        CompassCalibrator calibrator = mCompassCalibrator;
+        if(calibrator == null || calibrator.getTarget() != target || !calibrator.isAt(mLatitude, mLongitude)) {
+            calibrator = new CompassCalibrator(target, mLatitude, mLongitude);
+            mCompassCalibrator = calibrator;
+        }
+        return calibrator;
     }
     
     // JSON keys
@@ -146,9 +206,10 @@ public class State {
     public float mTemperature_C;
     private float mMagnIntensity;
     private float mMagnInclination;
-    // Result
-    public float mLongitude;
-    public float mLatitude;
+    // Result: the last solved position (see setPosition)
+    private float mLongitude;
+    private float mLatitude;
+    private boolean mHasPosition;
     
     // Camera parameters
     public int mZoomPercent;
@@ -0,0 +1,151 @@
+package hu.ureczky.celebrations;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import hu.ureczky.celebrations.solver.GridSearch;
+import hu.ureczky.celebrations.solver.PositionFix;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Solves a stream of position measurements on a background thread, for a live position readout.
+ * <br/> Only the latest submitted measurement is solved, the older unsolved ones are dropped.
+ * After the first fix, the next ones are searched only in a small window around the previous fix,
+ * unless the target changes or the windowed fix's error is large.
+ * <br/> Fixes are published on the main (UI) thread.
+ * <br/> Every {@link #start()} runs a new worker generation: a worker of a previous generation (e.g. still solving
+ * after a quick pause and resume) takes no more measurements, and its fix is dropped.
+ */
+public class StreamingSolver {
+
+    private static final String TAG = "StreamingSolver";
+
+    // Resolution of the warm-started search's first level (window: 22.5 x 10 degrees)
+    private static final double WARM_RESOLUTION = 1.25;
+
+    // Above these error points the warm-started fix is suspicious (e.g. the previous fix was wrong),
+    // the full grid is searched again (e.g. 0.07 relative difference in one of the values)
+    private static final double RESTART_ERROR = 0.005;
+
+    public interface Listener {
+        /** Called on the main thread. */
+        public void onFix(Location location);
+    }
+
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    // Latest unsolved measurement (latest value wins)
+    private final AtomicReference<PositionResult> mPending = new AtomicReference<PositionResult>();
+    private volatile Thread mThread;
+    private volatile int mGeneration;
+
+    public StreamingSolver(Listener listener) {
+        mListener = listener;
+        mHandler  = new Handler(Looper.getMainLooper());
+    }
+
+    public synchronized void start() {
+        if(mThread == null) {
+            mThread = new Thread(new Worker(++mGeneration), TAG);
+            mThread.setDaemon(true);
+            mThread.setPriority(Thread.NORM_PRIORITY - 1); // Do not compete with the UI
+            mThread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if(mThread != null) {
+            mGeneration++; // the worker stops at its next check, even if it does not see the interrupt
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Submit a measurement, it replaces the previous one if that is not solved yet. Does not block.
+     */
+    public void submit(PositionResult input) {
+        mPending.set(input);
+        Thread thread = mThread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Worker of a generation, with its own previous fix. */
+    private final class Worker implements Runnable {
+        private final int mWorkerGeneration;
+
+        // Previous fix
+        private PositionFix mLastFix;
+        private Target mLastTarget;
+
+        Worker(int generation) {
+            mWorkerGeneration = generation;
+        }
+
+        private boolean isCurrent() {
+            return mWorkerGeneration == mGeneration && !Thread.currentThread().isInterrupted();
+        }
+
+        @Override
+        public void run() {
+            while(isCurrent()) {
+                PositionResult input = mPending.getAndSet(null);
+                if(input == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long t0 = System.currentTimeMillis();
+                PositionFix fix;
+                try {
+                    fix = solve(input);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Solving failed", e); // the measurement is dropped
+                    continue;
+                }
+                long t1 = System.currentTimeMillis();
+                Log.d(TAG, "Calculation time:" + (t1-t0) + "ms");
+
+                if(!isCurrent()) {
+                    mPending.compareAndSet(null, input); // leave it to the current worker
+                    break;
+                }
+                final Location loc = new Location("");
+                loc.setLatitude(fix.mLatitude);
+                loc.setLongitude(fix.mLongitude);
+                loc.setTime(input.mTimeStamp);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mWorkerGeneration == mGeneration) { // not stopped since
+                            mListener.onFix(loc);
+                        }
+                    }
+                });
+            }
+        }
+
+        private PositionFix solve(PositionResult input) {
+            PositionFix fix = null;
+            if(mLastFix != null && mLastTarget == input.mTargetType) {
+                fix = GridSearch.search(input, mLastFix.mLatitude, mLastFix.mLongitude, WARM_RESOLUTION);
+            }
+            if(fix == null || fix.mError > RESTART_ERROR) {
+                PositionFix global = GridSearch.search(input);
+                if(fix == null || global.mError <= fix.mError) {
+                    fix = global;
+                }
+            }
+            mLastFix    = fix;
+            mLastTarget = input.mTargetType;
+            return fix;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package hu.ureczky.celebrations;
+
+public class TimeResult extends Result {
+    public double mLon, mLat;
+    public double mAzimuth;
+    public double mElevation;
+    public float mPressurePa;
+    public float mTemperatureC;
+}
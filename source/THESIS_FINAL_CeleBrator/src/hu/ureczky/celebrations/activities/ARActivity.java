@@ -17,6 +17,7 @@ import android.widget.TextView;
 
 import hu.ureczky.celebrations.ARView;
 import hu.ureczky.celebrations.CameraSurface;
+import hu.ureczky.celebrations.ModelLoader;
 import hu.ureczky.celebrations.R;
 import hu.ureczky.celebrations.SensorWatcher;
 import hu.ureczky.celebrations.State;
@@ -40,6 +41,7 @@ public class ARActivity extends Activity{
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         AndroidUtils.setFullScreen(this);
+        ModelLoader.load(this); // also when the activity is restored without the main one
         
         mState = State.getInstance();
         
@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
 
+import hu.ureczky.celebrations.ModelLoader;
 import hu.ureczky.celebrations.R;
 import hu.ureczky.celebrations.TaskType;
 import hu.ureczky.utils.AndroidUtils;
@@ -18,6 +19,7 @@ public class MainActivity extends Activity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         AndroidUtils.setFullScreen(this);
+        ModelLoader.load(this);
         
         setContentView(R.layout.main_view);
                 
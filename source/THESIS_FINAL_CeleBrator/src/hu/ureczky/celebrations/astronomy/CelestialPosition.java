@@ -1,16 +1,15 @@
 package hu.ureczky.celebrations.astronomy;
 
-import android.util.Log;
-
 import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.astronomy.implementations.MoonState;
 import hu.ureczky.celebrations.astronomy.implementations.SunMoonCalculator;
-import hu.ureczky.celebrations.astronomy.implementations.SunRelativePosition;
+import hu.ureczky.celebrations.astronomy.implementations.SunState;
 import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
 import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
 
 public class CelestialPosition {
 
-    private static final String TAG = "CelestialPosition";
+    private final Target mTarget;
     private long mTimeStamp;
     private double mLatitude;
     private double mLongitude;
@@ -19,8 +18,12 @@ public class CelestialPosition {
     public double mAzimuthDegMagn;
     public double mElevationDeg;
     
+    // Rise, set and transit as Julian days (UT), computed on demand
+    private double[] mRiseSetTransit;
+    
     public CelestialPosition(Target target, long timeStamp, double latitudeDeg, double longitudeDeg)
     {
+        mTarget    = target;
         mTimeStamp = timeStamp;
         mLatitude  = latitudeDeg;
         mLongitude = longitudeDeg;
@@ -28,7 +31,7 @@ public class CelestialPosition {
         switch(target) {
             case SUN:  calculateSun();  break;
             case MOON: calculateMoon(); break;
-            default: Log.e(TAG, "Unknown target type");
+            default: throw new IllegalArgumentException("Unknown target type: " + target);
         }
         
         magneticCorrection(); 
@@ -41,34 +44,50 @@ public class CelestialPosition {
 //            mElevationDeg   = Math.toDegrees(smc.sunEl);
 //        }
         
-        SunRelativePosition srp = new SunRelativePosition();
-        srp.setDate(mTimeStamp);
-        srp.setCoordinate(mLongitude, mLatitude);
-        mAzimuthDegTrue = srp.getAzimuth();
-        mElevationDeg   = srp.getElevation();
+        double[] direction = new double[2];
+        new SunState(mTimeStamp).project(mLatitude, mLongitude, direction);
+        mAzimuthDegTrue = direction[SunState.AZIMUTH];
+        mElevationDeg   = direction[SunState.ELEVATION];
         
     }
     
     private void calculateMoon() {
-        SunMoonCalculator smc = calculateSunMoon();
-        if(smc != null) {
-            mAzimuthDegTrue = Math.toDegrees(smc.moonAz);
-            mElevationDeg   = Math.toDegrees(smc.moonEl);
-        }
+        double[] direction = new double[3];
+        new MoonState(mTimeStamp).project(mLatitude, mLongitude, direction);
+        mAzimuthDegTrue = direction[MoonState.AZIMUTH];
+        mElevationDeg   = direction[MoonState.ELEVATION];
     }
     
-    private SunMoonCalculator calculateSunMoon() {
-        try {
-            SunMoonCalculator smc = new SunMoonCalculator(
-                    mTimeStamp,
-                    Math.toRadians(mLongitude),
-                    Math.toRadians(mLatitude));
-            smc.calcSunAndMoon();
-            return smc;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Rise, set and transit of the target around the timestamp, computed at the first call
+     * (the position does not need them).
+     * @return Julian days (UT) of the rise, set and transit, -1 if there is no such event;
+     *         null if they could not be computed
+     */
+    public double[] getRiseSetTransit() {
+        if(mRiseSetTransit == null) {
+            try {
+                SunMoonCalculator smc = new SunMoonCalculator(
+                        mTimeStamp,
+                        Math.toRadians(mLongitude),
+                        Math.toRadians(mLatitude));
+                switch(mTarget) {
+                    case SUN:
+                        smc.calcSun();
+                        mRiseSetTransit = new double[] { smc.sunRise, smc.sunSet, smc.sunTransit };
+                        break;
+                    case MOON:
+                        smc.calcMoon();
+                        mRiseSetTransit = new double[] { smc.moonRise, smc.moonSet, smc.moonTransit };
+                        break;
+                    default:
+                        break;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+        return mRiseSetTransit;
     }
     
     private void magneticCorrection() {
@@ -81,7 +100,17 @@ public class CelestialPosition {
         );                                
         float declinationDeg = gmf.getDeclination();
         
-        mAzimuthDegMagn = mAzimuthDegTrue - declinationDeg;
-        mAzimuthDegMagn = (mAzimuthDegMagn +360) % 360; //Convert to 0..360 
+        mAzimuthDegMagn = toMagnetic(mAzimuthDegTrue, declinationDeg);
+    }
+    
+    /**
+     * Magnetic declination correction of an azimuth.
+     * @param azimuthDegTrue azimuth relative to the true north in degrees
+     * @param declinationDeg magnetic declination in degrees
+     * @return azimuth relative to the magnetic north, in the 0..360 range
+     */
+    public static double toMagnetic(double azimuthDegTrue, float declinationDeg) {
+        double azimuthDegMagn = azimuthDegTrue - declinationDeg;
+        return (azimuthDegMagn +360) % 360; //Convert to 0..360 
     }
 }
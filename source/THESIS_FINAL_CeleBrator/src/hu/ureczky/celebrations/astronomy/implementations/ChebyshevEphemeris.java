@@ -0,0 +1,401 @@
+package hu.ureczky.celebrations.astronomy.implementations;
+
+import hu.ureczky.utils.CacheFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sun and Moon ephemeris of a date range as piecewise Chebyshev polynomials (like the JPL ephemerides),
+ * fitted to the series of {@link SunState} and {@link MoonState}, stored in a compact binary file.
+ * <br/> The file is memory-mapped, the coefficients are read in place. An evaluation is a Clenshaw recurrence
+ * per component (a few dozen flops), instead of the trigonometric series.
+ * <ul>
+ * <li>Sun: declination and equation of time (the hour angle follows from the time), 32-day segments</li>
+ * <li>Moon: geocentric equatorial rectangular coordinates (no wrap-around, unlike the right ascension), 4-day segments</li>
+ * </ul>
+ * The maximal difference from the series is measured at build time (between the fitting nodes, where it is the largest),
+ * as an angle: the build fails if it exceeds {@link #MAX_ERROR_DEG}.
+ * Outside of the date range the states are computed from the series.
+ * <br/> An ephemeris can be registered (see {@link #register}), the solvers and the rise/set iteration of the Moon
+ * use it where it covers the time. The app registers the one of the current and the next year at its start
+ * (see {@link hu.ureczky.celebrations.ModelLoader}), the Almanac tool the one of its date range.
+ * <br/> Thread-safe.
+ */
+public class ChebyshevEphemeris {
+
+    private static final int MAGIC   = 0x43484542; // "CHEB"
+    private static final int VERSION = 2; // 2: the nutation of the series is in radians
+    private static final int BODY_HEADER_SIZE = 8 + 8 + 4 + 4 + 4 + 4 + 8;
+    private static final int HEADER_SIZE = 4 + 4 + 2 * BODY_HEADER_SIZE;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Bodies
+    public static final int SUN  = 0;
+    public static final int MOON = 1;
+
+    // Default segments
+    public static final long SUN_SPAN    = 32 * DAY_MILLIS;
+    public static final int  SUN_DEGREE  = 9;
+    public static final long MOON_SPAN   = 4 * DAY_MILLIS;
+    public static final int  MOON_DEGREE = 13;
+
+    /**
+     * Stated bound of the difference from the series in degrees (0.036"), far below the accuracy of the series themselves (0.01-0.02 degrees).
+     * <br/> The default segments fit within 1e-8 (Sun) and 1e-7 (Moon) degrees.
+     */
+    public static final double MAX_ERROR_DEG = 1e-5;
+
+    // Test points per fitting node, in the error measurement
+    private static final int ERROR_SAMPLES = 4;
+
+    /** Segments of a body. */
+    private static final class Series {
+        final long mStart;     // UTC timestamp of the first segment
+        final long mSpan;      // milliseconds
+        final int mSegments;
+        final int mComponents;
+        final int mDegree;
+        final double mMaxError; // degrees
+        final int mOffset;      // of the coefficients in the buffer, bytes
+
+        Series(long start, long span, int segments, int components, int degree, double maxError, int offset) {
+            mStart      = start;
+            mSpan       = span;
+            mSegments   = segments;
+            mComponents = components;
+            mDegree     = degree;
+            mMaxError   = maxError;
+            mOffset     = offset;
+        }
+
+        int size() {
+            return mSegments * mComponents * (mDegree + 1) * 8;
+        }
+
+        boolean contains(long timeMillis) {
+            return timeMillis >= mStart && timeMillis <= mStart + mSegments * mSpan;
+        }
+
+        /**
+         * Clenshaw evaluation of the segment's polynomials (the time must be in the range).
+         * @param result the components
+         */
+        void evaluate(ByteBuffer buffer, long timeMillis, double[] result) {
+            int segment = (int) Math.min(mSegments - 1, (timeMillis - mStart) / mSpan);
+            long segmentStart = mStart + segment * mSpan;
+            double x = 2.0 * (timeMillis - segmentStart) / mSpan - 1; // -1..1
+            double x2 = 2 * x;
+            int n = mDegree + 1;
+            int index = mOffset + segment * mComponents * n * 8;
+            for (int c = 0; c < mComponents; c++, index += n * 8) {
+                double b1 = 0, b2 = 0;
+                for (int k = mDegree; k >= 1; k--) {
+                    double b = x2 * b1 - b2 + buffer.getDouble(index + k * 8);
+                    b2 = b1;
+                    b1 = b;
+                }
+                result[c] = buffer.getDouble(index) + x * b1 - b2;
+            }
+        }
+    }
+
+    // Registered ephemeris, null if there is none.
+    private static volatile ChebyshevEphemeris mRegistered;
+
+    private final ByteBuffer mBuffer; // the file's content, little-endian (absolute reads only)
+    private final Series mSun;
+    private final Series mMoon;
+
+    private ChebyshevEphemeris(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an ephemeris file");
+        }
+        mSun  = readSeries(buffer, 8, HEADER_SIZE);
+        mMoon = readSeries(buffer, 8 + BODY_HEADER_SIZE, HEADER_SIZE + mSun.size());
+        if (mSun.mComponents != 2 || mMoon.mComponents != 3 || buffer.capacity() != HEADER_SIZE + mSun.size() + mMoon.size()) {
+            throw new IOException("Corrupt ephemeris file");
+        }
+    }
+
+    private static Series readSeries(ByteBuffer buffer, int position, int offset) throws IOException {
+        long start     = buffer.getLong(position);
+        long span      = buffer.getLong(position + 8);
+        int segments   = buffer.getInt(position + 16);
+        int components = buffer.getInt(position + 20);
+        int degree     = buffer.getInt(position + 24);
+        double maxError = buffer.getDouble(position + 32);
+        if (span <= 0 || segments < 1 || degree < 0) {
+            throw new IOException("Corrupt ephemeris file");
+        }
+        return new Series(start, span, segments, components, degree, maxError, offset);
+    }
+
+    //////////////
+    // REGISTRY //
+    //////////////
+
+    /** Register an ephemeris (e.g. loaded at startup) for the solvers, it replaces the registered one (null: none). */
+    public static void register(ChebyshevEphemeris ephemeris) {
+        mRegistered = ephemeris;
+    }
+
+    /** @return the registered ephemeris, or null if there is none */
+    public static ChebyshevEphemeris getRegistered() {
+        return mRegistered;
+    }
+
+    /** @return the Sun at the time, from the registered ephemeris if it covers the time, from the series otherwise */
+    public static SunState createSunState(long timeMillis) {
+        ChebyshevEphemeris ephemeris = mRegistered;
+        if (ephemeris != null && ephemeris.contains(timeMillis)) {
+            return ephemeris.getSunState(timeMillis);
+        }
+        return new SunState(timeMillis);
+    }
+
+    /**
+     * @return the Moon at the time, from the registered ephemeris if it covers the time, from the series otherwise
+     * @throws IllegalArgumentException if the series can not be evaluated at the time
+     */
+    public static MoonState createMoonState(long timeMillis) {
+        ChebyshevEphemeris ephemeris = mRegistered;
+        if (ephemeris != null && ephemeris.contains(timeMillis)) {
+            return ephemeris.getMoonState(timeMillis);
+        }
+        return new MoonState(timeMillis);
+    }
+
+    //////////////
+    // EVALUATE //
+    //////////////
+
+    /** @return whether both bodies are tabulated at the time */
+    public boolean contains(long timeMillis) {
+        return mSun.contains(timeMillis) && mMoon.contains(timeMillis);
+    }
+
+    /** @return the Sun at the time, from the series outside of the range */
+    public SunState getSunState(long timeMillis) {
+        if (!mSun.contains(timeMillis)) {
+            return new SunState(timeMillis);
+        }
+        double[] values = new double[2];
+        mSun.evaluate(mBuffer, timeMillis, values);
+        return new SunState(timeMillis, values[0], values[1]);
+    }
+
+    /** @return the Moon at the time, from the series outside of the range */
+    public MoonState getMoonState(long timeMillis) {
+        if (!mMoon.contains(timeMillis)) {
+            return new MoonState(timeMillis);
+        }
+        double[] xyz = new double[3];
+        mMoon.evaluate(mBuffer, timeMillis, xyz);
+        return new MoonState(timeMillis, xyz[0], xyz[1], xyz[2]);
+    }
+
+    /**
+     * Evaluate the polynomials of a body, without allocation (the time must be in the range, see {@link #contains(long)}).
+     * @param body SUN or MOON
+     * @param result SUN: {declination in degrees, equation of time in minutes},
+     *               MOON: geocentric equatorial {x, y, z} in AU
+     */
+    public void evaluate(int body, long timeMillis, double[] result) {
+        Series series = getSeries(body);
+        if (!series.contains(timeMillis)) {
+            throw new IllegalArgumentException("Out of the ephemeris range: " + timeMillis);
+        }
+        series.evaluate(mBuffer, timeMillis, result);
+    }
+
+    /** @return beginning of the range (UTC timestamp) */
+    public long getStart() {
+        return Math.max(mSun.mStart, mMoon.mStart);
+    }
+
+    /** @return end of the range (UTC timestamp) */
+    public long getEnd() {
+        return Math.min(mSun.mStart + mSun.mSegments * mSun.mSpan, mMoon.mStart + mMoon.mSegments * mMoon.mSpan);
+    }
+
+    /** @return measured maximal difference from the series in degrees (of the direction, seen from the center of the Earth) */
+    public double getMaxError(int body) {
+        return getSeries(body).mMaxError;
+    }
+
+    private Series getSeries(int body) {
+        switch (body) {
+            case SUN:  return mSun;
+            case MOON: return mMoon;
+            default: throw new IllegalArgumentException("Unknown body: " + body);
+        }
+    }
+
+    ///////////
+    // BUILD //
+    ///////////
+
+    /** Build the ephemeris of a date range with the default segments. */
+    public static ChebyshevEphemeris build(long startMillis, long endMillis) {
+        return build(startMillis, endMillis, SUN_SPAN, SUN_DEGREE, MOON_SPAN, MOON_DEGREE);
+    }
+
+    /**
+     * Build the ephemeris of a date range (rounded outwards to whole segments).
+     * @throws IllegalArgumentException if the fit of a segment is not within {@link #MAX_ERROR_DEG}
+     *         (too long segment for the degree)
+     */
+    public static ChebyshevEphemeris build(long startMillis, long endMillis,
+            long sunSpan, int sunDegree, long moonSpan, int moonDegree) {
+        if (endMillis < startMillis || sunSpan <= 0 || moonSpan <= 0 || sunDegree < 1 || moonDegree < 1) {
+            throw new IllegalArgumentException("Invalid ephemeris range or segments");
+        }
+        int sunSegments  = (int) Math.max(1, (endMillis - startMillis + sunSpan - 1) / sunSpan);
+        int moonSegments = (int) Math.max(1, (endMillis - startMillis + moonSpan - 1) / moonSpan);
+        int sunSize  = sunSegments * 2 * (sunDegree + 1) * 8;
+        int moonSize = moonSegments * 3 * (moonDegree + 1) * 8;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sunSize + moonSize).order(ByteOrder.LITTLE_ENDIAN);
+        double sunError  = fit(buffer, SUN, startMillis, sunSpan, sunSegments, 2, sunDegree, HEADER_SIZE);
+        double moonError = fit(buffer, MOON, startMillis, moonSpan, moonSegments, 3, moonDegree, HEADER_SIZE + sunSize);
+        buffer.putInt(0, MAGIC).putInt(4, VERSION);
+        putSeries(buffer, 8, startMillis, sunSpan, sunSegments, 2, sunDegree, sunError);
+        putSeries(buffer, 8 + BODY_HEADER_SIZE, startMillis, moonSpan, moonSegments, 3, moonDegree, moonError);
+        try {
+            return new ChebyshevEphemeris(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can not happen
+        }
+    }
+
+    private static void putSeries(ByteBuffer buffer, int position,
+            long start, long span, int segments, int components, int degree, double maxError) {
+        buffer.putLong(position, start);
+        buffer.putLong(position + 8, span);
+        buffer.putInt(position + 16, segments);
+        buffer.putInt(position + 20, components);
+        buffer.putInt(position + 24, degree);
+        buffer.putInt(position + 28, 0); // padding
+        buffer.putDouble(position + 32, maxError);
+    }
+
+    /**
+     * Interpolate the series at the Chebyshev nodes of every segment, and measure the error between the nodes.
+     * @return maximal error in degrees
+     */
+    private static double fit(ByteBuffer buffer, int body, long start, long span, int segments, int components, int degree, int offset) {
+        int n = degree + 1;
+        double[][] values = new double[n][];
+        double[] fitted = new double[components];
+        Series series = new Series(start, span, segments, components, degree, 0, offset);
+        double maxError = 0;
+
+        for (int s = 0; s < segments; s++) {
+            long segmentStart = start + s * span;
+            for (int j = 0; j < n; j++) {
+                double x = Math.cos(Math.PI * (j + 0.5) / n);
+                values[j] = evaluateSeries(body, segmentStart + Math.round((x + 1) / 2 * span));
+            }
+            int index = offset + s * components * n * 8;
+            for (int c = 0; c < components; c++, index += n * 8) {
+                for (int k = 0; k < n; k++) {
+                    double sum = 0;
+                    for (int j = 0; j < n; j++) {
+                        sum += values[j][c] * Math.cos(Math.PI * k * (j + 0.5) / n);
+                    }
+                    double coefficient = sum * 2 / n;
+                    buffer.putDouble(index + k * 8, (k == 0) ? coefficient / 2 : coefficient);
+                }
+            }
+
+            int samples = ERROR_SAMPLES * n;
+            for (int i = 0; i <= samples; i++) {
+                if (i == samples && s < segments - 1) {
+                    break; // the end belongs to the next segment
+                }
+                long time = segmentStart + span * i / samples;
+                series.evaluate(buffer, time, fitted);
+                maxError = Math.max(maxError, getError(body, evaluateSeries(body, time), fitted));
+            }
+        }
+        if (!(maxError <= MAX_ERROR_DEG)) {
+            throw new IllegalArgumentException("Ephemeris fit error " + maxError + " degrees exceeds " + MAX_ERROR_DEG
+                + " (body " + body + ", span " + span + " ms, degree " + degree + ")");
+        }
+        return maxError;
+    }
+
+    private static double[] evaluateSeries(int body, long timeMillis) {
+        if (body == SUN) {
+            double t = SunState.getJulianCenturies(timeMillis);
+            return new double[] { SunRelativePosition.sunDeclination(t), SunRelativePosition.equationOfTime(t) };
+        } else {
+            return MoonState.computeGeocentric(timeMillis);
+        }
+    }
+
+    /** @return difference of the direction in degrees */
+    private static double getError(int body, double[] exact, double[] fitted) {
+        if (body == SUN) {
+            // declination, and the hour angle (a minute of time is 0.25 degree)
+            return Math.max(Math.abs(exact[0] - fitted[0]), Math.abs(exact[1] - fitted[1]) / 4);
+        } else {
+            double dx = exact[0] - fitted[0], dy = exact[1] - fitted[1], dz = exact[2] - fitted[2];
+            double distance = Math.sqrt(exact[0] * exact[0] + exact[1] * exact[1] + exact[2] * exact[2]);
+            return Math.toDegrees(Math.sqrt(dx * dx + dy * dy + dz * dz) / distance);
+        }
+    }
+
+    //////////
+    // FILE //
+    //////////
+
+    /**
+     * Map the file if it covers the range, otherwise build the ephemeris and (try to) save it.
+     */
+    public static ChebyshevEphemeris loadOrBuild(File file, final long startMillis, final long endMillis) {
+        try {
+            return CacheFileUtils.loadOrBuild(file, new CacheFileUtils.Content<ChebyshevEphemeris>() {
+                @Override
+                public ChebyshevEphemeris load(File file) throws IOException {
+                    ChebyshevEphemeris ephemeris = ChebyshevEphemeris.load(file);
+                    return (ephemeris.getStart() <= startMillis && ephemeris.getEnd() >= endMillis) ? ephemeris : null;
+                }
+
+                @Override
+                public ChebyshevEphemeris build() {
+                    return ChebyshevEphemeris.build(startMillis, endMillis);
+                }
+
+                @Override
+                public void save(ChebyshevEphemeris ephemeris, File file) throws IOException {
+                    ephemeris.save(file);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can not happen, the build does not read files
+        }
+    }
+
+    /** Save in the binary format: header, then the coefficients of the Sun and the Moon by segment and component (little-endian). */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.clear();
+        CacheFileUtils.save(file, buffer);
+    }
+
+    /** Map the file, the coefficients are not copied. */
+    public static ChebyshevEphemeris load(File file) throws IOException {
+        ByteBuffer buffer = CacheFileUtils.map(file);
+        try {
+            return new ChebyshevEphemeris(buffer);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + ": " + file);
+        }
+    }
+}
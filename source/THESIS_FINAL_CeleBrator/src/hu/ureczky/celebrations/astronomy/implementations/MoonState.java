@@ -0,0 +1,141 @@
+package hu.ureczky.celebrations.astronomy.implementations;
+
+import hu.ureczky.utils.TimeUtils;
+
+import static java.lang.Math.*;
+
+/**
+ * Geocentric position of the Moon at a time (series of {@link SunMoonCalculator}):
+ * equatorial coordinates, distance and the Greenwich sidereal time.
+ * <br/> The projection to a location (topocentric parallax, then azimuth and elevation) costs a few trigonometric calls,
+ * so the series and the calendar computations of the calculator run once for any number of locations,
+ * and no rise/set/transit is computed.
+ * <br/> Immutable, can be shared by threads.
+ */
+public final class MoonState {
+
+    // Indices of the projection's result
+    public static final int AZIMUTH   = 0;
+    public static final int ELEVATION = 1;
+    public static final int DISTANCE  = 2;
+
+    // Earth equatorial radius in AU
+    private static final double EARTH_RADIUS_AU = SunMoonCalculator.EARTH_RADIUS / SunMoonCalculator.AU;
+
+    public final long   mTimeStamp;      // milliseconds since 1970.01.01 UTC
+    public final double mRightAscension; // degrees, 0..360
+    public final double mDeclination;    // degrees, the latitude of the sub-lunar point
+    public final double mDistance;       // AU, from the center of the Earth
+    public final double mSiderealTime;   // Greenwich sidereal time in degrees
+
+    // Geocentric equatorial rectangular coordinates in AU
+    final double mX;
+    final double mY;
+    final double mZ;
+    private final double mSiderealTimeRad;
+
+    /** Evaluates the series of the calculator. */
+    public MoonState(long timeStamp) {
+        this(timeStamp, computeGeocentric(timeStamp));
+    }
+
+    private MoonState(long timeStamp, double[] geocentric) {
+        this(timeStamp, geocentric[0], geocentric[1], geocentric[2]);
+    }
+
+    /** State of given geocentric equatorial rectangular coordinates in AU (e.g. interpolated ones). */
+    MoonState(long timeStamp, double x, double y, double z) {
+        mTimeStamp = timeStamp;
+        mX = x;
+        mY = y;
+        mZ = z;
+        mSiderealTimeRad = SunMoonCalculator.getSiderealTime(TimeUtils.getJulianDay(timeStamp));
+
+        mRightAscension = toDegrees(SunMoonCalculator.normalizeRadians(atan2(mY, mX)));
+        mDeclination    = toDegrees(atan2(mZ, sqrt(mX * mX + mY * mY)));
+        mDistance       = sqrt(mX * mX + mY * mY + mZ * mZ);
+        mSiderealTime   = toDegrees(mSiderealTimeRad);
+    }
+
+    /** @return geocentric equatorial rectangular coordinates {x, y, z} in AU */
+    static double[] computeGeocentric(long timeStamp) {
+        double[] geocentric = new double[3];
+        try {
+            new SunMoonCalculator(timeStamp, 0, 0).getMoonGeocentric(geocentric);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid date: " + timeStamp, e);
+        }
+        return geocentric;
+    }
+
+    /** @return The longitude of the sub-lunar point (decimal degrees, positive East, -180..180). */
+    public double getSublunarLongitude() {
+        double longitude = mRightAscension - mSiderealTime;
+        return longitude - 360 * floor((longitude + 180) / 360);
+    }
+
+    /** @return The equatorial horizontal parallax in degrees. */
+    public double getHorizontalParallax() {
+        return toDegrees(asin(EARTH_RADIUS_AU / mDistance));
+    }
+
+    /**
+     * Apparent direction of the Moon from a location.
+     * @param latitude  in degrees, positive North
+     * @param longitude in degrees, positive East
+     * @param result {azimuth, elevation, distance} (see AZIMUTH, ELEVATION, DISTANCE): the azimuth is 0..360 degrees
+     *               from north, clockwise, the elevation is in degrees and corrected for refraction, the topocentric distance is in AU
+     */
+    public void project(double latitude, double longitude, double[] result) {
+        project(latitude, longitude, result, AZIMUTH, result, ELEVATION, result, DISTANCE);
+    }
+
+    /**
+     * Apparent direction of the Moon from the locations from..to-1 of parallel arrays.
+     * @param azimuth   output in degrees, 0..360 from north, clockwise
+     * @param elevation output in degrees, corrected for refraction
+     * @param distance  output, topocentric distance in AU (can be null)
+     */
+    public void project(double[] latitude, double[] longitude, double[] azimuth, double[] elevation, double[] distance, int from, int to) {
+        double[] scratch = (distance != null) ? distance : new double[1];
+        for (int i = from; i < to; i++) {
+            project(latitude[i], longitude[i], azimuth, i, elevation, i, scratch, (distance != null) ? i : 0);
+        }
+    }
+
+    private void project(double latitude, double longitude,
+            double[] azimuth, int azimuthIndex, double[] elevation, int elevationIndex, double[] distance, int distanceIndex) {
+        double lat = toRadians(latitude);
+        double sinLat = sin(lat);
+        double cosLat = cos(lat);
+        double lst = mSiderealTimeRad + toRadians(longitude); // local sidereal time
+        double sinLst = sin(lst);
+        double cosLst = cos(lst);
+
+        // Topocentric coordinates in the frame of the local meridian (x: meridian in the equator, y: east of it, z: north pole),
+        // the observer is at (R cos(lat), 0, R sin(lat))
+        double x = mX * cosLst + mY * sinLst - EARTH_RADIUS_AU * cosLat;
+        double y = mY * cosLst - mX * sinLst;
+        double z = mZ - EARTH_RADIUS_AU * sinLat;
+
+        // East, north, up
+        double north = z * cosLat - x * sinLat;
+        double up    = x * cosLat + z * sinLat;
+        double horizontal = sqrt(y * y + north * north);
+
+        double az = atan2(y, north); // 0 = north
+        double alt = atan2(up, horizontal);
+
+        // Get apparent elevation (as SunMoonCalculator)
+        if (alt > -3 * SunMoonCalculator.DEG_TO_RAD) {
+            double altDeg = toDegrees(alt);
+            double r = 0.016667 * SunMoonCalculator.DEG_TO_RAD * abs(tan(SunMoonCalculator.PI_OVER_TWO - toRadians(altDeg + 7.31 / (altDeg + 4.4))));
+            double refr = r * (0.28 * 1010 / (10 + 273.0)); // Assuming pressure of 1010 mb and T = 10 C
+            alt = min(alt + refr, SunMoonCalculator.PI_OVER_TWO);
+        }
+
+        azimuth[azimuthIndex]     = toDegrees(SunMoonCalculator.normalizeRadians(az));
+        elevation[elevationIndex] = toDegrees(alt);
+        distance[distanceIndex]   = sqrt(horizontal * horizontal + up * up);
+    }
+}
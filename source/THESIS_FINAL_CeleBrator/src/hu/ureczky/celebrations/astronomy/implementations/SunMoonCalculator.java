@@ -2,7 +2,6 @@ package hu.ureczky.celebrations.astronomy.implementations;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.SimpleTimeZone;
 
 import hu.ureczky.utils.TimeUtils;
 
@@ -103,6 +102,15 @@ public class SunMoonCalculator {
      * Moon age is the number of days since last new Moon, in days, from 0 to 29.5. Distance in AU. */
     public double moonAz, moonEl, moonRise, moonSet, moonTransit, moonAge, moonTransitElev, moonDist;
  
+    /** Scratch values of the coordinate transformations (geocentric equatorial rectangular coordinates in AU,
+     * topocentric right ascension, declination, distance, azimuth and elevation). */
+    private double eqX, eqY, eqZ, ra, dec, dist, azi, alt;
+ 
+    /** Geocentric equatorial rectangular coordinates of the Moon and the sidereal time at the date of the calculator,
+     * computed by the first {@link #calcMoonPosition()} call. */
+    private double moonX, moonY, moonZ, moonGmst;
+    private boolean moonCached = false;
+ 
  
     /**
      * Main constructor for Sun/Moon calculations. Time should be given in
@@ -124,48 +132,7 @@ public class SunMoonCalculator {
     }
     
     private void calculateDeltaT(long timeStamp) {
-        
-        GregorianCalendar gc = new GregorianCalendar(new SimpleTimeZone(0, "UTC"));
-        gc.setTimeInMillis(timeStamp);
-        int year = gc.get(Calendar.YEAR);
-        int days = gc.get(Calendar.DAY_OF_YEAR);
-        
-        TTminusUT = 0;
-        if (year > -600 && year < 2200) {
-            
-            double x1 = year + days / 365.0;
-            double x2 = x1 * x1;
-            double x3 = x2 * x1;
-            double x4 = x2 * x2;
-            double x5 = x4 * x1;
-            double x6 = x4 * x2;
-            double x7 = x4 * x3;
-            double x8 = x4 * x4;
-            
-            if (year < 1600) {
-                TTminusUT =
-                        + 10535.328003326353
-                        - 9.995238627481024      * x1
-                        + 0.003067307630020489   * x2
-                        - 7.76340698361363E-6    * x3
-                        + 3.1331045394223196E-9  * x4
-                        + 8.225530854405553E-12  * x5
-                        - 7.486164715632051E-15  * x6
-                        + 1.9362461549678834E-18 * x7
-                        - 8.489224937827653E-23  * x8;
-            } else {
-                TTminusUT =
-                        - 1027175.3477559977
-                        + 2523.256625418965      * x1
-                        - 1.885686849058459      * x2
-                        + 5.869246227888417E-5   * x3
-                        + 3.3379295816475025E-7  * x4 
-                        + 1.7758961671447929E-10 * x5
-                        - 2.7889902806153024E-13 * x6
-                        + 1.0224295822336825E-16 * x7
-                        - 1.2528102370680435E-20 * x8;
-            }
-        }
+        TTminusUT = TimeUtils.getDeltaT(timeStamp); // tabulated per year, no calendar is allocated
     }
  
     /**
@@ -177,6 +144,16 @@ public class SunMoonCalculator {
         this.twilight = t;
     }
  
+    /**
+     * Moves the observer, the date is kept.
+     * @param obsLonRad Longitude for the observer.
+     * @param obsLatRad Latitude for the observer.
+     */
+    public void setObserver(double obsLonRad, double obsLatRad) {
+        this.obsLon = obsLonRad;
+        this.obsLat = obsLatRad;
+    }
+ 
     private void setUTDate(double jd) {
         this.jd_UT = jd;
         this.t = (jd + TTminusUT / SECONDS_PER_DAY  - J2000) / JULIAN_DAYS_PER_CENTURY;
@@ -184,7 +161,12 @@ public class SunMoonCalculator {
  
     /** Calculates everything for the Sun and the Moon. */
     public void calcSunAndMoon() {
-        // First the Sun
+        calcSun();
+        calcMoon();
+    }
+ 
+    /** Calculates the position, rise, set and transit of the Sun. */
+    public void calcSun() {
         double out[] = doCalc(getSun());
         sunAz = out[0];
         sunEl = out[1];
@@ -208,9 +190,26 @@ public class SunMoonCalculator {
             sunTransitElev = out[5];
             setUTDate(jd);
         }
+    }
+ 
+    /**
+     * Calculates only the rise and set of the Sun (the position and the transit are kept), e.g. for the other twilights
+     * (see {@link #setTwilight(TWILIGHT)}) of a date, after {@link #calcSun()}. The transit does not depend on the twilight.
+     */
+    public void calcSunRiseSet() {
+        double out[] = doCalc(getSun());
+        int niter = 3; // Number of iterations to get accurate rise/set times
+        sunRise = obtainAccurateRiseSetTransit(out[2], 2, niter, true);
+        sunSet = obtainAccurateRiseSetTransit(out[3], 3, niter, true);
+    }
  
-        // Now Moon
-        out = doCalc(getMoon());
+    /**
+     * Calculates the position, age, rise, set and transit of the Moon.
+     * The iterations of the rise, set and transit read the registered {@link ChebyshevEphemeris} where it covers the date.
+     */
+    public void calcMoon() {
+        getSun(); // The Moon's series use the Sun's mean anomaly
+        double out[] = doCalc(getMoon());
         moonAz = out[0];
         moonEl = out[1];
         moonRise = out[2];
@@ -220,7 +219,7 @@ public class SunMoonCalculator {
         moonDist = out[8];
         double ma = moonAge;
  
-        niter = 5; // Number of iterations to get accurate rise/set/transit times
+        int niter = 5; // Number of iterations to get accurate rise/set/transit times
         moonRise = obtainAccurateRiseSetTransit(moonRise, 2, niter, false);
         moonSet = obtainAccurateRiseSetTransit(moonSet, 3, niter, false);
         moonTransit = obtainAccurateRiseSetTransit(moonTransit, 4, niter, false);
@@ -230,13 +229,65 @@ public class SunMoonCalculator {
             // Update Moon's maximum elevation
             double jd = this.jd_UT;
             setUTDate(moonTransit);
-            out = doCalc(getMoon());
+            out = doCalcMoon();
             moonTransitElev = out[5];
             setUTDate(jd);
         }
         moonAge = ma;
     }
  
+    /**
+     * Calculates only the azimuth, elevation and distance of the Moon (no rise, set and transit).
+     * The terms depending only on the date are computed at the first call,
+     * the next calls (after {@link #setObserver(double, double)}) do only the observer dependent part.
+     */
+    public void calcMoonPosition() {
+        cacheMoon();
+        toHorizontal(moonX, moonY, moonZ, moonGmst + obsLon);
+        moonAz = azi;
+        moonEl = alt;
+        moonDist = dist;
+    }
+ 
+    /**
+     * Calculates the geographic position of the Moon: the point where it is in the zenith,
+     * seen from the center of the Earth (the observer is not used).
+     * @return Latitude, longitude (positive east, -PI..PI) of the sub-lunar point
+     * and the equatorial horizontal parallax of the Moon, in radians.
+     */
+    public double[] getMoonGroundPoint() {
+        cacheMoon();
+        double ra  = Math.atan2(moonY, moonX);
+        double dec = Math.atan2(moonZ, Math.sqrt(moonX * moonX + moonY * moonY));
+        double dist = Math.sqrt(moonX * moonX + moonY * moonY + moonZ * moonZ);
+        double lon = normalizeRadians(ra - moonGmst + Math.PI) - Math.PI;
+        double parallax = Math.asin((EARTH_RADIUS / AU) / dist);
+        return new double[] {dec, lon, parallax};
+    }
+ 
+    /**
+     * Geocentric position of the Moon at the date of the calculator (the observer is not used).
+     * @param result Equatorial rectangular coordinates x, y, z in AU.
+     */
+    void getMoonGeocentric(double[] result) {
+        cacheMoon();
+        result[0] = moonX;
+        result[1] = moonY;
+        result[2] = moonZ;
+    }
+ 
+    private void cacheMoon() {
+        if (!moonCached) {
+            getSun(); // The Moon's series use the Sun's mean anomaly
+            toEquatorial(getMoon());
+            moonX = eqX;
+            moonY = eqY;
+            moonZ = eqZ;
+            moonGmst = getSiderealTime();
+            moonCached = true;
+        }
+    }
+ 
     private double[] getSun() {
         // SUN PARAMETERS (Formulae from "Calendrical Calculations")
         double lon = (280.46645 + 36000.76983 * t + .0003032 * t * t);
@@ -247,8 +298,8 @@ public class SunMoonCalculator {
         c = c + .00029 * Math.sin(3.0 * sanomaly); // Correction to the mean ecliptic longitude
  
         // Now, let calculate nutation and aberration
-        double M1 = (124.90 - 1934.134 * t + 0.002063 * t * t) * RAD_TO_DEG;
-        double M2 = (201.11 + 72001.5377 * t + 0.00057 * t * t) * RAD_TO_DEG;
+        double M1 = (124.90 - 1934.134 * t + 0.002063 * t * t) * DEG_TO_RAD;
+        double M2 = (201.11 + 72001.5377 * t + 0.00057 * t * t) * DEG_TO_RAD;
         double d = -.00569 - .0047785 * Math.sin(M1) - .0003667 * Math.sin(M2);
  
         slongitude = lon + c + d; // apparent longitude (error<0.003 deg)
@@ -289,8 +340,8 @@ public class SunMoonCalculator {
         double longitude = l;
  
         // Let's add nutation here also
-        double M1 = (124.90 - 1934.134 * t + 0.002063 * t * t) * RAD_TO_DEG;
-        double M2 = (201.11 + 72001.5377 * t + 0.00057 * t * t) * RAD_TO_DEG;
+        double M1 = (124.90 - 1934.134 * t + 0.002063 * t * t) * DEG_TO_RAD;
+        double M2 = (201.11 + 72001.5377 * t + 0.00057 * t * t) * DEG_TO_RAD;
         double d = - .0047785 * Math.sin(M1) - .0003667 * Math.sin(M2);
         longitude += d;
  
@@ -321,75 +372,37 @@ public class SunMoonCalculator {
     }
  
     private double[] doCalc(double[] pos) {
-        // Ecliptic to equatorial coordinates
-        double t2 = this.t / 100.0;
-        double tmp = t2 * (27.87 + t2 * (5.79 + t2 * 2.45));
-        tmp = t2 * (-249.67 + t2 * (-39.05 + t2 * (7.12 + tmp)));
-        tmp = t2 * (-1.55 + t2 * (1999.25 + t2 * (-51.38 + tmp)));
-        tmp = (t2 * (-4680.93 + tmp)) / 3600.0;
-        double angle = (23.4392911111111 + tmp) * DEG_TO_RAD; // obliquity
-        pos[0] *= DEG_TO_RAD;
-        pos[1] *= DEG_TO_RAD;
-        double cl = Math.cos(pos[1]);
-        double x = pos[2] * Math.cos(pos[0]) * cl;
-        double y = pos[2] * Math.sin(pos[0]) * cl;
-        double z = pos[2] * Math.sin(pos[1]);
-        tmp = y * Math.cos(angle) - z * Math.sin(angle);
-        z = y * Math.sin(angle) + z * Math.cos(angle);
-        y = tmp;
- 
-        // Obtain local apparent sidereal time
-        double jd0 = Math.floor(jd_UT - 0.5) + 0.5;
-        double T0 = (jd0 - J2000) / JULIAN_DAYS_PER_CENTURY;
-        double secs = (jd_UT - jd0) * SECONDS_PER_DAY;
-        double gmst = (((((-6.2e-6 * T0) + 9.3104e-2) * T0) + 8640184.812866) * T0) + 24110.54841;
-        double msday = 1.0 + (((((-1.86e-5 * T0) + 0.186208) * T0) + 8640184.812866) / (SECONDS_PER_DAY * JULIAN_DAYS_PER_CENTURY));
-        gmst = (gmst + msday * secs) * (15.0 / 3600.0) * DEG_TO_RAD;
-        double lst = gmst + obsLon;
- 
-        // Obtain topocentric rectangular coordinates
-        // Set radiusAU = 0 for geocentric calculations 
-        // (rise/set/transit will have no sense in this case)
-        double radiusAU = EARTH_RADIUS / AU;
-        double correction[] = new double[] {
-                radiusAU * Math.cos(obsLat) * Math.cos(lst),
-                radiusAU * Math.cos(obsLat) * Math.sin(lst),
-                radiusAU * Math.sin(obsLat)};
-        double xtopo = x - correction[0];
-        double ytopo = y - correction[1];
-        double ztopo = z - correction[2];
- 
-        // Obtain topocentric equatorial coordinates
-        double ra = 0.0;
-        double dec = PI_OVER_TWO;
-        if (ztopo < 0.0)
-            dec = -dec;
-        if (ytopo != 0.0 || xtopo != 0.0)
-        {
-            ra = Math.atan2(ytopo, xtopo);
-            dec = Math.atan2(ztopo / Math.sqrt(xtopo * xtopo + ytopo * ytopo), 1.0);
-        }
-        double dist = Math.sqrt(xtopo * xtopo + ytopo * ytopo + ztopo * ztopo);
- 
-        // Hour angle
-        double angh = lst - ra;
- 
-        // Obtain azimuth and geometric alt
-        double sinlat = Math.sin(obsLat); 
-        double coslat = Math.cos(obsLat); 
-        double sindec = Math.sin(dec), cosdec = Math.cos(dec);
-        double h = sinlat * sindec + coslat * cosdec * Math.cos(angh);
-        double alt = Math.asin(h);
-        double azy = Math.sin(angh);
-        double azx = Math.cos(angh) * sinlat - sindec * coslat / cosdec;
-        double azi = Math.PI + Math.atan2(azy, azx); // 0 = north
- 
-        // Get apparent elevation
-        if (alt > -3 * DEG_TO_RAD) {
-            double r = 0.016667 * DEG_TO_RAD * Math.abs(Math.tan(PI_OVER_TWO - (alt * RAD_TO_DEG +  7.31 / (alt * RAD_TO_DEG + 4.4)) * DEG_TO_RAD));
-            double refr = r * ( 0.28 * 1010 / (10 + 273.0)); // Assuming pressure of 1010 mb and T = 10 C
-            alt = Math.min(alt + refr, PI_OVER_TWO); // This is not accurate, but acceptable
+        toEquatorial(pos);
+        return doCalcEquatorial(pos[3]);
+    }
+
+    /**
+     * {@link #doCalc(double[])} of the Moon, from the registered ephemeris if it covers the date, from the series otherwise.
+     */
+    private double[] doCalcMoon() {
+        ChebyshevEphemeris ephemeris = ChebyshevEphemeris.getRegistered();
+        long timeStamp = TimeUtils.getTimeStampFromJulianDay(jd_UT);
+        if (ephemeris == null || !ephemeris.contains(timeStamp)) {
+            return doCalc(getMoon());
         }
+        double[] xyz = new double[3];
+        ephemeris.evaluate(ChebyshevEphemeris.MOON, timeStamp, xyz);
+        eqX = xyz[0];
+        eqY = xyz[1];
+        eqZ = xyz[2];
+        double distance = Math.sqrt(eqX * eqX + eqY * eqY + eqZ * eqZ) * AU; // km
+        return doCalcEquatorial(Math.atan(1737.4 / distance));
+    }
+
+    /**
+     * Position, rise, set and transit of the geocentric equatorial rectangular coordinates (eqX, eqY, eqZ).
+     * @param angularRadius of the body in radians
+     */
+    private double[] doCalcEquatorial(double angularRadius) {
+        double lst = getSiderealTime() + obsLon;
+        toHorizontal(eqX, eqY, eqZ, lst);
+        double ra = this.ra, dec = this.dec, dist = this.dist, azi = this.azi, alt = this.alt;
+        double tmp = 0;
  
         switch (twilight) {
         case HORIZON_34arcmin:
@@ -397,7 +410,7 @@ public class SunMoonCalculator {
             // The 34' factor is the standard refraction at horizon.
             // Removing angular radius will do calculations for the center of the disk instead
             // of the upper limb.
-            tmp = -(34.0 / 60.0) * DEG_TO_RAD - pos[3];
+            tmp = -(34.0 / 60.0) * DEG_TO_RAD - angularRadius;
             break;
         case TWILIGHT_CIVIL:
             tmp = -6 * DEG_TO_RAD;
@@ -459,6 +472,105 @@ public class SunMoonCalculator {
         return new double[] {azi, alt, rise, set, transit, transit_alt, ra, dec, dist};
     }
  
+    /**
+     * Ecliptic to geocentric equatorial rectangular coordinates (eqX, eqY, eqZ).
+     * @param pos Ecliptic longitude and latitude in degrees (converted to radians in place), distance.
+     */
+    private void toEquatorial(double[] pos) {
+        // Ecliptic to equatorial coordinates
+        double t2 = this.t / 100.0;
+        double tmp = t2 * (27.87 + t2 * (5.79 + t2 * 2.45));
+        tmp = t2 * (-249.67 + t2 * (-39.05 + t2 * (7.12 + tmp)));
+        tmp = t2 * (-1.55 + t2 * (1999.25 + t2 * (-51.38 + tmp)));
+        tmp = (t2 * (-4680.93 + tmp)) / 3600.0;
+        double angle = (23.4392911111111 + tmp) * DEG_TO_RAD; // obliquity
+        pos[0] *= DEG_TO_RAD;
+        pos[1] *= DEG_TO_RAD;
+        double cl = Math.cos(pos[1]);
+        double x = pos[2] * Math.cos(pos[0]) * cl;
+        double y = pos[2] * Math.sin(pos[0]) * cl;
+        double z = pos[2] * Math.sin(pos[1]);
+        tmp = y * Math.cos(angle) - z * Math.sin(angle);
+        z = y * Math.sin(angle) + z * Math.cos(angle);
+        y = tmp;
+        eqX = x;
+        eqY = y;
+        eqZ = z;
+    }
+ 
+    /** @return Greenwich sidereal time in radians, at the current date. */
+    private double getSiderealTime() {
+        return getSiderealTime(jd_UT);
+    }
+ 
+    /**
+     * @param jd_UT Julian day in UT.
+     * @return Greenwich sidereal time in radians.
+     */
+    static double getSiderealTime(double jd_UT) {
+        // Obtain local apparent sidereal time
+        double jd0 = Math.floor(jd_UT - 0.5) + 0.5;
+        double T0 = (jd0 - J2000) / JULIAN_DAYS_PER_CENTURY;
+        double secs = (jd_UT - jd0) * SECONDS_PER_DAY;
+        double gmst = (((((-6.2e-6 * T0) + 9.3104e-2) * T0) + 8640184.812866) * T0) + 24110.54841;
+        double msday = 1.0 + (((((-1.86e-5 * T0) + 0.186208) * T0) + 8640184.812866) / (SECONDS_PER_DAY * JULIAN_DAYS_PER_CENTURY));
+        gmst = (gmst + msday * secs) * (15.0 / 3600.0) * DEG_TO_RAD;
+        return gmst;
+    }
+ 
+    /**
+     * Geocentric equatorial rectangular coordinates to topocentric equatorial (ra, dec, dist)
+     * and horizontal (azi, alt) coordinates of the observer.
+     * @param lst Local sidereal time in radians.
+     */
+    private void toHorizontal(double x, double y, double z, double lst) {
+        // Obtain topocentric rectangular coordinates
+        // Set radiusAU = 0 for geocentric calculations 
+        // (rise/set/transit will have no sense in this case)
+        double radiusAU = EARTH_RADIUS / AU;
+        double xtopo = x - radiusAU * Math.cos(obsLat) * Math.cos(lst);
+        double ytopo = y - radiusAU * Math.cos(obsLat) * Math.sin(lst);
+        double ztopo = z - radiusAU * Math.sin(obsLat);
+ 
+        // Obtain topocentric equatorial coordinates
+        double ra = 0.0;
+        double dec = PI_OVER_TWO;
+        if (ztopo < 0.0)
+            dec = -dec;
+        if (ytopo != 0.0 || xtopo != 0.0)
+        {
+            ra = Math.atan2(ytopo, xtopo);
+            dec = Math.atan2(ztopo / Math.sqrt(xtopo * xtopo + ytopo * ytopo), 1.0);
+        }
+        double dist = Math.sqrt(xtopo * xtopo + ytopo * ytopo + ztopo * ztopo);
+ 
+        // Hour angle
+        double angh = lst - ra;
+ 
+        // Obtain azimuth and geometric alt
+        double sinlat = Math.sin(obsLat); 
+        double coslat = Math.cos(obsLat); 
+        double sindec = Math.sin(dec), cosdec = Math.cos(dec);
+        double h = sinlat * sindec + coslat * cosdec * Math.cos(angh);
+        double alt = Math.asin(h);
+        double azy = Math.sin(angh);
+        double azx = Math.cos(angh) * sinlat - sindec * coslat / cosdec;
+        double azi = Math.PI + Math.atan2(azy, azx); // 0 = north
+ 
+        // Get apparent elevation
+        if (alt > -3 * DEG_TO_RAD) {
+            double r = 0.016667 * DEG_TO_RAD * Math.abs(Math.tan(PI_OVER_TWO - (alt * RAD_TO_DEG +  7.31 / (alt * RAD_TO_DEG + 4.4)) * DEG_TO_RAD));
+            double refr = r * ( 0.28 * 1010 / (10 + 273.0)); // Assuming pressure of 1010 mb and T = 10 C
+            alt = Math.min(alt + refr, PI_OVER_TWO); // This is not accurate, but acceptable
+        }
+ 
+        this.ra = ra;
+        this.dec = dec;
+        this.dist = dist;
+        this.azi = azi;
+        this.alt = alt;
+    }
+ 
     /**
      * Transforms a Julian day (rise/set/transit fields) to a common date.
      * @param jd The Julian day.
@@ -542,7 +654,7 @@ public class SunMoonCalculator {
             if (sun) {
                 out = doCalc(getSun());
             } else {
-                out = doCalc(getMoon());
+                out = doCalcMoon();
             }
             step = Math.abs(riseSetJD - out[index]);
             riseSetJD = out[index];
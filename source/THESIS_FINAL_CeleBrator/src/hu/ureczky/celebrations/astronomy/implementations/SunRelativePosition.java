@@ -20,8 +20,6 @@
  */
 package hu.ureczky.celebrations.astronomy.implementations;
 
-import android.util.Log;
-
 import java.util.Date;
 
 import static java.lang.Math.*;
@@ -67,11 +65,6 @@ import static java.lang.Math.*;
  * @module
  */
 public class SunRelativePosition {
-    /**
-     * Number of milliseconds in a day.
-     */
-    private static final int DAY_MILLIS = 24 * 60 * 60 * 1000;
-
     /**
      * Sun azimuth (decimal degrees, 0° toward north, increasing clockwise).
      */
@@ -101,6 +94,22 @@ public class SunRelativePosition {
      */
     private boolean updated;
 
+    /**
+     * {@code true} if the terms depending only on the date are computed. This flag is set
+     * to {@code false} only when the date changes, so moving the coordinate is cheaper.
+     */
+    private boolean timeUpdated;
+
+    /**
+     * Terms depending only on the date: sun's declination, equation of time and hour angle.
+     */
+    private SunState state;
+
+    /**
+     * Scratch buffer of the projection: azimuth and elevation.
+     */
+    private final double[] direction = new double[2];
+
     /**
      * Calculates the equation of center for the sun. This value is a correction to add
      * to the geometric mean longitude in order to get the "true" longitude of the sun.
@@ -207,7 +216,7 @@ public class SunRelativePosition {
      * @param t number of Julian centuries since J2000.
      * @return Sun's declination in degrees.
      */
-    private static double sunDeclination(final double t) {
+    static double sunDeclination(final double t) {
         final double e = toRadians(obliquityCorrected(t));
         final double b = toRadians(sunApparentLongitude(t));
         final double sint = sin(e) * sin(b);
@@ -228,7 +237,7 @@ public class SunRelativePosition {
      * @param  t number of Julian centuries since J2000.
      * @return Equation of time in minutes of time.
      */
-    private static double equationOfTime(final double t) {
+    static double equationOfTime(final double t) {
         double eps = toRadians(obliquityCorrected(t));
         double L0  = toRadians(sunGeometricMeanLongitude(t));
         double m   = toRadians(sunGeometricMeanAnomaly(t));
@@ -258,7 +267,7 @@ public class SunRelativePosition {
      * @param  zenith The sun zenith angle in degrees.
      * @return The refraction correction in degrees.
      */
-    private static double refractionCorrection(final double zenith) {
+    static double refractionCorrection(final double zenith) {
         final double exoatmElevation = 90 - zenith;
         if (exoatmElevation > 85) {
             return 0;
@@ -289,78 +298,25 @@ public class SunRelativePosition {
     public SunRelativePosition() {
     }
 
+    /**
+     * Calculates the terms of the solar position depending only on the current date and time.
+     */
+    private void computeTime() {
+        state = new SunState(time);
+        timeUpdated = true;
+    }
+
     /**
      * Calculates solar position for the current date, time and location.
      * Results are reported in azimuth and elevation in degrees.
      */
     private void compute() {
-        double latitude  = this.latitude;
-        double longitude = this.longitude;
-
-        // NOAA convention use positive longitude west, and negative east.
-        // Inverse the sign, in order to be closer to OpenGIS convention.
-        longitude = -longitude;
-
-        // Compute: 1) Julian day (days elapsed since January 1, 4723 BC at 12:00 GMT).
-        //          2) Time as the centuries elapsed since January 1, 2000 at 12:00 GMT.
-        final double JULIAN_DAY_1970 = 2451544.5-10957;
-        final double julianDay = (this.time/(double)DAY_MILLIS) + JULIAN_DAY_1970;
-        final double time      = (julianDay-2451545)/36525.0;
-
-        double solarDec = sunDeclination(time);
-        double eqTime   = equationOfTime(time);
-
-        // Formula below use longitude in degrees. Steps are:
-        //   1) Extract the time part of the date, in minutes.
-        //   2) Apply a correction for longitude and equation of time.
-        //   3) Clamp in a 24 hours range (24 hours == 1440 minutes).
-        double trueSolarTime = ((julianDay + 0.5) - floor(julianDay + 0.5)) * 1440;
-        trueSolarTime += (eqTime - 4.0*longitude); // Correction in minutes.
-        trueSolarTime -= 1440 * floor(trueSolarTime / 1440);
-
-        // Convert all angles to radians.  From this point until
-        // the end of this method, local variables are always in
-        // radians. Output variables ('azimuth' and 'elevation')
-        // will still computed in degrees.
-        longitude = toRadians(longitude); // NOSONAR: Converted for safety, but not used.
-        latitude  = toRadians(latitude );
-        solarDec  = toRadians(solarDec );
-
-        double csz = sin(latitude) *
-                     sin(solarDec) +
-                     cos(latitude) *
-                     cos(solarDec) *
-                     cos(toRadians(trueSolarTime/4 - 180));
-        if (csz > +1) csz = +1;
-        if (csz < -1) csz = -1;
-
-        final double zenith  = acos(csz);
-        final double azDenom = cos(latitude) * sin(zenith);
-
-        //////////////////////////////////////////
-        ////    Compute azimuth in degrees    ////
-        //////////////////////////////////////////
-        if (abs(azDenom) > 0.001) {
-            double azRad = ((sin(latitude)*cos(zenith)) - sin(solarDec)) / azDenom;
-            if (azRad > +1) azRad = +1;
-            if (azRad < -1) azRad = -1;
-
-            azimuth = 180 - toDegrees(acos(azRad));
-            if (trueSolarTime > 720) { // 720 minutes == 12 hours
-                azimuth = -azimuth;
-            }
-        } else {
-            azimuth = (latitude>0) ? 180 : 0;
+        if (!timeUpdated) {
+            computeTime();
         }
-        azimuth -= 360 * floor(azimuth / 360);
-
-        ////////////////////////////////////////////
-        ////    Compute elevation in degrees    ////
-        ////////////////////////////////////////////
-        final double refractionCorrection = refractionCorrection(toDegrees(zenith));
-        final double solarZen = toDegrees(zenith) - refractionCorrection;
-
-        elevation = 90 - solarZen;
+        state.project(latitude, longitude, direction);
+        azimuth   = direction[SunState.AZIMUTH];
+        elevation = direction[SunState.ELEVATION];
         updated = true;
     }
 
@@ -392,6 +348,7 @@ public class SunRelativePosition {
         if (time != this.time) {
             this.time = time;
             this.updated = false;
+            this.timeUpdated = false;
         }
     }
 
@@ -418,4 +375,28 @@ public class SunRelativePosition {
         }
         return elevation;
     }
+
+    /**
+     * Computes and returns the declination of the sun at the current date and time.
+     *
+     * @return The declination (decimal degrees), the latitude of the sub-solar point.
+     */
+    public double getDeclination() {
+        if (!timeUpdated) {
+            computeTime();
+        }
+        return state.mDeclination;
+    }
+
+    /**
+     * Computes and returns the longitude where the sun is on the meridian at the current date and time.
+     *
+     * @return The longitude of the sub-solar point (decimal degrees, positive East, -180..180).
+     */
+    public double getSubsolarLongitude() {
+        if (!timeUpdated) {
+            computeTime();
+        }
+        return state.getSubsolarLongitude();
+    }
 }
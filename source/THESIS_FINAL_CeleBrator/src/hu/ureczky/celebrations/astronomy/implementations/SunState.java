@@ -0,0 +1,125 @@
+package hu.ureczky.celebrations.astronomy.implementations;
+
+import static java.lang.Math.*;
+
+/**
+ * Terms of the sun's apparent position depending only on the time (NOAA formulae, see {@link SunRelativePosition}):
+ * the declination, the equation of time and the Greenwich hour angle of the sun.
+ * <br/> The projection to the azimuth and elevation of a location costs a few trigonometric calls,
+ * so the series of the ephemeris are evaluated once for any number of locations.
+ * <br/> Immutable, can be shared by threads.
+ */
+public final class SunState {
+
+    // Indices of the projection's result
+    public static final int AZIMUTH   = 0;
+    public static final int ELEVATION = 1;
+
+    private static final int DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final double JULIAN_DAY_1970 = 2451544.5 - 10957;
+
+    // Below this cos(latitude) * sin(zenith) the azimuth is undefined (pole, or the sun in the zenith)
+    private static final double MIN_AZIMUTH_DENOMINATOR = 0.001;
+
+    public final long   mTimeStamp;          // milliseconds since 1970.01.01 UTC
+    public final double mJulianDay;
+    public final double mDeclination;        // degrees, the latitude of the sub-solar point
+    public final double mEquationOfTime;     // minutes of time
+    public final double mGreenwichHourAngle; // degrees, 0..360, positive west
+
+    private final double mSinDeclination;
+    private final double mCosDeclination;
+
+    /** Evaluates the series. */
+    public SunState(long timeStamp) {
+        this(timeStamp,
+             SunRelativePosition.sunDeclination(getJulianCenturies(timeStamp)),
+             SunRelativePosition.equationOfTime(getJulianCenturies(timeStamp)));
+    }
+
+    /**
+     * State of given time terms (e.g. interpolated ones).
+     * @param declination    degrees
+     * @param equationOfTime minutes of time
+     */
+    SunState(long timeStamp, double declination, double equationOfTime) {
+        double julianDay = getJulianDay(timeStamp);
+
+        mTimeStamp      = timeStamp;
+        mJulianDay      = julianDay;
+        mDeclination    = declination;
+        mEquationOfTime = equationOfTime;
+
+        // True solar time at Greenwich in minutes, the hour angle is zero at 720
+        double utMinutes = ((julianDay + 0.5) - floor(julianDay + 0.5)) * 1440;
+        double hourAngle = (utMinutes + mEquationOfTime) / 4 - 180;
+        mGreenwichHourAngle = hourAngle - 360 * floor(hourAngle / 360);
+
+        mSinDeclination = sin(toRadians(mDeclination));
+        mCosDeclination = cos(toRadians(mDeclination));
+    }
+
+    /** @return Julian day (days elapsed since January 1, 4713 BC at 12:00 GMT) */
+    private static double getJulianDay(long timeStamp) {
+        return (timeStamp / (double) DAY_MILLIS) + JULIAN_DAY_1970;
+    }
+
+    /** @return time as the centuries elapsed since January 1, 2000 at 12:00 GMT */
+    static double getJulianCenturies(long timeStamp) {
+        return (getJulianDay(timeStamp) - 2451545) / 36525.0;
+    }
+
+    /** @return The longitude of the sub-solar point (decimal degrees, positive East, -180..180). */
+    public double getSubsolarLongitude() {
+        double longitude = -mGreenwichHourAngle;
+        return longitude - 360 * floor((longitude + 180) / 360);
+    }
+
+    /**
+     * Apparent direction of the sun from a location.
+     * @param latitude  in degrees, positive North
+     * @param longitude in degrees, positive East
+     * @param result {azimuth, elevation} in degrees (see AZIMUTH, ELEVATION),
+     *               the azimuth is 0..360 from north, clockwise, the elevation is corrected for refraction
+     */
+    public void project(double latitude, double longitude, double[] result) {
+        project(latitude, longitude, result, AZIMUTH, result, ELEVATION);
+    }
+
+    /**
+     * Apparent direction of the sun from the locations from..to-1 of parallel arrays.
+     * @param azimuth   output in degrees, 0..360 from north, clockwise
+     * @param elevation output in degrees, corrected for refraction
+     */
+    public void project(double[] latitude, double[] longitude, double[] azimuth, double[] elevation, int from, int to) {
+        for (int i = from; i < to; i++) {
+            project(latitude[i], longitude[i], azimuth, i, elevation, i);
+        }
+    }
+
+    private void project(double latitude, double longitude,
+            double[] azimuth, int azimuthIndex, double[] elevation, int elevationIndex) {
+        double latRad = toRadians(latitude);
+        double sinLat = sin(latRad);
+        double cosLat = cos(latRad);
+        double hourAngle = toRadians(mGreenwichHourAngle + longitude);
+        double sinHourAngle = sin(hourAngle);
+        double cosHourAngle = cos(hourAngle);
+
+        double csz = sinLat * mSinDeclination + cosLat * mCosDeclination * cosHourAngle;
+        if (csz > +1) csz = +1;
+        if (csz < -1) csz = -1;
+        double zenith = toDegrees(acos(csz));
+
+        double az;
+        if (abs(cosLat * sqrt(1 - csz * csz)) > MIN_AZIMUTH_DENOMINATOR) {
+            // The hour angle is positive west, the azimuth east from north
+            az = toDegrees(atan2(-mCosDeclination * sinHourAngle,
+                                 mSinDeclination * cosLat - mCosDeclination * sinLat * cosHourAngle));
+        } else {
+            az = (latitude > 0) ? 180 : 0;
+        }
+        azimuth[azimuthIndex] = az - 360 * floor(az / 360);
+        elevation[elevationIndex] = 90 - (zenith - SunRelativePosition.refractionCorrection(zenith));
+    }
+}
@@ -0,0 +1,295 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.PositionResult;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Celestial navigation fix of a session of sightings (the observer is assumed to be stationary).
+ * <br/> Every sighting's elevation gives a circle of equal altitude around the target's ground point.
+ * Two circles are intersected in closed form, the measured azimuths choose from the two intersections.
+ * More circles are fitted with least squares (Gauss-Newton on the altitude intercepts),
+ * started from the previous fix, so adding a sighting costs O(sightings).
+ * <br/> Not thread-safe.
+ */
+public class CelestialFix {
+
+    // Maximum difference of elevation, for the error points (see PositionError)
+    private static final double DIFF_ELEVATION = 180;
+
+    private static final int MAX_ITERATIONS = 10;
+
+    // Converged, if the step is smaller (radians, ~1 cm)
+    private static final double MIN_STEP = 1e-9;
+
+    // Two ground points closer than this (sine of the angle) do not give a fix
+    private static final double MIN_CROSS = 1e-6;
+
+    /** One sighting, reduced to its circle of equal altitude. */
+    private static class Circle {
+        final double[] mGP = new double[3];  // unit vector of the ground point (Earth fixed)
+        double mAltitudeRad;                 // geocentric true elevation
+        double mAzimuthDegMagn;              // measured azimuth
+    }
+
+    private final List<Circle> mCircles = new ArrayList<Circle>();
+    private GeomagneticField mGMF;           // for the magnetic declination (session's first timestamp)
+    private float mAltitude;                 // of the observer, meters (session's first pressure)
+    private PositionFix mFix;                // last fix (start point of the next one)
+
+    /**
+     * Add a sighting to the session.
+     */
+    public void add(PositionResult sighting) {
+        mCircles.add(toCircle(sighting));
+    }
+
+    private Circle toCircle(PositionResult sighting) {
+        if(mGMF == null) {
+            mGMF = GeomagneticFieldFactory.create(sighting.mTimeStamp);
+            mAltitude = GroundPoint.getAltitude(sighting.mPressurePa);
+        }
+
+        GroundPoint gp = new GroundPoint(sighting.mTargetType, sighting.mTimeStamp);
+
+        // Apparent to true elevation, topocentric to geocentric
+        double trueElevation = GroundPoint.toTrueElevation(sighting.mElevation, sighting.mPressurePa, sighting.mTemperatureC);
+
+        Circle circle = new Circle();
+        toUnitVector(gp.mLatitude, gp.mLongitude, circle.mGP);
+        circle.mAltitudeRad    = Math.toRadians(gp.toGeocentricElevation(trueElevation));
+        circle.mAzimuthDegMagn = sighting.mAzimuth;
+        return circle;
+    }
+
+    /** @return number of sightings in the session */
+    public int size() {
+        return mCircles.size();
+    }
+
+    /**
+     * Calculate the fix of the sightings added so far and of one more, which is not added (e.g. a live sample).
+     * The next fix still starts from the one of the added sightings.
+     * @return the position, or null if the sightings do not determine a position
+     */
+    public PositionFix solve(PositionResult sighting) {
+        PositionFix start = mFix;
+        mCircles.add(toCircle(sighting));
+        try {
+            return solve();
+        } finally {
+            mCircles.remove(mCircles.size() - 1);
+            mFix = start;
+        }
+    }
+
+    /**
+     * Calculate the fix of the sightings added so far.
+     * @return the position, or null if there are less than two sightings or their circles do not determine a position
+     */
+    public PositionFix solve() {
+        int n = mCircles.size();
+        if(n < 2) {
+            return null;
+        }
+
+        double[] u;
+        if(n == 2 || mFix == null) {
+            u = intersect();
+            if(u == null) {
+                return null;
+            }
+        } else {
+            u = new double[3];
+            toUnitVector(mFix.mLatitude, mFix.mLongitude, u);
+        }
+
+        double lat = Math.toDegrees(Math.asin(u[2]));
+        double lon = Math.toDegrees(Math.atan2(u[1], u[0]));
+        if(n > 2) {
+            double[] latLon = new double[] {Math.toRadians(lat), Math.toRadians(lon)};
+            leastSquares(latLon);
+            lat = Math.toDegrees(latLon[0]);
+            lon = Math.toDegrees(latLon[1]);
+        }
+
+        mFix = new PositionFix(lat, lon, getErrorPoints(lat, lon));
+        return mFix;
+    }
+
+    /**
+     * Closed form intersection of the circle of the first sighting
+     * and the one with the ground point farthest from it.
+     * @return unit vector of the intersection closer to the measured azimuths, or null
+     */
+    private double[] intersect() {
+        Circle c1 = mCircles.get(0);
+        Circle c2 = null;
+        double[] cross = new double[3];
+        double crossLen = 0;
+        for(int i = 1; i < mCircles.size(); i++) {
+            double[] ci = crossProduct(c1.mGP, mCircles.get(i).mGP);
+            double len = Math.sqrt(dot(ci, ci));
+            if(len > crossLen) {
+                crossLen = len;
+                cross = ci;
+                c2 = mCircles.get(i);
+            }
+        }
+        if(crossLen < MIN_CROSS) {
+            return null;
+        }
+
+        // u = a*g1 + b*g2 + c*(g1 x g2), with u.g1 = sin(h1), u.g2 = sin(h2), |u| = 1
+        double s1 = Math.sin(c1.mAltitudeRad);
+        double s2 = Math.sin(c2.mAltitudeRad);
+        double c12 = dot(c1.mGP, c2.mGP);
+        double denom = 1 - c12 * c12;
+        double a = (s1 - s2 * c12) / denom;
+        double b = (s2 - s1 * c12) / denom;
+        double cSq = (1 - a * a - b * b - 2 * a * b * c12) / denom;
+        double c = (cSq > 0) ? Math.sqrt(cSq) : 0; // Not intersecting circles (measurement error): closest point
+
+        double[] best = null;
+        double bestErr = Double.MAX_VALUE;
+        for(int sign = -1; sign <= 1; sign += 2) {
+            double[] u = new double[3];
+            for(int k = 0; k < 3; k++) {
+                u[k] = a * c1.mGP[k] + b * c2.mGP[k] + sign * c * cross[k];
+            }
+            normalize(u);
+            double err = getAzimuthError(u);
+            if(err < bestErr) {
+                bestErr = err;
+                best = u;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gauss-Newton iteration of the altitude intercepts.
+     * @param latLon start point, and the result (radians)
+     */
+    private void leastSquares(double[] latLon) {
+        double[] u = new double[3];
+        double[] e = new double[3];
+        double[] nv = new double[3];
+        for(int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            double lat = latLon[0], lon = latLon[1];
+            toUnitVectorRad(lat, lon, u);
+            setLocalFrame(lat, lon, e, nv);
+
+            // Normal equations, d(h)/d(lat) = cos(A), d(h)/d(lon) = cos(lat)*sin(A)
+            double a00 = 0, a01 = 0, a11 = 0, g0 = 0, g1 = 0;
+            for(Circle circle : mCircles) {
+                double east  = dot(circle.mGP, e);
+                double north = dot(circle.mGP, nv);
+                double horiz = Math.sqrt(east * east + north * north);
+                if(horiz == 0) {
+                    continue; // In the zenith, no direction
+                }
+                double j0 = north / horiz;
+                double j1 = Math.cos(lat) * east / horiz;
+                double r  = circle.mAltitudeRad - Math.asin(clamp(dot(circle.mGP, u)));
+                a00 += j0 * j0;
+                a01 += j0 * j1;
+                a11 += j1 * j1;
+                g0  += j0 * r;
+                g1  += j1 * r;
+            }
+            double det = a00 * a11 - a01 * a01;
+            if(!(det > 0)) {
+                return;
+            }
+            double stepLat = (g0 * a11 - g1 * a01) / det;
+            double stepLon = (g1 * a00 - g0 * a01) / det;
+            latLon[0] = Math.max(-Math.PI / 2, Math.min(Math.PI / 2, lat + stepLat));
+            latLon[1] = lon + stepLon;
+            if(Math.hypot(stepLat, stepLon) < MIN_STEP) {
+                break;
+            }
+        }
+        latLon[1] = Math.atan2(Math.sin(latLon[1]), Math.cos(latLon[1]));
+    }
+
+    /** Sum of the squared differences of the measured and calculated magnetic azimuths, in degrees. */
+    private double getAzimuthError(double[] u) {
+        double lat = Math.asin(u[2]);
+        double lon = Math.atan2(u[1], u[0]);
+        double[] e = new double[3];
+        double[] nv = new double[3];
+        setLocalFrame(lat, lon, e, nv);
+        mGMF.setParameters((float) Math.toDegrees(lat), (float) Math.toDegrees(lon), mAltitude);
+        float declination = mGMF.getDeclination();
+
+        double err = 0;
+        for(Circle circle : mCircles) {
+            double azimuthDegTrue = Math.toDegrees(Math.atan2(dot(circle.mGP, e), dot(circle.mGP, nv)));
+            double diff = circle.mAzimuthDegMagn - (azimuthDegTrue - declination);
+            diff -= 360 * Math.floor((diff + 180) / 360); // -180..180
+            err += diff * diff;
+        }
+        return err;
+    }
+
+    /** Sum of the squared relative elevation differences, like the elevation term of {@link PositionError}. */
+    private double getErrorPoints(double latDeg, double lonDeg) {
+        double[] u = new double[3];
+        toUnitVector(latDeg, lonDeg, u);
+        double err = 0;
+        for(Circle circle : mCircles) {
+            double diff = Math.toDegrees(circle.mAltitudeRad - Math.asin(clamp(dot(circle.mGP, u)))) / DIFF_ELEVATION;
+            err += diff * diff;
+        }
+        return err;
+    }
+
+    // Vector helpers (Earth fixed frame: x to lat=0/lon=0, z to the north pole)
+
+    private static void toUnitVector(double latDeg, double lonDeg, double[] v) {
+        toUnitVectorRad(Math.toRadians(latDeg), Math.toRadians(lonDeg), v);
+    }
+
+    private static void toUnitVectorRad(double lat, double lon, double[] v) {
+        v[0] = Math.cos(lat) * Math.cos(lon);
+        v[1] = Math.cos(lat) * Math.sin(lon);
+        v[2] = Math.sin(lat);
+    }
+
+    /** East and north unit vectors of the local horizontal frame. */
+    private static void setLocalFrame(double lat, double lon, double[] e, double[] n) {
+        e[0] = -Math.sin(lon);
+        e[1] =  Math.cos(lon);
+        e[2] =  0;
+        n[0] = -Math.sin(lat) * Math.cos(lon);
+        n[1] = -Math.sin(lat) * Math.sin(lon);
+        n[2] =  Math.cos(lat);
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] crossProduct(double[] a, double[] b) {
+        return new double[] {
+            a[1] * b[2] - a[2] * b[1],
+            a[2] * b[0] - a[0] * b[2],
+            a[0] * b[1] - a[1] * b[0]
+        };
+    }
+
+    private static void normalize(double[] v) {
+        double len = Math.sqrt(dot(v, v));
+        v[0] /= len;
+        v[1] /= len;
+        v[2] /= len;
+    }
+
+    private static double clamp(double x) {
+        return Math.max(-1, Math.min(1, x));
+    }
+}
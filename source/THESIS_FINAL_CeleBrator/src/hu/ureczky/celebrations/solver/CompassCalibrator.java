@@ -0,0 +1,166 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.astronomy.implementations.ChebyshevEphemeris;
+import hu.ureczky.celebrations.astronomy.implementations.MoonState;
+import hu.ureczky.celebrations.astronomy.implementations.SunState;
+
+/**
+ * True north calibration of a relative heading (e.g. the game rotation vector, which has no magnetic reference)
+ * by aiming at the target from a known position.
+ * <br/> Keeps a running offset: measured azimuth + offset = true azimuth.
+ * Samples where the measured elevation is far from the target's are not aimed at the target, they are skipped.
+ * <br/> The ephemeris is evaluated only at the bucket boundaries (every minute) and interpolated between them,
+ * so a sample costs a few multiplications.
+ * <br/> {@link #update} must be called from one thread (e.g. the sensor thread), the offset and the samples can be read from any thread.
+ */
+public class CompassCalibrator {
+
+    // Length of the ephemeris buckets in milliseconds
+    private static final long BUCKET = 60 * 1000;
+
+    // Time constant of the running offset's smoothing in milliseconds
+    private static final double TIME_CONSTANT = 1000;
+
+    // Samples with larger elevation difference are not aimed at the target (degrees)
+    private static final double MAX_ELEVATION_DIFF = 5;
+
+    // Moves of the known position below this are ignored (degrees, the ephemeris changes less than 0.01 degrees)
+    private static final double POSITION_TOLERANCE = 0.01;
+
+    private final Target mTarget;
+    private final double mLat, mLon;
+
+    // Ephemeris at the boundaries of the current bucket: [begin, end)
+    private long   mBucketBegin = Long.MIN_VALUE;
+    private double mAzimuthBegin, mAzimuthEnd;     // true azimuth in degrees, the end is unwrapped to the begin
+    private double mElevationBegin, mElevationEnd; // degrees
+
+    // Scratch buffer of the target's direction {azimuth, elevation, distance}, and its output in degrees
+    private final double[] mDirection = new double[3];
+    private double mAzimuth, mElevation;
+
+    // Running offset, as a smoothed unit vector
+    private double mSin, mCos;
+    private long mLastTime;
+    private volatile int mSamples;
+    private volatile double mOffsetDeg;
+
+    /**
+     * @param lat latitude  of the known position in degrees
+     * @param lon longitude of the known position in degrees
+     */
+    public CompassCalibrator(Target target, double lat, double lon) {
+        mTarget = target;
+        mLat    = lat;
+        mLon    = lon;
+    }
+
+    public Target getTarget() {
+        return mTarget;
+    }
+
+    /** @return latitude of the known position in degrees */
+    public double getLatitude() {
+        return mLat;
+    }
+
+    /** @return longitude of the known position in degrees */
+    public double getLongitude() {
+        return mLon;
+    }
+
+    /** @return true, if the calibrator's known position is (within the tolerance) the given one */
+    public boolean isAt(double lat, double lon) {
+        double dLon = Math.abs(lon - mLon) % 360;
+        return Math.abs(lat - mLat) <= POSITION_TOLERANCE && Math.min(dLon, 360 - dLon) <= POSITION_TOLERANCE;
+    }
+
+    /**
+     * Add a sample.
+     * @param timeStamp UTC timestamp of the sample in milliseconds
+     * @param azimuthDeg   measured azimuth of the target (relative heading)
+     * @param elevationDeg measured elevation of the target
+     * @return true, if the sample was used
+     */
+    public boolean update(long timeStamp, double azimuthDeg, double elevationDeg) {
+        if(timeStamp < mBucketBegin || timeStamp >= mBucketBegin + BUCKET) {
+            setBucket(timeStamp);
+        }
+        double u = (double) (timeStamp - mBucketBegin) / BUCKET;
+        double elevation = mElevationBegin + u * (mElevationEnd - mElevationBegin);
+        if(Math.abs(elevationDeg - elevation) > MAX_ELEVATION_DIFF) {
+            return false;
+        }
+        double azimuth = mAzimuthBegin + u * (mAzimuthEnd - mAzimuthBegin);
+
+        double offsetRad = Math.toRadians(azimuth - azimuthDeg);
+        if(mSamples == 0) {
+            mSin = Math.sin(offsetRad);
+            mCos = Math.cos(offsetRad);
+        } else {
+            double alpha = 1 - Math.exp(-Math.max(0, timeStamp - mLastTime) / TIME_CONSTANT);
+            mSin += alpha * (Math.sin(offsetRad) - mSin);
+            mCos += alpha * (Math.cos(offsetRad) - mCos);
+        }
+        mLastTime = timeStamp;
+        mSamples++;
+
+        double offsetDeg = Math.toDegrees(Math.atan2(mSin, mCos));
+        mOffsetDeg = (offsetDeg + 360) % 360;
+        return true;
+    }
+
+    /** @return the running offset in degrees (0..360), true azimuth = measured + offset */
+    public double getOffset() {
+        return mOffsetDeg;
+    }
+
+    /** @return number of the used samples */
+    public int getSamples() {
+        return mSamples;
+    }
+
+    /** @return true azimuth (0..360) of a measured relative heading, with the running offset */
+    public double getTrueAzimuth(double azimuthDeg) {
+        return (azimuthDeg + mOffsetDeg + 360) % 360;
+    }
+
+    private void setBucket(long timeStamp) {
+        long begin = timeStamp - timeStamp % BUCKET;
+        if(begin == mBucketBegin + BUCKET) {
+            // Next bucket: its begin is the previous end
+            mAzimuthBegin   = mAzimuthEnd;
+            mElevationBegin = mElevationEnd;
+        } else {
+            project(begin);
+            mAzimuthBegin   = mAzimuth;
+            mElevationBegin = mElevation;
+        }
+        project(begin + BUCKET);
+        mAzimuthEnd     = mAzimuth - 360 * Math.floor((mAzimuth - mAzimuthBegin + 180) / 360);
+        mElevationEnd   = mElevation;
+        mBucketBegin    = begin;
+    }
+
+    /**
+     * Direction of the target from the known position (mAzimuth, mElevation), only the ephemeris is evaluated.
+     * @throws IllegalArgumentException if the target's ephemeris can not be evaluated at the time
+     */
+    private void project(long timeStamp) {
+        switch(mTarget) {
+            case SUN:
+                ChebyshevEphemeris.createSunState(timeStamp).project(mLat, mLon, mDirection);
+                mAzimuth   = mDirection[SunState.AZIMUTH];
+                mElevation = mDirection[SunState.ELEVATION];
+                break;
+            case MOON:
+                ChebyshevEphemeris.createMoonState(timeStamp).project(mLat, mLon, mDirection);
+                mAzimuth   = mDirection[MoonState.AZIMUTH];
+                mElevation = mDirection[MoonState.ELEVATION];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown target type: " + mTarget);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.astronomy.CelestialPosition;
+import hu.ureczky.celebrations.astronomy.implementations.ChebyshevEphemeris;
+import hu.ureczky.celebrations.astronomy.implementations.MoonState;
+import hu.ureczky.celebrations.astronomy.implementations.SunState;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGradient;
+
+/**
+ * Calculates the expected sensor values of a fixed target and time at many positions.
+ * <br/> The time dependent terms (ephemeris, magnetic model coefficients) are calculated once
+ * (from the registered {@link ChebyshevEphemeris} if it covers the time),
+ * and the calculators are reused, so an evaluation does not allocate.
+ * <br/> Not thread-safe, use one instance per thread.
+ */
+public class EvaluationContext {
+
+    private final Target mTarget;
+
+    private final GeomagneticField mGMF;
+    private final float mAltitude; // meters, of the magnetic field's evaluation
+    private final GeomagneticFieldGradient mGradient = new GeomagneticFieldGradient();
+    private SunState            mSun;   // for the SUN target
+    private MoonState           mMoon;  // for the MOON target
+
+    // Output of the last evaluation
+    public double mAzimuthDegTrue;
+    public double mAzimuthDegMagn;
+    public double mElevationDeg;
+    public float  mMagnDeclination; // degrees
+    public float  mMagnInclination; // degrees
+    public float  mMagnIntensity;   // microtesla
+
+    // Partial derivatives of the last evaluateDerivatives() call, {d/dlat, d/dlon} per degree
+    public final double[] mDAzimuthDegMagn  = new double[2];
+    public final double[] mDElevationDeg    = new double[2];
+    public final double[] mDMagnInclination = new double[2];
+    public final double[] mDMagnIntensity   = new double[2];
+    private final double[] mDMagnDeclination = new double[2];
+
+    // Scratch buffer of the target's direction {azimuth, elevation, distance}
+    private final double[] mDirection = new double[3];
+
+    // Below this cos(elevation) the azimuth is undefined (target in the zenith)
+    private static final double MIN_COS_ELEVATION = 1e-9;
+
+    /**
+     * Context at the default altitude (e.g. only the direction of the target is used).
+     * @throws IllegalArgumentException if the target's ephemeris can not be evaluated at the time
+     */
+    public EvaluationContext(Target target, long timeStamp) {
+        this(target, timeStamp, GroundPoint.DEFAULT_ALTITUDE_M);
+    }
+
+    /**
+     * @param altitude of the observer in meters (see {@link GroundPoint#getAltitude})
+     * @throws IllegalArgumentException if the target's ephemeris can not be evaluated at the time
+     */
+    public EvaluationContext(Target target, long timeStamp, float altitude) {
+        mTarget   = target;
+        mGMF      = GeomagneticFieldFactory.create(timeStamp);
+        mAltitude = altitude;
+
+        switch(target) {
+            case SUN:
+                mSun = ChebyshevEphemeris.createSunState(timeStamp);
+                break;
+            case MOON:
+                mMoon = ChebyshevEphemeris.createMoonState(timeStamp);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown target type: " + target);
+        }
+    }
+
+    /**
+     * Calculate the expected values at a position, the results are in the public fields.
+     * @param lat latitude  in degrees
+     * @param lon longitude in degrees
+     */
+    public void evaluate(double lat, double lon) {
+        evaluateTarget(lat, lon);
+
+        // One model evaluation for the declination and the compared field values
+        mGMF.setParameters((float)lat, (float)lon, mAltitude);
+        mMagnDeclination = mGMF.getDeclination();
+        mMagnInclination = mGMF.getInclination();
+        mMagnIntensity   = mGMF.getFieldStrength() / 1000f;
+
+        mAzimuthDegMagn = CelestialPosition.toMagnetic(mAzimuthDegTrue, mMagnDeclination);
+    }
+
+    /** Direction of the target (mAzimuthDegTrue, mElevationDeg). */
+    private void evaluateTarget(double lat, double lon) {
+        switch(mTarget) {
+            case SUN:
+                mSun.project(lat, lon, mDirection);
+                mAzimuthDegTrue = mDirection[SunState.AZIMUTH];
+                mElevationDeg   = mDirection[SunState.ELEVATION];
+                break;
+            case MOON:
+                mMoon.project(lat, lon, mDirection);
+                mAzimuthDegTrue = mDirection[MoonState.AZIMUTH];
+                mElevationDeg   = mDirection[MoonState.ELEVATION];
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Calculate the expected values and their partial derivatives at a position.
+     * <br/> The derivatives of the target's direction are analytic: moving the observer
+     * rotates the local east-north-up frame under the fixed direction of the target.
+     * The magnetic terms are the analytic gradient of the model (one pass of the model's expansion).
+     * @param lat latitude  in degrees
+     * @param lon longitude in degrees
+     */
+    public void evaluateDerivatives(double lat, double lon) {
+        evaluateTarget(lat, lon);
+
+        // Magnetic field and its derivatives at the position
+        GeomagneticFieldGradient gradient = mGradient;
+        mGMF.evaluateGradient(lat, lon, mAltitude, gradient);
+        mMagnDeclination = (float) gradient.getDeclination();
+        mMagnInclination = (float) gradient.getInclination();
+        mMagnIntensity   = (float) gradient.getIntensity() / 1000f;
+        for(int axis = 0; axis < 2; axis++) { // GeomagneticFieldGradient.LAT, LON
+            mDMagnDeclination[axis] = gradient.getDeclinationDerivative(axis);
+            mDMagnInclination[axis] = gradient.getInclinationDerivative(axis);
+            mDMagnIntensity[axis]   = gradient.getIntensityDerivative(axis) / 1000;
+        }
+
+        mAzimuthDegMagn = CelestialPosition.toMagnetic(mAzimuthDegTrue, mMagnDeclination);
+
+        // Direction of the target: A azimuth (from north, to east), h elevation, phi latitude
+        // d(h)/d(phi) = cos A                 d(h)/d(lambda) = cos(phi) sin A
+        // d(A)/d(phi) = sin A tan h           d(A)/d(lambda) = sin(phi) - cos(phi) cos A tan h
+        double A = Math.toRadians(mAzimuthDegTrue);
+        double h = Math.toRadians(mElevationDeg);
+        double phi = Math.toRadians(lat);
+        double cosH = Math.cos(h);
+        double tanH = (cosH > MIN_COS_ELEVATION) ? Math.sin(h) / cosH : 0;
+        mDElevationDeg[0] = Math.cos(A);
+        mDElevationDeg[1] = Math.cos(phi) * Math.sin(A);
+        mDAzimuthDegMagn[0] = Math.sin(A) * tanH - mDMagnDeclination[0];
+        mDAzimuthDegMagn[1] = Math.sin(phi) - Math.cos(phi) * Math.cos(A) * tanH - mDMagnDeclination[1];
+    }
+}
@@ -0,0 +1,297 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.PositionResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Coarse-to-fine grid search of the position with the minimal error points.
+ * <br/> Every level examines a 18x9 lon/lat grid around the optimum of the previous level,
+ * with a 4 times finer resolution.
+ * <br/> The windows can reach over the antimeridian, the found longitudes are normalized (see {@link PositionFix#normalizeLongitude}).
+ */
+public class GridSearch {
+
+    // Longitude and latitude indices of the grid, around the previous optimum
+    private static final int LON_IDX_MIN = -9; // inclusive
+    private static final int LON_IDX_MAX =  9; // exclusive
+    private static final int LAT_IDX_MIN = -4; // inclusive
+    private static final int LAT_IDX_MAX =  4; // inclusive
+
+    // Resolution of the first level, and the limit of the last one (degrees)
+    private static final double START_RESOLUTION = 20;
+    private static final double MIN_RESOLUTION   = 0.1;
+
+    // Exclude poles and the near area
+    public static final double LAT_LIMIT = 80;
+
+    // Size of the branch-and-bound search's blocks (grid points per side), divides the grid's size
+    private static final int BLOCK = 3;
+    private static final int BLOCKS_LON = (LON_IDX_MAX - LON_IDX_MIN) / BLOCK;
+    private static final int BLOCKS_LAT = (LAT_IDX_MAX - LAT_IDX_MIN + 1) / BLOCK;
+
+    /**
+     * Search on the calling thread.
+     */
+    public static PositionFix search(PositionResult input) {
+        return search(input, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Search on the calling thread, with at most the given number of levels
+     * (e.g. only a coarse start point for a local solver).
+     */
+    public static PositionFix search(PositionResult input, int maxLevels) {
+        return search(input, 0, 0, START_RESOLUTION, maxLevels);
+    }
+
+    /**
+     * Search on the calling thread, only in a window around a known start point
+     * (e.g. the previous fix of a stream of measurements).
+     * @param startResolution resolution of the first level, the window is 18x9 times larger
+     */
+    public static PositionFix search(PositionResult input, double startLat, double startLon, double startResolution) {
+        return search(input, startLat, startLon, startResolution, Integer.MAX_VALUE);
+    }
+
+    private static PositionFix search(PositionResult input, double startLat, double startLon, double startResolution, int maxLevels) {
+        PositionError error = new PositionError(input);
+
+        double finalLat = startLat, finalLon = startLon; // currently found optimal position
+        double optLat = startLat, optLon = startLon;     // optimal position of the previous iteration
+        double lat, lon;                       // currently examined position
+        double err;                            // error points of the currently examined position
+        double errMin = Double.MAX_VALUE;
+
+        int level = 0;
+        for(double d = startResolution; d > MIN_RESOLUTION && level < maxLevels; d /= 4, level++) { // d: distance of the points (resolution)
+            for(int i = LON_IDX_MIN; i < LON_IDX_MAX; i++) {
+                lon = optLon + i * d;
+                for(int j = LAT_IDX_MIN; j <= LAT_IDX_MAX; j++) {
+                    lat = optLat + j * d;
+                    if(lat > LAT_LIMIT || lat < -LAT_LIMIT)
+                        continue;
+
+                    // Calculate
+                    err = error.calculate(lat, lon);
+
+                    if(err < errMin) {
+                        errMin  = err;
+                        finalLat = lat;
+                        finalLon = lon;
+                    }
+                }
+            }
+            optLat = finalLat;
+            optLon = finalLon;
+        }
+
+        return new PositionFix(optLat, PositionFix.normalizeLongitude(optLon), errMin);
+    }
+
+    /**
+     * Search on the calling thread with branch-and-bound pruning, the result is the same as the one of {@link #search(PositionResult)}
+     * as long as the rate bounds of {@link PositionError#lowerBound} hold: the ones of the target's direction are derived,
+     * the magnetic one is the sampled maximum of the model's gradient with a margin ({@link MagneticGradientBound},
+     * checked by tools.GridSearchCheck). Outside the model's validity the magnetic terms are not used for the pruning,
+     * so only the derived bounds prune.
+     * <br/> Every level's grid is divided into 3x3 blocks. The centers of the blocks are evaluated first,
+     * then the blocks in the order of their centers' error. A point is evaluated only if the lower bound
+     * of its error does not exceed the best error found so far,
+     * so the skipped points can be neither the optimum nor equal to it.
+     */
+    public static PositionFix searchBranchAndBound(PositionResult input) {
+        PositionError error = new PositionError(input);
+
+        int blocks = BLOCKS_LON * BLOCKS_LAT;
+        double[][] values = new double[blocks][PositionError.VALUE_COUNT]; // calculated values at the centers
+        double[] centerErr = new double[blocks];
+        boolean[] centerValid = new boolean[blocks];
+        int[] order = new int[blocks];
+
+        double optLat = 0, optLon = 0;         // optimal position of the previous iteration
+        double errMin = Double.MAX_VALUE;
+
+        for(double d = START_RESOLUTION; d > MIN_RESOLUTION; d /= 4) { // d: distance of the points (resolution)
+            // Best of the level: like in the sequential order, the first point with a strictly smaller error wins
+            double bestErr = errMin;
+            int bestIdx = -1; // index of the point in the sequential order, -1: none of this level
+
+            // Centers of the blocks
+            for(int b = 0; b < blocks; b++) {
+                int i = LON_IDX_MIN + (b / BLOCKS_LAT) * BLOCK + BLOCK / 2;
+                int j = LAT_IDX_MIN + (b % BLOCKS_LAT) * BLOCK + BLOCK / 2;
+                double lat = optLat + j * d;
+                double lon = optLon + i * d;
+                centerValid[b] = (lat <= LAT_LIMIT && lat >= -LAT_LIMIT);
+                centerErr[b] = centerValid[b] ? error.calculate(lat, lon, values[b]) : 0;
+                if(centerValid[b]) {
+                    int idx = getIndex(i, j);
+                    if(centerErr[b] < bestErr || (centerErr[b] == bestErr && bestIdx > idx)) {
+                        bestErr = centerErr[b];
+                        bestIdx = idx;
+                    }
+                }
+                order[b] = b;
+            }
+
+            // Most promising blocks first (insertion sort, there are only a few)
+            for(int k = 1; k < blocks; k++) {
+                int b = order[k];
+                int m = k - 1;
+                for(; m >= 0 && centerErr[order[m]] > centerErr[b]; m--) {
+                    order[m + 1] = order[m];
+                }
+                order[m + 1] = b;
+            }
+
+            // Other points of the blocks
+            for(int k = 0; k < blocks; k++) {
+                int b = order[k];
+                int iCenter = LON_IDX_MIN + (b / BLOCKS_LAT) * BLOCK + BLOCK / 2;
+                int jCenter = LAT_IDX_MIN + (b % BLOCKS_LAT) * BLOCK + BLOCK / 2;
+                double latCenter = optLat + jCenter * d;
+                double lonCenter = optLon + iCenter * d;
+                for(int i = iCenter - BLOCK / 2; i <= iCenter + BLOCK / 2; i++) {
+                    double lon = optLon + i * d;
+                    for(int j = jCenter - BLOCK / 2; j <= jCenter + BLOCK / 2; j++) {
+                        double lat = optLat + j * d;
+                        if(lat > LAT_LIMIT || lat < -LAT_LIMIT || (i == iCenter && j == jCenter))
+                            continue;
+
+                        // Bound (without a valid center every point is evaluated)
+                        if(centerValid[b] && error.lowerBound(values[b], latCenter, lonCenter, lat, lon) > bestErr)
+                            continue;
+
+                        double err = error.calculate(lat, lon);
+                        int idx = getIndex(i, j);
+                        if(err < bestErr || (err == bestErr && bestIdx > idx)) {
+                            bestErr = err;
+                            bestIdx = idx;
+                        }
+                    }
+                }
+            }
+
+            if(bestIdx >= 0) {
+                errMin = bestErr;
+                optLat = optLat + (bestIdx % (LAT_IDX_MAX - LAT_IDX_MIN + 1) + LAT_IDX_MIN) * d;
+                optLon = optLon + (bestIdx / (LAT_IDX_MAX - LAT_IDX_MIN + 1) + LON_IDX_MIN) * d;
+            }
+        }
+
+        return new PositionFix(optLat, PositionFix.normalizeLongitude(optLon), errMin);
+    }
+
+    /** @return index of a grid point in the sequential (longitude-major) order */
+    private static int getIndex(int lonIdx, int latIdx) {
+        return (lonIdx - LON_IDX_MIN) * (LAT_IDX_MAX - LAT_IDX_MIN + 1) + (latIdx - LAT_IDX_MIN);
+    }
+
+    /**
+     * Search with the longitude strips of every level evaluated parallel on the given pool.
+     * <br/> The per-strip minimums are merged in the sequential order of the strips,
+     * so the result is the same as the one of {@link #search(PositionResult)}.
+     */
+    public static PositionFix search(PositionResult input, ForkJoinPool pool) {
+
+        // One error function per strip (they are not thread-safe), reused in every level
+        List<Strip> strips = new ArrayList<Strip>();
+        for(int i = LON_IDX_MIN; i < LON_IDX_MAX; i++) {
+            strips.add(new Strip(i, new PositionError(input)));
+        }
+
+        double optLat = 0, optLon = 0;         // optimal position of the previous iteration
+        double errMin = Double.MAX_VALUE;
+
+        for(double d = START_RESOLUTION; d > MIN_RESOLUTION; d /= 4) { // d: distance of the points (resolution)
+            for(Strip strip : strips) {
+                strip.setLevel(optLat, optLon, d);
+            }
+            pool.invoke(new Level(strips));
+
+            // Merge in the sequential order: the first strip with a strictly smaller error wins
+            double finalLat = optLat, finalLon = optLon;
+            for(Strip strip : strips) {
+                if(strip.mErrMin < errMin) {
+                    errMin   = strip.mErrMin;
+                    finalLat = strip.mLatMin;
+                    finalLon = strip.mLonMin;
+                }
+            }
+            optLat = finalLat;
+            optLon = finalLon;
+        }
+
+        return new PositionFix(optLat, PositionFix.normalizeLongitude(optLon), errMin);
+    }
+
+    /** Evaluates all strips of a level. */
+    private static class Level extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Strip> mStrips;
+
+        Level(List<Strip> strips) {
+            mStrips = strips;
+        }
+
+        @Override
+        protected void compute() {
+            for(Strip strip : mStrips) {
+                strip.reinitialize();
+            }
+            ForkJoinTask.invokeAll(mStrips);
+        }
+    }
+
+    /** One longitude column of a level's grid. */
+    private static class Strip extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mLonIdx;
+        private final PositionError mError;
+
+        // Input of the current level
+        private double mOptLat, mOptLon, mResolution;
+
+        // Output: first position with the minimal error in the strip
+        double mErrMin, mLatMin, mLonMin;
+
+        Strip(int lonIdx, PositionError error) {
+            mLonIdx = lonIdx;
+            mError  = error;
+        }
+
+        void setLevel(double optLat, double optLon, double resolution) {
+            mOptLat     = optLat;
+            mOptLon     = optLon;
+            mResolution = resolution;
+        }
+
+        @Override
+        protected void compute() {
+            double lon = mOptLon + mLonIdx * mResolution;
+            mErrMin = Double.MAX_VALUE;
+            for(int j = LAT_IDX_MIN; j <= LAT_IDX_MAX; j++) {
+                double lat = mOptLat + j * mResolution;
+                if(lat > LAT_LIMIT || lat < -LAT_LIMIT)
+                    continue;
+
+                double err = mError.calculate(lat, lon);
+
+                if(err < mErrMin) {
+                    mErrMin = err;
+                    mLatMin = lat;
+                    mLonMin = lon;
+                }
+            }
+        }
+    }
+}
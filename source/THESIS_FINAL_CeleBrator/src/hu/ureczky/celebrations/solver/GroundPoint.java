@@ -0,0 +1,81 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.astronomy.implementations.MoonState;
+import hu.ureczky.celebrations.astronomy.implementations.SunState;
+import hu.ureczky.utils.astro.AtmosphericRefraction;
+import hu.ureczky.utils.astro.Barometry;
+
+/**
+ * Geographic position of a target at a given time:
+ * the point of the Earth where it is in the zenith (sub-solar or sub-lunar point).
+ */
+public class GroundPoint {
+
+    // Equatorial horizontal parallax of the Sun in degrees (8.794")
+    private static final double SUN_HORIZONTAL_PARALLAX = 8.794 / 3600;
+
+    // Altitude of the observer if the air pressure is not known: sea level (meters)
+    public static final float DEFAULT_ALTITUDE_M = 0;
+
+    public final double mLatitude;           // degrees
+    public final double mLongitude;          // degrees, positive east
+    public final double mHorizontalParallax; // degrees
+
+    public GroundPoint(Target target, long timeStamp) {
+        switch(target) {
+            case SUN: {
+                SunState sun = new SunState(timeStamp);
+                mLatitude  = sun.mDeclination;
+                mLongitude = sun.getSubsolarLongitude();
+                mHorizontalParallax = SUN_HORIZONTAL_PARALLAX;
+                break;
+            }
+            case MOON: {
+                MoonState moon = new MoonState(timeStamp);
+                mLatitude  = moon.mDeclination;
+                mLongitude = moon.getSublunarLongitude();
+                mHorizontalParallax = moon.getHorizontalParallax();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown target type: " + target);
+        }
+    }
+
+    /**
+     * Altitude of the observer from the measured air pressure (standard atmosphere, as the readout of SensorWatcher),
+     * for the evaluation of the magnetic field.
+     * @param pressurePa air pressure (ignored if it is not a valid sensor value)
+     * @return altitude above the sea level in meters, DEFAULT_ALTITUDE_M if the pressure is not valid
+     */
+    public static float getAltitude(float pressurePa) {
+        return Barometry.isValid(pressurePa) ? (float) Barometry.getAltitudeFromPressure(pressurePa) : DEFAULT_ALTITUDE_M;
+    }
+
+    /**
+     * Remove the atmospheric refraction from a measured elevation.
+     * @param apparentElevationDeg measured elevation in degrees
+     * @param pressurePa   air pressure (ignored if it is not a valid sensor value)
+     * @param temperatureC air temperature
+     * @return true elevation in degrees
+     */
+    public static double toTrueElevation(double apparentElevationDeg, float pressurePa, float temperatureC) {
+        AtmosphericRefraction refraction = new AtmosphericRefraction();
+        refraction.setApparentElevation(apparentElevationDeg);
+        if(Barometry.isValid(pressurePa)) {
+            refraction.setPressure(pressurePa);
+        }
+        refraction.setTemperature(temperatureC);
+        return apparentElevationDeg - refraction.getRefraction();
+    }
+
+    /**
+     * Geocentric elevation of the target, seen from the observer with the given topocentric elevation.
+     * @param topocentricElevationDeg true (refraction free) elevation seen by the observer, in degrees
+     * @return elevation seen from the center of the Earth, in degrees
+     */
+    public double toGeocentricElevation(double topocentricElevationDeg) {
+        return topocentricElevationDeg + mHorizontalParallax * Math.cos(Math.toRadians(topocentricElevationDeg));
+    }
+}
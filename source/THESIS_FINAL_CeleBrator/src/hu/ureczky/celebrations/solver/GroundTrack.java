@@ -0,0 +1,71 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.Target;
+
+/**
+ * Ground points of a target over a time window.
+ * <br/> The ephemeris is evaluated only at uniformly spaced nodes, between them the values are
+ * interpolated (cubic Lagrange), so an interpolation costs a few multiplications.
+ * <br/> Not thread-safe (the interpolated values are in the public fields).
+ */
+public class GroundTrack {
+
+    private final long mStartTime;   // time of the first node
+    private final long mStep;        // distance of the nodes in milliseconds
+    private final double[] mLat;     // degrees
+    private final double[] mLon;     // degrees, unwrapped (continuous)
+    private final double[] mParallax;
+
+    // Output of the last interpolation
+    public double mLatitude;           // degrees
+    public double mLongitude;          // degrees, not normalized
+    public double mHorizontalParallax; // degrees
+
+    /**
+     * @param startTime beginning of the window (UTC timestamp)
+     * @param endTime   end of the window (UTC timestamp)
+     * @param step      distance of the nodes in milliseconds
+     */
+    public GroundTrack(Target target, long startTime, long endTime, long step) {
+        // One extra node before and two after the window, for the cubic interpolation
+        int count = (int) ((endTime - startTime + step - 1) / step) + 4;
+        mStartTime = startTime - step;
+        mStep      = step;
+        mLat       = new double[count];
+        mLon       = new double[count];
+        mParallax  = new double[count];
+
+        for(int i = 0; i < count; i++) {
+            GroundPoint gp = new GroundPoint(target, mStartTime + i * step);
+            mLat[i]      = gp.mLatitude;
+            mParallax[i] = gp.mHorizontalParallax;
+            double lon = gp.mLongitude;
+            if(i > 0) {
+                lon -= 360 * Math.floor((lon - mLon[i-1] + 180) / 360);
+            }
+            mLon[i] = lon;
+        }
+    }
+
+    /**
+     * Interpolate the ground point, the results are in the public fields.
+     * @param timeStamp UTC timestamp in milliseconds (fractional)
+     */
+    public void interpolate(double timeStamp) {
+        double x = (timeStamp - mStartTime) / mStep;
+        int i = (int) Math.floor(x);
+        if(i < 1)                i = 1;
+        if(i > mLat.length - 3)  i = mLat.length - 3;
+        double u = x - i;
+
+        // Lagrange weights of the nodes i-1, i, i+1, i+2
+        double w0 = -u * (u - 1) * (u - 2) / 6;
+        double w1 = (u + 1) * (u - 1) * (u - 2) / 2;
+        double w2 = -(u + 1) * u * (u - 2) / 2;
+        double w3 = (u + 1) * u * (u - 1) / 6;
+
+        mLatitude           = w0 * mLat[i-1]      + w1 * mLat[i]      + w2 * mLat[i+1]      + w3 * mLat[i+2];
+        mLongitude          = w0 * mLon[i-1]      + w1 * mLon[i]      + w2 * mLon[i+1]      + w3 * mLon[i+2];
+        mHorizontalParallax = w0 * mParallax[i-1] + w1 * mParallax[i] + w2 * mParallax[i+1] + w3 * mParallax[i+2];
+    }
+}
@@ -0,0 +1,136 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.PositionResult;
+
+/**
+ * Levenberg-Marquardt minimization of the position's error points (see {@link PositionError}).
+ * <br/> The start point is given by the coarse levels of the grid search,
+ * from there the iteration converges in a few steps, without the grid's final resolution limit.
+ * If it does not converge, or its minimum has large error points (e.g. a wrong basin of the start point),
+ * the full grid search is the fallback.
+ */
+public class LevenbergMarquardt {
+
+    // Levels of the grid search for the start point (20 and 5 degrees resolution)
+    private static final int SEED_LEVELS = 2;
+
+    private static final int MAX_ITERATIONS = 50;
+
+    // Damping of the Gauss-Newton step
+    private static final double LAMBDA_START  = 1e-3;
+    private static final double LAMBDA_FACTOR = 10;
+    private static final double LAMBDA_MAX    = 1e10;
+
+    // Converged, if the step is smaller (degrees, ~1 cm)
+    private static final double MIN_STEP = 1e-7;
+
+    // Above these error points the found minimum is suspicious, the full grid is searched too
+    // (as StreamingSolver's restart: e.g. 0.07 relative difference in one of the values)
+    private static final double MAX_ERROR = 0.005;
+
+    private static final int RESIDUALS = 4;
+
+    /**
+     * Search with a grid start point and Levenberg-Marquardt refinement.
+     */
+    public static PositionFix search(PositionResult input) {
+        PositionFix seed = GridSearch.search(input, SEED_LEVELS);
+        PositionFix fix = refine(input, seed.mLatitude, seed.mLongitude);
+        if(fix == null || fix.mError > MAX_ERROR) {
+            PositionFix grid = GridSearch.search(input);
+            if(fix == null || grid.mError < fix.mError) {
+                return grid;
+            }
+        }
+        return fix;
+    }
+
+    /**
+     * Local minimum of the error points around a start point.
+     * <br/> Converged, if the step becomes negligible, or if no damped step decreases the error any more
+     * (at the precision of the error function) after the iteration has moved from the start point.
+     * @param lat latitude  of the start point in degrees
+     * @param lon longitude of the start point in degrees
+     * @return the found position, or null if the iteration did not converge
+     * (singular normal equations, no accepted step at all, or too many iterations)
+     */
+    public static PositionFix refine(PositionResult input, double lat, double lon) {
+        PositionError error = new PositionError(input);
+
+        double[]   r     = new double[RESIDUALS];
+        double[][] J     = new double[RESIDUALS][2];
+        double[]   rNext = new double[RESIDUALS];
+        double[][] JNext = new double[RESIDUALS][2];
+
+        error.linearize(lat, lon, r, J);
+        double cost = getSumSq(r);
+        double lambda = LAMBDA_START;
+        boolean moved = false; // a step was accepted
+
+        for(int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            // Normal equations: (J^T J) step = -J^T r
+            double a00 = 0, a01 = 0, a11 = 0, g0 = 0, g1 = 0;
+            for(int k = 0; k < RESIDUALS; k++) {
+                a00 += J[k][0] * J[k][0];
+                a01 += J[k][0] * J[k][1];
+                a11 += J[k][1] * J[k][1];
+                g0  += J[k][0] * r[k];
+                g1  += J[k][1] * r[k];
+            }
+
+            // Try damped steps, until one decreases the error
+            boolean accepted = false, singular = false;
+            double stepLat = 0, stepLon = 0;
+            while(!accepted && lambda <= LAMBDA_MAX) {
+                double d00 = a00 * (1 + lambda);
+                double d11 = a11 * (1 + lambda);
+                double det = d00 * d11 - a01 * a01;
+                if(!(det > 0)) {
+                    singular = true; // e.g. a value does not depend on the position
+                    break;
+                }
+                stepLat = (-g0 * d11 + g1 * a01) / det;
+                stepLon = (-g1 * d00 + g0 * a01) / det;
+
+                double latNext = clampLatitude(lat + stepLat);
+                double lonNext = lon + stepLon;
+                error.linearize(latNext, lonNext, rNext, JNext);
+                double costNext = getSumSq(rNext);
+                if(costNext < cost) {
+                    accepted = true;
+                    moved = true;
+                    stepLat = latNext - lat;
+                    lat  = latNext;
+                    lon  = lonNext;
+                    cost = costNext;
+                    double[] rTmp = r;    r = rNext; rNext = rTmp;
+                    double[][] JTmp = J;  J = JNext; JNext = JTmp;
+                    lambda /= LAMBDA_FACTOR;
+                } else {
+                    lambda *= LAMBDA_FACTOR;
+                }
+            }
+
+            if(singular || (!accepted && !moved)) {
+                return null;
+            }
+            // Negligible step, or no descent any more: local minimum
+            if(!accepted || Math.hypot(stepLat, stepLon) < MIN_STEP) {
+                return new PositionFix(lat, PositionFix.normalizeLongitude(lon), error.calculate(lat, lon));
+            }
+        }
+        return null;
+    }
+
+    private static double getSumSq(double[] r) {
+        double sum = 0;
+        for(double v : r) {
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    private static double clampLatitude(double lat) {
+        return Math.max(-GridSearch.LAT_LIMIT, Math.min(GridSearch.LAT_LIMIT, lat));
+    }
+}
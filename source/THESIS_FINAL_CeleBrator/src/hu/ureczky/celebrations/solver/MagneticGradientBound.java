@@ -0,0 +1,75 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGradient;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.GeomagneticField_WMM;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rate bound of the magnetic field vector (in the local frame) per degree of arc, for {@link PositionError#lowerBound}.
+ * <br/> Derived from the model selected for the time: the largest directional derivative of the field
+ * ({@link GeomagneticField_WMM#evaluateGradient}, the rotation of the local frame included) on a global grid within
+ * the search's latitude limit, at both ends of the model's validity, with a safety margin.
+ * The coefficients are linear in time, so are the derivatives at a point: their largest value is at an end.
+ * <br/> A time outside the model's validity (extrapolated) is not bounded.
+ * <br/> Computed once per model (about 30000 gradient evaluations), thread-safe.
+ */
+public class MagneticGradientBound {
+
+    // Distance of the grid points in degrees: the maxima do not change by more than 1e-4 microtesla per degree
+    // at 1, 0.5 and 0.25 degrees (WMM2005-WMM2025, 2.07-2.12 microtesla per degree, at the latitude limit:
+    // the gradient grows towards the poles, so the limit is on the grid)
+    private static final double STEP = 2;
+    // Safety margin over the sampled maximum (between the grid points, and the altitude of the evaluation)
+    private static final double MARGIN = 1.25;
+
+    private static final Map<WMMModel, Double> mBounds = new HashMap<WMMModel, Double>();
+
+    // Do not instantiate (private)
+    private MagneticGradientBound() {}
+
+    /**
+     * @param timeStamp UTC timestamp in milliseconds
+     * @return rate bound in microtesla per degree of arc, positive infinity if the time is outside the model's validity
+     */
+    public static double get(long timeStamp) {
+        WMMModel model = GeomagneticFieldFactory.getModel(timeStamp);
+        if(timeStamp < model.getValidFrom() || timeStamp >= model.getValidTo()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        synchronized(mBounds) {
+            Double bound = mBounds.get(model);
+            if(bound == null) {
+                bound = MARGIN * Math.max(getMaxGradient(model, model.getValidFrom()), getMaxGradient(model, model.getValidTo() - 1));
+                mBounds.put(model, bound);
+            }
+            return bound;
+        }
+    }
+
+    /** @return the largest sampled directional derivative of the field at a time, in microtesla per degree of arc */
+    private static double getMaxGradient(WMMModel model, long timeStamp) {
+        GeomagneticField_WMM gmf = new GeomagneticField_WMM(model.getCoefficients(timeStamp));
+        GeomagneticFieldGradient gradient = new GeomagneticFieldGradient();
+        int lat = GeomagneticFieldGradient.LAT, lon = GeomagneticFieldGradient.LON;
+        double max = 0;
+        for(double phi = -GridSearch.LAT_LIMIT; phi <= GridSearch.LAT_LIMIT; phi += STEP) {
+            double cosPhi = Math.cos(Math.toRadians(phi));
+            for(double lambda = -180; lambda < 180; lambda += STEP) {
+                gmf.evaluateGradient(phi, lambda, 0, gradient);
+                // Largest singular value of the derivatives by the northward and the eastward degree of arc
+                double nx = gradient.mDX[lat],          ny = gradient.mDY[lat],          nz = gradient.mDZ[lat];
+                double ex = gradient.mDX[lon] / cosPhi, ey = gradient.mDY[lon] / cosPhi, ez = gradient.mDZ[lon] / cosPhi;
+                double nn = nx * nx + ny * ny + nz * nz;
+                double ee = ex * ex + ey * ey + ez * ez;
+                double ne = nx * ex + ny * ey + nz * ez;
+                double norm2 = (nn + ee) / 2 + Math.sqrt((nn - ee) * (nn - ee) / 4 + ne * ne);
+                max = Math.max(max, Math.sqrt(norm2));
+            }
+        }
+        return max / 1000; // nanotesla -> microtesla
+    }
+}
@@ -0,0 +1,223 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.PositionResult;
+import hu.ureczky.celebrations.Target;
+
+/**
+ * Error function of the position task:
+ * compares the measured values with the ones calculated for an examined position.
+ * <br/> Not thread-safe (the evaluation context is reused), use one instance per thread.
+ */
+public class PositionError {
+
+    // Maximum differences in sensor values
+    private static final float DIFF_MAGNETIC_INTENSITY   = 75-15;
+    private static final float DIFF_MAGNETIC_INCLINATION = 180;
+    private static final float DIFF_ELEVATION = 180;
+    private static final float DIFF_AZIMUTH = 180;
+
+    // Upper bounds of the rates of change, for lowerBound()
+    // Direction of the target per degree of the observer's movement, besides the rotation of the local frame:
+    // the parallax, at most the Earth's radius over the Moon's smallest distance (the Sun's is smaller)
+    private static final double EARTH_RADIUS_KM       = 6378.14;
+    private static final double MOON_MIN_DISTANCE_KM  = 356000;
+    private static final double PARALLAX_RATE = EARTH_RADIUS_KM / (MOON_MIN_DISTANCE_KM - EARTH_RADIUS_KM);
+    // Above this elevation the azimuth is not bounded (degrees)
+    private static final double MAX_BOUNDED_ELEVATION = 89;
+    // Allowance for the float rounding of the compared values (degrees, microtesla)
+    private static final double ROUNDING = 1e-3;
+
+    /**
+     * Bounds of the refraction correction of a target's elevation (see SunState and MoonState, the two use different formulas),
+     * measured on the formulas: the apparent elevation changes faster than the geometric one only below a low elevation.
+     */
+    private static class Refraction {
+        final double mMax;          // largest correction, so the geometric elevation is at most this much below the apparent one
+        final double mLowElevation; // geometric elevation, above it the correction does not increase with the elevation
+        final double mLowRate;      // largest rate of the correction below mLowElevation
+        final double mLowJumps;     // sum of the discontinuities below mLowElevation
+        final double mJumps;        // sum of the other discontinuities
+
+        Refraction(double max, double lowElevation, double lowRate, double lowJumps, double jumps) {
+            mMax          = max;
+            mLowElevation = lowElevation;
+            mLowRate      = lowRate;
+            mLowJumps     = lowJumps;
+            mJumps        = jumps;
+        }
+    }
+
+    // SunRelativePosition.refractionCorrection(): at most 0.57499 degrees, its rate is 20.774"/sin^2(h) (at most 1.00004)
+    // below -0.575 degrees, and its pieces do not join exactly (0.00197 degrees in total)
+    private static final Refraction SUN_REFRACTION  = new Refraction(0.576, -0.575, 1.0001, 0, 0.002);
+    // The formula of MoonState: at most 0.94717 degrees (at -1.6963), its rate is at most 0.5705 below it,
+    // and it is cut off at -3 degrees (0.42936)
+    private static final Refraction MOON_REFRACTION = new Refraction(0.948, -1.69, 0.571, 0.43, 0);
+
+    // Indices of the values saved by calculate(lat, lon, values)
+    public static final int VALUE_AZIMUTH     = 0;
+    public static final int VALUE_ELEVATION   = 1;
+    public static final int VALUE_INCLINATION = 2;
+    public static final int VALUE_INTENSITY   = 3;
+    public static final int VALUE_COUNT       = 4;
+
+    // Measured values
+    private final float mAzimuthDegMagn;
+    private final float mElevationDeg;
+    private final float mMagnInclination;
+    private final float mMagnIntensity;
+
+    private final EvaluationContext mContext;
+    private final Refraction mRefraction;
+    // Rate bound of the magnetic field vector of the measurement's time (see MagneticGradientBound)
+    private final double mMagnGradient;
+
+    /**
+     * @throws IllegalArgumentException if the target's ephemeris can not be evaluated at the time of the measurement
+     */
+    public PositionError(PositionResult input) {
+        mContext = new EvaluationContext(input.mTargetType, input.mTimeStamp, GroundPoint.getAltitude(input.mPressurePa));
+        mRefraction = (input.mTargetType == Target.MOON) ? MOON_REFRACTION : SUN_REFRACTION;
+        mMagnGradient = MagneticGradientBound.get(input.mTimeStamp);
+
+        // Measured angles
+        mAzimuthDegMagn  = (float) input.mAzimuth;
+        mElevationDeg    = (float) input.mElevation;
+        mMagnInclination = input.mMagnInclination;
+        mMagnIntensity   = input.mMagnIntesity;
+    }
+
+    /**
+     * Calculate the error points of an examined position.
+     * @param lat latitude  in degrees
+     * @param lon longitude in degrees
+     * @return sum of the squared relative differences (0 means perfect match)
+     */
+    public float calculate(double lat, double lon) {
+        mContext.evaluate(lat, lon);
+        float azimuthDegMagn = (float) mContext.mAzimuthDegMagn;
+        float elevationDeg   = (float) mContext.mElevationDeg;
+        float magneticIntensity   = mContext.mMagnIntensity;
+        float magneticInclination = mContext.mMagnInclination;
+
+        float errMagnInt   = getSqError(mMagnIntensity,   magneticIntensity,   DIFF_MAGNETIC_INTENSITY);
+        float errMagnInc   = getSqError(mMagnInclination, magneticInclination, DIFF_MAGNETIC_INCLINATION);
+        float errAzimuth   = getSqError((float) getAngleDiff(mAzimuthDegMagn, azimuthDegMagn), DIFF_AZIMUTH);
+        float errElevation = getSqError(mElevationDeg,    elevationDeg,        DIFF_ELEVATION);
+
+        return errMagnInt + errMagnInc + errAzimuth + errElevation;
+    }
+
+    /**
+     * Calculate the error points of an examined position, and save the calculated values for {@link #lowerBound}.
+     * @param values output: calculated values (VALUE_COUNT)
+     */
+    public float calculate(double lat, double lon, double[] values) {
+        float err = calculate(lat, lon);
+        values[VALUE_AZIMUTH]     = (float) mContext.mAzimuthDegMagn;
+        values[VALUE_ELEVATION]   = (float) mContext.mElevationDeg;
+        values[VALUE_INCLINATION] = mContext.mMagnInclination;
+        values[VALUE_INTENSITY]   = mContext.mMagnIntensity;
+        return err;
+    }
+
+    /**
+     * Lower bound of the error points of a position, without evaluating it,
+     * from the values calculated at a nearby position.
+     * <br/> Every calculated value can change at most by its rate bound times the distance,
+     * so every error term is at least the squared remaining difference.
+     * <br/> The target's geometric elevation and azimuth change like the derivatives of
+     * {@link EvaluationContext#evaluateDerivatives} (the rotation of the local frame) plus the parallax,
+     * the apparent elevation also with the rate of the refraction. The magnetic bound is derived from the model
+     * ({@link MagneticGradientBound}), at an extrapolated time the magnetic terms are not bounded (0).
+     * @param values values calculated at (lat0, lon0), see {@link #calculate(double, double, double[])}
+     * @param lat latitude  of the examined position in degrees
+     * @param lon longitude of the examined position in degrees
+     * @return lower bound of calculate(lat, lon), 0 if nothing is known
+     */
+    public double lowerBound(double[] values, double lat0, double lon0, double lat, double lon) {
+        // Path: along the parallel of the higher latitude, then along the meridian
+        double dLat = Math.abs(lat - lat0);
+        double dLon = Math.abs(lon - lon0);
+        double phiMax = Math.toRadians(Math.max(Math.abs(lat), Math.abs(lat0)));
+        double arc = dLat + Math.cos(phiMax) * dLon; // not shorter than the great circle distance, in degrees
+
+        // Direction of the target
+        double elevation = values[VALUE_ELEVATION];
+        double dGeometric = (1 + PARALLAX_RATE) * arc;
+        double elevationMax = Math.abs(elevation) + mRefraction.mMax + dGeometric; // geometric
+        double dAzimuth = (elevationMax < MAX_BOUNDED_ELEVATION)
+            ? Math.tan(Math.toRadians(elevationMax)) * arc + Math.sin(phiMax) * dLon
+              + PARALLAX_RATE * arc / Math.cos(Math.toRadians(elevationMax))
+            : Double.POSITIVE_INFINITY;
+        double dElevation = dGeometric + mRefraction.mJumps;
+        if(elevation - mRefraction.mMax - dGeometric < mRefraction.mLowElevation) {
+            dElevation += mRefraction.mLowRate * dGeometric + mRefraction.mLowJumps;
+        }
+
+        // Magnetic field: |d(angle)| <= |dB| / |B|
+        double intensity = values[VALUE_INTENSITY];
+        double horizontal = intensity * Math.cos(Math.toRadians(values[VALUE_INCLINATION]));
+        double dField = (arc > 0) ? mMagnGradient * arc : 0; // the bound can be infinite
+        double dInclination = (intensity  > dField) ? Math.toDegrees(dField / (intensity  - dField)) : Double.POSITIVE_INFINITY;
+        double dDeclination = (horizontal > dField) ? Math.toDegrees(dField / (horizontal - dField)) : Double.POSITIVE_INFINITY;
+
+        // The magnetic azimuth is compared on the circle, so it changes at most by the sum
+        double dAzimuthMagn = dAzimuth + dDeclination;
+
+        return getSqErrorBound(mMagnIntensity - intensity,                           dField,       DIFF_MAGNETIC_INTENSITY)
+             + getSqErrorBound(mMagnInclination - values[VALUE_INCLINATION],         dInclination, DIFF_MAGNETIC_INCLINATION)
+             + getSqErrorBound(getAngleDiff(mAzimuthDegMagn, values[VALUE_AZIMUTH]), dAzimuthMagn, DIFF_AZIMUTH)
+             + getSqErrorBound(mElevationDeg - elevation,                            dElevation,   DIFF_ELEVATION);
+    }
+
+    /**
+     * Linearize the error function at an examined position for gradient based solvers.
+     * <br/> The error points are the sum of the squared residuals (the azimuth's is wrapped to -180..180 degrees).
+     * @param lat latitude  in degrees
+     * @param lon longitude in degrees
+     * @param residuals output: relative differences of the measured and calculated values (4)
+     * @param jacobian  output: derivatives of the residuals by latitude and longitude in 1/degrees (4x2)
+     */
+    public void linearize(double lat, double lon, double[] residuals, double[][] jacobian) {
+        mContext.evaluateDerivatives(lat, lon);
+        setResidual(0, mMagnIntensity - mContext.mMagnIntensity,                 mContext.mDMagnIntensity,   DIFF_MAGNETIC_INTENSITY,   residuals, jacobian);
+        setResidual(1, mMagnInclination - mContext.mMagnInclination,             mContext.mDMagnInclination, DIFF_MAGNETIC_INCLINATION, residuals, jacobian);
+        setResidual(2, getAngleDiff(mAzimuthDegMagn, mContext.mAzimuthDegMagn), mContext.mDAzimuthDegMagn,  DIFF_AZIMUTH,              residuals, jacobian);
+        setResidual(3, mElevationDeg - mContext.mElevationDeg,                   mContext.mDElevationDeg,    DIFF_ELEVATION,            residuals, jacobian);
+    }
+
+    /** @param diff measured - calculated */
+    private static void setResidual(int idx, double diff, double[] derivatives, float maxDiff,
+            double[] residuals, double[][] jacobian) {
+        residuals[idx]   = diff / maxDiff;
+        jacobian[idx][0] = -derivatives[0] / maxDiff;
+        jacobian[idx][1] = -derivatives[1] / maxDiff;
+    }
+
+    /** @return lower bound of the squared relative difference, if the difference can change at most by maxChange */
+    private static double getSqErrorBound(double diff, double maxChange, float maxDiff) {
+        double relDiff = (Math.abs(diff) - maxChange - ROUNDING) / maxDiff;
+        return (relDiff > 0) ? relDiff * relDiff : 0;
+    }
+
+    private static float getSqError(float a, float b, float maxDiff) {
+        return getSqError(a - b, maxDiff);
+    }
+
+    private static float getSqError(float diff, float maxDiff) {
+        float relDiff = diff / maxDiff;
+        return relDiff * relDiff;
+    }
+
+    /** @return a - b in -180..180 degrees (the difference of two azimuths) */
+    private static double getAngleDiff(double a, double b) {
+        double diff = (a - b) % 360;
+        if(diff > 180) {
+            diff -= 360;
+        } else if(diff < -180) {
+            diff += 360;
+        }
+        return diff;
+    }
+}
@@ -0,0 +1,24 @@
+package hu.ureczky.celebrations.solver;
+
+/** Position found by a solver. */
+public class PositionFix {
+
+    public final double mLatitude;  // degrees
+    public final double mLongitude; // degrees
+    public final double mError;     // error points of the position (see PositionError)
+
+    public PositionFix(double latitude, double longitude, double error) {
+        mLatitude  = latitude;
+        mLongitude = longitude;
+        mError     = error;
+    }
+
+    /** @return the longitude in -180..180 (exclusive) degrees */
+    public static double normalizeLongitude(double lon) {
+        lon = (lon + 180) % 360;
+        if(lon < 0) {
+            lon += 360;
+        }
+        return lon - 180;
+    }
+}
@@ -0,0 +1,13 @@
+package hu.ureczky.celebrations.solver;
+
+/** Time found by a solver. */
+public class TimeFix {
+
+    public final long   mTimeStamp;      // UTC timestamp in milliseconds
+    public final double mElevationError; // difference of the measured and calculated elevation at that time, in degrees
+
+    public TimeFix(long timeStamp, double elevationError) {
+        mTimeStamp      = timeStamp;
+        mElevationError = elevationError;
+    }
+}
@@ -0,0 +1,179 @@
+package hu.ureczky.celebrations.solver;
+
+import hu.ureczky.celebrations.TimeResult;
+import hu.ureczky.utils.TimeUtils;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+
+/**
+ * Time determination from the elevation of the target seen at a known position.
+ * <br/> The elevation is sampled coarsely over a 24 hour window around the device's time,
+ * the sign changes bracket the solutions, which are refined with Brent's method.
+ * The ephemeris is precomputed at hourly nodes (see {@link GroundTrack}),
+ * so an iteration only does the location dependent trigonometry.
+ * <br/> The measured azimuth chooses from the solutions (e.g. rising or setting).
+ */
+public class TimeSearch {
+
+    private static final long HOUR = TimeUtils.MINUTES_PER_HOUR * TimeUtils.SECONDS_PER_MINUTE * TimeUtils.MILLISECONDS_PER_SECOND;
+
+    private static final long WINDOW      = 12 * HOUR; // searched on both sides of the device's time
+    private static final long NODE_STEP   = HOUR;      // ephemeris nodes
+    private static final long SAMPLE_STEP = HOUR / 6;  // bracketing samples
+
+    private static final double TOLERANCE_MS = 1;
+    private static final int MAX_ITERATIONS = 100;
+
+    private final GroundTrack mTrack;
+    private final double mSinLat, mCosLat, mLon;
+    private final double mTrueElevation; // measured elevation without refraction, degrees
+
+    private TimeSearch(TimeResult input) {
+        mTrack = new GroundTrack(input.mTargetType, input.mTimeStamp - WINDOW, input.mTimeStamp + WINDOW, NODE_STEP);
+        mSinLat = Math.sin(Math.toRadians(input.mLat));
+        mCosLat = Math.cos(Math.toRadians(input.mLat));
+        mLon    = input.mLon;
+        mTrueElevation = GroundPoint.toTrueElevation(input.mElevation, input.mPressurePa, input.mTemperatureC);
+    }
+
+    /**
+     * Search the time of the measurement.
+     * @return the time, or the time of the closest elevation if the measured one is never reached in the window
+     */
+    public static TimeFix search(TimeResult input) {
+        TimeSearch ts = new TimeSearch(input);
+
+        // Magnetic declination at the known position, for the azimuth
+        GeomagneticField gmf = GeomagneticFieldFactory.create(input.mTimeStamp);
+        gmf.setParameters((float) input.mLat, (float) input.mLon, GroundPoint.getAltitude(input.mPressurePa));
+        float declination = gmf.getDeclination();
+
+        double t0 = input.mTimeStamp;
+        double bestTime = Double.NaN;
+        double bestAzimuthDiff = Double.MAX_VALUE;
+        double closestTime = t0;
+        double closestDiff = Double.MAX_VALUE;
+
+        double tPrev = t0 - WINDOW;
+        double fPrev = ts.getDifference(tPrev);
+        for(double t = tPrev + SAMPLE_STEP; t <= t0 + WINDOW; t += SAMPLE_STEP) {
+            double f = ts.getDifference(t);
+            if(Math.abs(f) < closestDiff) {
+                closestDiff = Math.abs(f);
+                closestTime = t;
+            }
+            if((fPrev <= 0 && f > 0) || (fPrev >= 0 && f < 0)) {
+                double root = ts.findRoot(tPrev, t, fPrev, f);
+                double azimuthDiff = Math.abs(ts.getAzimuthDiff(root, input.mAzimuth, declination));
+                // Closer azimuth wins, on tie the one closer to the device's time
+                if(azimuthDiff < bestAzimuthDiff - 1e-9
+                        || (Math.abs(azimuthDiff - bestAzimuthDiff) <= 1e-9 && Math.abs(root - t0) < Math.abs(bestTime - t0))) {
+                    bestAzimuthDiff = azimuthDiff;
+                    bestTime = root;
+                }
+            }
+            tPrev = t;
+            fPrev = f;
+        }
+
+        if(Double.isNaN(bestTime)) {
+            // Measured elevation not reached (measurement error): the closest elevation
+            bestTime = ts.findClosest(closestTime - SAMPLE_STEP, closestTime + SAMPLE_STEP);
+        }
+        return new TimeFix(Math.round(bestTime), ts.getDifference(bestTime));
+    }
+
+    /** Calculated minus measured elevation in degrees. */
+    private double getDifference(double timeStamp) {
+        mTrack.interpolate(timeStamp);
+        double decl = Math.toRadians(mTrack.mLatitude);
+        double lha  = Math.toRadians(mLon - mTrack.mLongitude);
+        double sinElev = mSinLat * Math.sin(decl) + mCosLat * Math.cos(decl) * Math.cos(lha);
+        double geocentric = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, sinElev))));
+        double topocentric = geocentric - mTrack.mHorizontalParallax * Math.cos(Math.toRadians(mTrueElevation));
+        return topocentric - mTrueElevation;
+    }
+
+    /** Measured minus calculated magnetic azimuth in degrees (-180..180). */
+    private double getAzimuthDiff(double timeStamp, double azimuthDegMagn, float declination) {
+        mTrack.interpolate(timeStamp);
+        double decl = Math.toRadians(mTrack.mLatitude);
+        double dLon = Math.toRadians(mTrack.mLongitude - mLon);
+        double east  = Math.cos(decl) * Math.sin(dLon);
+        double north = mCosLat * Math.sin(decl) - mSinLat * Math.cos(decl) * Math.cos(dLon);
+        double azimuthDegTrue = Math.toDegrees(Math.atan2(east, north));
+        double diff = azimuthDegMagn - (azimuthDegTrue - declination);
+        return diff - 360 * Math.floor((diff + 180) / 360);
+    }
+
+    /** Golden section search of the minimal absolute difference in [a, b]. */
+    private double findClosest(double a, double b) {
+        final double INV_PHI = (Math.sqrt(5) - 1) / 2;
+        double x1 = b - INV_PHI * (b - a);
+        double x2 = a + INV_PHI * (b - a);
+        double f1 = Math.abs(getDifference(x1));
+        double f2 = Math.abs(getDifference(x2));
+        for(int iter = 0; iter < MAX_ITERATIONS && b - a > TOLERANCE_MS; iter++) {
+            if(f1 < f2) {
+                b = x2; x2 = x1; f2 = f1;
+                x1 = b - INV_PHI * (b - a);
+                f1 = Math.abs(getDifference(x1));
+            } else {
+                a = x1; x1 = x2; f1 = f2;
+                x2 = a + INV_PHI * (b - a);
+                f2 = Math.abs(getDifference(x2));
+            }
+        }
+        return (a + b) / 2;
+    }
+
+    /** Brent's method in a bracket [a, b], where f(a) and f(b) have different signs. */
+    private double findRoot(double a, double b, double fa, double fb) {
+        if(fa == 0) return a;
+        if(fb == 0) return b;
+        double c = a, fc = fa;
+        double d = b - a, e = d;
+        for(int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            if((fb > 0) == (fc > 0)) {
+                c = a; fc = fa;
+                d = b - a; e = d;
+            }
+            if(Math.abs(fc) < Math.abs(fb)) {
+                a = b;  b = c;  c = a;
+                fa = fb; fb = fc; fc = fa;
+            }
+            double tol = 0.5 * TOLERANCE_MS;
+            double m = 0.5 * (c - b);
+            if(Math.abs(m) <= tol || fb == 0) {
+                return b;
+            }
+            if(Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb)) {
+                // Interpolation (secant or inverse quadratic)
+                double p, q, r;
+                double s = fb / fa;
+                if(a == c) {
+                    p = 2 * m * s;
+                    q = 1 - s;
+                } else {
+                    q = fa / fc;
+                    r = fb / fc;
+                    p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+                    q = (q - 1) * (r - 1) * (s - 1);
+                }
+                if(p > 0) q = -q; else p = -p;
+                if(2 * p < Math.min(3 * m * q - Math.abs(tol * q), Math.abs(e * q))) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    d = m; e = m; // Bisection
+                }
+            } else {
+                d = m; e = m; // Bisection
+            }
+            a = b; fa = fb;
+            b += (Math.abs(d) > tol) ? d : (m > 0 ? tol : -tol);
+            fb = getDifference(b);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,310 @@
+package hu.ureczky.celebrations.tools;
+
+import hu.ureczky.celebrations.astronomy.implementations.ChebyshevEphemeris;
+import hu.ureczky.celebrations.astronomy.implementations.SunMoonCalculator;
+import hu.ureczky.celebrations.astronomy.implementations.SunMoonCalculator.TWILIGHT;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless generator of the rise/set/transit table (almanac) of a location for a date range, e.g. for planning
+ * observations at many sites. Runs on a desktop JVM, without the Android framework: build and run it with
+ * THESIS_FINAL_CeleBrator/tools/run.sh Almanac.
+ * <br/> Every day has one {@link SunMoonCalculator} (the calendar terms are computed once), which is reused
+ * for the twilights of the Sun (only the rise and set are iterated again) and for the Moon.
+ * The events nearest to the local mean noon of the day are computed (they can fall on the neighbouring dates).
+ * <br/> The days are computed in parallel in blocks, the rows are written in date order as soon as the preceding blocks complete.
+ * <br/> With --ephemeris, the Moon's rise/set iterations read a {@link ChebyshevEphemeris} of the range, cached in the file
+ * (built at the first run, e.g. for many sites).
+ * <br/> Usage: Almanac &lt;latitude&gt; &lt;longitude&gt; &lt;from&gt; &lt;to&gt; [out.csv] [--bin out.bin] [--ephemeris eph.bin] [--threads N]
+ * <br/> (degrees, positive North and East; dates as yyyy-MM-dd in UTC, the range is inclusive)
+ */
+public class Almanac {
+
+    // Columns of a day: times are Julian days in UT (-1: no event), elevations are in degrees (NaN: no transit)
+    public static final int SUN_RISE               = 0;
+    public static final int SUN_SET                = 1;
+    public static final int SUN_TRANSIT            = 2;
+    public static final int SUN_TRANSIT_ELEVATION  = 3;
+    public static final int CIVIL_DAWN             = 4;
+    public static final int CIVIL_DUSK             = 5;
+    public static final int NAUTICAL_DAWN          = 6;
+    public static final int NAUTICAL_DUSK          = 7;
+    public static final int ASTRONOMICAL_DAWN      = 8;
+    public static final int ASTRONOMICAL_DUSK      = 9;
+    public static final int MOON_RISE              = 10;
+    public static final int MOON_SET               = 11;
+    public static final int MOON_TRANSIT           = 12;
+    public static final int MOON_TRANSIT_ELEVATION = 13;
+    public static final int MOON_AGE               = 14; // days since the last new Moon
+    public static final int COLUMNS                = 15;
+
+    private static final String CSV_HEADER = "date,sun_rise,sun_set,sun_transit,sun_transit_elevation,"
+        + "civil_dawn,civil_dusk,nautical_dawn,nautical_dusk,astronomical_dawn,astronomical_dusk,"
+        + "moon_rise,moon_set,moon_transit,moon_transit_elevation,moon_age";
+
+    // Binary file: header, then a row of the UTC timestamp of the day (long) and the columns (doubles) per day, little-endian
+    private static final int MAGIC   = 0x414c4d41; // "ALMA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4;
+    private static final int ROW_SIZE = 8 + COLUMNS * 8;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final double JULIAN_DAY_1970 = 2440587.5;
+
+    // Days of a task
+    private static final int BLOCK_DAYS = 16;
+
+    // The events of a day can fall on the neighbouring dates, the ephemeris covers these days before and after the range
+    private static final int EPHEMERIS_MARGIN_DAYS = 2;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] positional = new String[5];
+        int count = 0;
+        File bin = null;
+        File ephemeris = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean valid = true;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--bin") && i + 1 < args.length) {
+                bin = new File(args[++i]);
+            } else if(args[i].equals("--ephemeris") && i + 1 < args.length) {
+                ephemeris = new File(args[++i]);
+            } else if(count < positional.length) {
+                positional[count++] = args[i];
+            } else {
+                valid = false; // unexpected argument
+            }
+        }
+
+        double latitude = 0, longitude = 0;
+        long from = 0, to = -1;
+        if(valid && count >= 4) {
+            try {
+                latitude  = Double.parseDouble(positional[0]);
+                longitude = Double.parseDouble(positional[1]);
+                from = parseDate(positional[2]);
+                to   = parseDate(positional[3]);
+            } catch (NumberFormatException e) {
+                valid = false;
+            } catch (ParseException e) {
+                valid = false;
+            }
+        }
+        if(!valid || count < 4 || to < from || Math.abs(latitude) > 90 || Math.abs(longitude) > 180 || threads < 1) {
+            System.err.println("Usage: Almanac <latitude> <longitude> <from yyyy-MM-dd> <to yyyy-MM-dd> [out.csv] [--bin out.bin] [--ephemeris eph.bin] [--threads N]");
+            System.exit(1);
+        }
+        int days = (int) ((to - from) / DAY_MILLIS) + 1;
+        if(ephemeris != null) {
+            ChebyshevEphemeris.register(ChebyshevEphemeris.loadOrBuild(ephemeris,
+                from - EPHEMERIS_MARGIN_DAYS * DAY_MILLIS, to + (1 + EPHEMERIS_MARGIN_DAYS) * DAY_MILLIS));
+        }
+
+        PrintWriter csv = (positional[4] != null)
+            ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(positional[4]), "UTF-8"))
+            : new PrintWriter(System.out);
+        FileOutputStream binOut = null;
+        try {
+            FileChannel channel = null;
+            if(bin != null) {
+                binOut = new FileOutputStream(bin);
+                channel = binOut.getChannel();
+                writeHeader(channel, latitude, longitude, from, days);
+            }
+            run(latitude, longitude, from, days, threads, csv, channel);
+        } finally {
+            csv.close();
+            if(binOut != null) {
+                binOut.close();
+            }
+        }
+    }
+
+    private static long parseDate(String date) throws ParseException {
+        return createDateFormat("yyyy-MM-dd").parse(date).getTime();
+    }
+
+    private static SimpleDateFormat createDateFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    private static void run(final double latitude, final double longitude, final long from, final int days,
+            int threads, PrintWriter csv, FileChannel bin) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<double[][]> completion = new ExecutorCompletionService<double[][]>(executor);
+
+        // The completed blocks wait here for the preceding ones, at most a few blocks per thread are in flight
+        Map<Future<double[][]>, Integer> indices = new HashMap<Future<double[][]>, Integer>();
+        Map<Integer, double[][]> completed = new HashMap<Integer, double[][]>();
+        int blocks = (days + BLOCK_DAYS - 1) / BLOCK_DAYS;
+        int maxInFlight = 2 * threads;
+        int next = 0, written = 0;
+
+        SimpleDateFormat dateFormat = createDateFormat("yyyy-MM-dd");
+        SimpleDateFormat timeFormat = createDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        ByteBuffer row = ByteBuffer.allocate(ROW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        csv.println(CSV_HEADER);
+        long t0 = System.nanoTime();
+        try {
+            while(written < blocks) {
+                while(next < blocks && next - written < maxInFlight) {
+                    final int first = next * BLOCK_DAYS;
+                    final int last = Math.min(first + BLOCK_DAYS, days);
+                    Future<double[][]> future = completion.submit(new Callable<double[][]>() {
+                        @Override
+                        public double[][] call() throws Exception {
+                            double[][] block = new double[last - first][];
+                            for(int d = first; d < last; d++) {
+                                block[d - first] = computeDay(latitude, longitude, from + d * DAY_MILLIS);
+                            }
+                            return block;
+                        }
+                    });
+                    indices.put(future, next++);
+                }
+                Future<double[][]> future = completion.take();
+                try {
+                    completed.put(indices.remove(future), future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                double[][] block;
+                while((block = completed.remove(written)) != null) {
+                    for(int i = 0; i < block.length; i++) {
+                        long day = from + (written * BLOCK_DAYS + i) * DAY_MILLIS;
+                        csv.println(toCsv(day, block[i], dateFormat, timeFormat));
+                        if(bin != null) {
+                            writeRow(bin, row, day, block[i]);
+                        }
+                    }
+                    written++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long t1 = System.nanoTime();
+        csv.flush();
+
+        double wallSec = (t1 - t0) / 1e9;
+        System.err.println(String.format(Locale.US, "Days: %d, threads: %d, wall time: %.3f s, throughput: %.1f days/s",
+            days, threads, wallSec, days / wallSec));
+    }
+
+    /**
+     * Rise, set and transit of the Sun and the Moon, and the twilights of a day at a location.
+     * @param latitude  in degrees, positive North
+     * @param longitude in degrees, positive East
+     * @param day       UTC timestamp of the beginning of the day
+     * @return the columns of the day (see SUN_RISE ... MOON_AGE)
+     * @throws Exception If the date does not exists.
+     */
+    public static double[] computeDay(double latitude, double longitude, long day) throws Exception {
+        double[] values = new double[COLUMNS];
+        long localNoon = day + DAY_MILLIS / 2 - Math.round(longitude / 360 * DAY_MILLIS);
+        SunMoonCalculator smc = new SunMoonCalculator(localNoon, Math.toRadians(longitude), Math.toRadians(latitude));
+
+        smc.setTwilight(TWILIGHT.HORIZON_34arcmin);
+        smc.calcSun();
+        values[SUN_RISE]              = smc.sunRise;
+        values[SUN_SET]               = smc.sunSet;
+        values[SUN_TRANSIT]           = smc.sunTransit;
+        values[SUN_TRANSIT_ELEVATION] = (smc.sunTransit == -1) ? Double.NaN : Math.toDegrees(smc.sunTransitElev);
+
+        smc.setTwilight(TWILIGHT.TWILIGHT_CIVIL);
+        smc.calcSunRiseSet();
+        values[CIVIL_DAWN] = smc.sunRise;
+        values[CIVIL_DUSK] = smc.sunSet;
+
+        smc.setTwilight(TWILIGHT.TWILIGHT_NAUTICAL);
+        smc.calcSunRiseSet();
+        values[NAUTICAL_DAWN] = smc.sunRise;
+        values[NAUTICAL_DUSK] = smc.sunSet;
+
+        smc.setTwilight(TWILIGHT.TWILIGHT_ASTRONOMICAL);
+        smc.calcSunRiseSet();
+        values[ASTRONOMICAL_DAWN] = smc.sunRise;
+        values[ASTRONOMICAL_DUSK] = smc.sunSet;
+
+        smc.setTwilight(TWILIGHT.HORIZON_34arcmin);
+        smc.calcMoon();
+        values[MOON_RISE]              = smc.moonRise;
+        values[MOON_SET]               = smc.moonSet;
+        values[MOON_TRANSIT]           = smc.moonTransit;
+        values[MOON_TRANSIT_ELEVATION] = (smc.moonTransit == -1) ? Double.NaN : Math.toDegrees(smc.moonTransitElev);
+        values[MOON_AGE]               = smc.moonAge;
+        return values;
+    }
+
+    private static boolean isTime(int column) {
+        return column != SUN_TRANSIT_ELEVATION && column != MOON_TRANSIT_ELEVATION && column != MOON_AGE;
+    }
+
+    private static String toCsv(long day, double[] values, SimpleDateFormat dateFormat, SimpleDateFormat timeFormat) {
+        StringBuilder sb = new StringBuilder(dateFormat.format(new Date(day)));
+        for(int c = 0; c < COLUMNS; c++) {
+            sb.append(',');
+            double value = values[c];
+            if(isTime(c)) {
+                if(value != -1) {
+                    long time = Math.round((value - JULIAN_DAY_1970) * DAY_MILLIS);
+                    sb.append(timeFormat.format(new Date(time)));
+                }
+            } else if(!Double.isNaN(value)) {
+                sb.append(String.format(Locale.US, "%.3f", value));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeHeader(FileChannel channel, double latitude, double longitude, long from, int days) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putDouble(latitude).putDouble(longitude);
+        header.putLong(from).putInt(days).putInt(COLUMNS);
+        header.flip();
+        while(header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static void writeRow(FileChannel channel, ByteBuffer row, long day, double[] values) throws IOException {
+        row.clear();
+        row.putLong(day);
+        for(int c = 0; c < COLUMNS; c++) {
+            row.putDouble(values[c]);
+        }
+        row.flip();
+        while(row.hasRemaining()) {
+            channel.write(row);
+        }
+    }
+}
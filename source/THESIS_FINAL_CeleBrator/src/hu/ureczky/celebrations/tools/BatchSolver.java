@@ -0,0 +1,322 @@
+package hu.ureczky.celebrations.tools;
+
+import hu.ureczky.celebrations.PositionResult;
+import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.TaskType;
+import hu.ureczky.celebrations.solver.GridSearch;
+import hu.ureczky.celebrations.solver.LevenbergMarquardt;
+import hu.ureczky.celebrations.solver.PositionFix;
+import hu.ureczky.celebrations.tools.JsonStreamReader.Token;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless re-solver of the stored position measurements (the <timestamp>.json files written by {@link hu.ureczky.celebrations.State#write}),
+ * e.g. to compare solvers on recorded data. Runs on a desktop JVM, without the Android framework: build and run it with
+ * THESIS_FINAL_CeleBrator/tools/run.sh BatchSolver.
+ * <br/> The files are parsed and solved in parallel, the CSV rows are written in input (sorted file) order.
+ * The longitudes are in -180..180 degrees with every solver, like the ones of the app.
+ * <br/> Usage: BatchSolver &lt;dir&gt; [out.csv] [--threads N] [--solver grid|lm]
+ */
+public class BatchSolver {
+
+    // JSON keys (same as in State)
+    private static final String ID_TIMESTAMP      = "timestamp";
+    private static final String ID_TARGET         = "target";
+    private static final String ID_ORIENTATION    = "orientation";
+    private static final String ID_AZIMUTH        = "azimuth";
+    private static final String ID_ELEVATION      = "elevation";
+    private static final String ID_MAGNETIC_FIELD = "magnetic_field";
+    private static final String ID_MAGN_INTEN     = "magnetic_intensity";
+    private static final String ID_MAGN_INCLIN    = "magnetic_inclination";
+    private static final String ID_PRESSURE       = "pressure";
+    private static final String ID_TEMPERAURE     = "temperature";
+
+    private static final String CSV_HEADER = "file,timestamp,target,latitude,longitude,error,solve_ms";
+
+    public enum Solver { GRID, LM }
+
+    /** Outcome of one file. */
+    private static class Row {
+        int mIndex;        // in the input order
+        File mFile;
+        PositionResult mInput;
+        PositionFix mFix;
+        String mFailure;   // null, if solved
+        long mParseNanos;
+        long mSolveNanos;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = null, out = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Solver solver = Solver.GRID;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--solver") && i + 1 < args.length) {
+                solver = Solver.valueOf(args[++i].toUpperCase(Locale.US));
+            } else if(dir == null) {
+                dir = new File(args[i]);
+            } else if(out == null) {
+                out = new File(args[i]);
+            } else {
+                dir = null; // unexpected argument
+                break;
+            }
+        }
+        if(dir == null || !dir.isDirectory() || threads < 1) {
+            System.err.println("Usage: BatchSolver <dir> [out.csv] [--threads N] [--solver grid|lm]");
+            System.exit(1);
+        }
+
+        List<File> files = new ArrayList<File>();
+        collect(dir, files);
+
+        PrintWriter csv = (out != null)
+            ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"))
+            : new PrintWriter(System.out);
+        try {
+            run(files, solver, threads, csv);
+        } finally {
+            csv.close();
+        }
+    }
+
+    /** Collect the *.json files of the directory tree, in sorted (timestamp) order. */
+    private static void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if(children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for(File child : children) {
+            if(child.isDirectory()) {
+                collect(child, files);
+            } else if(child.getName().endsWith(".json")) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static void run(List<File> files, final Solver solver, int threads, PrintWriter csv) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Row> completion = new ExecutorCompletionService<Row>(executor);
+
+        // At most a few files per thread are submitted but not written yet, so the memory does not grow with the number of files;
+        // the completed rows wait in this window until the ones before them are written
+        int window = 2 * threads;
+        Row[] completed = new Row[window];
+        int next = 0, written = 0;
+        long[] latencies = new long[files.size()];
+        int solved = 0, failed = 0;
+
+        csv.println(CSV_HEADER);
+        long t0 = System.nanoTime();
+        try {
+            while(written < files.size()) {
+                while(next < files.size() && next - written < window) {
+                    final int index = next++;
+                    final File file = files.get(index);
+                    completion.submit(new Callable<Row>() {
+                        @Override
+                        public Row call() {
+                            Row row = process(file, solver);
+                            row.mIndex = index;
+                            return row;
+                        }
+                    });
+                }
+                Row done;
+                try {
+                    done = completion.take().get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                completed[done.mIndex % window] = done;
+
+                Row row;
+                while(written < files.size() && (row = completed[written % window]) != null) {
+                    completed[written % window] = null;
+                    written++;
+                    if(row.mFailure == null) {
+                        // Only the solved files' latencies are counted, a failed parse is not comparable
+                        latencies[solved++] = row.mParseNanos + row.mSolveNanos;
+                        csv.println(toCsv(row));
+                    } else {
+                        failed++;
+                        System.err.println(row.mFile + ": " + row.mFailure);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long t1 = System.nanoTime();
+        csv.flush();
+
+        report(files.size(), solved, failed, t1 - t0, threads, latencies);
+    }
+
+    private static Row process(File file, Solver solver) {
+        Row row = new Row();
+        row.mFile = file;
+        try {
+            long t0 = System.nanoTime();
+            row.mInput = read(file);
+            long t1 = System.nanoTime();
+            row.mFix = (solver == Solver.LM)
+                ? LevenbergMarquardt.search(row.mInput)
+                : GridSearch.search(row.mInput);
+            long t2 = System.nanoTime();
+            row.mParseNanos = t1 - t0;
+            row.mSolveNanos = t2 - t1;
+        } catch (IOException e) {
+            row.mFailure = e.getMessage();
+        } catch (RuntimeException e) {
+            row.mFailure = e.toString();
+        }
+        return row;
+    }
+
+    /**
+     * Read a measurement file written by State.write.
+     * Unknown keys (datetime, roll, camera) are skipped.
+     */
+    static PositionResult read(File file) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return read(new JsonStreamReader(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    static PositionResult read(JsonStreamReader json) throws IOException {
+        PositionResult result = new PositionResult();
+        result.mTaskType   = TaskType.POSITION;
+        result.mTargetType = Target.SUN; // default of State
+        boolean hasTime = false, hasOrientation = false;
+
+        expect(json, Token.BEGIN_OBJECT);
+        Token t;
+        while((t = json.next()) == Token.NAME) {
+            String name = json.getText();
+            if(name.equals(ID_TIMESTAMP)) {
+                expect(json, Token.NUMBER);
+                result.mTimeStamp = json.getLong();
+                hasTime = true;
+            } else if(name.equals(ID_TARGET)) {
+                expect(json, Token.STRING);
+                try {
+                    result.mTargetType = Target.valueOf(json.getText());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown target: " + json.getText());
+                }
+            } else if(name.equals(ID_ORIENTATION)) {
+                expect(json, Token.BEGIN_OBJECT);
+                while((t = json.next()) == Token.NAME) {
+                    String key = json.getText();
+                    if(key.equals(ID_AZIMUTH)) {
+                        expect(json, Token.NUMBER);
+                        result.mAzimuth = json.getDouble();
+                        hasOrientation = true;
+                    } else if(key.equals(ID_ELEVATION)) {
+                        expect(json, Token.NUMBER);
+                        result.mElevation = json.getDouble();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+            } else if(name.equals(ID_MAGNETIC_FIELD)) {
+                expect(json, Token.BEGIN_OBJECT);
+                while((t = json.next()) == Token.NAME) {
+                    String key = json.getText();
+                    if(key.equals(ID_MAGN_INTEN)) {
+                        expect(json, Token.NUMBER);
+                        result.mMagnIntesity = (float) json.getDouble();
+                    } else if(key.equals(ID_MAGN_INCLIN)) {
+                        expect(json, Token.NUMBER);
+                        result.mMagnInclination = (float) json.getDouble();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+            } else if(name.equals(ID_PRESSURE)) {
+                expect(json, Token.NUMBER);
+                result.mPressurePa = (float) json.getDouble();
+            } else if(name.equals(ID_TEMPERAURE)) {
+                expect(json, Token.NUMBER);
+                result.mTemperatureC = (float) json.getDouble();
+            } else {
+                json.skipValue();
+            }
+        }
+        if(t != Token.END_OBJECT) {
+            throw new IOException("Malformed measurement");
+        }
+        if(!hasTime || !hasOrientation) {
+            throw new IOException("Missing " + (hasTime ? ID_ORIENTATION : ID_TIMESTAMP));
+        }
+        return result;
+    }
+
+    private static void expect(JsonStreamReader json, Token expected) throws IOException {
+        Token t = json.next();
+        if(t != expected) {
+            throw new IOException("Expected " + expected + " instead of " + t);
+        }
+    }
+
+    private static String toCsv(Row row) {
+        return String.format(Locale.US, "%s,%d,%s,%.6f,%.6f,%.4f,%.3f",
+            row.mFile.getPath(),
+            row.mInput.mTimeStamp,
+            row.mInput.mTargetType,
+            row.mFix.mLatitude,
+            PositionFix.normalizeLongitude(row.mFix.mLongitude),
+            row.mFix.mError,
+            row.mSolveNanos / 1e6);
+    }
+
+    private static void report(int count, int solved, int failed, long wallNanos, int threads, long[] latencies) {
+        System.err.println(String.format(Locale.US, "Files: %d, solved: %d, failed: %d, threads: %d", count, solved, failed, threads));
+        if(count == 0) {
+            return;
+        }
+        double wallSec = wallNanos / 1e9;
+        System.err.println(String.format(Locale.US, "Wall time: %.3f s, throughput: %.1f files/s", wallSec, count / wallSec));
+        if(solved == 0) {
+            return;
+        }
+        long[] sorted = Arrays.copyOf(latencies, solved);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for(long l : sorted) {
+            sum += l;
+        }
+        System.err.println(String.format(Locale.US, "Latency of the solved files (ms): mean %.3f, p50 %.3f, p95 %.3f, max %.3f",
+            sum / 1e6 / solved,
+            sorted[(solved - 1) / 2] / 1e6,
+            sorted[(int) Math.ceil(0.95 * solved) - 1] / 1e6,
+            sorted[solved - 1] / 1e6));
+    }
+}
@@ -0,0 +1,175 @@
+package hu.ureczky.celebrations.tools;
+
+import hu.ureczky.celebrations.PositionResult;
+import hu.ureczky.celebrations.Target;
+import hu.ureczky.celebrations.TaskType;
+import hu.ureczky.celebrations.solver.EvaluationContext;
+import hu.ureczky.celebrations.solver.GridSearch;
+import hu.ureczky.celebrations.solver.MagneticGradientBound;
+import hu.ureczky.celebrations.solver.PositionError;
+import hu.ureczky.celebrations.solver.PositionFix;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.COFLoader;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Randomized check of {@link GridSearch#searchBranchAndBound} against the exhaustive {@link GridSearch#search(PositionResult)},
+ * and of the assumptions of {@link PositionError#lowerBound} it relies on. Runs on a desktop JVM, without the Android framework:
+ * build and run it with THESIS_FINAL_CeleBrator/tools/run.sh GridSearchCheck.
+ * <br/> The measurements are the values calculated at a random position and time, with noise (or random values,
+ * which do not match any position). Both targets are checked, and every third case is near the horizon.
+ * <br/> The lower bound is checked where it is the tightest: between random points at the distances of the search's blocks,
+ * with the values of the examined point measured, so its error is 0 and the bound must be 0 too
+ * (every calculated value changes at most by its rate bound).
+ * <br/> The .COF files given with --cof are registered like in the app (run.sh passes the bundled assets/wmm),
+ * so the random times up to the present are evaluated by the models the app uses. The magnetic rate bound is derived
+ * per model ({@link MagneticGradientBound}, printed), a time beyond a model's 5 years is checked without it.
+ * <br/> Usage: GridSearchCheck [--cases N] [--seed S] [--cof file.COF]..., the exit code is 1 if a case differs.
+ */
+public class GridSearchCheck {
+
+    // Range of the random timestamps: 2005.01.01 (the bundled WMM2005) - now (the registered models, extrapolated past their validity)
+    private static final long TIME_MIN = 1104537600000L;
+    private static final long TIME_MAX = System.currentTimeMillis();
+    // Step of the search for the models of the time range, for printing their bounds (a day)
+    private static final long MODEL_STEP = 24 * 60 * 60 * 1000L;
+
+    // Latitude range of the random positions (within the search's limit)
+    private static final double LAT_MAX = 78;
+
+    // Elevation range of the low cases (degrees)
+    private static final double LOW_ELEVATION = 5;
+
+    // Standard deviations of the noise: angles in degrees, intensity in microtesla
+    private static final double NOISE_ANGLE     = 2;
+    private static final double NOISE_INTENSITY = 2;
+
+    // Bound checks per case, and the largest distance of the examined points (a block's corner at the first level)
+    private static final int BOUND_CHECKS = 200;
+    private static final double BOUND_DISTANCE = 20 * Math.sqrt(2);
+
+    public static void main(String[] args) {
+        int cases = 200;
+        long seed = 1;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--cases") && i + 1 < args.length) {
+                cases = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if(args[i].equals("--cof") && i + 1 < args.length) {
+                File file = new File(args[++i]);
+                try {
+                    GeomagneticFieldFactory.register(COFLoader.load(file));
+                } catch (IOException e) {
+                    System.err.println(file + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Usage: GridSearchCheck [--cases N] [--seed S] [--cof file.COF]...");
+                System.exit(1);
+            }
+        }
+
+        WMMModel model = null;
+        for(long t = TIME_MIN; t < TIME_MAX; t += MODEL_STEP) {
+            if(GeomagneticFieldFactory.getModel(t) != model) {
+                model = GeomagneticFieldFactory.getModel(t);
+                System.out.println(String.format(Locale.US, "%s: magnetic rate bound %.3f microtesla/degree",
+                    model.getName(), MagneticGradientBound.get(model.getValidFrom())));
+            }
+        }
+
+        Random random = new Random(seed);
+        int differences = 0, violations = 0;
+        double[] values = new double[PositionError.VALUE_COUNT];
+        for(int c = 0; c < cases; c++) {
+            Target target = (c % 2 == 0) ? Target.SUN : Target.MOON;
+            PositionResult input = createInput(random, target, c % 3 == 0, c % 4 == 3);
+
+            PositionFix expected = GridSearch.search(input);
+            PositionFix actual   = GridSearch.searchBranchAndBound(input);
+            if(actual.mLatitude != expected.mLatitude || actual.mLongitude != expected.mLongitude || actual.mError != expected.mError) {
+                differences++;
+                System.out.println(String.format(Locale.US, "Case %d (%s, %d, az %.2f el %.2f inc %.2f int %.2f): search %.4f %.4f %.6f, branch-and-bound %.4f %.4f %.6f",
+                    c, target, input.mTimeStamp, input.mAzimuth, input.mElevation, input.mMagnInclination, input.mMagnIntesity,
+                    expected.mLatitude, expected.mLongitude, expected.mError, actual.mLatitude, actual.mLongitude, actual.mError));
+            }
+
+            EvaluationContext context = new EvaluationContext(target, input.mTimeStamp);
+            for(int k = 0; k < BOUND_CHECKS; k++) {
+                double lat0 = randomLatitude(random);
+                double lon0 = 360 * random.nextDouble() - 180;
+                double distance = BOUND_DISTANCE * Math.pow(4, -random.nextInt(5)) * random.nextDouble(); // at every level
+                double bearing = 2 * Math.PI * random.nextDouble();
+                double lat = Math.max(-GridSearch.LAT_LIMIT, Math.min(GridSearch.LAT_LIMIT, lat0 + distance * Math.cos(bearing)));
+                double lon = lon0 + distance * Math.sin(bearing);
+                context.evaluate(lat, lon);
+                PositionError error = new PositionError(createInput(target, input.mTimeStamp, context));
+                error.calculate(lat0, lon0, values);
+                double bound = error.lowerBound(values, lat0, lon0, lat, lon);
+                double err = error.calculate(lat, lon);
+                if(bound > err) {
+                    violations++;
+                    System.out.println(String.format(Locale.US, "Case %d (%s, %d): bound %.6f > error %.6f from %.4f %.4f to %.4f %.4f",
+                        c, target, input.mTimeStamp, bound, err, lat0, lon0, lat, lon));
+                }
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%d cases, %d differences; %d bound checks, %d violations",
+            cases, differences, cases * BOUND_CHECKS, violations));
+        System.exit((differences == 0 && violations == 0) ? 0 : 1);
+    }
+
+    /**
+     * @param low measured near the horizon
+     * @param inconsistent random measured values, instead of the ones of a position
+     */
+    private static PositionResult createInput(Random random, Target target, boolean low, boolean inconsistent) {
+        long timeStamp;
+        EvaluationContext context;
+        do {
+            timeStamp = TIME_MIN + (long) (random.nextDouble() * (TIME_MAX - TIME_MIN));
+            context = new EvaluationContext(target, timeStamp);
+            context.evaluate(randomLatitude(random), 360 * random.nextDouble() - 180);
+        } while(low ? Math.abs(context.mElevationDeg) > LOW_ELEVATION : context.mElevationDeg < 0);
+
+        PositionResult input = createInput(target, timeStamp, context);
+        if(inconsistent) {
+            input.mAzimuth         = 360 * random.nextDouble();
+            input.mElevation       = low ? context.mElevationDeg : 90 * random.nextDouble();
+            input.mMagnInclination = (float) (180 * random.nextDouble() - 90);
+            input.mMagnIntesity    = (float) (20 + 50 * random.nextDouble());
+        } else {
+            input.mAzimuth         = (context.mAzimuthDegMagn + NOISE_ANGLE * random.nextGaussian() + 360) % 360;
+            input.mElevation       = context.mElevationDeg + NOISE_ANGLE * random.nextGaussian();
+            input.mMagnInclination = (float) (context.mMagnInclination + NOISE_ANGLE * random.nextGaussian());
+            input.mMagnIntesity    = (float) (context.mMagnIntensity + NOISE_INTENSITY * random.nextGaussian());
+        }
+        return input;
+    }
+
+    /** @return the measurement of the values of the last evaluation, without noise */
+    private static PositionResult createInput(Target target, long timeStamp, EvaluationContext context) {
+        PositionResult input = new PositionResult();
+        input.mTaskType        = TaskType.POSITION;
+        input.mTargetType      = target;
+        input.mTimeStamp       = timeStamp;
+        input.mAzimuth         = context.mAzimuthDegMagn;
+        input.mElevation       = context.mElevationDeg;
+        input.mMagnInclination = context.mMagnInclination;
+        input.mMagnIntesity    = context.mMagnIntensity;
+        return input;
+    }
+
+    /** @return latitude uniform on the sphere, within LAT_MAX */
+    private static double randomLatitude(Random random) {
+        double sinMax = Math.sin(Math.toRadians(LAT_MAX));
+        return Math.toDegrees(Math.asin(sinMax * (2 * random.nextDouble() - 1)));
+    }
+}
@@ -0,0 +1,192 @@
+package hu.ureczky.celebrations.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal streaming (pull) JSON tokenizer for the measurement files, usable without the Android framework.
+ * <br/> Reads one token at a time, names and values are not interpreted beyond their type.
+ */
+public class JsonStreamReader {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+        NAME, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT
+    }
+
+    private final Reader mReader;
+    private int mPeeked = -2;    // next character (-1: end of input, -2: not read yet)
+    private boolean mExpectName; // inside an object, before a name
+
+    // Text of the last NAME, STRING, NUMBER or BOOLEAN token
+    private final StringBuilder mText = new StringBuilder();
+
+    // Containers: true for objects, false for arrays
+    private boolean[] mStack = new boolean[16];
+    private int mDepth = 0;
+
+    public JsonStreamReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /** @return the next token, its text is given by {@link #getText()} */
+    public Token next() throws IOException {
+        int c = skipSeparators();
+        switch(c) {
+            case -1:
+                return Token.END_DOCUMENT;
+            case '{':
+                read();
+                push(true);
+                mExpectName = true;
+                return Token.BEGIN_OBJECT;
+            case '}':
+                read();
+                pop();
+                return Token.END_OBJECT;
+            case '[':
+                read();
+                push(false);
+                mExpectName = false;
+                return Token.BEGIN_ARRAY;
+            case ']':
+                read();
+                pop();
+                return Token.END_ARRAY;
+            case '"': {
+                readString();
+                if(mExpectName) {
+                    mExpectName = false;
+                    return Token.NAME;
+                }
+                return Token.STRING;
+            }
+            default: {
+                readLiteral();
+                String text = mText.toString();
+                if(text.equals("null"))                          return Token.NULL;
+                if(text.equals("true") || text.equals("false")) return Token.BOOLEAN;
+                return Token.NUMBER;
+            }
+        }
+    }
+
+    public String getText() {
+        return mText.toString();
+    }
+
+    public double getDouble() {
+        return Double.parseDouble(mText.toString());
+    }
+
+    public long getLong() {
+        String text = mText.toString();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(text);
+        }
+    }
+
+    /** Skip the value after a NAME (with all nested values). */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token t = next();
+            if(t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) depth++;
+            if(t == Token.END_OBJECT   || t == Token.END_ARRAY)   depth--;
+            if(t == Token.END_DOCUMENT) throw new IOException("Unexpected end of input");
+        } while(depth > 0);
+    }
+
+    private void push(boolean object) {
+        if(mDepth == mStack.length) {
+            boolean[] stack = new boolean[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = object;
+    }
+
+    private void pop() throws IOException {
+        if(mDepth == 0) {
+            throw new IOException("Unbalanced JSON");
+        }
+        mDepth--;
+        mExpectName = false;
+    }
+
+    /** Skips whitespace, ':' and ',' (after a ',' in an object, a name comes). */
+    private int skipSeparators() throws IOException {
+        while(true) {
+            int c = peek();
+            if(c == ',') {
+                mExpectName = (mDepth > 0 && mStack[mDepth - 1]);
+            } else if(c != ':' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            read();
+        }
+    }
+
+    private void readString() throws IOException {
+        read(); // opening quote
+        mText.setLength(0);
+        while(true) {
+            int c = read();
+            if(c == -1) {
+                throw new IOException("Unterminated string");
+            } else if(c == '"') {
+                return;
+            } else if(c == '\\') {
+                int e = read();
+                switch(e) {
+                    case 'n': mText.append('\n'); break;
+                    case 't': mText.append('\t'); break;
+                    case 'r': mText.append('\r'); break;
+                    case 'b': mText.append('\b'); break;
+                    case 'f': mText.append('\f'); break;
+                    case 'u': {
+                        char[] hex = new char[4];
+                        for(int i = 0; i < 4; i++) {
+                            hex[i] = (char) read();
+                        }
+                        mText.append((char) Integer.parseInt(new String(hex), 16));
+                        break;
+                    }
+                    default: mText.append((char) e); // \" \\ \/
+                }
+            } else {
+                mText.append((char) c);
+            }
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        mText.setLength(0);
+        while(true) {
+            int c = peek();
+            if(c == -1 || c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            mText.append((char) read());
+        }
+        if(mText.length() == 0) {
+            throw new IOException("Unexpected character: " + (char) peek());
+        }
+    }
+
+    private int peek() throws IOException {
+        if(mPeeked == -2) {
+            mPeeked = mReader.read();
+        }
+        return mPeeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        mPeeked = -2;
+        return c;
+    }
+}
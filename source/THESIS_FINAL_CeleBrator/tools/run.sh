@@ -0,0 +1,29 @@
+#!/bin/sh
+# Builds and runs a headless tool of hu.ureczky.celebrations.tools on a desktop JVM (no Android SDK needed):
+# ./run.sh BatchSolver <dir> [out.csv] [--threads N] [--solver grid|lm]
+# ./run.sh Almanac <latitude> <longitude> <from> <to> [out.csv] [--bin out.bin] [--ephemeris eph.bin] [--threads N]
+# ./run.sh GridSearchCheck [--cases N] [--seed S] [--cof file.COF]...
+#   (the bundled assets/wmm/*.COF are always registered, like at the app's start)
+# Only the sources the tool reaches are compiled, so a dependency on the Android framework fails the build.
+# The sources are mostly Cp1252 (the projects' encoding), a few are UTF-8: ISO-8859-1 reads both,
+# only the non-ASCII characters of the UTF-8 files' comments and messages are garbled.
+set -e
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 BatchSolver|Almanac|GridSearchCheck [arguments]" >&2
+    exit 1
+fi
+TOOL=$1
+shift
+DIR=$(cd "$(dirname "$0")" && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -encoding ISO-8859-1 -d "$OUT" \
+    -sourcepath "$DIR/../src:$DIR/../gen:$DIR/../../THESIS_FINAL_Utils/src" \
+    "$DIR/../src/hu/ureczky/celebrations/tools/$TOOL.java"
+if [ "$TOOL" = GridSearchCheck ]; then
+    for COF in "$DIR"/../assets/wmm/*.COF; do
+        [ -f "$COF" ] && set -- --cof "$COF" "$@"
+    done
+fi
+java -cp "$OUT" "hu.ureczky.celebrations.tools.$TOOL" "$@"
@@ -0,0 +1,155 @@
+package hu.ureczky.utils.astro.geomagneticfield.wmm;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the point evaluation ({@link GeomagneticField_WMM#setParameters}) against the row-major
+ * {@link RowMajorBaseline} (desktop JVM only, not part of the Android build), build and run it with ../run.sh.
+ * <br/> Degree 12 is the bundled WMM, the higher degrees are synthetic models with a WMM-like spectrum
+ * (the speed does not depend on the values).
+ * <br/> The variants are measured in alternating rounds after a warm-up, the best and the median round is reported.
+ * <br/> Usage: GeomagneticFieldBenchmark [--rounds N] [--round-millis MS]. The packed tables pay off at the high degrees;
+ * at degree 12 the gain is a few percent, close to the noise of a run.
+ */
+public class GeomagneticFieldBenchmark {
+
+    private static final long TIME_STAMP = 1500000000000L;
+    private static final int POINTS = 1024; // power of 2
+    private static final int[] DEGREES = { 12, 133, 720 };
+    private static final int WARMUP_ROUNDS = 5;
+
+    /** A variant of the evaluator. */
+    private interface Variant {
+        /** @return checksum of the evaluated points (so the work can not be eliminated) */
+        double run(float[] latitude, float[] longitude, int calls);
+    }
+
+    public static void main(String[] args) {
+        int rounds = 10;
+        long roundMillis = 500;
+        for (int i = 0; i < args.length; i++) {
+            if ("--rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if ("--round-millis".equals(args[i])) {
+                roundMillis = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: GeomagneticFieldBenchmark [--rounds N] [--round-millis MS]");
+                System.exit(1);
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%s %s (%s), %s %s, %d processors",
+            System.getProperty("java.vm.name"), System.getProperty("java.version"), System.getProperty("java.vm.version"),
+            System.getProperty("os.name"), System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format(Locale.US, "%d points, %d warm-up + %d rounds of %d ms per variant",
+            POINTS, WARMUP_ROUNDS, rounds, roundMillis));
+        System.out.println(String.format(Locale.US, "%6s %22s %22s %8s %12s",
+            "degree", "baseline ns/call", "packed ns/call", "speedup", "max diff nT"));
+        System.out.println(String.format(Locale.US, "%6s %11s %10s %11s %10s %8s",
+            "", "best", "median", "best", "median", ""));
+
+        for (int degree : DEGREES) {
+            WMMModel model = (degree == 12) ? new WMMModel(new WMM_2015()) : createModel(degree);
+            benchmark(degree, model, rounds, roundMillis);
+        }
+    }
+
+    private static void benchmark(int degree, WMMModel model, int rounds, long roundMillis) {
+        float[] latitude  = new float[POINTS];
+        float[] longitude = new float[POINTS];
+        Random random = new Random(1);
+        for (int i = 0; i < POINTS; i++) {
+            latitude[i]  = (float) Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)); // uniform on the sphere
+            longitude[i] = (float) (360 * random.nextDouble() - 180);
+        }
+
+        final GeomagneticField_WMM packed = new GeomagneticField_WMM(model.computeCoefficients(TIME_STAMP));
+        final RowMajorBaseline baseline = new RowMajorBaseline(model, TIME_STAMP);
+
+        // Sanity check: the variants evaluate the same field
+        double maxDiff = 0;
+        for (int i = 0; i < POINTS; i++) {
+            packed.setParameters(latitude[i], longitude[i], 0);
+            baseline.setParameters(latitude[i], longitude[i], 0);
+            maxDiff = Math.max(maxDiff, Math.abs(packed.getX() - baseline.getX()));
+            maxDiff = Math.max(maxDiff, Math.abs(packed.getY() - baseline.getY()));
+            maxDiff = Math.max(maxDiff, Math.abs(packed.getZ() - baseline.getZ()));
+        }
+
+        Variant[] variants = {
+            new Variant() {
+                @Override
+                public double run(float[] latitude, float[] longitude, int calls) {
+                    double sum = 0;
+                    for (int c = 0; c < calls; c++) {
+                        int i = c & (POINTS - 1);
+                        baseline.setParameters(latitude[i], longitude[i], 0);
+                        sum += baseline.getX();
+                    }
+                    return sum;
+                }
+            },
+            new Variant() {
+                @Override
+                public double run(float[] latitude, float[] longitude, int calls) {
+                    double sum = 0;
+                    for (int c = 0; c < calls; c++) {
+                        int i = c & (POINTS - 1);
+                        packed.setParameters(latitude[i], longitude[i], 0);
+                        sum += packed.getX();
+                    }
+                    return sum;
+                }
+            }
+        };
+
+        // Calls per round, calibrated on the baseline (the slower one)
+        int calls = POINTS;
+        long start = System.nanoTime();
+        double checksum = variants[0].run(latitude, longitude, calls);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        calls = (int) Math.max(POINTS, Math.min(Integer.MAX_VALUE / 2, calls * (roundMillis * 1000000L) / elapsed));
+
+        double[][] nsPerCall = new double[variants.length][rounds];
+        for (int round = -WARMUP_ROUNDS; round < rounds; round++) {
+            for (int v = 0; v < variants.length; v++) {
+                start = System.nanoTime();
+                checksum += variants[v].run(latitude, longitude, calls);
+                elapsed = System.nanoTime() - start;
+                if(round >= 0) {
+                    nsPerCall[v][round] = (double) elapsed / calls;
+                }
+            }
+        }
+
+        for (double[] times : nsPerCall) {
+            Arrays.sort(times);
+        }
+        double[] baselineTimes = nsPerCall[0], packedTimes = nsPerCall[1];
+        System.out.println(String.format(Locale.US, "%6d %11.1f %10.1f %11.1f %10.1f %7.2fx %12.2e%s",
+            degree,
+            baselineTimes[0], baselineTimes[rounds / 2],
+            packedTimes[0],   packedTimes[rounds / 2],
+            baselineTimes[rounds / 2] / packedTimes[rounds / 2],
+            maxDiff,
+            Double.isNaN(checksum) ? " NaN!" : ""));
+    }
+
+    /** Random coefficients decaying like the geomagnetic spectrum. */
+    private static WMMModel createModel(int degree) {
+        int size = (degree + 1) * (degree + 2) / 2;
+        double[] g = new double[size], h = new double[size];
+        Random random = new Random(degree);
+        for (int n = 1; n <= degree; n++) {
+            double scale = 30000 * Math.pow(n, -2.5);
+            for (int m = 0; m <= n; m++) {
+                int k = n * (n + 1) / 2 + m;
+                g[k] = scale * random.nextGaussian();
+                h[k] = (m == 0) ? 0 : scale * random.nextGaussian();
+            }
+        }
+        return new WMMModel("Synthetic-" + degree, 2015, g, h, new double[size], new double[size]);
+    }
+}
@@ -0,0 +1,217 @@
+package hu.ureczky.utils.astro.geomagneticfield.wmm;
+
+/**
+ * Baseline of {@link GeomagneticFieldBenchmark}: the point evaluation of {@link GeomagneticField_WMM}
+ * before the tables were packed by the order m, with the coefficients and the recurrence constants
+ * in flat triangular arrays (row by row: index = n*(n+1)/2 + m).
+ * <br/> The geocentric conversion, the Legendre recurrences and the synthesis are the previous code unchanged.
+ */
+class RowMajorBaseline {
+
+    static private final double EARTH_SEMI_MAJOR_AXIS_KM = 6378.137;
+    static private final double EARTH_SEMI_MINOR_AXIS_KM = 6356.7523142;
+    static private final double EARTH_REFERENCE_RADIUS_KM = 6371.2;
+
+    private final int MAX_N; // Number of the degrees (maximum degree + 1).
+
+    // Schmidt quasi-normalized coefficients adjusted for the timestamp, flat triangular
+    private final double[] mG;
+    private final double[] mH;
+
+    // Constants of the Legendre recurrences, flat triangular
+    private final double[] mA, mB, mC, mSectoral;
+
+    private final double[] mP;
+    private final double[] mPDeriv;
+    private final double[] mRelativeRadiusPower;
+    private final double[] mSinMLon;
+    private final double[] mCosMLon;
+
+    private double mGcLatitudeRad;
+    private double mGcLongitudeRad;
+    private double mGcRadiusKm;
+
+    private double mX;
+    private double mY;
+    private double mZ;
+
+    /** Adjusts the model's coefficients exactly for the timestamp. */
+    RowMajorBaseline(WMMModel model, long timeStamp) {
+        double[][] tables = model.getTables(); // flat triangular
+        double years = model.getYearsSinceBase(timeStamp);
+        int size = tables[0].length;
+        MAX_N = model.mMaxN;
+
+        mG = new double[size];
+        mH = new double[size];
+        for (int k = 0; k < size; k++) {
+            mG[k] = tables[0][k] + years * tables[2][k];
+            mH[k] = tables[1][k] + years * tables[3][k];
+        }
+
+        mA = new double[size];
+        mB = new double[size];
+        mC = new double[size];
+        for (int n = 1; n < MAX_N; n++) {
+            for (int m = 0; m < n; m++) {
+                int k = n * (n + 1) / 2 + m;
+                double c = Math.sqrt(n * n - m * m);
+                mA[k] = (2 * n - 1) / c;
+                mB[k] = Math.sqrt(Math.max(0, (n - 1) * (n - 1) - m * m)) / c;
+                mC[k] = c;
+            }
+        }
+        mSectoral = new double[MAX_N];
+        for (int m = 2; m < MAX_N; m++) {
+            mSectoral[m] = Math.sqrt((2 * m - 1) / (2.0 * m));
+        }
+
+        mP      = new double[size];
+        mPDeriv = new double[size];
+        mRelativeRadiusPower = new double[MAX_N + 2];
+        mSinMLon = new double[MAX_N];
+        mCosMLon = new double[MAX_N];
+    }
+
+    void setParameters(float gdLatitudeDeg, float gdLongitudeDeg, float altitudeMeters) {
+        gdLatitudeDeg = Math.min(90.0f - 1e-5f, Math.max(-90.0f + 1e-5f, gdLatitudeDeg));
+        computeGeocentricCoordinates(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+        computeLegendre(Math.PI / 2.0 - mGcLatitudeRad);
+        double[] relativeRadiusPower = mRelativeRadiusPower;
+        relativeRadiusPower[0] = 1.0;
+        relativeRadiusPower[1] = EARTH_REFERENCE_RADIUS_KM / mGcRadiusKm;
+        for (int i = 2; i < relativeRadiusPower.length; ++i) {
+            relativeRadiusPower[i] = relativeRadiusPower[i - 1] * relativeRadiusPower[1];
+        }
+        computeMLonTables(mGcLongitudeRad, mSinMLon, mCosMLon);
+        synthesize(gdLatitudeDeg);
+    }
+
+    float getX() {
+        return (float) mX;
+    }
+
+    float getY() {
+        return (float) mY;
+    }
+
+    float getZ() {
+        return (float) mZ;
+    }
+
+    private void synthesize(double gdLatitudeDeg) {
+        double[] legendreP      = mP;
+        double[] legendrePDeriv = mPDeriv;
+        double[] relativeRadiusPower = mRelativeRadiusPower;
+        double[] sinMLon = mSinMLon;
+        double[] cosMLon = mCosMLon;
+        double[] coeffG = mG;
+        double[] coeffH = mH;
+
+        double inverseCosLatitude = 1.0 / Math.cos(mGcLatitudeRad);
+
+        double gcX = 0.0;  // Geocentric northwards component.
+        double gcY = 0.0;  // Geocentric eastwards component.
+        double gcZ = 0.0;  // Geocentric downwards component.
+
+        for (int n = 1, k = 1; n < MAX_N; n++) {
+            for (int m = 0; m <= n; m++, k++) {
+                double g = coeffG[k];
+                double h = coeffH[k];
+
+                gcX += relativeRadiusPower[n+2]
+                    * (g * cosMLon[m] + h * sinMLon[m])
+                    * legendrePDeriv[k];
+
+                gcY += relativeRadiusPower[n+2] * m
+                    * (g * sinMLon[m] - h * cosMLon[m])
+                    * legendreP[k]
+                    * inverseCosLatitude;
+
+                gcZ -= (n + 1) * relativeRadiusPower[n+2]
+                    * (g * cosMLon[m] + h * sinMLon[m])
+                    * legendreP[k];
+            }
+        }
+
+        double latDiffRad = Math.toRadians(gdLatitudeDeg) - mGcLatitudeRad;
+        mX = (+ gcX * Math.cos(latDiffRad)
+              + gcZ * Math.sin(latDiffRad));
+        mY = gcY;
+        mZ = (- gcX * Math.sin(latDiffRad)
+              + gcZ * Math.cos(latDiffRad));
+    }
+
+    private void computeMLonTables(double lonRad, double[] sinMLon, double[] cosMLon) {
+        sinMLon[0] = 0.0;
+        cosMLon[0] = 1.0;
+        sinMLon[1] = Math.sin(lonRad);
+        cosMLon[1] = Math.cos(lonRad);
+
+        for (int m = 2; m < MAX_N; ++m) {
+            int x = m >> 1;
+            sinMLon[m] = sinMLon[m-x] * cosMLon[x] + cosMLon[m-x] * sinMLon[x];
+            cosMLon[m] = cosMLon[m-x] * cosMLon[x] - sinMLon[m-x] * sinMLon[x];
+        }
+    }
+
+    private void computeGeocentricCoordinates(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters) {
+        double altitudeKm = altitudeMeters / 1000.0f;
+        double a2 = EARTH_SEMI_MAJOR_AXIS_KM * EARTH_SEMI_MAJOR_AXIS_KM;
+        double b2 = EARTH_SEMI_MINOR_AXIS_KM * EARTH_SEMI_MINOR_AXIS_KM;
+        double gdLatRad = Math.toRadians(gdLatitudeDeg);
+        double clat = Math.cos(gdLatRad);
+        double slat = Math.sin(gdLatRad);
+        double tlat = slat / clat;
+        double latRad = Math.sqrt(a2 * clat * clat + b2 * slat * slat);
+
+        mGcLatitudeRad = Math.atan(tlat * (latRad * altitudeKm + b2) / (latRad * altitudeKm + a2));
+        mGcLongitudeRad = Math.toRadians(gdLongitudeDeg);
+
+        double radSq = altitudeKm * altitudeKm
+            + 2 * altitudeKm * Math.sqrt(a2 * clat * clat + b2 * slat * slat)
+            + (a2 * a2 * clat * clat + b2 * b2 * slat * slat)
+            / (a2 * clat * clat + b2 * slat * slat);
+        mGcRadiusKm = Math.sqrt(radSq);
+    }
+
+    /** Column-wise recurrences on P_n^m / sin(theta)^m, writing the triangular table with a stride of n. */
+    private void computeLegendre(double thetaRad) {
+        int maxN = MAX_N - 1;
+        double cos = Math.cos(thetaRad);
+        double sin = Math.sin(thetaRad);
+        double[] p = mP, pDeriv = mPDeriv;
+
+        double sinM = 1.0; // sin^m
+        double qMM  = 1.0; // P_m^m / sin^m
+        for (int m = 0; m <= maxN; m++) {
+            if (m > 0) {
+                sinM *= sin;
+                if (m > 1) qMM *= mSectoral[m];
+            }
+            int k = m * (m + 1) / 2 + m;
+            if (sinM == 0.0) {
+                // Underflow: P_n^m for this and the higher orders are negligible
+                for (int n = m; n <= maxN; n++) {
+                    for (int i = n * (n + 1) / 2 + m; i <= n * (n + 1) / 2 + n; i++) {
+                        p[i] = 0.0;
+                        pDeriv[i] = 0.0;
+                    }
+                }
+                return;
+            }
+            p[k] = qMM * sinM;
+            pDeriv[k] = m * cos * p[k] / sin;
+
+            double q2 = 0.0, q1 = qMM; // P_n-2^m / sin^m, P_n-1^m / sin^m
+            for (int n = m + 1; n <= maxN; n++) {
+                k += n;
+                double q = mA[k] * cos * q1 - mB[k] * q2;
+                p[k] = q * sinM;
+                pDeriv[k] = (n * cos * p[k] - mC[k] * q1 * sinM) / sin;
+                q2 = q1;
+                q1 = q;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+#!/bin/sh
+# Builds and runs the geomagnetic field benchmark on a desktop JVM (no Android SDK needed):
+# ./run.sh [--rounds N] [--round-millis MS]
+# Only the sources the benchmark reaches are compiled, so a dependency on the Android framework fails the build.
+set -e
+DIR=$(cd "$(dirname "$0")" && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -encoding UTF-8 -d "$OUT" \
+    -sourcepath "$DIR:$DIR/../src:$DIR/../gen" \
+    $(find "$DIR/hu" -name '*.java')
+java -cp "$OUT" hu.ureczky.utils.astro.geomagneticfield.wmm.GeomagneticFieldBenchmark "$@"
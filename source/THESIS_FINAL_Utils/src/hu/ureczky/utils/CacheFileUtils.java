@@ -0,0 +1,90 @@
+package hu.ureczky.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary cache files of computed tables (e.g. grids, ephemerides, parsed coefficient files):
+ * written atomically, memory-mapped on load, rebuilt when missing, invalid or out of date.
+ */
+public class CacheFileUtils {
+
+    /** Content of a cache file. */
+    public interface Content<T> {
+
+        /**
+         * @return the object of the cache file (e.g. from {@link CacheFileUtils#map(File)}), or null if it is out of date
+         * @throws IOException if the file is invalid
+         */
+        T load(File file) throws IOException;
+
+        /** @return the object computed from its source */
+        T build() throws IOException;
+
+        /** Write the object into the cache file (e.g. with {@link CacheFileUtils#save(File, ByteBuffer)}). */
+        void save(T object, File file) throws IOException;
+    }
+
+    /**
+     * Load the object from the cache file if it is valid and up to date, otherwise build it and (try to) save it.
+     * @throws IOException if the build fails
+     */
+    public static <T> T loadOrBuild(File file, Content<T> content) throws IOException {
+        if(file.exists()) {
+            try {
+                T object = content.load(file);
+                if(object != null) {
+                    return object;
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Rebuild
+            }
+        }
+        T object = content.build();
+        try {
+            content.save(object, file);
+        } catch (IOException e) {
+            e.printStackTrace(); // Works without the cache too
+        }
+        return object;
+    }
+
+    /**
+     * Write the buffer's remaining bytes into the file atomically: into a temporary file, which is renamed,
+     * so a reader never sees a partial file.
+     */
+    public static void save(File file, ByteBuffer buffer) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file)) {
+            file.delete();
+            if(!tmp.renameTo(file)) {
+                throw new IOException("Can not rename " + tmp);
+            }
+        }
+    }
+
+    /** @return the file's content memory-mapped (read-only, little-endian), it stays valid after the file is closed */
+    public static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+}
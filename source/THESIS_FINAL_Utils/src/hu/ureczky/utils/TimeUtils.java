@@ -1,7 +1,8 @@
 package hu.ureczky.utils;
 
-import hu.ureczky.utils.tests.Tests;
+import hu.ureczky.utils.tests.Assert;
 
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.SimpleTimeZone;
@@ -27,6 +28,12 @@ public class TimeUtils {
     
     /** Julian date of 0001.01.01,00:00:00.000 UTC */
     private static final double JD_1_0 = 1721423.5;
+    
+    /** Julian Day Number (of the noon) of 1970.01.01 */
+    private static final long JDN_1970 = 2440588;
+    
+    /** Julian Day Number of 1582.10.15, the first day of the Gregorian calendar */
+    private static final long JDN_GREGORIAN_REFORM = 2299161;
         
     /** Julian days per century */
     public static final int DAYS_PER_JULIAN_CENTURY = 36525;
@@ -53,6 +60,15 @@ public class TimeUtils {
         double daysSince1970 = timestamp * DAY_PER_MILLISECOND;
         return JD_1970_0 + daysSince1970;
     }
+
+    /**
+     * Convert Julian Day (JD) to UTC time
+     * @param julianDay Julian Day (JD)
+     * @return milliseconds since 1970.01.01,00:00:00.000 UTC
+     */
+    public static long getTimeStampFromJulianDay(double julianDay) {
+        return Math.round((julianDay - JD_1970_0) * MILLISECONDS_PER_DAY);
+    }
         
     /**
      * Convert UTC time to Modified Julian Day (MJD)
@@ -97,19 +113,204 @@ public class TimeUtils {
         }
     }
     
+    //////////////
+    // CALENDAR //
+    //////////////
+    
+    // The calendar functions are pure arithmetic (no Calendar objects are allocated), they follow GregorianCalendar:
+    // Gregorian calendar from 1582.10.15, Julian calendar before.
+    
+    private static final int FIELD_YEAR  = 0;
+    private static final int FIELD_MONTH = 1;
+    private static final int FIELD_DAY   = 2;
+    
+    /** Bounds of a year, as UTC timestamps. */
+    private static final class Year {
+        final int mYear;
+        final long mBegin; // inclusive
+        final long mEnd;   // exclusive
+        
+        Year(int year) {
+            mYear  = year;
+            mBegin = getTimeStampAtYearBeginning(year);
+            mEnd   = getTimeStampAtYearBeginning(year + 1);
+        }
+    }
+    
+    // The year of the last decimal year conversion: the calls mostly come from the same year (immutable, replaced as a whole)
+    private static volatile Year sLastYear = new Year(2015);
+    
+    /** @return days since 1970.01.01 (rounded down, also before 1970) */
+    private static long getDays(long timestamp) {
+        long days = timestamp / MILLISECONDS_PER_DAY;
+        return (days * MILLISECONDS_PER_DAY > timestamp) ? days - 1 : days;
+    }
+    
+    /**
+     * Convert a Julian Day Number to a calendar date
+     * @see Meeus, page 63
+     * @param field FIELD_YEAR, FIELD_MONTH (1..12) or FIELD_DAY (1..31)
+     */
+    private static int getCalendarField(long jdn, int field) {
+        long a = jdn;
+        if(jdn >= JDN_GREGORIAN_REFORM) {
+            long alpha = (long) Math.floor((jdn - 1867216.25) / 36524.25);
+            a = jdn + 1 + alpha - (long) Math.floor(alpha / 4.0);
+        }
+        long b = a + 1524;
+        long c = (long) Math.floor((b - 122.1) / 365.25);
+        long d = (long) Math.floor(365.25 * c);
+        long e = (long) Math.floor((b - d) / 30.6001);
+        int month = (int) ((e < 14) ? e - 1 : e - 13);
+        switch(field) {
+            case FIELD_YEAR:  return (int) ((month > 2) ? c - 4716 : c - 4715);
+            case FIELD_MONTH: return month;
+            default:          return (int) (b - d - (long) Math.floor(30.6001 * e));
+        }
+    }
+    
+    /** @return UTC timestamp of the beginning of the year (year.01.01,00:00:00.000 UTC) */
+    private static long getTimeStampAtYearBeginning(int year) {
+        return Math.round((getJulianDayAtYearBeginning(year) - JD_1970_0) * MILLISECONDS_PER_DAY);
+    }
+    
+    /**
+     * @param timestamp - milliseconds since 1970.01.01,00:00:00.000 UTC
+     * @return year of the UTC date (0 = B.C. 1, -1 = B.C. 2)
+     */
+    public static int getYear(long timestamp) {
+        return getCalendarField(getDays(timestamp) + JDN_1970, FIELD_YEAR);
+    }
+    
+    /**
+     * @param timestamp - milliseconds since 1970.01.01,00:00:00.000 UTC
+     * @return day of the year of the UTC date, 1..366
+     */
+    public static int getDayOfYear(long timestamp) {
+        long days = getDays(timestamp);
+        int year = getCalendarField(days + JDN_1970, FIELD_YEAR);
+        return (int) (days - getDays(getTimeStampAtYearBeginning(year))) + 1;
+    }
+    
+    /**
+     * Decimal year, as the World Magnetic Model defines it: the year plus the elapsed fraction of its days
+     * (e.g. 2015.5 is 2015.07.02,12:00:00.000 UTC).
+     * @param timestamp - milliseconds since 1970.01.01,00:00:00.000 UTC
+     * @return decimal year
+     */
+    public static double getDecimalYear(long timestamp) {
+        Year year = sLastYear;
+        if(timestamp < year.mBegin || timestamp >= year.mEnd) {
+            year = new Year(getYear(timestamp));
+            sLastYear = year;
+        }
+        return year.mYear + (timestamp - year.mBegin) / (double) (year.mEnd - year.mBegin);
+    }
+    
+    /**
+     * Inverse of {@link #getDecimalYear(long)}
+     * @param decimalYear - year plus the elapsed fraction of its days
+     * @return milliseconds since 1970.01.01,00:00:00.000 UTC
+     */
+    public static long getTimeStampFromDecimalYear(double decimalYear) {
+        int year = (int) Math.floor(decimalYear);
+        long begin = getTimeStampAtYearBeginning(year);
+        long end = getTimeStampAtYearBeginning(year + 1);
+        return begin + Math.round((decimalYear - year) * (end - begin));
+    }
+    
     public static String formatTimeStamp(long timeStamp) {
-        GregorianCalendar calendar = new GregorianCalendar(new SimpleTimeZone(0, "UTC"));
-        calendar.setTimeInMillis(timeStamp);
-        int year   = calendar.get(Calendar.YEAR);
-        int month  = calendar.get(Calendar.MONTH) + 1;
-        int day    = calendar.get(Calendar.DAY_OF_MONTH);
-        int hour   = calendar.get(Calendar.HOUR);
-        int min    = calendar.get(Calendar.MINUTE);
-        int sec    = calendar.get(Calendar.SECOND);
-        int ms     = calendar.get(Calendar.MILLISECOND);
+        long days  = getDays(timeStamp);
+        long jdn   = days + JDN_1970;
+        int  time  = (int) (timeStamp - days * MILLISECONDS_PER_DAY); // milliseconds of the day
+        int year   = getCalendarField(jdn, FIELD_YEAR);
+        int month  = getCalendarField(jdn, FIELD_MONTH);
+        int day    = getCalendarField(jdn, FIELD_DAY);
+        int hour   = time / (MINUTES_PER_HOUR * SECONDS_PER_MINUTE * MILLISECONDS_PER_SECOND) % 12; // as Calendar.HOUR
+        int min    = time / (SECONDS_PER_MINUTE * MILLISECONDS_PER_SECOND) % MINUTES_PER_HOUR;
+        int sec    = time / MILLISECONDS_PER_SECOND % SECONDS_PER_MINUTE;
+        int ms     = time % MILLISECONDS_PER_SECOND;
         return year + "." + month + "." + day + "," + hour + ":" + min + ":" + sec + "." + ms + "(UTC)";
     }
     
+    /////////////
+    // DELTA T //
+    /////////////
+    
+    // Delta T (TT - UT) is tabulated at the beginning of the years (polynomial fits of the NASA Eclipse website values),
+    // and linearly interpolated within the years (the difference from the polynomials is below 0.004 s, see test()).
+    private static final int DELTA_T_FIRST_YEAR = -599;
+    private static final int DELTA_T_LAST_YEAR  = 2199;
+    private static final double[] DELTA_T = new double[DELTA_T_LAST_YEAR - DELTA_T_FIRST_YEAR + 2];
+    static {
+        for(int i = 0; i < DELTA_T.length; i++) {
+            int year = DELTA_T_FIRST_YEAR + i;
+            DELTA_T[i] = getDeltaTPolynomial(year, year);
+        }
+    }
+    // The fits change at the beginning of this year: the year before it ends with the earlier fit's value
+    // (the two fits differ by seconds there)
+    private static final int DELTA_T_FIT_CHANGE_YEAR = 1600;
+    private static final double DELTA_T_BEFORE_FIT_CHANGE = getDeltaTPolynomial(DELTA_T_FIT_CHANGE_YEAR, DELTA_T_FIT_CHANGE_YEAR - 1);
+    // Points per year and the tolerance (seconds) of the table's test
+    private static final int DELTA_T_TEST_STEPS = 16;
+    private static final double DELTA_T_TOLERANCE = 0.004;
+    
+    /**
+     * Delta T: the difference of the Terrestrial Time and the Universal Time.
+     * @param timestamp - milliseconds since 1970.01.01,00:00:00.000 UTC
+     * @return TT - UT in seconds, 0 out of the years -599..2199
+     */
+    public static double getDeltaT(long timestamp) {
+        double decimalYear = getDecimalYear(timestamp);
+        int year = (int) Math.floor(decimalYear);
+        if(year < DELTA_T_FIRST_YEAR || year > DELTA_T_LAST_YEAR) {
+            return 0;
+        }
+        int i = year - DELTA_T_FIRST_YEAR;
+        double end = (year == DELTA_T_FIT_CHANGE_YEAR - 1) ? DELTA_T_BEFORE_FIT_CHANGE : DELTA_T[i + 1];
+        return DELTA_T[i] + (decimalYear - year) * (end - DELTA_T[i]);
+    }
+    
+    /**
+     * @param x1   decimal year
+     * @param year the fit of this year is used (the fits change in DELTA_T_FIT_CHANGE_YEAR)
+     * @return TT - UT in seconds
+     */
+    private static double getDeltaTPolynomial(double x1, int year) {
+        double x2 = x1 * x1;
+        double x3 = x2 * x1;
+        double x4 = x2 * x2;
+        double x5 = x4 * x1;
+        double x6 = x4 * x2;
+        double x7 = x4 * x3;
+        double x8 = x4 * x4;
+        
+        if (year < DELTA_T_FIT_CHANGE_YEAR) {
+            return
+                    + 10535.328003326353
+                    - 9.995238627481024      * x1
+                    + 0.003067307630020489   * x2
+                    - 7.76340698361363E-6    * x3
+                    + 3.1331045394223196E-9  * x4
+                    + 8.225530854405553E-12  * x5
+                    - 7.486164715632051E-15  * x6
+                    + 1.9362461549678834E-18 * x7
+                    - 8.489224937827653E-23  * x8;
+        } else {
+            return
+                    - 1027175.3477559977
+                    + 2523.256625418965      * x1
+                    - 1.885686849058459      * x2
+                    + 5.869246227888417E-5   * x3
+                    + 3.3379295816475025E-7  * x4 
+                    + 1.7758961671447929E-10 * x5
+                    - 2.7889902806153024E-13 * x6
+                    + 1.0224295822336825E-16 * x7
+                    - 1.2528102370680435E-20 * x8;
+        }
+    }
+    
     ///////////
     // TESTS //
     ///////////
@@ -117,7 +318,7 @@ public class TimeUtils {
     public static void test() {
         
         // Unix-epoch test
-        Tests.assertTrue(JD_1970_0 == getJulianDay(0));
+        Assert.assertTrue(JD_1970_0 == getJulianDay(0));
         
         GregorianCalendar gc = new GregorianCalendar(new SimpleTimeZone(0, "UTC"));
         gc.set(Calendar.SECOND, 0);
@@ -125,45 +326,77 @@ public class TimeUtils {
         
         // Meeus examples, page 62.
         //      year           month    day  hr  min
-        gc.set(+2000, Calendar.JANUARY,   1, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2451545.0);
-        gc.set(+1999, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2451179.5);
-        gc.set(+1987, Calendar.JANUARY,  27,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2446822.5);
-        gc.set(+1987, Calendar.JUNE,     19, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2446966.0);
-        gc.set(+1988, Calendar.JANUARY,  27,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2447187.5);
-        gc.set(+1988, Calendar.JUNE,     19, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2447332.0);
-        gc.set(+1900, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2415020.5);
-        gc.set(+1600, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2305447.5);
-        gc.set(+1600, Calendar.DECEMBER, 31,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2305812.5);
-        gc.set( +837, Calendar.APRIL,    10,  8,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2026871.5 + 1.0/3);
-        gc.set( -123, Calendar.DECEMBER, 31,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1676496.5);
-        gc.set( -122, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1676497.5);
-        gc.set(-1000, Calendar.JULY,     12, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1356001.0);
-        gc.set(-1000, Calendar.FEBRUARY, 29,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1355866.5);
-        gc.set(-1001, Calendar.AUGUST,   17, 21, 36); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1355671.4);
-        gc.set(-4712, Calendar.JANUARY,   1, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) ==       0.0);
+        gc.set(+2000, Calendar.JANUARY,   1, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2451545.0);
+        gc.set(+1999, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2451179.5);
+        gc.set(+1987, Calendar.JANUARY,  27,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2446822.5);
+        gc.set(+1987, Calendar.JUNE,     19, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2446966.0);
+        gc.set(+1988, Calendar.JANUARY,  27,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2447187.5);
+        gc.set(+1988, Calendar.JUNE,     19, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2447332.0);
+        gc.set(+1900, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2415020.5);
+        gc.set(+1600, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2305447.5);
+        gc.set(+1600, Calendar.DECEMBER, 31,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2305812.5);
+        gc.set( +837, Calendar.APRIL,    10,  8,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 2026871.5 + 1.0/3);
+        gc.set( -123, Calendar.DECEMBER, 31,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1676496.5);
+        gc.set( -122, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1676497.5);
+        gc.set(-1000, Calendar.JULY,     12, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1356001.0);
+        gc.set(-1000, Calendar.FEBRUARY, 29,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1355866.5);
+        gc.set(-1001, Calendar.AUGUST,   17, 21, 36); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == 1355671.4);
+        gc.set(-4712, Calendar.JANUARY,   1, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) ==       0.0);
         
         // Check constants
         gc.set(    1, Calendar.JANUARY,   1,  0,  0);
-        gc.set(    1, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1_0);
-        gc.set( 1858, Calendar.NOVEMBER, 17,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1858_11_17_0);
-        gc.set( 1900, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1900_0);
-        gc.set( 1970, Calendar.JANUARY,   1,  0,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1970_0);
-        gc.set( 2000, Calendar.JANUARY,   1, 12,  0); Tests.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_2000);
+        gc.set(    1, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1_0);
+        gc.set( 1858, Calendar.NOVEMBER, 17,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1858_11_17_0);
+        gc.set( 1900, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1900_0);
+        gc.set( 1970, Calendar.JANUARY,   1,  0,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_1970_0);
+        gc.set( 2000, Calendar.JANUARY,   1, 12,  0); Assert.assertTrue(getJulianDay(gc.getTimeInMillis()) == JD_2000);
         
         
         
         // Test getJulianDay2000()
         gc.set(2000, Calendar.JANUARY, 1, 12, 0);
         double jd2000 = getJulianDay2000(gc.getTimeInMillis());
-        Tests.assertTrue(jd2000 == 0);
+        Assert.assertTrue(jd2000 == 0);
         
         // Test getJulianDayFromYear()
         for(int year = -401; year < 2100; year++) {
             gc.set(year, Calendar.JANUARY, 1, 0, 0);
             double jdYear1 = getJulianDay(gc.getTimeInMillis());
             double jdYear2 = getJulianDayAtYearBeginning(year);
-            Tests.assertTrue(jdYear1 == jdYear2);
+            Assert.assertTrue(jdYear1 == jdYear2);
+        }
+        
+        // Test the calendar functions
+        gc.clear();
+        for(long t = -80000000000000L; t < 8000000000000L; t += 999999937L) {
+            gc.setTimeInMillis(t);
+            int year = gc.get(Calendar.ERA) == GregorianCalendar.BC ? 1 - gc.get(Calendar.YEAR) : gc.get(Calendar.YEAR);
+            Assert.assertTrue(getYear(t) == year);
+            Assert.assertTrue(getDayOfYear(t) == gc.get(Calendar.DAY_OF_YEAR));
+            Assert.assertTrue(Math.abs(getTimeStampFromDecimalYear(getDecimalYear(t)) - t) <= 1);
+        }
+        gc.clear();
+        gc.set(2015, Calendar.JULY, 2, 12, 0); Assert.assertTrue(getDecimalYear(gc.getTimeInMillis()) == 2015.5);
+        gc.set(2016, Calendar.JULY, 2,  0, 0); Assert.assertTrue(getDecimalYear(gc.getTimeInMillis()) == 2016.5);
+        
+        // Test formatTimeStamp() against the calendar's formatting (AD only, the year is the era's)
+        SimpleDateFormat format = new SimpleDateFormat("y.M.d,K:m:s.S'(UTC)'");
+        format.setTimeZone(new SimpleTimeZone(0, "UTC"));
+        for(long t = -60000000000000L; t < 8000000000000L; t += 999999937L) {
+            Assert.assertTrue(formatTimeStamp(t).equals(format.format(t)));
+        }
+        
+        // Test getDeltaT() against the polynomials, also around the change of the fits
+        for(int year = DELTA_T_FIRST_YEAR; year <= DELTA_T_LAST_YEAR; year++) {
+            for(int k = 0; k < DELTA_T_TEST_STEPS; k++) {
+                double decimalYear = year + (double) k / DELTA_T_TEST_STEPS;
+                long t = getTimeStampFromDecimalYear(decimalYear);
+                double expected = getDeltaTPolynomial(getDecimalYear(t), year);
+                Assert.assertTrue(Math.abs(getDeltaT(t) - expected) < DELTA_T_TOLERANCE);
+            }
         }
+        Assert.assertTrue(getDeltaT(getTimeStampFromDecimalYear(DELTA_T_FIRST_YEAR - 0.5)) == 0);
+        Assert.assertTrue(getDeltaT(getTimeStampFromDecimalYear(DELTA_T_LAST_YEAR  + 1.5)) == 0);
         
     }
     
@@ -12,6 +12,24 @@ public interface GeomagneticField {
      * @param altitudeMeters Altitude  in WGS84 geodetic coordinates, in meters.
      */
     public void setParameters(float gdLatitudeDeg, float gdLongitudeDeg, float altitudeMeters);
+    
+    /**
+     * Evaluate the field at the points from..to-1 of a batch, in double precision.
+     * Does not change the state of setParameters().
+     */
+    public void evaluate(GeomagneticFieldBatch batch, int from, int to);
+    
+    /**
+     * Evaluate the rows from..to-1 of a regular grid, in double precision.
+     * Does not change the state of setParameters().
+     */
+    public void evaluateRows(GeomagneticFieldGrid grid, int from, int to);
+
+    /**
+     * Evaluate the field and its derivatives by latitude, longitude and altitude at a point, in double precision.
+     * Does not change the state of setParameters().
+     */
+    public void evaluateGradient(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters, GeomagneticFieldGradient gradient);
         
     /** @return The X (northward) component of the magnetic field in nanoteslas. */
     public float getX();
@@ -0,0 +1,94 @@
+package hu.ureczky.utils.astro.geomagneticfield;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Points of a batch evaluation of the magnetic field, as parallel arrays (structure of arrays).
+ * <br/> The inputs are the WGS84 geodetic latitude, longitude (degrees) and altitude (meters),
+ * the outputs are filled by {@link GeomagneticField#evaluate(GeomagneticFieldBatch, int, int)}.
+ * An output array can be null, if it is not needed.
+ * <br/> Different ranges of a batch can be evaluated on different threads.
+ */
+public class GeomagneticFieldBatch {
+
+    // Inputs
+    public final double[] mLatitude;   // degrees
+    public final double[] mLongitude;  // degrees
+    public final double[] mAltitude;   // meters, null means sea level
+
+    // Outputs
+    public final double[] mX;           // northward component in nanoteslas
+    public final double[] mY;           // eastward component in nanoteslas
+    public final double[] mZ;           // downward component in nanoteslas
+    public final double[] mDeclination; // degrees
+    public final double[] mInclination; // degrees
+    public final double[] mIntensity;   // total field strength in nanoteslas
+
+    /** Allocates all arrays, the inputs are to be filled by the caller. */
+    public GeomagneticFieldBatch(int size) {
+        this(new double[size], new double[size], new double[size],
+             new double[size], new double[size], new double[size],
+             new double[size], new double[size], new double[size]);
+    }
+
+    /** Wraps caller-supplied arrays (the outputs and the altitude can be null). */
+    public GeomagneticFieldBatch(double[] latitude, double[] longitude, double[] altitude,
+            double[] x, double[] y, double[] z,
+            double[] declination, double[] inclination, double[] intensity) {
+        mLatitude    = latitude;
+        mLongitude   = longitude;
+        mAltitude    = altitude;
+        mX           = x;
+        mY           = y;
+        mZ           = z;
+        mDeclination = declination;
+        mInclination = inclination;
+        mIntensity   = intensity;
+    }
+
+    public int size() {
+        return mLatitude.length;
+    }
+
+    /**
+     * Evaluate the whole batch on the calling thread.
+     */
+    public void evaluate(GeomagneticField gmf) {
+        gmf.evaluate(this, 0, size());
+    }
+
+    /**
+     * Evaluate the whole batch split into ranges on an executor, with one evaluator per range.
+     * Blocks until all ranges are done.
+     * @param timeMillis time of the field, see {@link GeomagneticFieldFactory#create(long)}
+     * @param ranges number of the ranges (e.g. the number of cores)
+     */
+    public void evaluate(final long timeMillis, ExecutorService executor, int ranges) throws InterruptedException {
+        int size = size();
+        ranges = Math.max(1, Math.min(ranges, size));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges);
+        for(int r = 0; r < ranges; r++) {
+            final int from = (int) ((long) size * r / ranges);
+            final int to   = (int) ((long) size * (r + 1) / ranges);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    GeomagneticFieldFactory.create(timeMillis).evaluate(GeomagneticFieldBatch.this, from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for(Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
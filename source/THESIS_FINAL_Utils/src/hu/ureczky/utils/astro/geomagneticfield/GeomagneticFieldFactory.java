@@ -1,44 +1,79 @@
 package hu.ureczky.utils.astro.geomagneticfield;
 
-import android.util.Log;
-
-import hu.ureczky.utils.TimeUtils;
-import hu.ureczky.utils.astro.Astronomy;
 import hu.ureczky.utils.astro.geomagneticfield.wmm.GeomagneticField_WMM;
-import hu.ureczky.utils.astro.geomagneticfield.wmm.WMM;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
 import hu.ureczky.utils.astro.geomagneticfield.wmm.WMM_2005;
 import hu.ureczky.utils.astro.geomagneticfield.wmm.WMM_2010;
 import hu.ureczky.utils.astro.geomagneticfield.wmm.WMM_2015;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.SimpleTimeZone;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 public class GeomagneticFieldFactory {
+    
+    // Registry of the World Magnetic Models, the newest first.
+    // The tables are built once, the evaluators share them.
+    // Replaced as a whole on registration (copy on write), the readers need no locking.
+    private static volatile WMMModel[] mModels = new WMMModel[] {
+        new WMMModel(new WMM_2015()), // valid until 2020
+        new WMMModel(new WMM_2010()), // valid until 2015
+        new WMMModel(new WMM_2005())  // valid until 2010
+    };
+    
+    /**
+     * Register a model (e.g. a newer one loaded by {@link hu.ureczky.utils.astro.geomagneticfield.wmm.COFLoader}),
+     * it replaces the registered model of the same base year.
+     */
+    public static synchronized void register(WMMModel model) {
+        List<WMMModel> models = new ArrayList<WMMModel>(Arrays.asList(mModels));
+        for (Iterator<WMMModel> it = models.iterator(); it.hasNext();) {
+            if (it.next().getBaseYear() == model.getBaseYear()) {
+                it.remove();
+            }
+        }
+        int i = 0;
+        while (i < models.size() && models.get(i).getBaseYear() > model.getBaseYear()) {
+            i++;
+        }
+        models.add(i, model);
+        mModels = models.toArray(new WMMModel[models.size()]);
+    }
         
     /**
      * Estimate the magnetic field at a given point and time.
+     * <br/> Cheap: the model's coefficients are shared and cached per day, only the evaluator's buffers are allocated.
      *
      * @param timeMillis Time at which to evaluate the declination, in milliseconds since 1970.01.01.
      *                   (approximate is fine -- the declination changes very slowly).
      */
     public static GeomagneticField create(long timeMillis) {
-        
-        int year = getYearFromTimeMillis(timeMillis);
-                
-        // Select the sufficient World Magnetic Model
-        WMM wmm = (year >= 2015) ? new WMM_2015() : // for year >= 2015, use the model for 2015, which is valid until 2020
-                  (year >= 2010) ? new WMM_2010() : // for year >= 2010, use the model for 2010, which is valid until 2015
-                                   new WMM_2005();  // for year  < 2010, use the model for 2005, which is valid until 2010
-                
-        return new GeomagneticField_WMM(wmm, timeMillis);
-    };
+        return new GeomagneticField_WMM(getModel(timeMillis).getCoefficients(timeMillis));
+    }
+    
+    /**
+     * Select the sufficient World Magnetic Model: the newest one whose base year is not later than the time
+     * (the oldest one before that).
+     */
+    public static WMMModel getModel(long timeMillis) {
+        WMMModel[] models = mModels;
+        for (WMMModel model : models) {
+            if (timeMillis >= model.getValidFrom()) {
+                return model;
+            }
+        }
+        return models[models.length - 1];
+    }
     
-    private static int getYearFromTimeMillis(long timeMillis)
-    {
-        GregorianCalendar gc = new GregorianCalendar();
-        gc.setTimeInMillis(timeMillis);
-        return gc.get(GregorianCalendar.YEAR);
+    /** @return the model of the epoch, or null if there is no such model */
+    public static WMMModel getModel(int baseYear) {
+        for (WMMModel model : mModels) {
+            if (model.getBaseYear() == baseYear) {
+                return model;
+            }
+        }
+        return null;
     }
     
 }
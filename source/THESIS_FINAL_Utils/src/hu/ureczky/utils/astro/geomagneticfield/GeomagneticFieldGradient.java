@@ -0,0 +1,59 @@
+package hu.ureczky.utils.astro.geomagneticfield;
+
+/**
+ * Magnetic field at a point with its spatial derivatives,
+ * filled by {@link GeomagneticField#evaluateGradient(double, double, double, GeomagneticFieldGradient)}.
+ * <br/> The components are in the local (geodetic north-east-down) frame of the point,
+ * so the derivatives include the rotation of the frame (like differences of evaluations at nearby points).
+ */
+public class GeomagneticFieldGradient {
+
+    // Indices of the derivatives
+    public static final int LAT = 0; // per degree of latitude
+    public static final int LON = 1; // per degree of longitude
+    public static final int ALT = 2; // per meter of altitude
+
+    // Field in nanoteslas
+    public double mX; // northward
+    public double mY; // eastward
+    public double mZ; // downward
+
+    // Derivatives of the components {d/dlat, d/dlon, d/dalt}
+    public final double[] mDX = new double[3];
+    public final double[] mDY = new double[3];
+    public final double[] mDZ = new double[3];
+
+    /** @return declination in degrees */
+    public double getDeclination() {
+        return Math.toDegrees(Math.atan2(mY, mX));
+    }
+
+    /** @return inclination in degrees */
+    public double getInclination() {
+        return Math.toDegrees(Math.atan2(mZ, Math.sqrt(mX * mX + mY * mY)));
+    }
+
+    /** @return total field strength in nanoteslas */
+    public double getIntensity() {
+        return Math.sqrt(mX * mX + mY * mY + mZ * mZ);
+    }
+
+    /** @return derivative of the declination in degrees per unit of the axis */
+    public double getDeclinationDerivative(int axis) {
+        double h2 = mX * mX + mY * mY;
+        return Math.toDegrees((mX * mDY[axis] - mY * mDX[axis]) / h2);
+    }
+
+    /** @return derivative of the inclination in degrees per unit of the axis */
+    public double getInclinationDerivative(int axis) {
+        double h = Math.sqrt(mX * mX + mY * mY);
+        double dh = (mX * mDX[axis] + mY * mDY[axis]) / h;
+        double f2 = h * h + mZ * mZ;
+        return Math.toDegrees((h * mDZ[axis] - mZ * dh) / f2);
+    }
+
+    /** @return derivative of the total field strength in nanoteslas per unit of the axis */
+    public double getIntensityDerivative(int axis) {
+        return (mX * mDX[axis] + mY * mDY[axis] + mZ * mDZ[axis]) / getIntensity();
+    }
+}
@@ -0,0 +1,101 @@
+package hu.ureczky.utils.astro.geomagneticfield;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Magnetic field on a regular latitude/longitude grid (e.g. a whole-globe declination map).
+ * <br/> The outputs are stored row by row (a row is a latitude): index = row * columns + column,
+ * they are filled by {@link GeomagneticField#evaluateRows(GeomagneticFieldGrid, int, int)}.
+ * <br/> Different rows can be evaluated on different threads.
+ */
+public class GeomagneticFieldGrid {
+
+    // Grid (WGS84 geodetic), degrees
+    public final double mLatitude0;     // latitude of the first row
+    public final double mLatitudeStep;
+    public final int    mRows;
+    public final double mLongitude0;    // longitude of the first column
+    public final double mLongitudeStep;
+    public final int    mColumns;
+    public final double mAltitude;      // meters
+
+    // Outputs
+    public final double[] mX;           // northward component in nanoteslas
+    public final double[] mY;           // eastward component in nanoteslas
+    public final double[] mZ;           // downward component in nanoteslas
+    public final double[] mDeclination; // degrees
+    public final double[] mInclination; // degrees
+    public final double[] mIntensity;   // total field strength in nanoteslas
+
+    public GeomagneticFieldGrid(double latitude0, double latitudeStep, int rows,
+            double longitude0, double longitudeStep, int columns, double altitudeMeters) {
+        mLatitude0     = latitude0;
+        mLatitudeStep  = latitudeStep;
+        mRows          = rows;
+        mLongitude0    = longitude0;
+        mLongitudeStep = longitudeStep;
+        mColumns       = columns;
+        mAltitude      = altitudeMeters;
+
+        int size = rows * columns;
+        mX           = new double[size];
+        mY           = new double[size];
+        mZ           = new double[size];
+        mDeclination = new double[size];
+        mInclination = new double[size];
+        mIntensity   = new double[size];
+    }
+
+    public double getLatitude(int row) {
+        return mLatitude0 + row * mLatitudeStep;
+    }
+
+    public double getLongitude(int column) {
+        return mLongitude0 + column * mLongitudeStep;
+    }
+
+    public int getIndex(int row, int column) {
+        return row * mColumns + column;
+    }
+
+    /**
+     * Evaluate the whole grid on the calling thread.
+     */
+    public void evaluate(GeomagneticField gmf) {
+        gmf.evaluateRows(this, 0, mRows);
+    }
+
+    /**
+     * Evaluate the grid split into row ranges on an executor, with one evaluator per range.
+     * Blocks until all rows are done.
+     * @param timeMillis time of the field, see {@link GeomagneticFieldFactory#create(long)}
+     * @param ranges number of the ranges (e.g. the number of cores)
+     */
+    public void evaluate(final long timeMillis, ExecutorService executor, int ranges) throws InterruptedException {
+        ranges = Math.max(1, Math.min(ranges, mRows));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges);
+        for(int r = 0; r < ranges; r++) {
+            final int from = (int) ((long) mRows * r / ranges);
+            final int to   = (int) ((long) mRows * (r + 1) / ranges);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    GeomagneticFieldFactory.create(timeMillis).evaluateRows(GeomagneticFieldGrid.this, from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for(Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
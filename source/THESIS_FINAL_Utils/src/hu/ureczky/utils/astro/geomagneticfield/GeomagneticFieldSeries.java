@@ -0,0 +1,90 @@
+package hu.ureczky.utils.astro.geomagneticfield;
+
+import hu.ureczky.utils.astro.geomagneticfield.wmm.GeomagneticField_WMM;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Magnetic field at a fixed location for a series of timestamps, as parallel arrays (like {@link GeomagneticFieldBatch}).
+ * <br/> Within a model epoch the coefficients, and so the field, are linear in time:
+ * each crossed model is evaluated at the location once (base field and secular variation),
+ * then a timestamp costs a multiply-add per component.
+ * <br/> The model of a timestamp is selected by {@link GeomagneticFieldFactory#getModel(long)},
+ * the coefficients are adjusted exactly for the timestamp (not for the middle of its day).
+ */
+public class GeomagneticFieldSeries {
+
+    // Inputs
+    public final double mLatitude;  // degrees
+    public final double mLongitude; // degrees
+    public final double mAltitude;  // meters
+    public final long[] mTimeMillis;
+
+    // Outputs
+    public final double[] mX;           // northward component in nanoteslas
+    public final double[] mY;           // eastward component in nanoteslas
+    public final double[] mZ;           // downward component in nanoteslas
+    public final double[] mDeclination; // degrees
+    public final double[] mInclination; // degrees
+    public final double[] mIntensity;   // total field strength in nanoteslas
+
+    /**
+     * Allocates the outputs.
+     * @param timeMillis timestamps in milliseconds since 1970.01.01, in any order
+     */
+    public GeomagneticFieldSeries(double latitudeDeg, double longitudeDeg, double altitudeMeters, long[] timeMillis) {
+        mLatitude   = latitudeDeg;
+        mLongitude  = longitudeDeg;
+        mAltitude   = altitudeMeters;
+        mTimeMillis = timeMillis;
+
+        int size = timeMillis.length;
+        mX           = new double[size];
+        mY           = new double[size];
+        mZ           = new double[size];
+        mDeclination = new double[size];
+        mInclination = new double[size];
+        mIntensity   = new double[size];
+    }
+
+    public int size() {
+        return mTimeMillis.length;
+    }
+
+    /** Evaluate the whole series on the calling thread. */
+    public void evaluate() {
+        // {X, Y, Z, dX, dY, dZ} of the crossed models
+        Map<WMMModel, double[]> variations = new IdentityHashMap<WMMModel, double[]>();
+        WMMModel model = null;
+        double[] v = null;
+
+        for (int i = 0; i < mTimeMillis.length; i++) {
+            long time = mTimeMillis[i];
+            WMMModel timeModel = GeomagneticFieldFactory.getModel(time);
+            if (timeModel != model) {
+                model = timeModel;
+                v = variations.get(model);
+                if (v == null) {
+                    v = new double[6];
+                    GeomagneticField_WMM gmf = new GeomagneticField_WMM(model.getCoefficients(model.getValidFrom()));
+                    gmf.computeSecularVariation(model, mLatitude, mLongitude, mAltitude, v);
+                    variations.put(model, v);
+                }
+            }
+
+            double years = model.getYearsSinceBase(time);
+            double x = v[0] + years * v[3];
+            double y = v[1] + years * v[4];
+            double z = v[2] + years * v[5];
+            double h = Math.sqrt(x * x + y * y);
+            mX[i]           = x;
+            mY[i]           = y;
+            mZ[i]           = z;
+            mDeclination[i] = Math.toDegrees(Math.atan2(y, x));
+            mInclination[i] = Math.toDegrees(Math.atan2(z, h));
+            mIntensity[i]   = Math.sqrt(h * h + z * z);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package hu.ureczky.utils.astro.geomagneticfield.grid;
+
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldBatch;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGradient;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGrid;
+
+/**
+ * Estimates magnetic field by bilinear interpolation of a precomputed grid (see {@link GridModel}),
+ * a lookup is a few multiply-adds instead of the spherical harmonic expansion.
+ * <br/> The components are interpolated, the angles are derived from them.
+ * The grid is at sea level, the altitude is ignored.
+ * <br/> The accuracy is estimated by the model's measured errors (e.g. {@link GridModel#getFieldErrorEstimate()}).
+ */
+public class GeomagneticField_Grid implements GeomagneticField {
+
+    private final GridModel mModel;
+    private final double mInverseStep;
+    private final float[] mGridX;
+    private final float[] mGridY;
+    private final float[] mGridZ;
+
+    // The magnetic field at a given point, in nanoteslas in geodetic coordinates.
+    double mX;
+    double mY;
+    double mZ;
+
+    /**
+     * @param timeMillis time of the field (the grid is interpolated to the middle of its UTC day)
+     */
+    public GeomagneticField_Grid(GridModel model, long timeMillis) {
+        this(model, model.getDay(timeMillis));
+    }
+
+    GeomagneticField_Grid(GridModel model, float[][] field) {
+        mModel       = model;
+        mInverseStep = 1 / model.mStep;
+        mGridX       = field[0];
+        mGridY       = field[1];
+        mGridZ       = field[2];
+    }
+
+    @Override
+    public void setParameters(float gdLatitudeDeg, float gdLongitudeDeg, float altitudeMeters) {
+        interpolate(gdLatitudeDeg, gdLongitudeDeg);
+    }
+
+    @Override
+    public void evaluate(GeomagneticFieldBatch batch, int from, int to) {
+        // The batch does not change the values of setParameters
+        double x = mX, y = mY, z = mZ;
+        for (int i = from; i < to; i++) {
+            interpolate(batch.mLatitude[i], batch.mLongitude[i]);
+            if (batch.mX != null) batch.mX[i] = mX;
+            if (batch.mY != null) batch.mY[i] = mY;
+            if (batch.mZ != null) batch.mZ[i] = mZ;
+            if (batch.mDeclination != null) batch.mDeclination[i] = Math.toDegrees(Math.atan2(mY, mX));
+            double h = Math.sqrt(mX * mX + mY * mY);
+            if (batch.mInclination != null) batch.mInclination[i] = Math.toDegrees(Math.atan2(mZ, h));
+            if (batch.mIntensity   != null) batch.mIntensity[i]   = Math.sqrt(h * h + mZ * mZ);
+        }
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
+
+    @Override
+    public void evaluateRows(GeomagneticFieldGrid grid, int from, int to) {
+        double x = mX, y = mY, z = mZ;
+        for (int r = from; r < to; r++) {
+            double lat = grid.getLatitude(r);
+            for (int c = 0; c < grid.mColumns; c++) {
+                interpolate(lat, grid.getLongitude(c));
+                double h = Math.sqrt(mX * mX + mY * mY);
+                int i = grid.getIndex(r, c);
+                grid.mX[i]           = mX;
+                grid.mY[i]           = mY;
+                grid.mZ[i]           = mZ;
+                grid.mDeclination[i] = Math.toDegrees(Math.atan2(mY, mX));
+                grid.mInclination[i] = Math.toDegrees(Math.atan2(mZ, h));
+                grid.mIntensity[i]   = Math.sqrt(h * h + mZ * mZ);
+            }
+        }
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
+
+    /**
+     * The derivatives are the ones of the bilinear interpolation, constant along a cell edge
+     * and discontinuous at the grid lines; the altitude derivatives are zero.
+     */
+    @Override
+    public void evaluateGradient(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters, GeomagneticFieldGradient gradient) {
+        int rows    = mModel.mRows;
+        int columns = mModel.mColumns;
+
+        double r = (Math.max(-90, Math.min(90, gdLatitudeDeg)) + 90) * mInverseStep;
+        int r0 = Math.min((int) r, rows - 2);
+        double u = r - r0;
+
+        double c = (gdLongitudeDeg + 180) * mInverseStep;
+        c -= columns * Math.floor(c / columns); // wrap around
+        int c0 = Math.min((int) c, columns - 1);
+        double v = c - c0;
+        int c1 = (c0 + 1 < columns) ? c0 + 1 : 0;
+
+        int i00 = r0 * columns + c0, i01 = r0 * columns + c1;
+        int i10 = i00 + columns,     i11 = i01 + columns;
+        gradient.mX = interpolateGradient(mGridX, i00, i01, i10, i11, u, v, gradient.mDX);
+        gradient.mY = interpolateGradient(mGridY, i00, i01, i10, i11, u, v, gradient.mDY);
+        gradient.mZ = interpolateGradient(mGridZ, i00, i01, i10, i11, u, v, gradient.mDZ);
+    }
+
+    /** @return bilinear interpolation of a component in a cell, its derivatives are put into d (per degree) */
+    private double interpolateGradient(float[] g, int i00, int i01, int i10, int i11, double u, double v, double[] d) {
+        d[GeomagneticFieldGradient.LAT] = ((1 - v) * (g[i10] - g[i00]) + v * (g[i11] - g[i01])) * mInverseStep;
+        d[GeomagneticFieldGradient.LON] = ((1 - u) * (g[i01] - g[i00]) + u * (g[i11] - g[i10])) * mInverseStep;
+        d[GeomagneticFieldGradient.ALT] = 0;
+        return (1 - u) * ((1 - v) * g[i00] + v * g[i01]) + u * ((1 - v) * g[i10] + v * g[i11]);
+    }
+
+    /** Bilinear interpolation of the components (mX, mY, mZ). */
+    void interpolate(double latDeg, double lonDeg) {
+        int rows    = mModel.mRows;
+        int columns = mModel.mColumns;
+
+        double r = (Math.max(-90, Math.min(90, latDeg)) + 90) * mInverseStep;
+        int r0 = Math.min((int) r, rows - 2);
+        double u = r - r0;
+
+        double c = (lonDeg + 180) * mInverseStep;
+        c -= columns * Math.floor(c / columns); // wrap around
+        int c0 = Math.min((int) c, columns - 1);
+        double v = c - c0;
+        int c1 = (c0 + 1 < columns) ? c0 + 1 : 0;
+
+        int i00 = r0 * columns + c0, i01 = r0 * columns + c1;
+        int i10 = i00 + columns,     i11 = i01 + columns;
+        double w00 = (1 - u) * (1 - v), w01 = (1 - u) * v;
+        double w10 = u * (1 - v),       w11 = u * v;
+
+        mX = w00 * mGridX[i00] + w01 * mGridX[i01] + w10 * mGridX[i10] + w11 * mGridX[i11];
+        mY = w00 * mGridY[i00] + w01 * mGridY[i01] + w10 * mGridY[i10] + w11 * mGridY[i11];
+        mZ = w00 * mGridZ[i00] + w01 * mGridZ[i01] + w10 * mGridZ[i10] + w11 * mGridZ[i11];
+    }
+
+    /** @return The X (northward) component of the magnetic field in nanoteslas. */
+    @Override
+    public float getX() {
+        return (float) mX;
+    }
+
+    /** @return The Y (eastward) component of the magnetic field in nanoteslas. */
+    @Override
+    public float getY() {
+        return (float) mY;
+    }
+
+    /** @return The Z (downward) component of the magnetic field in nanoteslas. */
+    @Override
+    public float getZ() {
+        return (float) mZ;
+    }
+
+    @Override
+    public float getDeclination() {
+        return (float) Math.toDegrees(Math.atan2(mY, mX));
+    }
+
+    @Override
+    public float getInclination() {
+        return (float) Math.toDegrees(Math.atan2(mZ, Math.sqrt(mX * mX + mY * mY)));
+    }
+
+    @Override
+    public float getHorizontalStrength() {
+        return (float) Math.sqrt(mX * mX + mY * mY);
+    }
+
+    @Override
+    public float getFieldStrength() {
+        return (float) Math.sqrt(mX * mX + mY * mY + mZ * mZ);
+    }
+}
@@ -0,0 +1,316 @@
+package hu.ureczky.utils.astro.geomagneticfield.grid;
+
+import hu.ureczky.utils.CacheFileUtils;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGrid;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.GeomagneticField_WMM;
+import hu.ureczky.utils.astro.geomagneticfield.wmm.WMMModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed magnetic field (X, Y, Z at sea level) on a global lat/lon grid at uniformly spaced epochs,
+ * built once from the World Magnetic Model and cached on disk.
+ * <br/> Between the epochs the field is interpolated linearly: within one model this is exact,
+ * since the coefficients change linearly with time, but not across the change to the next model.
+ * <br/> The interpolation error against the exact model is estimated at build time: the largest error
+ * measured at the cell centers, at the middle of the epochs and at the model changes (where the interpolation is the worst),
+ * with a safety margin. It is an estimate, not a bound: other points are a few percent worse than the measured ones
+ * (e.g. the declination where the horizontal field is weak), wmm.Validation checks random points against it.
+ * <br/> Thread-safe.
+ */
+public class GridModel {
+
+    private static final int MAGIC   = 0x474D4647; // "GMFG"
+    private static final int VERSION = 3; // 2: WMM decimal years as the time of the secular variation, 3: errors also at the model changes
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 8 + 8 + 3 * 8;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Declination errors are measured only where the horizontal field is at least this strong (nanoteslas),
+    // near the magnetic poles the declination is undefined
+    public static final double MIN_HORIZONTAL_FOR_DECLINATION = 5000;
+
+    // Safety margin of the error estimates over the largest measured errors
+    private static final double ERROR_MARGIN = 1.5;
+
+    // Grid: rows from -90 to +90 latitude, columns from -180 longitude (wrapping around)
+    final double mStep;   // degrees
+    final int mRows;
+    final int mColumns;
+
+    // Epochs
+    final int mEpochs;
+    final long mEpochStart; // UTC timestamp in milliseconds
+    final long mEpochStep;  // milliseconds
+
+    // Field components (nanoteslas) by epoch: [epoch][row * columns + column]
+    private final float[][] mX;
+    private final float[][] mY;
+    private final float[][] mZ;
+
+    // Estimated interpolation errors against the exact model (measured with the margin, see measureErrors)
+    private final double mFieldErrorEstimate;       // length of the difference vector, nanoteslas
+    private final double mInclinationErrorEstimate; // degrees
+    private final double mDeclinationErrorEstimate; // degrees, where the horizontal field is strong enough
+
+    // Field interpolated to the middle of a day, by day index (least recently used is dropped)
+    private final Map<Long, float[][]> mDays = new LinkedHashMap<Long, float[][]>(2, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, float[][]> eldest) {
+            return size() > 2;
+        }
+    };
+
+    private GridModel(double step, int epochs, long epochStart, long epochStep,
+            float[][] x, float[][] y, float[][] z, double fieldError, double inclinationError, double declinationError) {
+        mStep        = step;
+        mRows        = (int) Math.round(180 / step) + 1;
+        mColumns     = (int) Math.round(360 / step);
+        mEpochs      = epochs;
+        mEpochStart  = epochStart;
+        mEpochStep   = epochStep;
+        mX           = x;
+        mY           = y;
+        mZ           = z;
+        mFieldErrorEstimate       = fieldError;
+        mInclinationErrorEstimate = inclinationError;
+        mDeclinationErrorEstimate = declinationError;
+    }
+
+    /**
+     * Build the grid from the World Magnetic Model (see {@link GeomagneticFieldFactory#getModel(long)}).
+     * @param step       distance of the grid points in degrees (180 must be its multiple)
+     * @param epochStart UTC timestamp of the first epoch
+     * @param epochStep  distance of the epochs in milliseconds (positive, if there are more epochs)
+     * @param epochs     number of the epochs (at least 1)
+     */
+    public static GridModel build(double step, long epochStart, long epochStep, int epochs) {
+        int rows    = (int) Math.round(180 / step) + 1;
+        int columns = (int) Math.round(360 / step);
+        if(epochs < 1 || (epochs > 1 && epochStep <= 0) || Math.abs((rows - 1) * step - 180) > 1e-9) {
+            throw new IllegalArgumentException("Invalid grid: step=" + step + ", epochs=" + epochs + ", epochStep=" + epochStep);
+        }
+
+        float[][] x = new float[epochs][];
+        float[][] y = new float[epochs][];
+        float[][] z = new float[epochs][];
+        for(int e = 0; e < epochs; e++) {
+            GeomagneticFieldGrid grid = new GeomagneticFieldGrid(-90, step, rows, -180, step, columns, 0);
+            grid.evaluate(createExact(epochStart + e * epochStep));
+            x[e] = toFloat(grid.mX);
+            y[e] = toFloat(grid.mY);
+            z[e] = toFloat(grid.mZ);
+        }
+        GridModel model = new GridModel(step, epochs, epochStart, epochStep, x, y, z, 0, 0, 0);
+        double[] errors = model.measureErrors();
+        return new GridModel(step, epochs, epochStart, epochStep, x, y, z, errors[0], errors[1], errors[2]);
+    }
+
+    /** Evaluator of the exact model at a time. */
+    private static GeomagneticField_WMM createExact(long timeMillis) {
+        return new GeomagneticField_WMM(GeomagneticFieldFactory.getModel(timeMillis).computeCoefficients(timeMillis));
+    }
+
+    /**
+     * Compare the interpolated field with the exact model at the cell centers, at the epochs (or the middle of the epochs,
+     * if there are more), and at both sides of a model change between two epochs (where the linear interpolation is not exact).
+     * @return the largest errors with the safety margin: {field error, inclination error, declination error}
+     */
+    private double[] measureErrors() {
+        List<Long> times = new ArrayList<Long>();
+        if(mEpochs == 1) {
+            times.add(mEpochStart);
+        }
+        for(int e = 0; e + 1 < mEpochs; e++) {
+            long begin = mEpochStart + e * mEpochStep;
+            times.add(begin + mEpochStep / 2);
+            WMMModel next = GeomagneticFieldFactory.getModel(begin + mEpochStep);
+            if(GeomagneticFieldFactory.getModel(begin) != next && next.getValidFrom() > begin) {
+                times.add(next.getValidFrom() - 1);
+                times.add(next.getValidFrom());
+            }
+        }
+
+        double maxField = 0, maxInclination = 0, maxDeclination = 0;
+        for(long time : times) {
+            GeomagneticFieldGrid exact = new GeomagneticFieldGrid(-90 + mStep / 2, mStep, mRows - 1, -180 + mStep / 2, mStep, mColumns, 0);
+            exact.evaluate(createExact(time));
+            GeomagneticField_Grid interpolated = new GeomagneticField_Grid(this, interpolateEpochs(time));
+            for(int r = 0; r < exact.mRows; r++) {
+                for(int c = 0; c < exact.mColumns; c++) {
+                    int i = exact.getIndex(r, c);
+                    interpolated.interpolate(exact.getLatitude(r), exact.getLongitude(c));
+                    double dx = interpolated.mX - exact.mX[i];
+                    double dy = interpolated.mY - exact.mY[i];
+                    double dz = interpolated.mZ - exact.mZ[i];
+                    maxField = Math.max(maxField, Math.sqrt(dx * dx + dy * dy + dz * dz));
+                    maxInclination = Math.max(maxInclination, Math.abs(interpolated.getInclination() - exact.mInclination[i]));
+                    double horizontal = Math.sqrt(exact.mX[i] * exact.mX[i] + exact.mY[i] * exact.mY[i]);
+                    if(horizontal >= MIN_HORIZONTAL_FOR_DECLINATION) {
+                        double dDecl = Math.abs(interpolated.getDeclination() - exact.mDeclination[i]);
+                        maxDeclination = Math.max(maxDeclination, Math.min(dDecl, 360 - dDecl));
+                    }
+                }
+            }
+        }
+        return new double[] { ERROR_MARGIN * maxField, ERROR_MARGIN * maxInclination, ERROR_MARGIN * maxDeclination };
+    }
+
+    /** @return estimated interpolation error of the field vector in nanoteslas (measured at build time, not a bound) */
+    public double getFieldErrorEstimate() {
+        return mFieldErrorEstimate;
+    }
+
+    /** @return estimated interpolation error of the inclination in degrees (measured at build time, not a bound) */
+    public double getInclinationErrorEstimate() {
+        return mInclinationErrorEstimate;
+    }
+
+    /**
+     * @return estimated interpolation error of the declination in degrees (measured at build time, not a bound),
+     * where the horizontal field is at least {@link #MIN_HORIZONTAL_FOR_DECLINATION}
+     */
+    public double getDeclinationErrorEstimate() {
+        return mDeclinationErrorEstimate;
+    }
+
+    /**
+     * @return the field interpolated to the middle of the timestamp's (UTC) day {x, y, z}, cached
+     */
+    float[][] getDay(long timeMillis) {
+        long day = (long) Math.floor((double) timeMillis / DAY_MILLIS);
+        synchronized(mDays) {
+            float[][] field = mDays.get(day);
+            if(field == null) {
+                field = interpolateEpochs(day * DAY_MILLIS + DAY_MILLIS / 2);
+                mDays.put(day, field);
+            }
+            return field;
+        }
+    }
+
+    /** @return the field linearly interpolated between the epochs (clamped to the first and last one) {x, y, z} */
+    private float[][] interpolateEpochs(long timeMillis) {
+        double t = (mEpochs > 1) ? (double) (timeMillis - mEpochStart) / mEpochStep : 0;
+        t = Math.max(0, Math.min(mEpochs - 1, t));
+        int e = Math.min((int) t, mEpochs - 2);
+        if(e < 0) {
+            return new float[][] { mX[0], mY[0], mZ[0] };
+        }
+        float u = (float) (t - e);
+        return new float[][] { blend(mX[e], mX[e+1], u), blend(mY[e], mY[e+1], u), blend(mZ[e], mZ[e+1], u) };
+    }
+
+    private static float[] blend(float[] a, float[] b, float u) {
+        float[] result = new float[a.length];
+        for(int i = 0; i < a.length; i++) {
+            result[i] = a[i] + u * (b[i] - a[i]);
+        }
+        return result;
+    }
+
+    private static float[] toFloat(double[] values) {
+        float[] result = new float[values.length];
+        for(int i = 0; i < values.length; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+
+    //////////
+    // FILE //
+    //////////
+
+    /**
+     * Load the grid from the cache file if it matches the parameters, otherwise build it and (try to) save it.
+     */
+    public static GridModel loadOrBuild(File file, final double step, final long epochStart, final long epochStep, final int epochs) {
+        try {
+            return CacheFileUtils.loadOrBuild(file, new CacheFileUtils.Content<GridModel>() {
+                @Override
+                public GridModel load(File file) throws IOException {
+                    GridModel model = GridModel.load(file);
+                    boolean matches = model.mStep == step && model.mEpochStart == epochStart
+                        && model.mEpochStep == epochStep && model.mEpochs == epochs;
+                    return matches ? model : null;
+                }
+
+                @Override
+                public GridModel build() {
+                    return GridModel.build(step, epochStart, epochStep, epochs);
+                }
+
+                @Override
+                public void save(GridModel model, File file) throws IOException {
+                    model.save(file);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can not happen, the build does not read files
+        }
+    }
+
+    /** Save in the binary format: header, then the X, Y, Z floats of every epoch (little-endian). */
+    public void save(File file) throws IOException {
+        int cells = mRows * mColumns;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mEpochs * 3 * cells * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putDouble(mStep).putInt(mRows).putInt(mColumns);
+        buffer.putInt(mEpochs).putLong(mEpochStart).putLong(mEpochStep);
+        buffer.putDouble(mFieldErrorEstimate).putDouble(mInclinationErrorEstimate).putDouble(mDeclinationErrorEstimate);
+        for(int e = 0; e < mEpochs; e++) {
+            buffer.asFloatBuffer().put(mX[e]);
+            buffer.position(buffer.position() + cells * 4);
+            buffer.asFloatBuffer().put(mY[e]);
+            buffer.position(buffer.position() + cells * 4);
+            buffer.asFloatBuffer().put(mZ[e]);
+            buffer.position(buffer.position() + cells * 4);
+        }
+        buffer.flip();
+        CacheFileUtils.save(file, buffer);
+    }
+
+    public static GridModel load(File file) throws IOException {
+        ByteBuffer buffer = CacheFileUtils.map(file);
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a geomagnetic grid file: " + file);
+        }
+        double step = buffer.getDouble();
+        int rows = buffer.getInt();
+        int columns = buffer.getInt();
+        int epochs = buffer.getInt();
+        long epochStart = buffer.getLong();
+        long epochStep = buffer.getLong();
+        double fieldError = buffer.getDouble();
+        double inclinationError = buffer.getDouble();
+        double declinationError = buffer.getDouble();
+        int cells = rows * columns;
+        if(rows != (int) Math.round(180 / step) + 1 || columns != (int) Math.round(360 / step)
+                || epochs < 1 || (epochs > 1 && epochStep <= 0) || buffer.remaining() != (long) epochs * 3 * cells * 4) {
+            throw new IOException("Corrupt geomagnetic grid file: " + file);
+        }
+
+        float[][] x = new float[epochs][cells];
+        float[][] y = new float[epochs][cells];
+        float[][] z = new float[epochs][cells];
+        for(int e = 0; e < epochs; e++) {
+            buffer.asFloatBuffer().get(x[e]);
+            buffer.position(buffer.position() + cells * 4);
+            buffer.asFloatBuffer().get(y[e]);
+            buffer.position(buffer.position() + cells * 4);
+            buffer.asFloatBuffer().get(z[e]);
+            buffer.position(buffer.position() + cells * 4);
+        }
+        return new GridModel(step, epochs, epochStart, epochStep, x, y, z, fieldError, inclinationError, declinationError);
+    }
+}
@@ -0,0 +1,658 @@
+package hu.ureczky.utils.astro.geomagneticfield.grid;
+
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGrid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Isolines of a magnetic quantity (e.g. inclination or intensity) of a grid, for restricting a position search:
+ * a measured value with its tolerance confines the observer to a band between two isolines.
+ * <br/> The isolines are traced by marching squares at uniformly spaced levels, and simplified by Douglas-Peucker.
+ * The grid cells are grouped into buckets, which store the range of the values and the isolines crossing them.
+ * <br/> The ranges are exact for the bilinear interpolation of the grid, not for the model between the grid points
+ * (e.g. the inclination peaks at the dip poles between them): an estimate of the model's deviation from the ranges
+ * ({@link #getErrorEstimate()} of an index of {@link #build}) is to be added to the tolerance.
+ * Being an estimate, not a bound, it makes a miss of the true position unlikely, not impossible
+ * (wmm.Validation checks random positions).
+ * <br/> Immutable, thread-safe.
+ */
+public class IsolineIndex {
+
+    // Quantities of build()
+    public static final int INCLINATION = 0;
+    public static final int INTENSITY   = 1;
+
+    // Safety margin of the error estimate over the largest measured deviation
+    private static final double ERROR_MARGIN = 1.5;
+    // Samples per cell side of the error estimate
+    private static final int ERROR_SAMPLES = 4;
+
+    /** Contour line of a level. */
+    public static class Isoline {
+        public final double mLevel;
+        public final double[] mLatitude;  // degrees
+        public final double[] mLongitude; // degrees, continuous (can exceed +-180 around the antimeridian)
+        public final boolean mClosed;     // the last point is the first one (its longitude +-360, if it goes around the globe)
+
+        Isoline(double level, double[] latitude, double[] longitude, boolean closed) {
+            mLevel     = level;
+            mLatitude  = latitude;
+            mLongitude = longitude;
+            mClosed    = closed;
+        }
+    }
+
+    /** Latitude/longitude rectangle, where a value can be found (a run of buckets in a bucket row). */
+    public static class Band {
+        public final double mMinLatitude;
+        public final double mMaxLatitude;
+        public final double mMinLongitude;
+        public final double mMaxLongitude; // can exceed 180, if the band wraps around
+
+        Band(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+            mMinLatitude  = minLatitude;
+            mMaxLatitude  = maxLatitude;
+            mMinLongitude = minLongitude;
+            mMaxLongitude = maxLongitude;
+        }
+
+        public boolean contains(double latitude, double longitude) {
+            if(latitude < mMinLatitude || latitude > mMaxLatitude) {
+                return false;
+            }
+            double lon = longitude - 360 * Math.floor((longitude - mMinLongitude) / 360); // to [min, min + 360)
+            return lon <= mMaxLongitude;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mMinLatitude + ", " + mMaxLatitude + "] x [" + mMinLongitude + ", " + mMaxLongitude + "]";
+        }
+    }
+
+    // Grid
+    private final double mLatitude0;
+    private final double mLatitudeStep;
+    private final int mRows;
+    private final double mLongitude0;
+    private final double mLongitudeStep;
+    private final int mColumns;
+    private final int mCellColumns; // mColumns if the grid wraps around, otherwise mColumns - 1
+
+    // Buckets of bucketCells x bucketCells cells: range of the values, crossing isolines
+    private final int mBucketCells;
+    private final int mBucketRows;
+    private final int mBucketColumns;
+    private final double[] mBucketMin;
+    private final double[] mBucketMax;
+    private final int[][] mBucketIsolines;
+
+    // Isolines sorted by level
+    private final Isoline[] mIsolines;
+    private final double[] mLevels;
+
+    // Estimated deviation of the model from the ranges of the cells (0 if the model is not known)
+    private final double mErrorEstimate;
+
+    /**
+     * Build the index of the inclination or the intensity at a time, on a global sea level grid.
+     * <br/> The error estimate is the largest deviation of the model on a {@value #ERROR_SAMPLES} times finer grid
+     * from the range of the cell's corners, with a safety margin.
+     * @param quantity  {@link #INCLINATION} or {@link #INTENSITY}
+     * @param gridStep  distance of the grid points in degrees (180 must be its multiple)
+     * @param levelStep distance of the isolines (degrees or nanoteslas)
+     */
+    public static IsolineIndex build(long timeMillis, int quantity, double gridStep, double levelStep) {
+        int rows    = (int) Math.round(180 / gridStep) + 1;
+        int columns = (int) Math.round(360 / gridStep);
+        GeomagneticField gmf = GeomagneticFieldFactory.create(timeMillis);
+        GeomagneticFieldGrid grid    = new GeomagneticFieldGrid(-90, gridStep, rows, -180, gridStep, columns, 0);
+        double sampleStep = gridStep / ERROR_SAMPLES;
+        GeomagneticFieldGrid samples = new GeomagneticFieldGrid(-90, sampleStep, (rows - 1) * ERROR_SAMPLES, -180, sampleStep, columns * ERROR_SAMPLES, 0);
+        grid.evaluate(gmf);
+        samples.evaluate(gmf);
+        double[] values, sampleValues;
+        switch(quantity) {
+            case INCLINATION: values = grid.mInclination; sampleValues = samples.mInclination; break;
+            case INTENSITY:   values = grid.mIntensity;   sampleValues = samples.mIntensity;   break;
+            default: throw new IllegalArgumentException("Unknown quantity: " + quantity);
+        }
+
+        double maxDeviation = 0;
+        for(int i = 0; i < samples.mRows; i++) {
+            int r = i / ERROR_SAMPLES;
+            for(int j = 0; j < samples.mColumns; j++) {
+                int c = j / ERROR_SAMPLES, c1 = (c + 1) % columns;
+                double v00 = values[r * columns + c],       v01 = values[r * columns + c1];
+                double v10 = values[(r + 1) * columns + c], v11 = values[(r + 1) * columns + c1];
+                double sample = sampleValues[samples.getIndex(i, j)];
+                maxDeviation = Math.max(maxDeviation, sample - Math.max(Math.max(v00, v01), Math.max(v10, v11)));
+                maxDeviation = Math.max(maxDeviation, Math.min(Math.min(v00, v01), Math.min(v10, v11)) - sample);
+            }
+        }
+        return new IsolineIndex(grid, values, levelStep, gridStep / 4, 10, ERROR_MARGIN * maxDeviation);
+    }
+
+    /**
+     * @param grid        geometry of the values (a grid covering 360 degrees of longitude wraps around)
+     * @param values      values of the grid points (e.g. grid.mInclination)
+     * @param levelStep   distance of the isolines
+     * @param simplify    tolerance of the simplification in degrees
+     * @param bucketCells size of a bucket in grid cells
+     */
+    public IsolineIndex(GeomagneticFieldGrid grid, double[] values, double levelStep, double simplify, int bucketCells) {
+        this(grid, values, levelStep, simplify, bucketCells, 0);
+    }
+
+    private IsolineIndex(GeomagneticFieldGrid grid, double[] values, double levelStep, double simplify, int bucketCells, double errorEstimate) {
+        if(grid.mRows < 2 || grid.mColumns < 2 || levelStep <= 0 || bucketCells < 1) {
+            throw new IllegalArgumentException("Invalid index parameters");
+        }
+        mLatitude0     = grid.mLatitude0;
+        mLatitudeStep  = grid.mLatitudeStep;
+        mRows          = grid.mRows;
+        mLongitude0    = grid.mLongitude0;
+        mLongitudeStep = grid.mLongitudeStep;
+        mColumns       = grid.mColumns;
+        boolean wrap   = Math.abs(Math.abs(mColumns * mLongitudeStep) - 360) < 1e-9;
+        mCellColumns   = wrap ? mColumns : mColumns - 1;
+        mErrorEstimate = errorEstimate;
+
+        mBucketCells   = bucketCells;
+        mBucketRows    = (mRows - 2) / bucketCells + 1;
+        mBucketColumns = (mCellColumns - 1) / bucketCells + 1;
+        mBucketMin     = new double[mBucketRows * mBucketColumns];
+        mBucketMax     = new double[mBucketRows * mBucketColumns];
+        computeBucketRanges(values);
+
+        // Isolines of the levels
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        List<Isoline> isolines = new ArrayList<Isoline>();
+        List<int[]> isolineBuckets = new ArrayList<int[]>();
+        Tracer tracer = new Tracer(values, simplify);
+        for(long k = (long) Math.ceil(min / levelStep); k * levelStep <= max; k++) {
+            tracer.trace(k * levelStep, isolines, isolineBuckets);
+        }
+        mIsolines = isolines.toArray(new Isoline[isolines.size()]);
+        mLevels = new double[mIsolines.length];
+        for(int i = 0; i < mIsolines.length; i++) {
+            mLevels[i] = mIsolines[i].mLevel;
+        }
+
+        // Isolines by bucket
+        int[] counts = new int[mBucketMin.length];
+        for(int[] buckets : isolineBuckets) {
+            for(int b : buckets) {
+                counts[b]++;
+            }
+        }
+        mBucketIsolines = new int[mBucketMin.length][];
+        for(int b = 0; b < counts.length; b++) {
+            mBucketIsolines[b] = new int[counts[b]];
+            counts[b] = 0;
+        }
+        for(int i = 0; i < isolineBuckets.size(); i++) {
+            for(int b : isolineBuckets.get(i)) {
+                mBucketIsolines[b][counts[b]++] = i;
+            }
+        }
+    }
+
+    /**
+     * Regions where the value can be within value +- tolerance: the buckets whose range intersects it,
+     * merged along the bucket rows.
+     */
+    public List<Band> query(double value, double tolerance) {
+        double low  = value - tolerance;
+        double high = value + tolerance;
+        List<Band> bands = new ArrayList<Band>();
+        for(int br = 0; br < mBucketRows; br++) {
+            double lat0 = getLatitude(br * mBucketCells);
+            double lat1 = getLatitude(Math.min((br + 1) * mBucketCells, mRows - 1));
+            int start = -1;
+            for(int bc = 0; bc <= mBucketColumns; bc++) {
+                int b = br * mBucketColumns + bc;
+                boolean match = (bc < mBucketColumns) && mBucketMax[b] >= low && mBucketMin[b] <= high;
+                if(match && start < 0) {
+                    start = bc;
+                } else if(!match && start >= 0) {
+                    double lon0 = getLongitude(start * mBucketCells);
+                    double lon1 = getLongitude(Math.min(bc * mBucketCells, mCellColumns));
+                    bands.add(new Band(Math.min(lat0, lat1), Math.max(lat0, lat1), Math.min(lon0, lon1), Math.max(lon0, lon1)));
+                    start = -1;
+                }
+            }
+        }
+        return bands;
+    }
+
+    /** @return the isolines of the levels in [minLevel, maxLevel] */
+    public List<Isoline> getIsolines(double minLevel, double maxLevel) {
+        List<Isoline> result = new ArrayList<Isoline>();
+        for(int i = firstLevel(minLevel); i < mLevels.length && mLevels[i] <= maxLevel; i++) {
+            result.add(mIsolines[i]);
+        }
+        return result;
+    }
+
+    /** @return the isolines of the levels in [minLevel, maxLevel], which cross the buckets of the band */
+    public List<Isoline> getIsolines(double minLevel, double maxLevel, Band band) {
+        int r0 = getCellRow(band.mMinLatitude), r1 = getCellRow(band.mMaxLatitude);
+        int br0 = Math.min(r0, r1) / mBucketCells, br1 = Math.max(r0, r1) / mBucketCells;
+        int c0 = getCellColumn(band.mMinLongitude);
+        int columns = (int) Math.ceil((band.mMaxLongitude - band.mMinLongitude) / Math.abs(mLongitudeStep)) + 1;
+        boolean[] found = new boolean[mIsolines.length];
+        for(int br = br0; br <= br1; br++) {
+            int lastBucket = -1;
+            for(int c = 0; c < Math.min(columns, mCellColumns + 1); c++) {
+                if(mCellColumns != mColumns && c0 + c >= mCellColumns) {
+                    break; // no wrap around
+                }
+                int bc = ((c0 + c) % mCellColumns) / mBucketCells;
+                int b = br * mBucketColumns + bc;
+                if(b == lastBucket) {
+                    continue;
+                }
+                lastBucket = b;
+                for(int i : mBucketIsolines[b]) {
+                    found[i] = true;
+                }
+            }
+        }
+        List<Isoline> result = new ArrayList<Isoline>();
+        for(int i = firstLevel(minLevel); i < mLevels.length && mLevels[i] <= maxLevel; i++) {
+            if(found[i]) {
+                result.add(mIsolines[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return estimated deviation of the model from the ranges of the grid's cells (measured at build time, not a bound),
+     * to be added to the tolerance of {@link #query}; 0 for an index of given values
+     */
+    public double getErrorEstimate() {
+        return mErrorEstimate;
+    }
+
+    public int getIsolineCount() {
+        return mIsolines.length;
+    }
+
+    /** @return index of the first isoline with level at least minLevel */
+    private int firstLevel(double minLevel) {
+        int i = Arrays.binarySearch(mLevels, minLevel);
+        if(i < 0) {
+            return -i - 1;
+        }
+        while(i > 0 && mLevels[i - 1] == minLevel) {
+            i--;
+        }
+        return i;
+    }
+
+    private double getLatitude(int row) {
+        return mLatitude0 + row * mLatitudeStep;
+    }
+
+    private double getLongitude(int column) {
+        return mLongitude0 + column * mLongitudeStep;
+    }
+
+    /** @return row of the cell of the latitude, clamped */
+    private int getCellRow(double latitude) {
+        int r = (int) Math.floor((latitude - mLatitude0) / mLatitudeStep);
+        return Math.max(0, Math.min(mRows - 2, r));
+    }
+
+    /** @return column of the cell of the longitude, wrapped or clamped */
+    private int getCellColumn(double longitude) {
+        int c = (int) Math.floor((longitude - mLongitude0) / mLongitudeStep);
+        if(mCellColumns == mColumns) {
+            return ((c % mColumns) + mColumns) % mColumns;
+        }
+        return Math.max(0, Math.min(mCellColumns - 1, c));
+    }
+
+    private int getBucket(int cellRow, int cellColumn) {
+        return (cellRow / mBucketCells) * mBucketColumns + cellColumn / mBucketCells;
+    }
+
+    /** Range of the values at the corners of the buckets' cells. */
+    private void computeBucketRanges(double[] values) {
+        Arrays.fill(mBucketMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(mBucketMax, Double.NEGATIVE_INFINITY);
+        for(int r = 0; r < mRows - 1; r++) {
+            for(int c = 0; c < mCellColumns; c++) {
+                int c1 = (c + 1) % mColumns;
+                double v00 = values[r * mColumns + c],       v01 = values[r * mColumns + c1];
+                double v10 = values[(r + 1) * mColumns + c], v11 = values[(r + 1) * mColumns + c1];
+                int b = getBucket(r, c);
+                mBucketMin[b] = Math.min(mBucketMin[b], Math.min(Math.min(v00, v01), Math.min(v10, v11)));
+                mBucketMax[b] = Math.max(mBucketMax[b], Math.max(Math.max(v00, v01), Math.max(v10, v11)));
+            }
+        }
+    }
+
+    /**
+     * Marching squares of one level at a time.
+     * <br/> A contour segment connects two cell edges; an edge is shared by two cells, so the segments are chained by their edges.
+     * Edge ids: horizontal (r, c)-(r, c+1): r * columns + c, vertical (r, c)-(r+1, c): rows * columns + r * columns + c.
+     */
+    private class Tracer {
+        private final double[] mValues;
+        private final double mSimplify;
+
+        // Segments of the level: edges and cell
+        private int mSegments;
+        private int[] mSegmentEdgeA = new int[1024];
+        private int[] mSegmentEdgeB = new int[1024];
+        private int[] mSegmentCell  = new int[1024];
+
+        // Segments at an edge (at most 2), -1 if none
+        private final int[] mEdgeSegment1;
+        private final int[] mEdgeSegment2;
+
+        private final int[] mBucketStamp;
+        private int mStamp;
+
+        // Result of walk()
+        private boolean mClosed;
+
+        Tracer(double[] values, double simplify) {
+            mValues   = values;
+            mSimplify = simplify;
+            mEdgeSegment1 = new int[2 * mRows * mColumns];
+            mEdgeSegment2 = new int[2 * mRows * mColumns];
+            Arrays.fill(mEdgeSegment1, -1);
+            Arrays.fill(mEdgeSegment2, -1);
+            mBucketStamp = new int[mBucketMin.length];
+        }
+
+        void trace(double level, List<Isoline> isolines, List<int[]> isolineBuckets) {
+            findSegments(level);
+
+            boolean[] visited = new boolean[mSegments];
+            IntList edges = new IntList();
+            IntList cells = new IntList();
+            for(int s = 0; s < mSegments; s++) {
+                if(visited[s]) {
+                    continue;
+                }
+                // Backwards from edge A (around, if it is a loop), then forwards from edge B
+                edges.clear();
+                cells.clear();
+                visited[s] = true;
+                int end = walk(s, mSegmentEdgeA[s], visited, edges, cells);
+                boolean closed = mClosed;
+                edges.add(end);
+                edges.reverse();
+                cells.reverse();
+                cells.add(mSegmentCell[s]);
+                if(!closed) {
+                    end = walk(s, mSegmentEdgeB[s], visited, edges, cells);
+                }
+                edges.add(end); // closed: edge B again
+
+                isolines.add(createIsoline(level, edges, closed));
+                isolineBuckets.add(getBuckets(cells));
+            }
+
+            // Reset the edges of the level
+            for(int s = 0; s < mSegments; s++) {
+                mEdgeSegment1[mSegmentEdgeA[s]] = mEdgeSegment2[mSegmentEdgeA[s]] = -1;
+                mEdgeSegment1[mSegmentEdgeB[s]] = mEdgeSegment2[mSegmentEdgeB[s]] = -1;
+            }
+            mSegments = 0;
+        }
+
+        /**
+         * Follow the chain of segments from a segment through an edge, adding the passed edges and the next cells.
+         * Sets mClosed, if the chain led back to the segment.
+         * @return the last edge of the chain (not added)
+         */
+        private int walk(int segment, int edge, boolean[] visited, IntList edges, IntList cells) {
+            int first = segment;
+            mClosed = false;
+            while(true) {
+                int next = (mEdgeSegment1[edge] == segment) ? mEdgeSegment2[edge] : mEdgeSegment1[edge];
+                if(next == first) {
+                    mClosed = true;
+                    return edge;
+                }
+                if(next < 0 || visited[next]) {
+                    return edge;
+                }
+                visited[next] = true;
+                edges.add(edge);
+                cells.add(mSegmentCell[next]);
+                edge = (mSegmentEdgeA[next] == edge) ? mSegmentEdgeB[next] : mSegmentEdgeA[next];
+                segment = next;
+            }
+        }
+
+        private void findSegments(double level) {
+            double[] values = mValues;
+            int vertical = mRows * mColumns;
+            for(int r = 0; r < mRows - 1; r++) {
+                for(int c = 0; c < mCellColumns; c++) {
+                    int c1 = (c + 1) % mColumns;
+                    double v00 = values[r * mColumns + c],       v01 = values[r * mColumns + c1];
+                    double v10 = values[(r + 1) * mColumns + c], v11 = values[(r + 1) * mColumns + c1];
+                    int mask = ((v00 >= level) ? 1 : 0) | ((v01 >= level) ? 2 : 0) | ((v11 >= level) ? 4 : 0) | ((v10 >= level) ? 8 : 0);
+                    if(mask == 0 || mask == 15) {
+                        continue;
+                    }
+                    // Edges around the cell
+                    int bottom = r * mColumns + c;
+                    int top    = (r + 1) * mColumns + c;
+                    int left   = vertical + r * mColumns + c;
+                    int right  = vertical + r * mColumns + c1;
+                    int cell   = r * mColumns + c;
+                    switch(mask) {
+                        case 1:  case 14: addSegment(left,   bottom, cell); break; // corner 00
+                        case 2:  case 13: addSegment(bottom, right,  cell); break; // corner 01
+                        case 4:  case 11: addSegment(right,  top,    cell); break; // corner 11
+                        case 8:  case 7:  addSegment(top,    left,   cell); break; // corner 10
+                        case 3:  case 12: addSegment(left,   right,  cell); break; // horizontal
+                        case 6:  case 9:  addSegment(bottom, top,    cell); break; // vertical
+                        default: // saddle (5, 10): decided by the center
+                            boolean center = (v00 + v01 + v10 + v11) / 4 >= level;
+                            if(center == (v00 >= level)) {
+                                // 00 and 11 are connected: cut off 01 and 10
+                                addSegment(bottom, right, cell);
+                                addSegment(top,    left,  cell);
+                            } else {
+                                // cut off 00 and 11
+                                addSegment(left,  bottom, cell);
+                                addSegment(right, top,    cell);
+                            }
+                            break;
+                    }
+                }
+            }
+        }
+
+        private void addSegment(int edgeA, int edgeB, int cell) {
+            if(mSegments == mSegmentEdgeA.length) {
+                mSegmentEdgeA = Arrays.copyOf(mSegmentEdgeA, 2 * mSegments);
+                mSegmentEdgeB = Arrays.copyOf(mSegmentEdgeB, 2 * mSegments);
+                mSegmentCell  = Arrays.copyOf(mSegmentCell,  2 * mSegments);
+            }
+            int s = mSegments++;
+            mSegmentEdgeA[s] = edgeA;
+            mSegmentEdgeB[s] = edgeB;
+            mSegmentCell[s]  = cell;
+            link(edgeA, s);
+            link(edgeB, s);
+        }
+
+        private void link(int edge, int segment) {
+            if(mEdgeSegment1[edge] < 0) {
+                mEdgeSegment1[edge] = segment;
+            } else {
+                mEdgeSegment2[edge] = segment;
+            }
+        }
+
+        /** Crossing points of the edges, simplified. */
+        private Isoline createIsoline(double level, IntList edges, boolean closed) {
+            int n = edges.size();
+            double[] lat = new double[n];
+            double[] lon = new double[n];
+            int vertical = mRows * mColumns;
+            for(int i = 0; i < n; i++) {
+                int edge = edges.get(i);
+                int r, c, i0, i1;
+                boolean isVertical = (edge >= vertical);
+                if(isVertical) {
+                    r = (edge - vertical) / mColumns;
+                    c = (edge - vertical) % mColumns;
+                    i0 = r * mColumns + c;
+                    i1 = i0 + mColumns;
+                } else {
+                    r = edge / mColumns;
+                    c = edge % mColumns;
+                    i0 = r * mColumns + c;
+                    i1 = r * mColumns + (c + 1) % mColumns;
+                }
+                double t = (level - mValues[i0]) / (mValues[i1] - mValues[i0]);
+                lat[i] = getLatitude(r)  + (isVertical ? t * mLatitudeStep  : 0);
+                lon[i] = getLongitude(c) + (isVertical ? 0 : t * mLongitudeStep);
+                // Continuous longitudes
+                if(i > 0) {
+                    lon[i] -= 360 * Math.round((lon[i] - lon[i - 1]) / 360);
+                }
+            }
+
+            boolean[] keep = simplify(lat, lon, mSimplify);
+            int kept = 0;
+            for(boolean k : keep) {
+                if(k) kept++;
+            }
+            double[] simpleLat = new double[kept];
+            double[] simpleLon = new double[kept];
+            for(int i = 0, j = 0; i < n; i++) {
+                if(keep[i]) {
+                    simpleLat[j] = lat[i];
+                    simpleLon[j] = lon[i];
+                    j++;
+                }
+            }
+            return new Isoline(level, simpleLat, simpleLon, closed);
+        }
+
+        /** @return the distinct buckets of the cells */
+        private int[] getBuckets(IntList cells) {
+            mStamp++;
+            IntList buckets = new IntList();
+            for(int i = 0; i < cells.size(); i++) {
+                int cell = cells.get(i);
+                int b = getBucket(cell / mColumns, cell % mColumns);
+                if(mBucketStamp[b] != mStamp) {
+                    mBucketStamp[b] = mStamp;
+                    buckets.add(b);
+                }
+            }
+            return buckets.toArray();
+        }
+    }
+
+    /**
+     * Douglas-Peucker simplification (planar, in degrees), iterative.
+     * @return the points to keep (the end points are kept)
+     */
+    static boolean[] simplify(double[] lat, double[] lon, double tolerance) {
+        int n = lat.length;
+        boolean[] keep = new boolean[n];
+        if(n == 0) {
+            return keep;
+        }
+        keep[0] = keep[n - 1] = true;
+        IntList stack = new IntList();
+        stack.add(0);
+        stack.add(n - 1);
+        double tolerance2 = tolerance * tolerance;
+        while(stack.size() > 0) {
+            int last  = stack.pop();
+            int first = stack.pop();
+            double ax = lon[first], ay = lat[first];
+            double dx = lon[last] - ax, dy = lat[last] - ay;
+            double length2 = dx * dx + dy * dy;
+            int farthest = -1;
+            double max = tolerance2;
+            for(int i = first + 1; i < last; i++) {
+                double px = lon[i] - ax, py = lat[i] - ay;
+                double distance2;
+                if(length2 == 0) {
+                    distance2 = px * px + py * py;
+                } else {
+                    double cross = px * dy - py * dx;
+                    distance2 = cross * cross / length2;
+                }
+                if(distance2 > max) {
+                    max = distance2;
+                    farthest = i;
+                }
+            }
+            if(farthest >= 0) {
+                keep[farthest] = true;
+                stack.add(first);
+                stack.add(farthest);
+                stack.add(farthest);
+                stack.add(last);
+            }
+        }
+        return keep;
+    }
+
+    /** Growable int array. */
+    private static class IntList {
+        private int[] mValues = new int[64];
+        private int mSize;
+
+        void add(int value) {
+            if(mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, 2 * mSize);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(int i) {
+            return mValues[i];
+        }
+
+        int pop() {
+            return mValues[--mSize];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        void reverse() {
+            for(int i = 0, j = mSize - 1; i < j; i++, j--) {
+                int tmp = mValues[i];
+                mValues[i] = mValues[j];
+                mValues[j] = tmp;
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
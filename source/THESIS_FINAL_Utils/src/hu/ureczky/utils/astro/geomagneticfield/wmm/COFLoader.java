@@ -0,0 +1,180 @@
+package hu.ureczky.utils.astro.geomagneticfield.wmm;
+
+import hu.ureczky.utils.CacheFileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Loads geomagnetic models from the standard .COF coefficient files (WMM, and the same format of higher degree models).
+ * <br/> Format: a header line (epoch, model name, release date), then one line per (n, m):
+ * n m g h dg dh (the secular variation is optional), closed by a line of 9s.
+ * <br/> A parsed file can be cached in a compact binary form, which is memory-mapped on later loads.
+ */
+public class COFLoader {
+
+    private static final int MAGIC   = 0x574D4D43; // "WMMC"
+    private static final int VERSION = 1;
+
+    /** Parse a .COF file. */
+    public static WMMModel load(File cofFile) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(cofFile), "US-ASCII");
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Load a .COF file through a binary cache: the cache is used if it is newer than the .COF file,
+     * otherwise the .COF file is parsed and the cache is (re)written.
+     */
+    public static WMMModel load(final File cofFile, File cacheFile) throws IOException {
+        return CacheFileUtils.loadOrBuild(cacheFile, new CacheFileUtils.Content<WMMModel>() {
+            @Override
+            public WMMModel load(File file) throws IOException {
+                return (file.lastModified() >= cofFile.lastModified()) ? loadBinary(file) : null;
+            }
+
+            @Override
+            public WMMModel build() throws IOException {
+                return COFLoader.load(cofFile);
+            }
+
+            @Override
+            public void save(WMMModel model, File file) throws IOException {
+                saveBinary(model, file);
+            }
+        });
+    }
+
+    /** Parse the content of a .COF file. */
+    public static WMMModel parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+
+        // Header: epoch, name, date
+        String header = in.readLine();
+        if(header == null) {
+            throw new IOException("Empty coefficient file");
+        }
+        String[] fields = header.trim().split("\\s+");
+        double epoch;
+        try {
+            epoch = Double.parseDouble(fields[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid header: " + header);
+        }
+        String name = (fields.length > 1) ? fields[1] : ("COF-" + fields[0]);
+
+        // Coefficients, the degree is known only at the end
+        int capacity = 91; // degree 12
+        double[] g = new double[capacity], h = new double[capacity], dg = new double[capacity], dh = new double[capacity];
+        int maxDegree = 0;
+        String line;
+        while((line = in.readLine()) != null) {
+            line = line.trim();
+            if(line.length() == 0) {
+                continue;
+            }
+            if(line.startsWith("9999")) {
+                break;
+            }
+            fields = line.split("\\s+");
+            if(fields.length < 4) {
+                throw new IOException("Invalid line: " + line);
+            }
+            int n, m;
+            try {
+                n = Integer.parseInt(fields[0]);
+                m = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid line: " + line);
+            }
+            if(n < 1 || m < 0 || m > n) {
+                throw new IOException("Invalid degree/order: " + line);
+            }
+            int k = n * (n + 1) / 2 + m;
+            if(k >= capacity) {
+                capacity = Math.max(2 * capacity, (n + 1) * (n + 2) / 2);
+                g  = copyOf(g,  capacity);
+                h  = copyOf(h,  capacity);
+                dg = copyOf(dg, capacity);
+                dh = copyOf(dh, capacity);
+            }
+            try {
+                g[k]  = Double.parseDouble(fields[2]);
+                h[k]  = Double.parseDouble(fields[3]);
+                dg[k] = (fields.length > 4) ? Double.parseDouble(fields[4]) : 0;
+                dh[k] = (fields.length > 5) ? Double.parseDouble(fields[5]) : 0;
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid line: " + line);
+            }
+            maxDegree = Math.max(maxDegree, n);
+        }
+        if(maxDegree == 0) {
+            throw new IOException("No coefficients");
+        }
+
+        int size = (maxDegree + 1) * (maxDegree + 2) / 2;
+        return new WMMModel(name, (int) Math.floor(epoch), copyOf(g, size), copyOf(h, size), copyOf(dg, size), copyOf(dh, size));
+    }
+
+    /** Save in the binary format: header, then g, h, dg, dh as little-endian doubles. */
+    public static void saveBinary(WMMModel model, File file) throws IOException {
+        double[][] tables = model.getTables();
+        byte[] name = model.getName().getBytes("UTF-8");
+        int size = tables[0].length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 4 + name.length + 4 + 4 * 8 * size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(model.getBaseYear());
+        buffer.putInt(name.length).put(name);
+        buffer.putInt(size);
+        for(double[] table : tables) {
+            buffer.asDoubleBuffer().put(table);
+            buffer.position(buffer.position() + 8 * size);
+        }
+        buffer.flip();
+        CacheFileUtils.save(file, buffer);
+    }
+
+    /** Load the binary format (memory-mapped). */
+    public static WMMModel loadBinary(File file) throws IOException {
+        ByteBuffer buffer = CacheFileUtils.map(file);
+        if(buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a coefficient cache file: " + file);
+        }
+        int baseYear = buffer.getInt();
+        int nameLength = buffer.getInt();
+        if(nameLength < 0 || nameLength > buffer.remaining() - 4) {
+            throw new IOException("Corrupt coefficient cache file: " + file);
+        }
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        int size = buffer.getInt();
+        if(size <= 0 || buffer.remaining() != 4L * 8 * size) {
+            throw new IOException("Corrupt coefficient cache file: " + file);
+        }
+        double[][] tables = new double[4][size];
+        for(double[] table : tables) {
+            buffer.asDoubleBuffer().get(table);
+            buffer.position(buffer.position() + 8 * size);
+        }
+        try {
+            return new WMMModel(new String(name, "UTF-8"), baseYear, tables[0], tables[1], tables[2], tables[3]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static double[] copyOf(double[] array, int length) {
+        double[] result = new double[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+}
@@ -17,8 +17,11 @@
 package hu.ureczky.utils.astro.geomagneticfield.wmm;
 
 import hu.ureczky.utils.astro.geomagneticfield.GeomagneticField;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldBatch;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGradient;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGrid;
 
-import java.util.GregorianCalendar;
+import java.util.Arrays;
 
 /**
  * Estimates magnetic field at a given point on Earth, and in particular,
@@ -33,8 +36,6 @@ import java.util.GregorianCalendar;
  */
 public class GeomagneticField_WMM implements GeomagneticField {
     
-    private long mTimeStamp;
-    
     // The magnetic field at a given point, in nonoteslas in geodetic coordinates.
     private double mX;
     private double mY;
@@ -52,35 +53,39 @@ public class GeomagneticField_WMM implements GeomagneticField {
 
     // These coefficients and the formulae used below are from:
     // NOAA Technical Report: The US/UK World Magnetic Model for (BASE_YEAR)-(BASE_YEAR+5)
-    private final int BASE_YEAR;
-    private final float[][] G_COEFF;
-    private final float[][] H_COEFF;
-    private final float[][] DELTA_G;
-    private final float[][] DELTA_H;
-    private final long BASE_TIME;
-    private final int MAX_N; // Maximum degree of the coefficients.
-
-    // The ratio between the Gauss-normalized associated Legendre functions and the Schmidt quasi-normalized ones.
-    // Compute these once staticly since they don't depend on input variables at all.
-    private final double[][] SCHMIDT_QUASI_NORM_FACTORS;
+    private final int MAX_N; // Number of the degrees (maximum degree + 1).
+
+    // Schmidt quasi-normalized coefficients adjusted for the timestamp, packed by the order m (see WMMModel.index)
+    // (shared, see WMMModel)
+    private final double[] mG;
+    private final double[] mH;
 
+    // Scratch buffers of setParameters, allocated once.
+    private final LegendreTable mLegendre;
+    private final double[] mRelativeRadiusPower;
+    private final double[] mSinMLon;
+    private final double[] mCosMLon;
+
+    /**
+     * Builds the model's tables, and adjusts the coefficients exactly for the timestamp.
+     * Use {@link WMMModel#getCoefficients(long)} to share them.
+     */
     public GeomagneticField_WMM(WMM wmm, long timeStamp) {
-        
-        BASE_YEAR = wmm.getBaseYear();
-        G_COEFF = wmm.getGCoeff();
-        H_COEFF = wmm.getHCoeff();
-        DELTA_G = wmm.getDeltaG();
-        DELTA_H = wmm.getDeltaH();
-        
-        MAX_N = G_COEFF.length; // Maximum degree of the coefficients.
-        assert G_COEFF.length == H_COEFF.length;
-        assert H_COEFF.length == DELTA_G.length;
-        assert DELTA_G.length == DELTA_H.length;
-        
-        SCHMIDT_QUASI_NORM_FACTORS = computeSchmidtQuasiNormFactors(MAX_N);
-        BASE_TIME = new GregorianCalendar(BASE_YEAR, 1, 1).getTimeInMillis();
-        
-        mTimeStamp = timeStamp;
+        this(new WMMModel(wmm).computeCoefficients(timeStamp));
+    }
+
+    /**
+     * Lightweight evaluator of shared coefficients, only the scratch buffers are allocated.
+     */
+    public GeomagneticField_WMM(WMMModel.Coefficients coefficients) {
+        MAX_N = coefficients.mMaxN;
+        mG = coefficients.mG;
+        mH = coefficients.mH;
+
+        mLegendre = new LegendreTable(coefficients.mModel);
+        mRelativeRadiusPower = new double[MAX_N + 2];
+        mSinMLon = new double[MAX_N];
+        mCosMLon = new double[MAX_N];
     }
     
     /**
@@ -96,42 +101,275 @@ public class GeomagneticField_WMM implements GeomagneticField {
         // We don't handle the north and south poles correctly --
         // Pretend that we're not quite at them to avoid crashing.
         gdLatitudeDeg = Math.min(90.0f - 1e-5f, Math.max(-90.0f + 1e-5f, gdLatitudeDeg));
-        computeGeocentricCoordinates(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
-        
-        // Note: LegendreTable computes associated Legendre functions for
-        // cos(theta).  We want the associated Legendre functions for
-        // sin(latitude), which is the same as cos(PI/2 - latitude), except the
-        // derivate will be negated.
-        LegendreTable legendre = new LegendreTable(MAX_N - 1, (Math.PI / 2.0 - mGcLatitudeRad));
+        compute(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+    }
 
-        // Compute a table of (EARTH_REFERENCE_RADIUS_KM / radius)^n for i in
-        // 0..MAX_N-2 (this is much faster than calling Math.pow MAX_N+1 times).
-        double[] relativeRadiusPower = new double[MAX_N + 2];
-        relativeRadiusPower[0] = 1.0;
-        relativeRadiusPower[1] = EARTH_REFERENCE_RADIUS_KM / mGcRadiusKm;
-        for (int i = 2; i < relativeRadiusPower.length; ++i) {
-            relativeRadiusPower[i] = relativeRadiusPower[i - 1] * relativeRadiusPower[1];
+    @Override
+    public void evaluate(GeomagneticFieldBatch batch, int from, int to) {
+        // The batch does not change the values of setParameters
+        double x = mX, y = mY, z = mZ;
+        for (int i = from; i < to; i++) {
+            double gdLatitudeDeg = Math.min(90.0 - 1e-5, Math.max(-90.0 + 1e-5, batch.mLatitude[i]));
+            double altitudeMeters = (batch.mAltitude != null) ? batch.mAltitude[i] : 0;
+            compute(gdLatitudeDeg, batch.mLongitude[i], altitudeMeters);
+
+            if (batch.mX != null) batch.mX[i] = mX;
+            if (batch.mY != null) batch.mY[i] = mY;
+            if (batch.mZ != null) batch.mZ[i] = mZ;
+            if (batch.mDeclination != null) batch.mDeclination[i] = Math.toDegrees(Math.atan2(mY, mX));
+            double h = Math.sqrt(mX * mX + mY * mY);
+            if (batch.mInclination != null) batch.mInclination[i] = Math.toDegrees(Math.atan2(mZ, h));
+            if (batch.mIntensity   != null) batch.mIntensity[i]   = Math.sqrt(h * h + mZ * mZ);
         }
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
 
-        // Compute tables of sin(lon * m) and cos(lon * m) for m = 0..MAX_N --
-        // this is much faster than calling Math.sin and Math.com MAX_N+1 times.
-        double[] sinMLon = new double[MAX_N];
-        double[] cosMLon = new double[MAX_N];
-        sinMLon[0] = 0.0;
-        cosMLon[0] = 1.0;
-        sinMLon[1] = Math.sin(mGcLongitudeRad);
-        cosMLon[1] = Math.cos(mGcLongitudeRad);
+    /**
+     * Latitude-row synthesis: the geocentric conversion, the Legendre functions and the radius powers
+     * depend only on the latitude, so they are summed over the degree n once per row:
+     * X = sum_m (XG_m cos(m lon) + XH_m sin(m lon)), and similarly Y and Z.
+     * A point costs a sum over the order m only, with the sin/cos(m lon) tables computed once per column.
+     */
+    @Override
+    public void evaluateRows(GeomagneticFieldGrid grid, int from, int to) {
+        int columns = grid.mColumns;
+
+        // sin(m lon) and cos(m lon) of the columns
+        double[][] sinMLon = new double[columns][MAX_N];
+        double[][] cosMLon = new double[columns][MAX_N];
+        for (int c = 0; c < columns; c++) {
+            computeMLonTables(Math.toRadians(grid.getLongitude(c)), sinMLon[c], cosMLon[c]);
+        }
 
-        for (int m = 2; m < MAX_N; ++m) {
-            // Standard expansions for sin((m-x)*theta + x*theta) and
-            // cos((m-x)*theta + x*theta).
-            int x = m >> 1;
-            sinMLon[m] = sinMLon[m-x] * cosMLon[x] + cosMLon[m-x] * sinMLon[x];
-            cosMLon[m] = cosMLon[m-x] * cosMLon[x] - sinMLon[m-x] * sinMLon[x];
+        // Row coefficients by the order m
+        double[] xg = new double[MAX_N], xh = new double[MAX_N];
+        double[] yg = new double[MAX_N], yh = new double[MAX_N];
+        double[] zg = new double[MAX_N], zh = new double[MAX_N];
+
+        for (int r = from; r < to; r++) {
+            double gdLatitudeDeg = Math.min(90.0 - 1e-5, Math.max(-90.0 + 1e-5, grid.getLatitude(r)));
+            computeGeocentricCoordinates(gdLatitudeDeg, 0, grid.mAltitude);
+            computeLatitudeTables();
+            double inverseCosLatitude = 1.0 / Math.cos(mGcLatitudeRad);
+
+            double[] legendreP      = mLegendre.mP;
+            double[] legendrePDeriv = mLegendre.mPDeriv;
+            double[] relativeRadiusPower = mRelativeRadiusPower;
+            for (int m = 0; m < MAX_N; m++) {
+                xg[m] = xh[m] = yg[m] = yh[m] = zg[m] = zh[m] = 0;
+                int n = Math.max(m, 1);
+                for (int k = WMMModel.index(MAX_N, n, m); n < MAX_N; n++, k++) {
+                    double dp = relativeRadiusPower[n+2] * legendrePDeriv[k];
+                    double p  = relativeRadiusPower[n+2] * legendreP[k];
+                    xg[m] += mG[k] * dp;
+                    xh[m] += mH[k] * dp;
+                    yg[m] += mG[k] * p * m * inverseCosLatitude;
+                    yh[m] += mH[k] * p * m * inverseCosLatitude;
+                    zg[m] -= mG[k] * p * (n + 1);
+                    zh[m] -= mH[k] * p * (n + 1);
+                }
+            }
+
+            double latDiffRad = Math.toRadians(gdLatitudeDeg) - mGcLatitudeRad;
+            double cosLatDiff = Math.cos(latDiffRad);
+            double sinLatDiff = Math.sin(latDiffRad);
+
+            for (int c = 0; c < columns; c++) {
+                double[] sin = sinMLon[c];
+                double[] cos = cosMLon[c];
+                double gcX = 0.0, gcY = 0.0, gcZ = 0.0;
+                for (int m = 0; m < MAX_N; m++) {
+                    gcX += xg[m] * cos[m] + xh[m] * sin[m];
+                    gcY += yg[m] * sin[m] - yh[m] * cos[m];
+                    gcZ += zg[m] * cos[m] + zh[m] * sin[m];
+                }
+                double x = gcX * cosLatDiff + gcZ * sinLatDiff;
+                double y = gcY;
+                double z = gcZ * cosLatDiff - gcX * sinLatDiff;
+                double h = Math.sqrt(x * x + y * y);
+
+                int i = grid.getIndex(r, c);
+                grid.mX[i]           = x;
+                grid.mY[i]           = y;
+                grid.mZ[i]           = z;
+                grid.mDeclination[i] = Math.toDegrees(Math.atan2(y, x));
+                grid.mInclination[i] = Math.toDegrees(Math.atan2(z, h));
+                grid.mIntensity[i]   = Math.sqrt(h * h + z * z);
+            }
+        }
+    }
+
+    /**
+     * Single pass over (n, m): besides P_n^m and dP_n^m/dtheta (theta is the geocentric colatitude)
+     * the second derivative comes from the Legendre equation:
+     * d2P/dtheta2 = -cot(theta) dP/dtheta - (n(n+1) - m^2/sin^2(theta)) P.
+     * The longitude derivative swaps the cos(m lon) and sin(m lon) terms, the radial one gives a factor -(n+2)/r.
+     * The geocentric derivatives are converted by the chain rule to geodetic latitude and altitude,
+     * including the rotation between the geocentric and the geodetic frames.
+     */
+    @Override
+    public void evaluateGradient(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters, GeomagneticFieldGradient gradient) {
+        gdLatitudeDeg = Math.min(90.0 - 1e-5, Math.max(-90.0 + 1e-5, gdLatitudeDeg));
+        computeGeocentricCoordinates(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+        computeLatitudeTables();
+        computeMLonTables(mGcLongitudeRad, mSinMLon, mCosMLon);
+
+        double[] legendreP      = mLegendre.mP;
+        double[] legendrePDeriv = mLegendre.mPDeriv;
+        double[] relativeRadiusPower = mRelativeRadiusPower;
+        double[] sinMLon = mSinMLon;
+        double[] cosMLon = mCosMLon;
+
+        double sinTheta = Math.cos(mGcLatitudeRad);
+        double cosTheta = Math.sin(mGcLatitudeRad);
+        double inverseSinTheta = 1.0 / sinTheta;
+        double cotTheta = cosTheta * inverseSinTheta;
+
+        // Geocentric components and their derivatives by theta, by longitude and r * d/dr
+        // (Y is summed without the 1/sin(theta) factor)
+        double gcX = 0.0, xTheta = 0.0, xLon = 0.0, xR = 0.0;
+        double gcY = 0.0, yTheta = 0.0, yLon = 0.0, yR = 0.0;
+        double gcZ = 0.0, zTheta = 0.0, zLon = 0.0, zR = 0.0;
+
+        for (int m = 0; m < MAX_N; m++) {
+            int n = Math.max(m, 1);
+            for (int k = WMMModel.index(MAX_N, n, m); n < MAX_N; n++, k++) {
+                double radiusPower = relativeRadiusPower[n+2];
+                double nn1 = n * (n + 1);
+                double a = mG[k] * cosMLon[m] + mH[k] * sinMLon[m]; // d/dlon: -m * b
+                double b = mG[k] * sinMLon[m] - mH[k] * cosMLon[m]; // d/dlon: +m * a
+                double p   = radiusPower * legendreP[k];
+                double dp  = radiusPower * legendrePDeriv[k];
+                double d2p = -cotTheta * dp - (nn1 - m * m * inverseSinTheta * inverseSinTheta) * p;
+
+                gcX    += a * dp;
+                xTheta += a * d2p;
+                xLon   -= m * b * dp;
+                xR     -= (n + 2) * a * dp;
+
+                gcY    += m * b * p;
+                yTheta += m * b * (dp - cotTheta * p);
+                yLon   += m * m * a * p;
+                yR     -= (n + 2) * m * b * p;
+
+                gcZ    -= (n + 1) * a * p;
+                zTheta -= (n + 1) * a * dp;
+                zLon   += (n + 1) * m * b * p;
+                zR     += (n + 1) * (n + 2) * a * p;
+            }
+        }
+        gcY    *= inverseSinTheta;
+        yTheta *= inverseSinTheta;
+        yLon   *= inverseSinTheta;
+        yR     *= inverseSinTheta;
+
+        // Geocentric latitude and radius by geodetic latitude and altitude
+        // (from the meridian plane: d(p, z) = (M + h) (-sin, cos) dLat and (cos, sin) dAlt,
+        // with M the meridian radius of curvature)
+        double gdLatRad = Math.toRadians(gdLatitudeDeg);
+        double latDiffRad = gdLatRad - mGcLatitudeRad;
+        double cosLatDiff = Math.cos(latDiffRad);
+        double sinLatDiff = Math.sin(latDiffRad);
+        double a2 = EARTH_SEMI_MAJOR_AXIS_KM * EARTH_SEMI_MAJOR_AXIS_KM;
+        double b2 = EARTH_SEMI_MINOR_AXIS_KM * EARTH_SEMI_MINOR_AXIS_KM;
+        double clat = Math.cos(gdLatRad);
+        double slat = Math.sin(gdLatRad);
+        double rho = Math.sqrt(a2 * clat * clat + b2 * slat * slat);
+        double meridianRadiusPlusAlt = a2 * b2 / (rho * rho * rho) + altitudeMeters / 1000.0;
+        double r = mGcRadiusKm;
+        double dGcLatByLat = meridianRadiusPlusAlt * cosLatDiff / r;
+        double dRByLat     = -meridianRadiusPlusAlt * sinLatDiff / r; // relative: dr/r
+        double dGcLatByAlt = sinLatDiff / r;
+        double dRByAlt     = cosLatDiff / r;                   // relative: dr/r
+
+        // d/dGcLat = -d/dtheta
+        double dgcXByLat = -xTheta * dGcLatByLat + xR * dRByLat;
+        double dgcYByLat = -yTheta * dGcLatByLat + yR * dRByLat;
+        double dgcZByLat = -zTheta * dGcLatByLat + zR * dRByLat;
+        double dgcXByAlt = -xTheta * dGcLatByAlt + xR * dRByAlt;
+        double dgcYByAlt = -yTheta * dGcLatByAlt + yR * dRByAlt;
+        double dgcZByAlt = -zTheta * dGcLatByAlt + zR * dRByAlt;
+
+        // Rotation to the geodetic frame, and its change
+        double x = gcX * cosLatDiff + gcZ * sinLatDiff;
+        double z = gcZ * cosLatDiff - gcX * sinLatDiff;
+        double dLatDiffByLat = 1 - dGcLatByLat;
+        double dLatDiffByAlt = -dGcLatByAlt;
+
+        double perDegree = Math.PI / 180;
+        double perMeter  = 1 / 1000.0;
+        int LAT = GeomagneticFieldGradient.LAT, LON = GeomagneticFieldGradient.LON, ALT = GeomagneticFieldGradient.ALT;
+        gradient.mX = x;
+        gradient.mY = gcY;
+        gradient.mZ = z;
+        gradient.mDX[LAT] = (dgcXByLat * cosLatDiff + dgcZByLat * sinLatDiff + z * dLatDiffByLat) * perDegree;
+        gradient.mDY[LAT] = dgcYByLat * perDegree;
+        gradient.mDZ[LAT] = (dgcZByLat * cosLatDiff - dgcXByLat * sinLatDiff - x * dLatDiffByLat) * perDegree;
+        gradient.mDX[LON] = (xLon * cosLatDiff + zLon * sinLatDiff) * perDegree;
+        gradient.mDY[LON] = yLon * perDegree;
+        gradient.mDZ[LON] = (zLon * cosLatDiff - xLon * sinLatDiff) * perDegree;
+        gradient.mDX[ALT] = (dgcXByAlt * cosLatDiff + dgcZByAlt * sinLatDiff + z * dLatDiffByAlt) * perMeter;
+        gradient.mDY[ALT] = dgcYByAlt * perMeter;
+        gradient.mDZ[ALT] = (dgcZByAlt * cosLatDiff - dgcXByAlt * sinLatDiff - x * dLatDiffByAlt) * perMeter;
+    }
+
+    /**
+     * Field at a point for a series of timestamps:
+     * the coefficients of a model are linear in time (base + years * secular variation),
+     * so are the components, thus the location's tables are computed once
+     * and the sum is done for the base and the variation coefficients only.
+     * @param model          The model, its degree must be the same as the evaluator's one.
+     * @param gdLatitudeDeg  Latitude  in WGS84 geodetic coordinates.
+     * @param gdLongitudeDeg Longitude in WGS84 geodetic coordinates.
+     * @param altitudeMeters Altitude  in WGS84 geodetic coordinates, in meters.
+     * @param result         {X, Y, Z} at the model's base time and {dX, dY, dZ} per year, in nanoteslas
+     *                       (field at t = base + {@link WMMModel#getYearsSinceBase(long)} * variation)
+     */
+    public void computeSecularVariation(WMMModel model, double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters, double[] result) {
+        if (model.mMaxN != MAX_N) {
+            throw new IllegalArgumentException("Degree mismatch: " + model.getName());
         }
+        // The variation does not change the values of setParameters
+        double x = mX, y = mY, z = mZ;
+        gdLatitudeDeg = Math.min(90.0 - 1e-5, Math.max(-90.0 + 1e-5, gdLatitudeDeg));
+        computeLocationTables(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+        synthesize(gdLatitudeDeg, model.mG, model.mH);
+        result[0] = mX;
+        result[1] = mY;
+        result[2] = mZ;
+        synthesize(gdLatitudeDeg, model.mDeltaG, model.mDeltaH);
+        result[3] = mX;
+        result[4] = mY;
+        result[5] = mZ;
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
+
+    /** Computes the field (mX, mY, mZ) at a point, the latitude must be clamped. */
+    private void compute(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters) {
+        computeLocationTables(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+        synthesize(gdLatitudeDeg, mG, mH);
+    }
+
+    /** Computes the tables which depend only on the location. */
+    private void computeLocationTables(double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters) {
+        computeGeocentricCoordinates(gdLatitudeDeg, gdLongitudeDeg, altitudeMeters);
+        computeLatitudeTables();
+        computeMLonTables(mGcLongitudeRad, mSinMLon, mCosMLon);
+    }
+
+    /** Computes the field (mX, mY, mZ) of the coefficients from the location's tables. */
+    private void synthesize(double gdLatitudeDeg, double[] coeffG, double[] coeffH) {
+        double[] legendreP      = mLegendre.mP;
+        double[] legendrePDeriv = mLegendre.mPDeriv;
+        double[] relativeRadiusPower = mRelativeRadiusPower;
+        double[] sinMLon = mSinMLon;
+        double[] cosMLon = mCosMLon;
 
         double inverseCosLatitude = 1.0 / Math.cos(mGcLatitudeRad);
-        double yearsSinceBase = (mTimeStamp - BASE_TIME) / (365f * 24f * 60f * 60f * 1000f);
 
         // We now compute the magnetic field strength given the geocentric
         // location. The magnetic field is the derivative of the potential
@@ -141,47 +379,57 @@ public class GeomagneticField_WMM implements GeomagneticField {
         double gcY = 0.0;  // Geocentric eastwards component.
         double gcZ = 0.0;  // Geocentric downwards component.
 
-        for (int n = 1; n < MAX_N; n++) {
-            for (int m = 0; m <= n; m++) {
-                // Adjust the coefficients for the current date.
-                double g = G_COEFF[n][m] + yearsSinceBase * DELTA_G[n][m];
-                double h = H_COEFF[n][m] + yearsSinceBase * DELTA_H[n][m];
+        // The tables are packed by the order m: a column's terms are summed separately for g and h,
+        // then multiplied by its cos(m lon) and sin(m lon).
+        for (int m = 0; m < MAX_N; m++) {
+            double xg = 0.0, xh = 0.0, yg = 0.0, yh = 0.0, zg = 0.0, zh = 0.0;
+            // One induction variable, so the JIT can drop the range checks and unroll
+            int n0 = Math.max(m, 1);
+            int k0 = WMMModel.index(MAX_N, n0, m);
+            for (int i = 0, count = MAX_N - n0; i < count; i++) {
+                int n = n0 + i;
+                int k = k0 + i;
+
+                // Coefficients adjusted for the current date.
+                double g = coeffG[k];
+                double h = coeffH[k];
+                double dp = relativeRadiusPower[n+2] * legendrePDeriv[k];
+                double p  = relativeRadiusPower[n+2] * legendreP[k];
 
                 // Negative derivative with respect to latitude, divided by
                 // radius.  This looks like the negation of the version in the
                 // NOAA Techincal report because that report used
                 // P_n^m(sin(theta)) and we use P_n^m(cos(90 - theta)), so the
                 // derivative with respect to theta is negated.
-                gcX += relativeRadiusPower[n+2]
-                    * (g * cosMLon[m] + h * sinMLon[m])
-                    * legendre.mPDeriv[n][m]
-                    * SCHMIDT_QUASI_NORM_FACTORS[n][m];
+                xg += g * dp;
+                xh += h * dp;
 
                 // Negative derivative with respect to longitude, divided by
                 // radius.
-                gcY += relativeRadiusPower[n+2] * m
-                    * (g * sinMLon[m] - h * cosMLon[m])
-                    * legendre.mP[n][m]
-                    * SCHMIDT_QUASI_NORM_FACTORS[n][m]
-                    * inverseCosLatitude;
+                yg += g * p;
+                yh += h * p;
 
                 // Negative derivative with respect to radius.
-                gcZ -= (n + 1) * relativeRadiusPower[n+2]
-                    * (g * cosMLon[m] + h * sinMLon[m])
-                    * legendre.mP[n][m]
-                    * SCHMIDT_QUASI_NORM_FACTORS[n][m];
+                zg += g * p * (n + 1);
+                zh += h * p * (n + 1);
             }
+            gcX += xg * cosMLon[m] + xh * sinMLon[m];
+            gcY += (yg * sinMLon[m] - yh * cosMLon[m]) * m;
+            gcZ -= zg * cosMLon[m] + zh * sinMLon[m];
         }
+        gcY *= inverseCosLatitude;
 
         // Convert back to geodetic coordinates.  This is basically just a
         // rotation around the Y-axis by the difference in latitudes between the
         // geocentric frame and the geodetic frame.
         double latDiffRad = Math.toRadians(gdLatitudeDeg) - mGcLatitudeRad;
-        mX = (+ gcX * Math.cos(latDiffRad)
-              + gcZ * Math.sin(latDiffRad));
+        double cosLatDiff = Math.cos(latDiffRad);
+        double sinLatDiff = Math.sin(latDiffRad);
+        mX = (+ gcX * cosLatDiff
+              + gcZ * sinLatDiff);
         mY = gcY;
-        mZ = (- gcX * Math.sin(latDiffRad)
-              + gcZ * Math.cos(latDiffRad));
+        mZ = (- gcX * sinLatDiff
+              + gcZ * cosLatDiff);
     }
 
     /** @return The X (northward) component of the magnetic field in nanoteslas. */
@@ -233,6 +481,43 @@ public class GeomagneticField_WMM implements GeomagneticField {
         return (float) Math.sqrt(mX * mX + mY * mY + mZ * mZ);
     }
 
+    /** Computes the tables which depend only on the geocentric latitude and radius. */
+    private void computeLatitudeTables() {
+        // Note: LegendreTable computes associated Legendre functions for
+        // cos(theta).  We want the associated Legendre functions for
+        // sin(latitude), which is the same as cos(PI/2 - latitude), except the
+        // derivate will be negated.
+        mLegendre.compute(Math.PI / 2.0 - mGcLatitudeRad);
+
+        // Compute a table of (EARTH_REFERENCE_RADIUS_KM / radius)^n for i in
+        // 0..MAX_N-2 (this is much faster than calling Math.pow MAX_N+1 times).
+        double[] relativeRadiusPower = mRelativeRadiusPower;
+        relativeRadiusPower[0] = 1.0;
+        relativeRadiusPower[1] = EARTH_REFERENCE_RADIUS_KM / mGcRadiusKm;
+        for (int i = 2; i < relativeRadiusPower.length; ++i) {
+            relativeRadiusPower[i] = relativeRadiusPower[i - 1] * relativeRadiusPower[1];
+        }
+    }
+
+    /**
+     * Compute tables of sin(lon * m) and cos(lon * m) for m = 0..MAX_N --
+     * this is much faster than calling Math.sin and Math.com MAX_N+1 times.
+     */
+    private void computeMLonTables(double lonRad, double[] sinMLon, double[] cosMLon) {
+        sinMLon[0] = 0.0;
+        cosMLon[0] = 1.0;
+        sinMLon[1] = Math.sin(lonRad);
+        cosMLon[1] = Math.cos(lonRad);
+
+        for (int m = 2; m < MAX_N; ++m) {
+            // Standard expansions for sin((m-x)*theta + x*theta) and
+            // cos((m-x)*theta + x*theta).
+            int x = m >> 1;
+            sinMLon[m] = sinMLon[m-x] * cosMLon[x] + cosMLon[m-x] * sinMLon[x];
+            cosMLon[m] = cosMLon[m-x] * cosMLon[x] - sinMLon[m-x] * sinMLon[x];
+        }
+    }
+
     /**
      * @param gdLatitudeDeg  Latitude  in WGS84 geodetic coordinates.
      * @param gdLongitudeDeg Longitude in WGS84 geodetic coordinates.
@@ -260,70 +545,81 @@ public class GeomagneticField_WMM implements GeomagneticField {
     }
 
 
-    /** Utility class to compute a table of Gauss-normalized associated Legendre functions P_n^m(cos(theta)) */
+    /**
+     * Utility class to compute a table of Schmidt quasi-normalized associated Legendre functions P_n^m(cos(theta)),
+     * packed by the order m (see {@link WMMModel#index(int, int, int)}).
+     * <br/> Column-wise recurrences (fixed m, increasing n), so the table is written contiguously.
+     * They run on P_n^m / sin(theta)^m, which stay in range even for high degrees (hundreds);
+     * the sin(theta)^m factor is applied at the end, if it underflows then the rest of the table is negligible (zero).
+     */
     static private class LegendreTable {
-        // These are the Gauss-normalized associated Legendre functions --
-        // that is, they are normal Legendre functions multiplied by
-        // (n-m)!/(2n-1)!! (where (2n-1)!! = 1*3*5*...*2n-1)
-        public final double[][] mP;
+        // Schmidt quasi-normalized associated Legendre functions
+        public final double[] mP;
 
         // Derivative of mP, with respect to theta.
-        public final double[][] mPDeriv;
+        public final double[] mPDeriv;
+
+        private final int mMaxN;
+        private final double[] mA, mB, mC, mSectoral;
 
         /**
-         * @param maxN     The maximum n- and m-values to support
-         * @param thetaRad Returned functions will be Gauss-normalized
+         * Allocates the table, the values are filled by {@link #compute(double)}.
+         * @param model the recurrences' constants are shared from the model
+         */
+        public LegendreTable(WMMModel model) {
+            mMaxN     = model.mMaxN - 1;
+            mA        = model.mRecurrenceA;
+            mB        = model.mRecurrenceB;
+            mC        = model.mRecurrenceC;
+            mSectoral = model.mSectoral;
+            mP        = new double[mA.length];
+            mPDeriv   = new double[mA.length];
+        }
+
+        /**
+         * @param thetaRad Computed functions will be Schmidt quasi-normalized
          *                 P_n^m(cos(thetaRad)), with thetaRad in radians.
          */
-        public LegendreTable(int maxN, double thetaRad) {
-            // Compute the table of Gauss-normalized associated Legendre
-            // functions using standard recursion relations. Also compute the
-            // table of derivatives using the derivative of the recursion relations.
+        public void compute(double thetaRad) {
+            // With Q_n^m = P_n^m / sin^m:
+            // Q_m^m   = sqrt((2m-1)/2m) * Q_m-1^m-1  (Q_1^1 = 1)
+            // Q_n^m   = ((2n-1) cos Q_n-1^m - sqrt((n-1)^2-m^2) Q_n-2^m) / sqrt(n^2-m^2)
+            // dP_n^m  = (n cos P_n^m - sqrt(n^2-m^2) P_n-1^m) / sin = (n cos Q_n^m - sqrt(n^2-m^2) Q_n-1^m) sin^(m-1)
             double cos = Math.cos(thetaRad);
             double sin = Math.sin(thetaRad);
-
-            mP = new double[maxN + 1][];
-            mPDeriv = new double[maxN + 1][];
-            mP[0] = new double[] { 1.0 };
-            mPDeriv[0] = new double[] { 0.0 };
-            for (int n = 1; n <= maxN; n++) {
-                mP[n] = new double[n + 1];
-                mPDeriv[n] = new double[n + 1];
-                for (int m = 0; m <= n; m++) {
-                    if (n == m) {
-                        mP[n][m] = sin * mP[n - 1][m - 1];
-                        mPDeriv[n][m] = cos * mP[n - 1][m - 1] + sin * mPDeriv[n - 1][m - 1];
-                    } else if (n == 1 || m == n - 1) {
-                        mP[n][m] = cos * mP[n - 1][m];
-                        mPDeriv[n][m] = -sin * mP[n - 1][m] + cos * mPDeriv[n - 1][m];
-                    } else {
-                        assert n > 1 && m < n - 1;
-                        double k = ((n - 1) * (n - 1) - m * m) / (double) ((2 * n - 1) * (2 * n - 3));
-                        mP[n][m] = cos * mP[n - 1][m] - k * mP[n - 2][m];
-                        mPDeriv[n][m] = -sin * mP[n - 1][m] + cos * mPDeriv[n - 1][m] - k * mPDeriv[n - 2][m];
-                    }
+            double inverseSin = 1.0 / sin;
+            double[] p = mP, pDeriv = mPDeriv;
+            double[] a = mA, b = mB, c = mC;
+
+            double sinM = 1.0; // sin^m
+            double qMM  = 1.0; // Q_m^m
+            for (int m = 0, k = 0; m <= mMaxN; m++) {
+                if (m > 0) {
+                    sinM *= sin;
+                    qMM  *= mSectoral[m];
+                }
+                if (sinM == 0.0) {
+                    // Underflow: P_n^m for this and the higher orders are negligible
+                    Arrays.fill(p, k, p.length, 0.0);
+                    Arrays.fill(pDeriv, k, pDeriv.length, 0.0);
+                    return;
+                }
+                double sinMDeriv = sinM * inverseSin; // sin^(m-1)
+
+                p[k] = qMM * sinM;
+                pDeriv[k] = m * cos * qMM * sinMDeriv;
+                k++;
+
+                double q2 = 0.0, q1 = qMM; // Q_n-2^m, Q_n-1^m
+                for (int n = m + 1; n <= mMaxN; n++, k++) {
+                    double q = a[k] * cos * q1 - b[k] * q2;
+                    p[k] = q * sinM;
+                    pDeriv[k] = (n * cos * q - c[k] * q1) * sinMDeriv;
+                    q2 = q1;
+                    q1 = q;
                 }
             }
         }
     }
 
-    /**
-     * Compute the ration between the Gauss-normalized associated Legendre
-     * functions and the Schmidt quasi-normalized version. This is equivalent to
-     * sqrt((m==0?1:2)*(n-m)!/(n+m!))*(2n-1)!!/(n-m)!
-     */
-    private static double[][] computeSchmidtQuasiNormFactors(int maxN) {
-        double[][] schmidtQuasiNorm = new double[maxN + 1][];
-        schmidtQuasiNorm[0] = new double[] { 1.0f };
-        for (int n = 1; n <= maxN; n++) {
-            schmidtQuasiNorm[n] = new double[n + 1];
-            schmidtQuasiNorm[n][0] = schmidtQuasiNorm[n - 1][0] * (2 * n - 1) / (double) n;
-            for (int m = 1; m <= n; m++) {
-                schmidtQuasiNorm[n][m] = schmidtQuasiNorm[n][m - 1]
-                    * Math.sqrt((n - m + 1) * (m == 1 ? 2 : 1) / (double) (n + m));
-            }
-        }
-        return schmidtQuasiNorm;
-    }
-
 }
@@ -0,0 +1,928 @@
+package hu.ureczky.utils.astro.geomagneticfield.wmm;
+
+import hu.ureczky.utils.TimeUtils;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldBatch;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldFactory;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGradient;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldGrid;
+import hu.ureczky.utils.astro.geomagneticfield.GeomagneticFieldSeries;
+import hu.ureczky.utils.astro.geomagneticfield.grid.GeomagneticField_Grid;
+import hu.ureczky.utils.astro.geomagneticfield.grid.GridModel;
+import hu.ureczky.utils.astro.geomagneticfield.grid.IsolineIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Validation and benchmark of the World Magnetic Model evaluator on a desktop JVM, without the Android framework
+ * (unlike {@link Test}, which only logs).
+ * <br/> For every bundled epoch, in parallel:
+ * <ul>
+ * <li>the official test values (TESTCASES) are checked with the tolerances of the reports (10 nT, 0.1 degree),</li>
+ * <li>random points are compared with {@link Reference}, a straightforward double precision implementation
+ *     of the formulae of the report (unnormalized Legendre functions, no recurrence tables or packing),</li>
+ * <li>random grids of the latitude-row synthesis ({@link GeomagneticField_WMM#evaluateRows}), cell by cell,</li>
+ * <li>the analytic gradient ({@link GeomagneticField_WMM#evaluateGradient}): the field against the reference,
+ *     the derivatives against central differences of the reference,</li>
+ * <li>time series at random locations ({@link GeomagneticFieldSeries}),</li>
+ * </ul>
+ * then for the bundled and the loaded models, a {@link GridModel} over the model's start (the change from the previous model):
+ * random points of its lookup ({@link GeomagneticField_Grid}) against the exact model, within the grid's error estimates,
+ * and the {@link IsolineIndex} of the inclination and the intensity in the middle of the model's epoch: the query of
+ * the exact value at a random position, with the index's error estimate as the tolerance, contains the position.
+ * <br/> Then the evaluations per second of the point (float) and batch (double) evaluation of the field components
+ * are reported per model, the batch on the same evaluator and split on the executor.
+ * <br/> The .COF files given with --cof (e.g. the app's assets/wmm) are registered like in the app, and checked:
+ * the factory selects them for their epochs (the newest one for the current time, which must be within its 5 years),
+ * the official test values of the known ones (COF_TESTCASES), and the field at a model's start continues
+ * the extrapolation of the previous model (MODEL_CHANGE_TOLERANCE).
+ * <br/> Usage: Validation [--threads N] [--points N] [--seconds S] [--seed N] [--cof file.COF]...
+ * <br/> The exit code is 1 if a check failed.
+ */
+public class Validation {
+
+    // Tolerances of the official test values
+    private static final double TOLERANCE_NT  = 10;
+    private static final double TOLERANCE_DEG = 0.1;
+
+    // Tolerances against the reference implementation, in nanoteslas
+    private static final double TOLERANCE_DOUBLE_NT = 1e-4;
+    private static final double TOLERANCE_FLOAT_NT  = 0.05; // float inputs and outputs
+
+    // Steps of the reference's central differences, and the tolerances of the gradient against them
+    // (the differences agree within about 1e-6 nT/deg and 1e-10 nT/m)
+    private static final double DIFF_STEP_DEG = 1e-3;
+    private static final double DIFF_STEP_M   = 10;
+    private static final double TOLERANCE_DERIVATIVE_NT_PER_DEG = 1e-4;
+    private static final double TOLERANCE_DERIVATIVE_NT_PER_M   = 1e-8;
+
+    // Altitude range of the random points, in meters (the model is valid from -1 to 850 km)
+    private static final double MIN_ALTITUDE = -1000;
+    private static final double MAX_ALTITUDE = 850000;
+
+    private static final int FUZZ_CHUNK = 1000;
+    private static final int BATCH_SIZE = 4096;
+
+    // Random grids and series of the fuzz
+    private static final int GRID_ROWS    = 4;
+    private static final int GRID_COLUMNS = 8;
+    private static final int SERIES_SIZE  = 16;
+
+    // Lookup grids: distance of the points in degrees, epochs of a year from a year before the model's start,
+    // random points per random day
+    private static final double LOOKUP_STEP = 2;
+    private static final int LOOKUP_EPOCHS = 3;
+    private static final int LOOKUP_POINTS_PER_DAY = 100;
+
+    // Isoline indexes: distance of the grid points, levels of the inclination (degrees) and the intensity (nanoteslas)
+    private static final double ISOLINE_STEP = 2;
+    private static final double ISOLINE_INCLINATION_LEVELS = 2;
+    private static final double ISOLINE_INTENSITY_LEVELS   = 1000;
+
+    // Model changes: distance of the compared points in degrees, and the largest component difference in nanoteslas
+    // between a loaded model and the previous one's extrapolation at its start (a corrupt coefficient exceeds it)
+    private static final double MODEL_CHANGE_STEP = 5;
+    private static final double MODEL_CHANGE_TOLERANCE = 1000;
+
+    /** Bundled epochs, with their test values (null if the report has none) */
+    private static final WMM[] EPOCHS = new WMM[] { new WMM_2015(), new WMM_2010(), new WMM_2005() };
+    private static final float[][][] TESTCASES = new float[][][] { WMM_2015.TESTCASES, WMM_2010.TESTCASES, null };
+
+    /** Test values of the models loaded from .COF files, by model name (the report's points on the ground at the epoch) */
+    private static final String[] COF_MODELS = new String[] { "WMM-2020" };
+    private static final float[][][] COF_TESTCASES = new float[][][] {
+        {
+            //  Date ,  Alt,   Lat,   Lon,        X,        Y,         Z,        H,        F,       I,      D
+            //yyyy.y , [km], [deg], [deg],     [nT],     [nT],      [nT],     [nT],     [nT],   [deg],  [deg]
+            { 2020.0f,   0f,   80f,    0f,  6570.4f,  -146.3f,  54606.0f,  6572.0f, 55000.1f,  83.14f, -1.28f },
+            { 2020.0f,   0f,    0f,  120f, 39624.3f,   109.9f, -10932.5f, 39624.5f, 41104.9f, -15.42f,  0.16f },
+            { 2020.0f,   0f,  -80f,  240f,  5940.6f, 15772.1f, -52480.8f, 16853.8f, 55120.6f, -72.20f, 69.36f },
+        }
+    };
+
+    /** Outcome of a check. */
+    private static class Result {
+        String mName;
+        int mCount;
+        int mFailed;
+        double mMaxError;       // largest component difference, in nanoteslas
+        double mMaxPointError;  // same of the point (float) evaluation against the reference
+        double mMaxDerivativeError;         // largest horizontal derivative difference, in nanoteslas per degree
+        double mMaxAltitudeDerivativeError; // largest vertical derivative difference, in nanoteslas per meter
+        double mMaxAngleError;              // largest inclination or declination difference, in degrees
+        String mFirstFailure;
+
+        Result(String name) {
+            mName = name;
+        }
+
+        void add(Result other) {
+            mCount  += other.mCount;
+            mFailed += other.mFailed;
+            mMaxError = Math.max(mMaxError, other.mMaxError);
+            mMaxPointError = Math.max(mMaxPointError, other.mMaxPointError);
+            mMaxDerivativeError = Math.max(mMaxDerivativeError, other.mMaxDerivativeError);
+            mMaxAltitudeDerivativeError = Math.max(mMaxAltitudeDerivativeError, other.mMaxAltitudeDerivativeError);
+            mMaxAngleError = Math.max(mMaxAngleError, other.mMaxAngleError);
+            if (mFirstFailure == null) {
+                mFirstFailure = other.mFirstFailure;
+            }
+        }
+
+        void fail(String message) {
+            mFailed++;
+            if (mFirstFailure == null) {
+                mFirstFailure = message;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int points = 100000;
+        double seconds = 1;
+        long seed = 1;
+        List<File> cofFiles = new ArrayList<File>();
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--points") && i + 1 < args.length) {
+                points = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seconds") && i + 1 < args.length) {
+                seconds = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--cof") && i + 1 < args.length) {
+                cofFiles.add(new File(args[++i]));
+            } else {
+                usage = true; // unexpected argument
+            }
+        }
+        if (usage || threads < 1 || points < 0 || seconds <= 0) {
+            System.err.println("Usage: Validation [--threads N] [--points N] [--seconds S] [--seed N] [--cof file.COF]...");
+            System.exit(1);
+        }
+
+        List<WMMModel> loaded = new ArrayList<WMMModel>();
+        for (File file : cofFiles) {
+            try {
+                WMMModel model = COFLoader.load(file);
+                GeomagneticFieldFactory.register(model);
+                loaded.add(model);
+            } catch (IOException e) {
+                System.err.println(file + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean passed;
+        try {
+            passed = validate(executor, points, seed);
+            if (!loaded.isEmpty()) {
+                passed &= print(checkLoaded(loaded));
+                for (WMMModel model : loaded) {
+                    WMMModel previous = GeomagneticFieldFactory.getModel(model.getValidFrom() - 1);
+                    if (previous != model && previous.getBaseYear() == model.getBaseYear() - WMMModel.VALID_YEARS) {
+                        passed &= print(checkModelChange(previous, model));
+                    }
+                }
+            }
+            passed &= validateLookups(executor, loaded, points, seed);
+            passed &= validateIsolines(executor, loaded, points, seed);
+            benchmark(executor, threads, seconds);
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(passed ? "passed" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /** A randomized comparison with the reference, run in chunks of points. */
+    private interface Fuzz {
+        Result check(WMMModel model, Reference reference, int count, long seed);
+    }
+
+    private static final Fuzz REFERENCE = new Fuzz() {
+        @Override
+        public Result check(WMMModel model, Reference reference, int count, long seed) {
+            return checkReference(model, reference, count, seed);
+        }
+    };
+
+    private static final Fuzz ROWS = new Fuzz() {
+        @Override
+        public Result check(WMMModel model, Reference reference, int count, long seed) {
+            return checkRows(model, reference, count, seed);
+        }
+    };
+
+    private static final Fuzz GRADIENT = new Fuzz() {
+        @Override
+        public Result check(WMMModel model, Reference reference, int count, long seed) {
+            return checkGradient(model, reference, count, seed);
+        }
+    };
+
+    private static final Fuzz SERIES = new Fuzz() {
+        @Override
+        public Result check(WMMModel model, Reference reference, int count, long seed) {
+            return checkSeries(model, reference, count, seed);
+        }
+    };
+
+    /** Run the checks of all epochs in parallel. */
+    public static boolean validate(ExecutorService executor, int points, long seed) throws InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        List<List<Future<Result>>> futures = new ArrayList<List<Future<Result>>>();
+
+        for (int e = 0; e < EPOCHS.length; e++) {
+            final WMM wmm = EPOCHS[e];
+            final WMMModel model = GeomagneticFieldFactory.getModel(wmm.getBaseYear());
+            if (model == null) {
+                continue; // replaced by a registered model
+            }
+
+            if (TESTCASES[e] != null) {
+                final float[][] testcases = TESTCASES[e];
+                List<Future<Result>> testFutures = new ArrayList<Future<Result>>();
+                testFutures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return checkTestcases(model, testcases);
+                    }
+                }));
+                results.add(new Result(model.getName() + " test values"));
+                futures.add(testFutures);
+            }
+
+            // The chunks start at multiples of FUZZ_CHUNK, the checks of an epoch get distinct seeds
+            long epochSeed = seed * 31 + wmm.getBaseYear() * 1000003L;
+            submitFuzz(executor, REFERENCE, model, wmm, points, epochSeed,     model.getName() + " reference", results, futures);
+            submitFuzz(executor, ROWS,      model, wmm, points, epochSeed + 1, model.getName() + " rows",      results, futures);
+            submitFuzz(executor, GRADIENT,  model, wmm, points, epochSeed + 2, model.getName() + " gradient",  results, futures);
+            submitFuzz(executor, SERIES,    model, wmm, points, epochSeed + 3, model.getName() + " series",    results, futures);
+        }
+
+        boolean passed = true;
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            try {
+                for (Future<Result> future : futures.get(i)) {
+                    result.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                result.fail(e.getCause().toString());
+            }
+            passed &= print(result);
+        }
+        return passed;
+    }
+
+    /** Print the outcome of a check. @return true, if it passed */
+    private static boolean print(Result result) {
+        System.out.println(String.format(Locale.US, "%-24s %7d points, %d failed, max error %.3g nT%s%s%s%s",
+            result.mName, result.mCount, result.mFailed, result.mMaxError,
+            (result.mMaxPointError > 0) ? String.format(Locale.US, " (point: %.3g nT)", result.mMaxPointError) : "",
+            (result.mMaxDerivativeError > 0) ? String.format(Locale.US, " (derivatives: %.3g nT/deg, %.3g nT/m)",
+                result.mMaxDerivativeError, result.mMaxAltitudeDerivativeError) : "",
+            (result.mMaxAngleError > 0) ? String.format(Locale.US, " (angles: %.3g deg)", result.mMaxAngleError) : "",
+            (result.mFirstFailure != null) ? (", first: " + result.mFirstFailure) : ""));
+        return result.mFailed == 0;
+    }
+
+    /**
+     * Models loaded from .COF files: the factory selects them for their epochs (the newest one also for the current time),
+     * and the official test values of the known ones.
+     */
+    private static Result checkLoaded(List<WMMModel> models) {
+        Result result = new Result("loaded models");
+        WMMModel newest = null;
+        for (WMMModel model : models) {
+            if (GeomagneticFieldFactory.getModel(model.getValidFrom()) != model) {
+                result.fail(model.getName() + " is not selected for its epoch");
+            }
+            if (newest == null || model.getBaseYear() > newest.getBaseYear()) {
+                newest = model;
+            }
+            for (int i = 0; i < COF_MODELS.length; i++) {
+                if (COF_MODELS[i].equals(model.getName())) {
+                    result.add(checkTestcases(model, COF_TESTCASES[i]));
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        WMMModel current = GeomagneticFieldFactory.getModel(now);
+        if (now >= newest.getValidFrom() && current != newest) {
+            result.fail(newest.getName() + " is not selected for the current time, but " + current.getName());
+        }
+        if (now < current.getValidFrom() || now >= current.getValidTo()) {
+            result.fail(current.getName() + " is extrapolated for the current time, beyond its " + WMMModel.VALID_YEARS + " years");
+        }
+        return result;
+    }
+
+    /** The model's field at its start against the extrapolation of the previous model, on a global sea level grid. */
+    private static Result checkModelChange(WMMModel previous, WMMModel model) {
+        Result result = new Result(previous.getName() + " -> " + model.getName());
+        long t = model.getValidFrom();
+        GeomagneticField_WMM before = new GeomagneticField_WMM(previous.getCoefficients(t));
+        GeomagneticField_WMM after  = new GeomagneticField_WMM(model.getCoefficients(t));
+        for (double lat = -90 + MODEL_CHANGE_STEP / 2; lat < 90; lat += MODEL_CHANGE_STEP) {
+            for (double lon = -180; lon < 180; lon += MODEL_CHANGE_STEP) {
+                before.setParameters((float) lat, (float) lon, 0);
+                after.setParameters((float) lat, (float) lon, 0);
+                double error = Math.max(Math.abs(after.getX() - before.getX()),
+                    Math.max(Math.abs(after.getY() - before.getY()), Math.abs(after.getZ() - before.getZ())));
+                result.mCount++;
+                result.mMaxError = Math.max(result.mMaxError, error);
+                if (!(error < MODEL_CHANGE_TOLERANCE)) {
+                    result.fail(String.format(Locale.US, "at %.1f,%.1f: change %.0f nT", lat, lon, error));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Submit a fuzz check of an epoch in chunks, each with its own reference (it is not thread-safe). */
+    private static void submitFuzz(ExecutorService executor, final Fuzz fuzz, final WMMModel model, final WMM wmm,
+            int points, long seed, String name, List<Result> results, List<List<Future<Result>>> futures) {
+        List<Future<Result>> chunks = new ArrayList<Future<Result>>();
+        for (int from = 0; from < points; from += FUZZ_CHUNK) {
+            final int count = Math.min(FUZZ_CHUNK, points - from);
+            final long chunkSeed = seed + from;
+            chunks.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return fuzz.check(model, new Reference(wmm), count, chunkSeed);
+                }
+            }));
+        }
+        results.add(new Result(name));
+        futures.add(chunks);
+    }
+
+    /** Official test values of the report, on the point (float) evaluation. */
+    private static Result checkTestcases(WMMModel model, float[][] testcases) {
+        Result result = new Result(model.getName());
+        for (float[] testcase : testcases) {
+            // input
+            float year = testcase[0];
+            float alt  = testcase[1] * 1000;
+            float lat  = testcase[2];
+            float lon  = testcase[3];
+
+            // calculate
+            long t = TimeUtils.getTimeStampFromDecimalYear(year);
+            GeomagneticField_WMM gmf = new GeomagneticField_WMM(model.getCoefficients(t));
+            gmf.setParameters(lat, lon, alt);
+
+            // compare (expected: X, Y, Z, H, F, I, D)
+            float[] calculated = new float[] {
+                gmf.getX(), gmf.getY(), gmf.getZ(), gmf.getHorizontalStrength(), gmf.getFieldStrength(),
+                gmf.getInclination(), gmf.getDeclination()
+            };
+            String[] names = new String[] { "X", "Y", "Z", "H", "F", "I", "D" };
+            for (int k = 0; k < calculated.length; k++) {
+                double diff = Math.abs(calculated[k] - testcase[4 + k]);
+                boolean angle = (k >= 5);
+                if (!angle) {
+                    result.mMaxError = Math.max(result.mMaxError, diff);
+                }
+                if (!(diff < (angle ? TOLERANCE_DEG : TOLERANCE_NT))) {
+                    result.fail(String.format(Locale.US, "%s at %.1f %.0fkm %.0f,%.0f: %.2f instead of %.2f",
+                        names[k], year, testcase[1], lat, lon, calculated[k], testcase[4 + k]));
+                }
+            }
+            result.mCount++;
+        }
+        return result;
+    }
+
+    /** Random points in the epoch, on the batch (double) and the point (float) evaluation. */
+    private static Result checkReference(WMMModel model, Reference reference, int count, long seed) {
+        Result result = new Result(model.getName());
+        Random random = new Random(seed);
+        double[] expected = new double[3];
+
+        GeomagneticFieldBatch batch = new GeomagneticFieldBatch(1);
+        for (int i = 0; i < count; i++) {
+            long t = randomTime(model, random);
+            double lat = randomLatitude(random);
+            double lon = 360 * random.nextDouble() - 180;
+            double alt = randomAltitude(random);
+
+            // exactly for the time (the cached coefficients are for the middle of the day)
+            GeomagneticField_WMM gmf = new GeomagneticField_WMM(model.computeCoefficients(t));
+            double years = model.getYearsSinceBase(t);
+
+            // batch, double precision
+            batch.mLatitude[0]  = lat;
+            batch.mLongitude[0] = lon;
+            batch.mAltitude[0]  = alt;
+            gmf.evaluate(batch, 0, 1);
+            reference.compute(years, lat, lon, alt, expected);
+            double error = compare(result, "batch", lat, lon, alt, expected, batch.mX[0], batch.mY[0], batch.mZ[0], TOLERANCE_DOUBLE_NT);
+            result.mMaxError = Math.max(result.mMaxError, error);
+
+            // point, single precision inputs
+            float latF = (float) lat, lonF = (float) lon, altF = (float) alt;
+            gmf.setParameters(latF, lonF, altF);
+            reference.compute(years, latF, lonF, altF, expected);
+            error = compare(result, "point", lat, lon, alt, expected, gmf.getX(), gmf.getY(), gmf.getZ(), TOLERANCE_FLOAT_NT);
+            result.mMaxPointError = Math.max(result.mMaxPointError, error);
+
+            result.mCount++;
+        }
+        return result;
+    }
+
+    /** Random grids in the epoch, on the latitude-row synthesis, cell by cell. */
+    private static Result checkRows(WMMModel model, Reference reference, int count, long seed) {
+        Result result = new Result(model.getName());
+        Random random = new Random(seed);
+        double[] expected = new double[3];
+
+        while (result.mCount < count) {
+            long t = randomTime(model, random);
+            double step = 0.1 + 10 * random.nextDouble();
+            double lat0 = -89.99 + (179.98 - (GRID_ROWS - 1) * step) * random.nextDouble();
+            double lon0 = 360 * random.nextDouble() - 180; // the columns can reach over 180
+            double alt = randomAltitude(random);
+            GeomagneticFieldGrid grid = new GeomagneticFieldGrid(lat0, step, GRID_ROWS, lon0, 2 * step, GRID_COLUMNS, alt);
+
+            // exactly for the time (the cached coefficients are for the middle of the day)
+            new GeomagneticField_WMM(model.computeCoefficients(t)).evaluateRows(grid, 0, GRID_ROWS);
+            double years = model.getYearsSinceBase(t);
+
+            for (int row = 0; row < GRID_ROWS; row++) {
+                for (int column = 0; column < GRID_COLUMNS; column++) {
+                    int i = grid.getIndex(row, column);
+                    double lat = grid.getLatitude(row), lon = grid.getLongitude(column);
+                    reference.compute(years, lat, lon, alt, expected);
+                    double error = compare(result, "rows", lat, lon, alt, expected, grid.mX[i], grid.mY[i], grid.mZ[i], TOLERANCE_DOUBLE_NT);
+                    result.mMaxError = Math.max(result.mMaxError, error);
+                    result.mCount++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Random points in the epoch, on the analytic gradient: the field against the reference, the derivatives against its central differences. */
+    private static Result checkGradient(WMMModel model, Reference reference, int count, long seed) {
+        Result result = new Result(model.getName());
+        Random random = new Random(seed);
+        double[] expected = new double[3], plus = new double[3], minus = new double[3], point = new double[3];
+        double[] steps = new double[] { DIFF_STEP_DEG, DIFF_STEP_DEG, DIFF_STEP_M };
+        double[] tolerances = new double[] { TOLERANCE_DERIVATIVE_NT_PER_DEG, TOLERANCE_DERIVATIVE_NT_PER_DEG, TOLERANCE_DERIVATIVE_NT_PER_M };
+        String[] axes = new String[] { "lat", "lon", "alt" }; // GeomagneticFieldGradient.LAT, LON, ALT
+        GeomagneticFieldGradient gradient = new GeomagneticFieldGradient();
+
+        for (int i = 0; i < count; i++) {
+            long t = randomTime(model, random);
+            double lat = randomLatitude(random);
+            double lon = 360 * random.nextDouble() - 180;
+            double alt = randomAltitude(random);
+
+            new GeomagneticField_WMM(model.computeCoefficients(t)).evaluateGradient(lat, lon, alt, gradient);
+            double years = model.getYearsSinceBase(t);
+            reference.compute(years, lat, lon, alt, expected);
+            double error = compare(result, "gradient", lat, lon, alt, expected, gradient.mX, gradient.mY, gradient.mZ, TOLERANCE_DOUBLE_NT);
+            result.mMaxError = Math.max(result.mMaxError, error);
+
+            for (int axis = 0; axis < 3; axis++) {
+                point[0] = lat;
+                point[1] = lon;
+                point[2] = alt;
+                point[axis] += steps[axis];
+                reference.compute(years, point[0], point[1], point[2], plus);
+                point[axis] -= 2 * steps[axis];
+                reference.compute(years, point[0], point[1], point[2], minus);
+                double h2 = 2 * steps[axis];
+                double derivativeError = Math.max(Math.abs(gradient.mDX[axis] - (plus[0] - minus[0]) / h2),
+                    Math.max(Math.abs(gradient.mDY[axis] - (plus[1] - minus[1]) / h2), Math.abs(gradient.mDZ[axis] - (plus[2] - minus[2]) / h2)));
+                if (!(derivativeError < tolerances[axis])) { // NaN fails
+                    result.fail(String.format(Locale.US, "d/d%s at %.4f,%.4f %.0fm: error %.3g", axes[axis], lat, lon, alt, derivativeError));
+                }
+                if (axis == GeomagneticFieldGradient.ALT) {
+                    result.mMaxAltitudeDerivativeError = Math.max(result.mMaxAltitudeDerivativeError, derivativeError);
+                } else {
+                    result.mMaxDerivativeError = Math.max(result.mMaxDerivativeError, derivativeError);
+                }
+            }
+            result.mCount++;
+        }
+        return result;
+    }
+
+    /** Random locations, each with random timestamps in the epoch, on the time series. */
+    private static Result checkSeries(WMMModel model, Reference reference, int count, long seed) {
+        Result result = new Result(model.getName());
+        Random random = new Random(seed);
+        double[] expected = new double[3];
+
+        while (result.mCount < count) {
+            double lat = randomLatitude(random);
+            double lon = 360 * random.nextDouble() - 180;
+            double alt = randomAltitude(random);
+            // the series selects the model of a timestamp by the factory,
+            // the end of the 5 years can already belong to the next model
+            long[] times = new long[SERIES_SIZE];
+            for (int i = 0; i < SERIES_SIZE; i++) {
+                do {
+                    times[i] = randomTime(model, random);
+                } while (GeomagneticFieldFactory.getModel(times[i]) != model);
+            }
+
+            GeomagneticFieldSeries series = new GeomagneticFieldSeries(lat, lon, alt, times);
+            series.evaluate();
+
+            for (int i = 0; i < SERIES_SIZE; i++) {
+                reference.compute(model.getYearsSinceBase(times[i]), lat, lon, alt, expected);
+                double error = compare(result, "series", lat, lon, alt, expected, series.mX[i], series.mY[i], series.mZ[i], TOLERANCE_DOUBLE_NT);
+                result.mMaxError = Math.max(result.mMaxError, error);
+                result.mCount++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lookup grids of the bundled epochs and the loaded models, each over the model's start, in parallel:
+     * random points against the exact model, within the grid's error estimates.
+     */
+    public static boolean validateLookups(ExecutorService executor, List<WMMModel> loaded, int points, long seed) throws InterruptedException {
+        boolean passed = true;
+        long year = (long) (TimeUtils.DAYS_PER_JULIAN_YEAR * TimeUtils.MILLISECONDS_PER_DAY);
+        for (WMMModel model : getModels(loaded)) {
+            final long start = model.getValidFrom() - year;
+            final long end   = start + (LOOKUP_EPOCHS - 1) * year;
+            final GridModel grid = GridModel.build(LOOKUP_STEP, start, year, LOOKUP_EPOCHS);
+            Result result = new Result(String.format(Locale.US, "%s lookup (estimates: %.3g nT, %.3g deg incl., %.3g deg decl.)",
+                model.getName(), grid.getFieldErrorEstimate(), grid.getInclinationErrorEstimate(), grid.getDeclinationErrorEstimate()));
+            List<Future<Result>> chunks = new ArrayList<Future<Result>>();
+            for (int from = 0; from < points; from += FUZZ_CHUNK) {
+                final int count = Math.min(FUZZ_CHUNK, points - from);
+                final long chunkSeed = seed * 31 + model.getBaseYear() * 1000003L + 4 + from;
+                chunks.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return checkLookup(grid, start, end, count, chunkSeed);
+                    }
+                }));
+            }
+            try {
+                for (Future<Result> chunk : chunks) {
+                    result.add(chunk.get());
+                }
+            } catch (ExecutionException e) {
+                result.fail(e.getCause().toString());
+            }
+            passed &= print(result);
+        }
+        return passed;
+    }
+
+    /**
+     * Random days between the grid's first and last epoch, random points of each: the lookup against the exact model
+     * at the middle of the day (the lookup's time), within the grid's error estimates.
+     */
+    private static Result checkLookup(GridModel grid, long start, long end, int count, long seed) {
+        Result result = new Result("lookup");
+        Random random = new Random(seed);
+        long firstDay = start / TimeUtils.MILLISECONDS_PER_DAY;
+        long days = (end - start) / TimeUtils.MILLISECONDS_PER_DAY;
+
+        while (result.mCount < count) {
+            long day = firstDay + (long) (random.nextDouble() * days);
+            long t = day * TimeUtils.MILLISECONDS_PER_DAY + TimeUtils.MILLISECONDS_PER_DAY / 2;
+            GeomagneticField_Grid lookup = new GeomagneticField_Grid(grid, t);
+            GeomagneticField_WMM exact = new GeomagneticField_WMM(GeomagneticFieldFactory.getModel(t).computeCoefficients(t));
+
+            for (int i = 0; i < LOOKUP_POINTS_PER_DAY && result.mCount < count; i++) {
+                float lat = (float) randomLatitude(random);
+                float lon = (float) (360 * random.nextDouble() - 180);
+                lookup.setParameters(lat, lon, 0);
+                exact.setParameters(lat, lon, 0);
+
+                double dx = lookup.getX() - exact.getX();
+                double dy = lookup.getY() - exact.getY();
+                double dz = lookup.getZ() - exact.getZ();
+                double fieldError = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                double inclinationError = Math.abs(lookup.getInclination() - exact.getInclination());
+                double declinationError = 0;
+                if (exact.getHorizontalStrength() >= GridModel.MIN_HORIZONTAL_FOR_DECLINATION) {
+                    declinationError = Math.abs(lookup.getDeclination() - exact.getDeclination());
+                    declinationError = Math.min(declinationError, 360 - declinationError);
+                }
+                result.mMaxError = Math.max(result.mMaxError, fieldError);
+                result.mMaxAngleError = Math.max(result.mMaxAngleError, Math.max(inclinationError, declinationError));
+                if (!(fieldError <= grid.getFieldErrorEstimate()
+                        && inclinationError <= grid.getInclinationErrorEstimate()
+                        && declinationError <= grid.getDeclinationErrorEstimate())) { // NaN fails
+                    result.fail(String.format(Locale.US, "lookup at %.4f,%.4f on day %d: errors %.3g nT, %.3g deg incl., %.3g deg decl.",
+                        lat, lon, day, fieldError, inclinationError, declinationError));
+                }
+                result.mCount++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Isoline indexes of the bundled epochs and the loaded models, in the middle of the epoch, in parallel:
+     * the query of the exact value at random positions, with the index's error estimate as the tolerance, contains the position.
+     */
+    public static boolean validateIsolines(ExecutorService executor, List<WMMModel> loaded, int points, long seed) throws InterruptedException {
+        boolean passed = true;
+        for (WMMModel model : getModels(loaded)) {
+            // middle of a day (the factory's coefficients are for it)
+            long t = model.getValidFrom() + (long) (2.5 * TimeUtils.DAYS_PER_JULIAN_YEAR * TimeUtils.MILLISECONDS_PER_DAY);
+            final long time = t - t % TimeUtils.MILLISECONDS_PER_DAY + TimeUtils.MILLISECONDS_PER_DAY / 2;
+            final IsolineIndex inclination = IsolineIndex.build(time, IsolineIndex.INCLINATION, ISOLINE_STEP, ISOLINE_INCLINATION_LEVELS);
+            final IsolineIndex intensity   = IsolineIndex.build(time, IsolineIndex.INTENSITY,   ISOLINE_STEP, ISOLINE_INTENSITY_LEVELS);
+            final double inclinationTolerance = inclination.getErrorEstimate();
+            final double intensityTolerance   = intensity.getErrorEstimate();
+            Result result = new Result(String.format(Locale.US, "%s isolines (tolerances: %.3g deg, %.3g nT)",
+                model.getName(), inclinationTolerance, intensityTolerance));
+            List<Future<Result>> chunks = new ArrayList<Future<Result>>();
+            for (int from = 0; from < points; from += FUZZ_CHUNK) {
+                final int count = Math.min(FUZZ_CHUNK, points - from);
+                final long chunkSeed = seed * 31 + model.getBaseYear() * 1000003L + 5 + from;
+                chunks.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return checkIsolines(inclination, inclinationTolerance, intensity, intensityTolerance, time, count, chunkSeed);
+                    }
+                }));
+            }
+            try {
+                for (Future<Result> chunk : chunks) {
+                    result.add(chunk.get());
+                }
+            } catch (ExecutionException e) {
+                result.fail(e.getCause().toString());
+            }
+            passed &= print(result);
+        }
+        return passed;
+    }
+
+    /** Random positions: the bands of the exact inclination and intensity (with the tolerances) contain the position. */
+    private static Result checkIsolines(IsolineIndex inclination, double inclinationTolerance,
+            IsolineIndex intensity, double intensityTolerance, long time, int count, long seed) {
+        Result result = new Result("isolines");
+        Random random = new Random(seed);
+        GeomagneticField_WMM exact = new GeomagneticField_WMM(GeomagneticFieldFactory.getModel(time).computeCoefficients(time));
+
+        for (int i = 0; i < count; i++) {
+            double lat = randomLatitude(random);
+            double lon = 360 * random.nextDouble() - 180;
+            exact.setParameters((float) lat, (float) lon, 0);
+            if (!contains(inclination.query(exact.getInclination(), inclinationTolerance), lat, lon)) {
+                result.fail(String.format(Locale.US, "inclination %.4f at %.4f,%.4f is not in its bands", exact.getInclination(), lat, lon));
+            }
+            if (!contains(intensity.query(exact.getFieldStrength(), intensityTolerance), lat, lon)) {
+                result.fail(String.format(Locale.US, "intensity %.1f nT at %.4f,%.4f is not in its bands", exact.getFieldStrength(), lat, lon));
+            }
+            result.mCount++;
+        }
+        return result;
+    }
+
+    /** @return true, if one of the bands contains the position */
+    private static boolean contains(List<IsolineIndex.Band> bands, double lat, double lon) {
+        for (IsolineIndex.Band band : bands) {
+            if (band.contains(lat, lon)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the registered models of the bundled epochs, and the loaded ones */
+    private static List<WMMModel> getModels(List<WMMModel> loaded) {
+        List<WMMModel> models = new ArrayList<WMMModel>();
+        for (WMM wmm : EPOCHS) {
+            WMMModel model = GeomagneticFieldFactory.getModel(wmm.getBaseYear());
+            if (model != null && !loaded.contains(model)) {
+                models.add(model);
+            }
+        }
+        models.addAll(loaded);
+        return models;
+    }
+
+    /** @return random timestamp in the 5 years of the model's epoch */
+    private static long randomTime(WMMModel model, Random random) {
+        long epochMillis = (long) (5 * TimeUtils.DAYS_PER_JULIAN_YEAR * TimeUtils.MILLISECONDS_PER_DAY);
+        return model.getValidFrom() + (long) (random.nextDouble() * epochMillis);
+    }
+
+    /** @return random latitude, uniform on the sphere, but not at the poles (where the eastward direction is undefined) */
+    private static double randomLatitude(Random random) {
+        return Math.max(-89.99, Math.min(89.99, Math.toDegrees(Math.asin(2 * random.nextDouble() - 1))));
+    }
+
+    /** @return random altitude in the range of the model */
+    private static double randomAltitude(Random random) {
+        return MIN_ALTITUDE + (MAX_ALTITUDE - MIN_ALTITUDE) * random.nextDouble();
+    }
+
+    /** @return the largest component difference */
+    private static double compare(Result result, String path, double lat, double lon, double alt,
+            double[] expected, double x, double y, double z, double tolerance) {
+        double error = Math.max(Math.abs(x - expected[0]), Math.max(Math.abs(y - expected[1]), Math.abs(z - expected[2])));
+        if (!(error < tolerance)) { // NaN fails
+            result.fail(String.format(Locale.US, "%s at %.4f,%.4f %.0fm: error %.3g nT", path, lat, lon, alt, error));
+        }
+        return error;
+    }
+
+    /** Benchmarked work, one run evaluates {@link #BATCH_SIZE} points. */
+    private interface Workload {
+        void run() throws InterruptedException;
+    }
+
+    /** @return evaluations per second of the workload (the first half of the time is warm-up) */
+    private static double measure(Workload workload, double seconds) throws InterruptedException {
+        double rate = 0;
+        for (int round = 0; round < 2; round++) {
+            long count = 0;
+            long t0 = System.nanoTime();
+            long end = t0 + (long) (seconds * 0.5e9);
+            long now;
+            do {
+                workload.run();
+                count += BATCH_SIZE;
+                now = System.nanoTime();
+            } while (now < end);
+            rate = count / ((now - t0) / 1e9);
+        }
+        return rate;
+    }
+
+    /**
+     * Evaluations per second of the registered models: single threaded points, a batch on the same evaluator,
+     * and a batch split on the executor (with a new evaluator per range and run).
+     * All of them compute the same outputs, the field components only.
+     */
+    public static void benchmark(final ExecutorService executor, final int threads, double seconds) throws InterruptedException {
+        for (WMM wmm : EPOCHS) {
+            WMMModel model = GeomagneticFieldFactory.getModel(wmm.getBaseYear());
+            if (model == null) {
+                continue;
+            }
+            final long t = model.getValidFrom() + (long) (2.5 * TimeUtils.DAYS_PER_JULIAN_YEAR * TimeUtils.MILLISECONDS_PER_DAY);
+
+            Random random = new Random(wmm.getBaseYear());
+            final GeomagneticFieldBatch batch = new GeomagneticFieldBatch(
+                new double[BATCH_SIZE], new double[BATCH_SIZE], null,
+                new double[BATCH_SIZE], new double[BATCH_SIZE], new double[BATCH_SIZE],
+                null, null, null);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.mLatitude[i]  = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+                batch.mLongitude[i] = 360 * random.nextDouble() - 180;
+            }
+
+            final GeomagneticField_WMM gmf = new GeomagneticField_WMM(model.getCoefficients(t));
+            final float[] sink = new float[1];
+            double pointRate = measure(new Workload() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        gmf.setParameters((float) batch.mLatitude[i], (float) batch.mLongitude[i], 0);
+                        sink[0] += gmf.getX() + gmf.getY() + gmf.getZ();
+                    }
+                }
+            }, seconds);
+            double batchRate = measure(new Workload() {
+                @Override
+                public void run() {
+                    gmf.evaluate(batch, 0, BATCH_SIZE);
+                }
+            }, seconds);
+            double splitRate = measure(new Workload() {
+                @Override
+                public void run() throws InterruptedException {
+                    batch.evaluate(t, executor, threads);
+                }
+            }, seconds);
+
+            System.out.println(String.format(Locale.US,
+                "%-24s point: %.0f evaluations/s, batch: %.0f evaluations/s, split batch (%d threads): %.0f evaluations/s%s",
+                model.getName() + " (degree " + (model.getMaxDegree()) + ")", pointRate, batchRate, threads, splitRate,
+                Float.isNaN(sink[0]) ? " NaN" : ""));
+        }
+    }
+
+    /**
+     * Textbook evaluation of the model, following the equations of the technical report term by term:
+     * unnormalized associated Legendre functions by the three-term recurrence, the Schmidt factors,
+     * the geodetic-geocentric conversion and the rotation back to geodetic components.
+     * Slow, only for validation. Not thread-safe.
+     */
+    static class Reference {
+
+        // WGS84
+        private static final double A_KM = 6378.137;
+        private static final double FLATTENING = 1 / 298.257223563;
+        private static final double E2 = FLATTENING * (2 - FLATTENING);
+        private static final double REFERENCE_RADIUS_KM = 6371.2;
+
+        private final int mMaxDegree;
+        private final float[][] mG, mH, mDeltaG, mDeltaH;
+        private final double[][] mP;      // P(n, m) unnormalized, without the Condon-Shortley phase
+        private final double[][] mSchmidt;
+
+        Reference(WMM wmm) {
+            mG      = wmm.getGCoeff();
+            mH      = wmm.getHCoeff();
+            mDeltaG = wmm.getDeltaG();
+            mDeltaH = wmm.getDeltaH();
+            mMaxDegree = mG.length - 1;
+            mP = new double[mMaxDegree + 1][mMaxDegree + 1];
+            mSchmidt = new double[mMaxDegree + 1][mMaxDegree + 1];
+            for (int n = 0; n <= mMaxDegree; n++) {
+                mSchmidt[n][0] = 1;
+                for (int m = 1; m <= n; m++) {
+                    // sqrt(2 (n-m)! / (n+m)!)
+                    double ratio = 2;
+                    for (int k = n - m + 1; k <= n + m; k++) {
+                        ratio /= k;
+                    }
+                    mSchmidt[n][m] = Math.sqrt(ratio);
+                }
+            }
+        }
+
+        /**
+         * @param years time since the base of the coefficients
+         * @param result {X, Y, Z} in nanoteslas, geodetic north, east and down
+         */
+        void compute(double years, double gdLatitudeDeg, double gdLongitudeDeg, double altitudeMeters, double[] result) {
+            // geodetic -> geocentric spherical
+            double lat = Math.toRadians(gdLatitudeDeg);
+            double lon = Math.toRadians(gdLongitudeDeg);
+            double h = altitudeMeters / 1000;
+            double rc = A_KM / Math.sqrt(1 - E2 * Math.sin(lat) * Math.sin(lat));
+            double p = (rc + h) * Math.cos(lat);
+            double z = (rc * (1 - E2) + h) * Math.sin(lat);
+            double r = Math.sqrt(p * p + z * z);
+            double gcLat = Math.asin(z / r);
+
+            // Legendre functions of sin(gcLat)
+            double x = Math.sin(gcLat);
+            double c = Math.cos(gcLat);
+            for (int m = 0; m <= mMaxDegree; m++) {
+                double pmm = 1; // (2m-1)!! c^m
+                for (int k = 1; k <= m; k++) {
+                    pmm *= (2 * k - 1) * c;
+                }
+                mP[m][m] = pmm;
+                if (m + 1 <= mMaxDegree) {
+                    mP[m + 1][m] = x * (2 * m + 1) * pmm;
+                }
+                for (int n = m + 2; n <= mMaxDegree; n++) {
+                    mP[n][m] = (x * (2 * n - 1) * mP[n - 1][m] - (n + m - 1) * mP[n - 2][m]) / (n - m);
+                }
+            }
+
+            double north = 0, east = 0, down = 0;
+            for (int n = 1; n <= mMaxDegree; n++) {
+                double radial = Math.pow(REFERENCE_RADIUS_KM / r, n + 2);
+                for (int m = 0; m <= n; m++) {
+                    double g = mG[n][m] + years * mDeltaG[n][m];
+                    double hh = mH[n][m] + years * mDeltaH[n][m];
+                    double cos = Math.cos(m * lon);
+                    double sin = Math.sin(m * lon);
+                    double schmidtP = mSchmidt[n][m] * mP[n][m];
+                    // dP/dlat = cos(lat) dP/dx = ((n+m) P(n-1, m) - n x P(n, m)) / cos(lat)
+                    double previous = (n - 1 >= m) ? mP[n - 1][m] : 0;
+                    double dP = mSchmidt[n][m] * ((n + m) * previous - n * x * mP[n][m]) / c;
+
+                    north -= radial * (g * cos + hh * sin) * dP;
+                    east  += radial * m * (g * sin - hh * cos) * schmidtP / c;
+                    down  -= radial * (n + 1) * (g * cos + hh * sin) * schmidtP;
+                }
+            }
+
+            // rotate to geodetic
+            double psi = gcLat - lat;
+            result[0] = north * Math.cos(psi) - down * Math.sin(psi);
+            result[1] = east;
+            result[2] = north * Math.sin(psi) + down * Math.cos(psi);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package hu.ureczky.utils.astro.geomagneticfield.wmm;
+
+import hu.ureczky.utils.TimeUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable coefficient tables of one geomagnetic model epoch (WMM, or a high-degree model like EMM/HDGM),
+ * built once and shared by all evaluators.
+ * <br/> The (n,m) coefficients are given in flat triangular arrays: index = n*(n+1)/2 + m (row by row),
+ * and packed at load by the order m (column by column, see {@link #index(int, int, int)}):
+ * the Legendre recurrences of the evaluator run along the columns, and the terms of a column share sin/cos(m lon),
+ * so the evaluator walks all tables contiguously.
+ * They are Schmidt quasi-normalized, like the recurrences of the evaluator, so they need no normalization factors
+ * (those would overflow for high degrees).
+ * <br/> The time-adjusted coefficients are cached per (UTC) day: the secular variation during a day is far below the model's accuracy.
+ * <br/> Thread-safe.
+ */
+public class WMMModel {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** A model is valid for 5 years from the beginning of its base year. */
+    public static final int VALID_YEARS = 5;
+
+    // Number of the cached days
+    private static final int CACHE_SIZE = 8;
+
+    private final String mName;
+    private final int mBaseYear;
+    private final long mValidFrom;  // beginning of the base year (UTC)
+    private final long mValidTo;    // beginning of the year after the validity (UTC)
+    final int mMaxN;                // Number of the degrees (maximum degree + 1).
+
+    // Schmidt quasi-normalized coefficients and their secular variation (per year), packed by columns
+    final double[] mG;
+    final double[] mH;
+    final double[] mDeltaG;
+    final double[] mDeltaH;
+
+    // Constants of the Legendre recurrences (see GeomagneticField_WMM), they depend only on the degree, packed by columns
+    final double[] mRecurrenceA;  // (2n-1) / sqrt(n^2-m^2)
+    final double[] mRecurrenceB;  // sqrt((n-1)^2-m^2) / sqrt(n^2-m^2)
+    final double[] mRecurrenceC;  // sqrt(n^2-m^2)
+    final double[] mSectoral;     // sqrt((2m-1) / 2m), by m (1 for m = 1)
+
+    // Time-adjusted coefficients by day index (least recently used is dropped)
+    private final Map<Long, Coefficients> mDays = new LinkedHashMap<Long, Coefficients>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Coefficients> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /** Coefficients adjusted for a time -- they don't depend on the location. Immutable. */
+    public static final class Coefficients {
+        final WMMModel mModel;
+        final long mTimeStamp;
+        final int mMaxN;
+        final double[] mG; // packed by columns
+        final double[] mH; // packed by columns
+
+        private Coefficients(WMMModel model, long timeStamp, double[] g, double[] h) {
+            mModel     = model;
+            mTimeStamp = timeStamp;
+            mMaxN      = model.mMaxN;
+            mG         = g;
+            mH         = h;
+        }
+
+        public long getTimeStamp() {
+            return mTimeStamp;
+        }
+
+        public WMMModel getModel() {
+            return mModel;
+        }
+    }
+
+    /** Model of the bundled coefficient tables. */
+    public WMMModel(WMM wmm) {
+        this("WMM-" + wmm.getBaseYear(), wmm.getBaseYear(),
+             flatten(wmm.getGCoeff()), flatten(wmm.getHCoeff()), flatten(wmm.getDeltaG()), flatten(wmm.getDeltaH()));
+    }
+
+    /**
+     * @param g, h, deltaG, deltaH flat triangular Schmidt quasi-normalized coefficients (index = n*(n+1)/2 + m)
+     */
+    public WMMModel(String name, int baseYear, double[] g, double[] h, double[] deltaG, double[] deltaH) {
+        int maxN = (int) Math.round((Math.sqrt(8.0 * g.length + 1) - 1) / 2);
+        if(maxN * (maxN + 1) / 2 != g.length || h.length != g.length || deltaG.length != g.length || deltaH.length != g.length) {
+            throw new IllegalArgumentException("Not triangular coefficient arrays: " + g.length);
+        }
+
+        mName     = name;
+        mBaseYear = baseYear;
+        mValidFrom = TimeUtils.getTimeStampFromDecimalYear(mBaseYear);
+        mValidTo   = TimeUtils.getTimeStampFromDecimalYear(mBaseYear + VALID_YEARS);
+        mMaxN = maxN;
+
+        mG      = pack(maxN, g);
+        mH      = pack(maxN, h);
+        mDeltaG = pack(maxN, deltaG);
+        mDeltaH = pack(maxN, deltaH);
+
+        int size = g.length;
+        mRecurrenceA = new double[size];
+        mRecurrenceB = new double[size];
+        mRecurrenceC = new double[size];
+        for (int m = 0; m < maxN; m++) {
+            for (int n = m + 1, k = index(maxN, n, m); n < maxN; n++, k++) {
+                double c = Math.sqrt(n * n - m * m);
+                mRecurrenceA[k] = (2 * n - 1) / c;
+                mRecurrenceB[k] = Math.sqrt(Math.max(0, (n - 1) * (n - 1) - m * m)) / c;
+                mRecurrenceC[k] = c;
+            }
+        }
+        mSectoral = new double[maxN];
+        if (maxN > 1) {
+            mSectoral[1] = 1; // P_1^1 = sin
+        }
+        for (int m = 2; m < maxN; m++) {
+            mSectoral[m] = Math.sqrt((2 * m - 1) / (2.0 * m));
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getBaseYear() {
+        return mBaseYear;
+    }
+
+    /** @return maximum degree of the coefficients */
+    public int getMaxDegree() {
+        return mMaxN - 1;
+    }
+
+    /** @return beginning of the base year (UTC timestamp in milliseconds) */
+    public long getValidFrom() {
+        return mValidFrom;
+    }
+
+    /** @return end of the validity, exclusive (UTC timestamp in milliseconds), later times are extrapolated */
+    public long getValidTo() {
+        return mValidTo;
+    }
+
+    /**
+     * @return coefficients adjusted for the middle of the timestamp's (UTC) day, cached
+     */
+    public Coefficients getCoefficients(long timeStamp) {
+        long day = (long) Math.floor((double) timeStamp / DAY_MILLIS);
+        synchronized(mDays) {
+            Coefficients coefficients = mDays.get(day);
+            if(coefficients == null) {
+                coefficients = computeCoefficients(day * DAY_MILLIS + DAY_MILLIS / 2);
+                mDays.put(day, coefficients);
+            }
+            return coefficients;
+        }
+    }
+
+    /**
+     * @return coefficients adjusted exactly for the timestamp, not cached
+     */
+    public Coefficients computeCoefficients(long timeStamp) {
+        double yearsSinceBase = getYearsSinceBase(timeStamp);
+        int size = mG.length;
+        double[] g = new double[size];
+        double[] h = new double[size];
+        for (int k = 0; k < size; k++) {
+            g[k] = mG[k] + yearsSinceBase * mDeltaG[k];
+            h[k] = mH[k] + yearsSinceBase * mDeltaH[k];
+        }
+        return new Coefficients(this, timeStamp, g, h);
+    }
+
+    /** @return time of the secular variation: decimal years since the beginning of the base year (as the WMM report defines) */
+    public double getYearsSinceBase(long timeStamp) {
+        return TimeUtils.getDecimalYear(timeStamp) - mBaseYear;
+    }
+
+    /** Coefficient arrays for saving, flat triangular (as given to the constructor). */
+    double[][] getTables() {
+        return new double[][] { unpack(mMaxN, mG), unpack(mMaxN, mH), unpack(mMaxN, mDeltaG), unpack(mMaxN, mDeltaH) };
+    }
+
+    /**
+     * Index of (n, m) in the tables packed by columns: the column of the order m holds the degrees n = m..maxN-1.
+     * @param maxN number of the degrees (maximum degree + 1)
+     */
+    static int index(int maxN, int n, int m) {
+        return m * maxN - m * (m - 1) / 2 + (n - m);
+    }
+
+    private static double[] pack(int maxN, double[] triangular) {
+        double[] packed = new double[triangular.length];
+        for (int n = 0, i = 0; n < maxN; n++) {
+            for (int m = 0; m <= n; m++, i++) {
+                packed[index(maxN, n, m)] = triangular[i];
+            }
+        }
+        return packed;
+    }
+
+    private static double[] unpack(int maxN, double[] packed) {
+        double[] triangular = new double[packed.length];
+        for (int n = 0, i = 0; n < maxN; n++) {
+            for (int m = 0; m <= n; m++, i++) {
+                triangular[i] = packed[index(maxN, n, m)];
+            }
+        }
+        return triangular;
+    }
+
+    private static double[] flatten(float[][] coeff) {
+        int maxN = coeff.length;
+        double[] result = new double[maxN * (maxN + 1) / 2];
+        for (int n = 0; n < maxN; n++) {
+            for (int m = 0; m <= n; m++) {
+                result[n * (n + 1) / 2 + m] = coeff[n][m];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,18 @@
+package hu.ureczky.utils.tests;
+
+/**
+ * Assertions of the self-tests, platform independent (unlike {@link Tests}).
+ */
+public class Assert {
+    
+    public static void assertTrue(boolean bool) {
+        if(!bool) {
+            try {
+                throw new Exception("assertTrue");
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+}
@@ -30,14 +30,4 @@ public class Tests {
         }
     }
     
-    public static void assertTrue(boolean bool) {
-        if(!bool) {
-            try {
-                throw new Exception("assertTrue");
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-    
 }